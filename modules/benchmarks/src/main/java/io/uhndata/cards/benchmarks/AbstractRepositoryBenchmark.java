@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base class for the benchmarks that need a seeded repository. The size of the repository can be changed from the
+ * command line, for example {@code -p questions=100 -p subjects=50 -p formsPerSubject=4}.
+ * <p>
+ * The repository is set up by the benchmark thread, and the resource resolver is bound to that thread, so these
+ * benchmarks must run with a single thread.
+ * </p>
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractRepositoryBenchmark
+{
+    /** How many text questions the questionnaire has. */
+    @Param({ "20" })
+    public int questions;
+
+    /** How many subjects to create. */
+    @Param({ "20" })
+    public int subjects;
+
+    /** How many forms to create for each subject. */
+    @Param({ "5" })
+    public int formsPerSubject;
+
+    protected BenchmarkRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUpRepository() throws RepositoryException
+    {
+        this.repository = new BenchmarkRepository(this.questions, this.subjects, this.formsPerSubject);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownRepository()
+    {
+        this.repository.close();
+    }
+}
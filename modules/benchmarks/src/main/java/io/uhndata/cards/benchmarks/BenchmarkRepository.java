@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.script.ScriptEngineManager;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.context.SlingContextImpl;
+
+import io.uhndata.cards.forms.internal.ExpressionUtilsImpl;
+import io.uhndata.cards.forms.internal.FormUtilsImpl;
+import io.uhndata.cards.forms.internal.QuestionnaireUtilsImpl;
+import io.uhndata.cards.forms.internal.serialize.DataProcessor;
+import io.uhndata.cards.forms.internal.serialize.QuestionnaireToCsvProcessor;
+import io.uhndata.cards.resolverProvider.internal.ThreadResourceResolverProviderImpl;
+import io.uhndata.cards.serialize.ResourceToCSVAdapterFactory;
+import io.uhndata.cards.serialize.ResourceToJsonAdapterFactory;
+import io.uhndata.cards.serialize.internal.BareProcessor;
+import io.uhndata.cards.serialize.internal.DeepProcessor;
+import io.uhndata.cards.serialize.internal.DefaultDataFiltersParser;
+import io.uhndata.cards.serialize.internal.DereferenceProcessor;
+import io.uhndata.cards.serialize.internal.IdentificationProcessor;
+import io.uhndata.cards.serialize.internal.PropertiesProcessor;
+import io.uhndata.cards.serialize.internal.QuestionnaireSerializationCache;
+import io.uhndata.cards.serialize.internal.ReferencedProcessor;
+import io.uhndata.cards.serialize.internal.SimpleProcessor;
+import io.uhndata.cards.subjects.internal.SubjectUtilsImpl;
+
+/**
+ * An in-memory Oak repository running in a mock Sling instance, with the CARDS node types and the services needed by
+ * the benchmarks, seeded with synthetic data:
+ * <ul>
+ * <li>one questionnaire, {@code /Questionnaires/Benchmark}, with a number of text questions, followed by a computed
+ * question that sums the lengths of all the other answers</li>
+ * <li>a number of patient subjects, {@code /Subjects/s0} and so on</li>
+ * <li>a number of forms for each subject, {@code /Forms/s0f0} and so on, answering all the text questions</li>
+ * </ul>
+ * The CARDS node types are registered automatically from the {@code Sling-Nodetypes} headers of the data model
+ * bundles on the classpath.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings({ "checkstyle:ClassDataAbstractionCoupling", "checkstyle:ClassFanOutComplexity" })
+public final class BenchmarkRepository extends SlingContextImpl
+{
+    /** The path of the synthetic questionnaire. */
+    public static final String QUESTIONNAIRE = "/Questionnaires/Benchmark";
+
+    /** The name of the computed question in the synthetic questionnaire. */
+    public static final String COMPUTED_QUESTION = "total";
+
+    private final int questions;
+
+    private final List<String> forms = new ArrayList<>();
+
+    /**
+     * Start the repository and seed it with data.
+     *
+     * @param questions how many text questions to put in the questionnaire
+     * @param subjects how many subjects to create
+     * @param formsPerSubject how many forms to create for each subject
+     * @throws RepositoryException if seeding the repository fails
+     */
+    public BenchmarkRepository(final int questions, final int subjects, final int formsPerSubject)
+        throws RepositoryException
+    {
+        this.questions = questions;
+        setResourceResolverType(ResourceResolverType.JCR_OAK);
+        setUp();
+        registerServices();
+        seed(subjects, formsPerSubject);
+    }
+
+    /**
+     * Shut down the repository.
+     */
+    public void close()
+    {
+        tearDown();
+    }
+
+    /**
+     * The paths of all the forms, in the order they were created.
+     *
+     * @return a list of form paths
+     */
+    public List<String> getForms()
+    {
+        return this.forms;
+    }
+
+    /**
+     * The names of the text questions, which are also the names of the arguments of the computed question.
+     *
+     * @return a list of question names
+     */
+    public List<String> getQuestionNames()
+    {
+        final List<String> result = new ArrayList<>(this.questions);
+        for (int i = 0; i < this.questions; ++i) {
+            result.add("q" + i);
+        }
+        return result;
+    }
+
+    /**
+     * The JCR session of the resource resolver used for seeding and running the benchmarks.
+     *
+     * @return a session with full access
+     */
+    public Session getSession()
+    {
+        return resourceResolver().adaptTo(Session.class);
+    }
+
+    /**
+     * The resource resolver used for seeding and running the benchmarks.
+     *
+     * @return a resolver with full access
+     */
+    public ResourceResolver getResolver()
+    {
+        return resourceResolver();
+    }
+
+    private void registerServices()
+    {
+        registerService(ScriptEngineManager.class, new ScriptEngineManager());
+        final ThreadResourceResolverProviderImpl rrp =
+            registerInjectActivateService(new ThreadResourceResolverProviderImpl());
+        rrp.push(resourceResolver());
+        registerInjectActivateService(new QuestionnaireUtilsImpl());
+        registerInjectActivateService(new SubjectUtilsImpl());
+        registerInjectActivateService(new FormUtilsImpl());
+        registerInjectActivateService(new ExpressionUtilsImpl());
+        registerInjectActivateService(new DefaultDataFiltersParser());
+
+        // JSON serialization
+        registerInjectActivateService(new QuestionnaireSerializationCache());
+        registerInjectActivateService(new BareProcessor());
+        registerInjectActivateService(new DeepProcessor());
+        registerInjectActivateService(new DereferenceProcessor());
+        registerInjectActivateService(new IdentificationProcessor());
+        registerInjectActivateService(new PropertiesProcessor());
+        registerInjectActivateService(new ReferencedProcessor());
+        registerInjectActivateService(new SimpleProcessor());
+        registerInjectActivateService(new DataProcessor());
+        registerInjectActivateService(new ResourceToJsonAdapterFactory());
+
+        // CSV serialization
+        registerInjectActivateService(new QuestionnaireToCsvProcessor());
+        registerInjectActivateService(new ResourceToCSVAdapterFactory());
+    }
+
+    private void seed(final int subjects, final int formsPerSubject) throws RepositoryException
+    {
+        final Session session = getSession();
+        final Node root = session.getRootNode();
+
+        final Node subjectTypes = root.addNode("SubjectTypes", "cards:SubjectTypesHomepage");
+        final Node patient = subjectTypes.addNode("Patient", "cards:SubjectType");
+        patient.setProperty("label", "Patient");
+
+        final Node questionnaire =
+            root.addNode("Questionnaires", "cards:QuestionnairesHomepage").addNode("Benchmark", "cards:Questionnaire");
+        questionnaire.setProperty("title", "Benchmark");
+        questionnaire.setProperty("requiredSubjectTypes", new String[] { patient.getIdentifier() },
+            PropertyType.REFERENCE);
+        final List<Node> questionNodes = new ArrayList<>(this.questions);
+        final StringBuilder expression = new StringBuilder("return 0");
+        for (String name : getQuestionNames()) {
+            final Node question = questionnaire.addNode(name, "cards:Question");
+            question.setProperty("text", "Question " + name);
+            question.setProperty("dataType", "text");
+            questionNodes.add(question);
+            expression.append(" + String(@{").append(name).append(":-}).length");
+        }
+        final Node computed = questionnaire.addNode(COMPUTED_QUESTION, "cards:Question");
+        computed.setProperty("text", "Total length");
+        computed.setProperty("dataType", "computed");
+        computed.setProperty("entryMode", "computed");
+        computed.setProperty("expression", expression.toString());
+
+        final Node subjectsHomepage = root.addNode("Subjects", "cards:SubjectsHomepage");
+        final Node formsHomepage = root.addNode("Forms", "cards:FormsHomepage");
+        for (int s = 0; s < subjects; ++s) {
+            final Node subject = subjectsHomepage.addNode("s" + s, "cards:Subject");
+            subject.setProperty("identifier", "Patient " + s);
+            subject.setProperty("fullIdentifier", "Patient " + s);
+            subject.setProperty("type", patient);
+            for (int f = 0; f < formsPerSubject; ++f) {
+                final Node form = formsHomepage.addNode("s" + s + "f" + f, "cards:Form");
+                form.setProperty("questionnaire", questionnaire);
+                form.setProperty("subject", subject);
+                form.setProperty("relatedSubjects", new String[] { subject.getIdentifier() },
+                    PropertyType.WEAKREFERENCE);
+                form.setProperty("statusFlags", new String[] { "SUBMITTED" });
+                for (int q = 0; q < questionNodes.size(); ++q) {
+                    final Node answer = form.addNode("a" + q, "cards:TextAnswer");
+                    answer.setProperty("question", questionNodes.get(q));
+                    answer.setProperty("value", "Answer " + q + " for subject " + s);
+                }
+                this.forms.add(form.getPath());
+            }
+            // Don't keep everything in the transient space
+            session.save();
+        }
+        session.save();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.uhndata.cards.forms.api.ExpressionUtils;
+import io.uhndata.cards.forms.api.ExpressionUtils.ExpressionResult;
+
+/**
+ * Measures the evaluation of a computed answer whose expression references all the other questions of the
+ * questionnaire.
+ *
+ * @version $Id$
+ */
+public class ComputedAnswerBenchmark extends AbstractRepositoryBenchmark
+{
+    private ExpressionUtils expressionUtils;
+
+    private Node question;
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUpExpression() throws RepositoryException
+    {
+        this.expressionUtils = this.repository.getService(ExpressionUtils.class);
+        this.question = this.repository.getSession()
+            .getNode(BenchmarkRepository.QUESTIONNAIRE + "/" + BenchmarkRepository.COMPUTED_QUESTION);
+        this.repository.getQuestionNames().forEach(name -> this.values.put(name, "Value of " + name));
+    }
+
+    /**
+     * Evaluate the expression with all of its arguments available.
+     *
+     * @return the result of the evaluation
+     */
+    @Benchmark
+    public ExpressionResult evaluate()
+    {
+        return this.expressionUtils.evaluate(this.question, this.values, Type.LONG, Collections.emptySet());
+    }
+
+    /**
+     * Only list the questions that the expression depends on.
+     *
+     * @return the names of the referenced questions
+     */
+    @Benchmark
+    public Set<String> getDependencies()
+    {
+        return this.expressionUtils.getDependencies(this.question);
+    }
+}
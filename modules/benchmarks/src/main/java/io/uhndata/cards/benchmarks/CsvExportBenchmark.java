@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVWriter;
+
+/**
+ * Measures the CSV export of all the forms of a questionnaire.
+ *
+ * @version $Id$
+ */
+public class CsvExportBenchmark extends AbstractRepositoryBenchmark
+{
+    /**
+     * Export all the data into a string, as done by the scheduled exports that upload to remote storage.
+     *
+     * @return the exported data
+     */
+    @Benchmark
+    public CSVString exportToString()
+    {
+        return this.repository.getResolver().resolve(BenchmarkRepository.QUESTIONNAIRE + ".data")
+            .adaptTo(CSVString.class);
+    }
+
+    /**
+     * Stream all the data, as done by the CSV export servlet.
+     *
+     * @throws IOException if writing the output fails
+     */
+    @Benchmark
+    public void streamExport() throws IOException
+    {
+        this.repository.getResolver().resolve(BenchmarkRepository.QUESTIONNAIRE + ".data")
+            .adaptTo(ResourceCSVWriter.class).write(Writer.nullWriter());
+    }
+}
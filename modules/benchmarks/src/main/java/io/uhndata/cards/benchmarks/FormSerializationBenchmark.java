@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.io.Writer;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import io.uhndata.cards.serialize.ResourceJsonWriter;
+
+/**
+ * Measures the JSON serialization of forms, going through all the forms in turn, so that the forms themselves are
+ * never served from a cache, while the questionnaire definitions they reference are.
+ *
+ * @version $Id$
+ */
+public class FormSerializationBenchmark extends AbstractRepositoryBenchmark
+{
+    private int next;
+
+    /**
+     * Serialize a form with the default processors.
+     *
+     * @return the serialized form
+     */
+    @Benchmark
+    public JsonObject serializeForm()
+    {
+        return this.repository.getResolver().resolve(nextForm()).adaptTo(JsonObject.class);
+    }
+
+    /**
+     * Serialize a form along with its answers, questions and subject.
+     *
+     * @return the serialized form
+     */
+    @Benchmark
+    public JsonObject serializeDeepForm()
+    {
+        return this.repository.getResolver().resolve(nextForm() + ".deep").adaptTo(JsonObject.class);
+    }
+
+    /**
+     * Stream a form along with its answers, questions and subject, without building the whole JSON in memory.
+     */
+    @Benchmark
+    public void streamDeepForm()
+    {
+        final ResourceJsonWriter writer =
+            this.repository.getResolver().resolve(nextForm() + ".deep").adaptTo(ResourceJsonWriter.class);
+        try (JsonGenerator generator = Json.createGenerator(Writer.nullWriter())) {
+            writer.write(generator);
+        }
+    }
+
+    private String nextForm()
+    {
+        final List<String> forms = this.repository.getForms();
+        this.next = (this.next + 1) % forms.size();
+        return forms.get(this.next);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
+import org.apache.jackrabbit.oak.plugins.tree.factories.TreeFactory;
+import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionPattern;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.uhndata.cards.permissions.internal.IdentifierCache;
+import io.uhndata.cards.permissions.internal.QuestionRestrictionFactory;
+import io.uhndata.cards.permissions.internal.QuestionnaireRestrictionFactory;
+import io.uhndata.cards.permissions.internal.SubjectRestrictionFactory;
+import io.uhndata.cards.permissions.spi.RestrictionFactory;
+
+/**
+ * Measures the cost of the CARDS restriction patterns for one tree read: each pattern is checked against a form and
+ * each of its answers, the way Oak checks the restrictions of the permission entries for every node it reads.
+ *
+ * @version $Id$
+ */
+public class PermissionEvaluationBenchmark extends AbstractRepositoryBenchmark
+{
+    private IdentifierCache identifierCache;
+
+    private List<RestrictionPattern> patterns;
+
+    private List<Tree> trees;
+
+    private List<ResourceChange> changes;
+
+    @Setup(Level.Trial)
+    public void setUpPatterns() throws RepositoryException
+    {
+        final Session session = this.repository.getSession();
+        this.identifierCache = this.repository.registerInjectActivateService(new IdentifierCache());
+        this.patterns = Arrays.asList(
+            forValue(new QuestionnaireRestrictionFactory(), BenchmarkRepository.QUESTIONNAIRE),
+            forValue(new QuestionRestrictionFactory(), BenchmarkRepository.QUESTIONNAIRE + "/q0"),
+            // Not the subject of the measured form, so that its whole chain of parents is checked
+            forValue(new SubjectRestrictionFactory(), session.getNode("/Subjects/s1").getIdentifier()));
+
+        // Oak evaluates the restrictions on its own trees, so copy the first form into a read-only tree
+        final Node form = session.getNode(this.repository.getForms().get(0));
+        final NodeBuilder root = EmptyNodeState.EMPTY_NODE.builder();
+        copy(form, root.child(form.getName()));
+        final Tree formTree = TreeFactory.createReadOnlyTree(root.getNodeState()).getChild(form.getName());
+        this.trees = new ArrayList<>();
+        this.trees.add(formTree);
+        formTree.getChildren().forEach(this.trees::add);
+
+        this.changes = Arrays.asList(new ResourceChange(ChangeType.REMOVED, "/Questionnaires", false),
+            new ResourceChange(ChangeType.REMOVED, "/Subjects", false));
+    }
+
+    /**
+     * Evaluate the restrictions with the identifiers already cached, which is the usual case.
+     *
+     * @return how many times a restriction matched
+     */
+    @Benchmark
+    public int cachedIdentifiers()
+    {
+        return evaluate();
+    }
+
+    /**
+     * Evaluate the restrictions after the cached identifiers were discarded, so that every node involved is looked up
+     * in the session again, as happens right after a questionnaire or subject changes.
+     *
+     * @return how many times a restriction matched
+     */
+    @Benchmark
+    public int emptyCache()
+    {
+        this.identifierCache.onChange(this.changes);
+        return evaluate();
+    }
+
+    private int evaluate()
+    {
+        int matches = 0;
+        for (Tree tree : this.trees) {
+            for (RestrictionPattern pattern : this.patterns) {
+                if (pattern.matches(tree, null)) {
+                    ++matches;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private RestrictionPattern forValue(final RestrictionFactory factory, final String value)
+    {
+        final RestrictionFactory registered = this.repository.registerInjectActivateService(factory);
+        final boolean multiple = registered.getType().isArray();
+        return registered.forValue(PropertyStates.createProperty(registered.getName(),
+            multiple ? Collections.singletonList(value) : value, registered.getType()));
+    }
+
+    private static void copy(final Node node, final NodeBuilder builder) throws RepositoryException
+    {
+        for (PropertyIterator i = node.getProperties(); i.hasNext();) {
+            final Property property = i.nextProperty();
+            // The restrictions only look at string-like properties
+            switch (property.getType()) {
+                case PropertyType.STRING:
+                case PropertyType.NAME:
+                case PropertyType.PATH:
+                case PropertyType.REFERENCE:
+                case PropertyType.WEAKREFERENCE:
+                    break;
+                default:
+                    continue;
+            }
+            final Type<?> type = Type.fromTag(property.getType(), property.isMultiple());
+            if (property.isMultiple()) {
+                final List<String> values = new ArrayList<>();
+                for (Value value : property.getValues()) {
+                    values.add(value.getString());
+                }
+                builder.setProperty(PropertyStates.createProperty(property.getName(), values, type));
+            } else {
+                builder.setProperty(PropertyStates.createProperty(property.getName(), property.getString(), type));
+            }
+        }
+        for (NodeIterator i = node.getNodes(); i.hasNext();) {
+            final Node child = i.nextNode();
+            copy(child, builder.child(child.getName()));
+        }
+    }
+}
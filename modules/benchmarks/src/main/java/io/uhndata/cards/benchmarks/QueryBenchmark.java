@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.uhndata.cards.PaginationServlet;
+
+/**
+ * Measures the generation and the execution of the query used for listing forms filtered by the value of an answer.
+ *
+ * @version $Id$
+ */
+public class QueryBenchmark extends AbstractRepositoryBenchmark
+{
+    private final QueryGenerator generator = new QueryGenerator();
+
+    private MockSlingHttpServletRequest request;
+
+    private String query;
+
+    @Setup(Level.Trial)
+    public void setUpRequest() throws RepositoryException
+    {
+        final Session session = this.repository.getSession();
+        final String question = session.getNode(BenchmarkRepository.QUESTIONNAIRE + "/q0").getIdentifier();
+        this.request = new MockSlingHttpServletRequest(this.repository.getResolver(), this.repository.bundleContext());
+        this.request.setResource(this.repository.getResolver().getResource("/Forms"));
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("filternames", question);
+        parameters.put("filtervalues", "Answer 0 for subject 1");
+        parameters.put("filtertypes", "text");
+        parameters.put("filtercomparators", "=");
+        this.request.setParameterMap(parameters);
+        this.query = this.generator.generate(this.request, session);
+    }
+
+    /**
+     * Only generate the query from the request parameters.
+     *
+     * @return the generated query
+     * @throws RepositoryException if accessing the repository fails
+     */
+    @Benchmark
+    public String generateQuery() throws RepositoryException
+    {
+        return this.generator.generate(this.request, this.repository.getSession());
+    }
+
+    /**
+     * Execute the query and go through all the results.
+     *
+     * @return the number of results
+     * @throws RepositoryException if accessing the repository fails
+     */
+    @Benchmark
+    public long executeQuery() throws RepositoryException
+    {
+        final NodeIterator results = this.repository.getSession().getWorkspace().getQueryManager()
+            .createQuery(this.query, Query.JCR_SQL2).execute().getNodes();
+        long count = 0;
+        while (results.hasNext()) {
+            results.nextNode();
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Exposes the query generation of the pagination servlet.
+     */
+    private static final class QueryGenerator extends PaginationServlet
+    {
+        private static final long serialVersionUID = 1L;
+
+        String generate(final SlingHttpServletRequest request, final Session session) throws RepositoryException
+        {
+            return createQuery(request, session, parseFiltersFromRequest(request));
+        }
+    }
+}
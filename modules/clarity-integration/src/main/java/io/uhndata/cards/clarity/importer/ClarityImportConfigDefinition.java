@@ -72,6 +72,29 @@
         required = false)
     boolean prioritizeNewestEvents() default false;
 
+    @AttributeDefinition(name = "Batch size",
+        description = "How many rows to import before saving. 0 means that each row is saved on its own."
+            + " With a positive value, the subjects and forms needed by a batch of rows are looked up with a single"
+            + " query and remembered for the whole import, which is much faster for large imports. A batch is saved"
+            + " early when it reaches another row of the same patient, so that processors querying for previously"
+            + " imported forms still see all the earlier rows of that patient.",
+        required = false)
+    int batchSize() default 0;
+
+    @AttributeDefinition(name = "Fetch size",
+        description = "How many rows to fetch from the SQL server at once, using a server-side cursor."
+            + " 0 uses the driver's default, which buffers the results as they are read.",
+        required = false)
+    int fetchSize() default 0;
+
+    @AttributeDefinition(name = "Processing threads",
+        description = "How many threads run the import processors. 0 processes each row on the import thread, before"
+            + " storing it. With a positive value, reading the rows, processing them, and storing them run at the same"
+            + " time, and the time spent in each stage is added to the metrics. The rows of the same patient are always"
+            + " processed by the same thread, in order, each one once the earlier ones are stored.",
+        required = false)
+    int processingThreads() default 0;
+
     @AttributeDefinition(name = "Column mapping", description = "Full path to the clarity mapping node")
     String mapping() default "/apps/cards/clarityImport";
 }
@@ -39,6 +39,7 @@
 import org.osgi.service.component.annotations.ReferencePolicy;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(service = { Servlet.class })
@@ -56,6 +57,9 @@ public class ClarityImportEndpoint extends SlingSafeMethodsServlet
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private ClarityImportCache importCache;
+
     /** A list of all available data processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
         policy = ReferencePolicy.DYNAMIC)
@@ -99,8 +103,8 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         }
 
         final int pastDayToQuery = getPastDayToQuery(request);
-        final Runnable importJob =
-            new ClarityImportTask(config, pastDayToQuery, this.resolverFactory, this.rrp, this.processors);
+        final Runnable importJob = new ClarityImportTask(config, pastDayToQuery, this.resolverFactory, this.rrp,
+            this.importCache, this.processors);
         final Thread thread = new Thread(importJob);
         thread.start();
         writeSuccess(response);
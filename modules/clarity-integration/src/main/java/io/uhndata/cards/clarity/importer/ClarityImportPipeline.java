@@ -0,0 +1,456 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.clarity.importer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Imports Clarity rows in three stages running at the same time. A reader thread streams the rows out of the SQL
+ * results, several worker threads run the data processors on them, and the calling thread stores the processed rows
+ * in the repository, in batches.
+ * <p>
+ * Rows are assigned to workers by their partition key, usually the patient identifier, so all the rows of a patient
+ * are processed by the same thread, in the order they were read. Each worker has its own resource resolver, made
+ * available to the processors through the {@link ThreadResourceResolverProvider}, since JCR sessions can't be shared
+ * between threads.
+ * </p>
+ * <p>
+ * Processors may look in the repository for the data imported from earlier rows, for example to discard the other
+ * visits of the same day. So before processing a row, a worker waits until the writer saved the earlier rows with the
+ * same partition key, asking it to write its current batch right away if needed. Rows of different patients don't
+ * wait for each other.
+ * </p>
+ * <p>
+ * The number of rows handled by each stage and the time spent in it are added to the {@code ClarityImport*Rows} and
+ * {@code ClarityImport*Time} metrics at the end, to show where the import spends its time.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class ClarityImportPipeline
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClarityImportPipeline.class);
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /** Marks the end of the rows in a queue. */
+    private static final KeyedRow END = new KeyedRow(null, Collections.emptyMap());
+
+    /** Asks the writer to write the rows it has, without waiting for a full batch. */
+    private static final KeyedRow FLUSH = new KeyedRow(null, Collections.emptyMap());
+
+    private final int workerCount;
+
+    private final int batchSize;
+
+    private final ResourceResolverFactory resolverFactory;
+
+    private final ThreadResourceResolverProvider rrp;
+
+    private final Stage readStage = new Stage("read");
+
+    private final Stage processStage = new Stage("process");
+
+    private final Stage writeStage = new Stage("write");
+
+    /** Why the reader stopped early; the rows read before the failure are still imported. */
+    private final AtomicReference<Throwable> readFailure = new AtomicReference<>();
+
+    /** Why a worker stopped early; the rows assigned to it are lost, so the whole import stops. */
+    private final AtomicReference<Throwable> workerFailure = new AtomicReference<>();
+
+    /** How many processed rows of each partition key are not written yet. Guards itself, and is notified on writes. */
+    private final Map<String, Integer> unwritten = new HashMap<>();
+
+    /**
+     * Produces the rows to import.
+     */
+    @FunctionalInterface
+    interface RowSource
+    {
+        /**
+         * Read the next row.
+         *
+         * @return the next row, or {@code null} if there are no more rows
+         * @throws SQLException if reading fails
+         */
+        Map<String, String> next() throws SQLException;
+    }
+
+    /**
+     * Runs the data processors on the rows, on a worker thread.
+     */
+    interface RowProcessor
+    {
+        /**
+         * Called on each worker thread, before it processes its first row.
+         */
+        void start();
+
+        /**
+         * Process a row.
+         *
+         * @param row the row read from Clarity
+         * @return the processed row, or {@code null} if the row must not be imported
+         */
+        Map<String, String> process(Map<String, String> row);
+
+        /**
+         * Called on each worker thread, after it processed its last row.
+         */
+        void end();
+    }
+
+    /**
+     * Stores processed rows, on the thread that runs the pipeline.
+     */
+    @FunctionalInterface
+    interface RowWriter
+    {
+        /**
+         * Store a batch of rows.
+         *
+         * @param rows the processed rows
+         * @throws RepositoryException if storing the rows fails in a way that must stop the import
+         */
+        void write(List<Map<String, String>> rows) throws RepositoryException;
+    }
+
+    /** A row, along with its partition key. */
+    private static final class KeyedRow
+    {
+        private final String key;
+
+        private final Map<String, String> row;
+
+        KeyedRow(final String key, final Map<String, String> row)
+        {
+            this.key = key;
+            this.row = row;
+        }
+    }
+
+    /** Counts the rows handled by a stage, and the time spent handling them. */
+    private static final class Stage
+    {
+        private final String name;
+
+        private final String metric;
+
+        private final AtomicLong rows = new AtomicLong();
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        Stage(final String name)
+        {
+            this.name = name;
+            this.metric = "ClarityImport" + StringUtils.capitalize(name);
+        }
+
+        void record(final long startNanos, final int count)
+        {
+            this.nanos.addAndGet(System.nanoTime() - startNanos);
+            this.rows.addAndGet(count);
+        }
+
+        void report(final ResourceResolverFactory resolverFactory)
+        {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(this.nanos.get());
+            LOGGER.info("Clarity import {} stage: {} rows in {} ms, {} rows/s", this.name, this.rows.get(), millis,
+                this.rows.get() * TimeUnit.SECONDS.toMillis(1) / Math.max(1, millis));
+            Metrics.createStatistic(resolverFactory, this.metric + "Rows",
+                "Number of rows handled by the " + this.name + " stage of the Clarity import");
+            Metrics.createStatistic(resolverFactory, this.metric + "Time",
+                "Time spent in the " + this.name + " stage of the Clarity import, in milliseconds");
+            Metrics.increment(resolverFactory, this.metric + "Rows", this.rows.get());
+            Metrics.increment(resolverFactory, this.metric + "Time", millis);
+        }
+    }
+
+    /**
+     * Create a pipeline.
+     *
+     * @param workerCount how many threads run the data processors
+     * @param batchSize how many processed rows to pass to the writer at once
+     * @param resolverFactory used for opening a resource resolver for each worker
+     * @param rrp used for making the worker resolvers available to the data processors
+     */
+    ClarityImportPipeline(final int workerCount, final int batchSize, final ResourceResolverFactory resolverFactory,
+        final ThreadResourceResolverProvider rrp)
+    {
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        this.resolverFactory = resolverFactory;
+        this.rrp = rrp;
+    }
+
+    /**
+     * Import all the rows.
+     *
+     * @param source produces the rows, called on the reader thread
+     * @param partitioner computes the partition key of a row, called on the reader thread
+     * @param processor processes the rows, called on the worker threads
+     * @param writer stores the processed rows, called on the current thread
+     * @throws LoginException if opening the worker resolvers fails
+     * @throws RepositoryException if the writer fails
+     * @throws SQLException if reading the rows fails, in which case the rows read before the failure are still stored
+     * @throws RuntimeException if the reader or a worker fails unexpectedly, which is rethrown here once all the
+     *             threads stopped
+     */
+    void run(final RowSource source, final Function<Map<String, String>, String> partitioner,
+        final RowProcessor processor, final RowWriter writer)
+        throws LoginException, RepositoryException, SQLException
+    {
+        final long startTime = System.nanoTime();
+        final List<ResourceResolver> resolvers = new ArrayList<>(this.workerCount);
+        final List<Thread> threads = new ArrayList<>(this.workerCount + 1);
+        try {
+            final List<BlockingQueue<KeyedRow>> inputs = new ArrayList<>(this.workerCount);
+            final BlockingQueue<KeyedRow> output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            for (int i = 0; i < this.workerCount; ++i) {
+                final ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(null);
+                resolvers.add(resolver);
+                final BlockingQueue<KeyedRow> input = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                inputs.add(input);
+                threads.add(new Thread(() -> work(resolver, processor, input, output), "ClarityImportWorker-" + i));
+            }
+            threads.add(new Thread(() -> read(source, partitioner, inputs), "ClarityImportReader"));
+            threads.forEach(thread -> {
+                thread.setDaemon(true);
+                thread.start();
+            });
+            write(writer, output);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Clarity import interrupted");
+        } finally {
+            // Only has an effect if the writer failed, or if this thread was interrupted
+            threads.forEach(Thread::interrupt);
+            joinAll(threads);
+            resolvers.forEach(ResourceResolver::close);
+        }
+
+        this.readStage.report(this.resolverFactory);
+        this.processStage.report(this.resolverFactory);
+        this.writeStage.report(this.resolverFactory);
+        LOGGER.info("Clarity import pipeline finished in {} ms",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        rethrow(this.workerFailure.get());
+        rethrow(this.readFailure.get());
+    }
+
+    private void read(final RowSource source, final Function<Map<String, String>, String> partitioner,
+        final List<BlockingQueue<KeyedRow>> inputs)
+    {
+        try {
+            long start = System.nanoTime();
+            for (Map<String, String> row = source.next(); row != null; row = source.next()) {
+                this.readStage.record(start, 1);
+                final String key = partitioner.apply(row);
+                inputs.get(Math.floorMod(Objects.hashCode(key), inputs.size())).put(new KeyedRow(key, row));
+                start = System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            // The writer stopped, nobody is waiting for more rows
+            Thread.currentThread().interrupt();
+        } catch (SQLException | RuntimeException | Error e) {
+            this.readFailure.set(e);
+        } finally {
+            // Always mark the end, or the workers wait for more rows forever
+            inputs.forEach(ClarityImportPipeline::end);
+        }
+    }
+
+    private void work(final ResourceResolver resolver, final RowProcessor processor,
+        final BlockingQueue<KeyedRow> input, final BlockingQueue<KeyedRow> output)
+    {
+        try {
+            this.rrp.push(resolver);
+            try {
+                processor.start();
+                for (KeyedRow row = input.take(); row != END; row = input.take()) {
+                    awaitWritten(row.key, resolver, output);
+                    final long start = System.nanoTime();
+                    final Map<String, String> processed = process(processor, row.row);
+                    this.processStage.record(start, 1);
+                    if (processed != null) {
+                        synchronized (this.unwritten) {
+                            this.unwritten.merge(row.key, 1, Integer::sum);
+                        }
+                        output.put(new KeyedRow(row.key, processed));
+                    }
+                }
+            } finally {
+                try {
+                    processor.end();
+                } finally {
+                    this.rrp.pop();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The writer stopped, nobody is waiting for more rows
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            LOGGER.error("Clarity import worker failed: {}", e.getMessage(), e);
+            this.workerFailure.compareAndSet(null, e);
+        } finally {
+            // Always mark the end, or the writer waits for this worker forever
+            end(output);
+        }
+    }
+
+    /**
+     * Wait until all the processed rows with the given partition key are saved, so that the processors can see them.
+     *
+     * @param key a partition key
+     * @param resolver the resolver of the current worker, refreshed to see the rows saved by the writer
+     * @param output the queue read by the writer
+     * @throws InterruptedException if the writer stopped while waiting
+     */
+    private void awaitWritten(final String key, final ResourceResolver resolver, final BlockingQueue<KeyedRow> output)
+        throws InterruptedException
+    {
+        synchronized (this.unwritten) {
+            if (!this.unwritten.containsKey(key)) {
+                return;
+            }
+        }
+        // The rows of this key are already in the queue, ahead of this request, so the writer will write them now
+        output.put(FLUSH);
+        synchronized (this.unwritten) {
+            while (this.unwritten.containsKey(key)) {
+                this.unwritten.wait();
+            }
+        }
+        resolver.refresh();
+    }
+
+    /**
+     * Mark the end of the rows in a queue. If this thread was interrupted, nobody is reading the queue anymore, and
+     * this returns immediately.
+     *
+     * @param queue the queue to end
+     */
+    private static void end(final BlockingQueue<KeyedRow> queue)
+    {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<String, String> process(final RowProcessor processor, final Map<String, String> row)
+    {
+        try {
+            return processor.process(row);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unhandled exception while processing data: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void write(final RowWriter writer, final BlockingQueue<KeyedRow> output)
+        throws InterruptedException, RepositoryException
+    {
+        final List<KeyedRow> batch = new ArrayList<>(this.batchSize);
+        int runningWorkers = this.workerCount;
+        // A failed worker drops the rows assigned to it, so stop the import instead of storing only part of the data
+        while (runningWorkers > 0 && this.workerFailure.get() == null) {
+            final KeyedRow row = output.take();
+            if (row == END) {
+                --runningWorkers;
+            } else if (row != FLUSH) {
+                batch.add(row);
+            }
+            // Also write what's left once all the workers are done, or when a worker waits for it
+            if (batch.size() >= this.batchSize || (!batch.isEmpty() && (runningWorkers == 0 || row == FLUSH))) {
+                final long start = System.nanoTime();
+                writer.write(batch.stream().map(keyed -> keyed.row).collect(Collectors.toList()));
+                this.writeStage.record(start, batch.size());
+                written(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void written(final List<KeyedRow> batch)
+    {
+        synchronized (this.unwritten) {
+            batch.forEach(
+                row -> this.unwritten.computeIfPresent(row.key, (key, count) -> count > 1 ? count - 1 : null));
+            this.unwritten.notifyAll();
+        }
+    }
+
+    private static void rethrow(final Throwable failure) throws SQLException
+    {
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private void joinAll(final List<Thread> threads)
+    {
+        // The workers must be done with their resolvers before they are closed, even if this thread was interrupted
+        boolean interrupted = Thread.interrupted();
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -28,13 +28,18 @@
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -54,6 +59,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.metrics.Metrics;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -80,6 +86,11 @@ public class ClarityImportTask implements Runnable
 
     private static final String VALUE_PROP = "value";
 
+    private static final String UUID_PROP = "jcr:uuid";
+
+    /** How many subjects to look up in a single query when prefetching forms. */
+    private static final int SUBJECTS_PER_QUERY = 100;
+
     private final ClarityImportConfigDefinition config;
 
     private final int dayToQuery;
@@ -95,8 +106,16 @@ public class ClarityImportTask implements Runnable
 
     private final ThreadLocal<Map<String, Long>> metricsAdjustments = ThreadLocal.withInitial(HashMap::new);
 
+    /**
+     * In batch mode, maps a subject and questionnaire pair to the path of the form already filled for them, or to
+     * {@code null} if there is no such form.
+     */
+    private final ThreadLocal<Map<String, String>> formCache = ThreadLocal.withInitial(HashMap::new);
+
     private final ThreadResourceResolverProvider rrp;
 
+    private final ClarityImportCache importCache;
+
     private final List<ClarityDataProcessor> processors;
 
     // Helper classes
@@ -225,17 +244,52 @@ public String toString()
         }
     }
 
+    /**
+     * Runs the data processors on the worker threads of an import pipeline. Each worker has its own subject cache, and
+     * the processors are notified when a worker starts and ends, so that they can manage their per-thread state.
+     */
+    private final class ProcessingStage implements ClarityImportPipeline.RowProcessor
+    {
+        private final List<ClarityDataProcessor> stageProcessors;
+
+        ProcessingStage(final List<ClarityDataProcessor> stageProcessors)
+        {
+            this.stageProcessors = stageProcessors;
+        }
+
+        @Override
+        public void start()
+        {
+            ClarityImportTask.this.importCache.start();
+            this.stageProcessors.forEach(ClarityDataProcessor::start);
+        }
+
+        @Override
+        public Map<String, String> process(final Map<String, String> row)
+        {
+            return processRow(row, this.stageProcessors);
+        }
+
+        @Override
+        public void end()
+        {
+            this.stageProcessors.forEach(ClarityDataProcessor::end);
+            ClarityImportTask.this.importCache.end();
+        }
+    }
+
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
     ClarityImportTask(final ClarityImportConfigDefinition config, final int dayToQuery,
         final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final List<ClarityDataProcessor> processors)
+        final ClarityImportCache importCache, final List<ClarityDataProcessor> processors)
     {
         this.config = config;
         this.dayToQuery = dayToQuery;
         this.resolverFactory = resolverFactory;
         this.rrp = rrp;
+        this.importCache = importCache;
         this.processors = processors;
     }
 
@@ -249,6 +303,10 @@ public void run()
         String connectionUrl =
             String.format("jdbc:sqlserver://%s;user=%s;password=%s;encrypt=%s;", env(this.config.server()),
                 env(this.config.username()), env(this.config.password()), env(this.config.encrypt()));
+        if (this.config.fetchSize() > 0) {
+            // The fetch size is only used by server-side cursors
+            connectionUrl += "selectMethod=cursor;";
+        }
 
         // Connect via SQL to the server
         boolean mustPopResolver = false;
@@ -265,31 +323,32 @@ public void run()
 
             // Generate and perform the query
             PreparedStatement statement = connection.prepareStatement(generateClarityQuery());
+            if (this.config.fetchSize() > 0) {
+                statement.setFetchSize(this.config.fetchSize());
+            }
             ResultSet results = statement.executeQuery();
 
             // Sort and filter the data processors
             List<ClarityDataProcessor> sortedProcessors = new ArrayList<>(this.processors).stream()
                 .filter(p -> p.supportsImportType(this.config.type())).sorted().collect(Collectors.toList());
 
-            while (results.next()) {
-                // Create the Subjects and Forms as is needed
-                try {
-                    createFormsAndSubjects(resolver, results, sortedProcessors);
-                    session.save();
-                } catch (ParseException | PersistenceException e) {
-                    LOGGER.error("Exception while importing data to JCR", e);
-                } catch (Exception e) {
-                    LOGGER.error("Unhandled exception while importing data: {}", e.getMessage(), e);
-                } finally {
-                    // If everything was saved successfully, this shouldn't discard anything; but if there was an error,
-                    // without discarding the bad data all the subsequent saves would fail too
-                    session.refresh(false);
+            if (isBatched()) {
+                this.importCache.start();
+            }
+            try {
+                if (this.config.processingThreads() > 0) {
+                    importPipelined(resolver, session, results, sortedProcessors);
+                } else if (isBatched()) {
+                    importInBatches(resolver, session, results, sortedProcessors);
+                } else {
+                    importOneByOne(resolver, session, results, sortedProcessors);
                 }
+            } finally {
+                // Even if the import stopped early, the rows already saved must be checked in and counted
+                checkinNodes();
+                updatePerformanceCounters();
             }
 
-            checkinNodes();
-            updatePerformanceCounters();
-
         } catch (SQLException e) {
             LOGGER.error("Failed to connect to SQL: {}", e.getMessage(), e);
         } catch (LoginException e) {
@@ -305,6 +364,227 @@ public void run()
         }
     }
 
+    private void importOneByOne(final ResourceResolver resolver, final Session session, final ResultSet results,
+        final List<ClarityDataProcessor> processors) throws RepositoryException, SQLException
+    {
+        while (results.next()) {
+            // Create the Subjects and Forms as is needed
+            try {
+                createFormsAndSubjects(resolver, results, processors);
+                session.save();
+            } catch (ParseException | PersistenceException e) {
+                LOGGER.error("Exception while importing data to JCR", e);
+            } catch (Exception e) {
+                LOGGER.error("Unhandled exception while importing data: {}", e.getMessage(), e);
+            } finally {
+                // If everything was saved successfully, this shouldn't discard anything; but if there was an error,
+                // without discarding the bad data all the subsequent saves would fail too
+                session.refresh(false);
+            }
+        }
+    }
+
+    // Methods for importing in batches
+
+    private boolean isBatched()
+    {
+        return this.config.batchSize() > 0;
+    }
+
+    private void importInBatches(final ResourceResolver resolver, final Session session, final ResultSet results,
+        final List<ClarityDataProcessor> processors) throws RepositoryException, SQLException
+    {
+        final int batchSize = this.config.batchSize();
+        final List<Map<String, String>> rows = new ArrayList<>(batchSize);
+        while (results.next()) {
+            rows.add(readRow(results, this.clarityImportConfiguration.get()));
+            if (rows.size() >= batchSize) {
+                importBatch(resolver, session, rows, processors);
+                rows.clear();
+            }
+        }
+        if (!rows.isEmpty()) {
+            importBatch(resolver, session, rows, processors);
+        }
+    }
+
+    private void importBatch(final ResourceResolver resolver, final Session session,
+        final List<Map<String, String>> rows, final List<ClarityDataProcessor> processors) throws RepositoryException
+    {
+        // Look up the subjects and forms before the processors, so that they can use them too
+        prefetch(resolver, rows);
+
+        final ClaritySubjectMapping mapping = this.clarityImportConfiguration.get();
+        final List<Map<String, String>> processedRows = new ArrayList<>(rows.size());
+        final Set<String> pendingSubjects = new HashSet<>();
+        for (Map<String, String> row : rows) {
+            final String subjects = getPartitionKey(row, mapping);
+            if (pendingSubjects.contains(subjects)) {
+                // An earlier row of the same subjects is not stored yet. Save it before processing this row, since
+                // processors may look for it, for example to discard the other visits of the same day
+                importRows(resolver, session, processedRows);
+                processedRows.clear();
+                pendingSubjects.clear();
+            }
+            pendingSubjects.add(subjects);
+            final Map<String, String> processedRow = processRow(row, processors);
+            if (processedRow != null) {
+                processedRows.add(processedRow);
+            }
+        }
+        importRows(resolver, session, processedRows);
+    }
+
+    /*
+     * Look up all the subjects and forms needed by these rows at once.
+     */
+    private void prefetch(final ResourceResolver resolver, final List<Map<String, String>> rows)
+    {
+        final Set<String> identifiers = new HashSet<>();
+        rows.forEach(row -> collectSubjectIdentifiers(row, this.clarityImportConfiguration.get(), identifiers));
+        this.importCache.prefetchSubjects(identifiers, resolver);
+        prefetchForms(resolver, identifiers);
+    }
+
+    /*
+     * Store several processed rows and save them together. If anything fails, the whole batch is discarded, and the
+     * rows are imported again one at a time, so that only the bad rows are lost.
+     */
+    private void importRows(final ResourceResolver resolver, final Session session,
+        final List<Map<String, String>> rows) throws RepositoryException
+    {
+        if (rows.isEmpty()) {
+            return;
+        }
+        final Map<String, Long> metrics = new HashMap<>(this.metricsAdjustments.get());
+        final int checkinCount = this.nodesToCheckin.get().size();
+        try {
+            for (Map<String, String> row : rows) {
+                walkThroughLocalConfig(resolver, row, this.clarityImportConfiguration.get(),
+                    resolver.resolve("/Subjects"));
+            }
+            session.save();
+        } catch (Exception e) {
+            // Without discarding the bad data all the subsequent saves would fail too
+            session.refresh(false);
+            // Forget the subjects and forms created by the discarded batch, but keep checking in the existing nodes
+            this.metricsAdjustments.set(metrics);
+            final List<String> checkins = this.nodesToCheckin.get();
+            checkins.subList(checkinCount, checkins.size()).removeIf(path -> resolver.getResource(path) == null);
+            this.importCache.clear();
+            this.formCache.get().clear();
+            if (rows.size() == 1) {
+                LOGGER.error("Exception while importing data to JCR: {}", e.getMessage(), e);
+            } else {
+                LOGGER.warn("Failed to import a batch of {} rows, importing them one at a time: {}", rows.size(),
+                    e.getMessage());
+                for (Map<String, String> row : rows) {
+                    importRows(resolver, session, Collections.singletonList(row));
+                }
+            }
+        }
+    }
+
+    // Methods for importing with a pipeline
+
+    private void importPipelined(final ResourceResolver resolver, final Session session, final ResultSet results,
+        final List<ClarityDataProcessor> processors) throws LoginException, RepositoryException, SQLException
+    {
+        // The mapping is only available on this thread, while the rows are read on another thread
+        final ClaritySubjectMapping mapping = this.clarityImportConfiguration.get();
+        final ClarityImportPipeline pipeline = new ClarityImportPipeline(this.config.processingThreads(),
+            Math.max(1, this.config.batchSize()), this.resolverFactory, this.rrp);
+        pipeline.run(() -> results.next() ? readRow(results, mapping) : null,
+            row -> getPartitionKey(row, mapping),
+            new ProcessingStage(processors),
+            rows -> {
+                if (isBatched()) {
+                    prefetch(resolver, rows);
+                }
+                importRows(resolver, session, rows);
+            });
+    }
+
+    /*
+     * The rows are partitioned by the identifiers of their top level subjects, usually just the patient.
+     */
+    private String getPartitionKey(final Map<String, String> row, final ClaritySubjectMapping mapping)
+    {
+        return mapping.childSubjects.stream()
+            .map(subjectMapping -> row.get(subjectMapping.subjectIdColumn))
+            .map(String::valueOf)
+            .collect(Collectors.joining("/"));
+    }
+
+    private void collectSubjectIdentifiers(final Map<String, String> row, final ClaritySubjectMapping subjectMapping,
+        final Set<String> identifiers)
+    {
+        for (ClaritySubjectMapping childSubjectMapping : subjectMapping.childSubjects) {
+            if (!"".equals(childSubjectMapping.subjectIdColumn)) {
+                identifiers.add(row.get(childSubjectMapping.subjectIdColumn));
+            }
+            collectSubjectIdentifiers(row, childSubjectMapping, identifiers);
+        }
+    }
+
+    private void collectUpdatedQuestionnaires(final ResourceResolver resolver,
+        final ClaritySubjectMapping subjectMapping, final Set<String> questionnaires)
+    {
+        for (ClaritySubjectMapping childSubjectMapping : subjectMapping.childSubjects) {
+            childSubjectMapping.questionnaires.stream()
+                .filter(questionnaireMapping -> questionnaireMapping.updatesExisting)
+                .map(questionnaireMapping -> questionnaireMapping.getQuestionnaireResource(resolver).getValueMap()
+                    .get(UUID_PROP, ""))
+                .forEach(questionnaires::add);
+            collectUpdatedQuestionnaires(resolver, childSubjectMapping, questionnaires);
+        }
+    }
+
+    /*
+     * Look up, with as few queries as possible, the forms that may be updated by the rows referencing these subjects.
+     */
+    private void prefetchForms(final ResourceResolver resolver, final Collection<String> identifiers)
+    {
+        final Set<String> questionnaires = new HashSet<>();
+        collectUpdatedQuestionnaires(resolver, this.clarityImportConfiguration.get(), questionnaires);
+        if (questionnaires.isEmpty()) {
+            return;
+        }
+        final List<String> subjects = identifiers.stream()
+            .map(identifier -> this.importCache.getSubject(identifier, resolver))
+            .filter(Objects::nonNull)
+            .map(subject -> subject.getValueMap().get(UUID_PROP, ""))
+            .collect(Collectors.toList());
+        final Map<String, String> cache = this.formCache.get();
+        final String questionnaireList =
+            questionnaires.stream().map(uuid -> "'" + uuid + "'").collect(Collectors.joining(","));
+        for (int start = 0; start < subjects.size(); start += SUBJECTS_PER_QUERY) {
+            final List<String> chunk = subjects.subList(start, Math.min(start + SUBJECTS_PER_QUERY, subjects.size()));
+            final String formMatchQuery = String.format(
+                "SELECT * FROM [cards:Form] as form WHERE"
+                    + " form.'subject' IN (%s)"
+                    + " AND form.'questionnaire' IN (%s)"
+                    + " option (index tag property)",
+                chunk.stream().map(uuid -> "'" + uuid + "'").collect(Collectors.joining(",")),
+                questionnaireList);
+            final Iterator<Resource> forms = resolver.findResources(formMatchQuery, "JCR-SQL2");
+            while (forms.hasNext()) {
+                final Resource form = forms.next();
+                final ValueMap formProps = form.getValueMap();
+                cache.putIfAbsent(formKey(formProps.get("subject", ""), formProps.get(QUESTIONNAIRE_PROP, "")),
+                    form.getPath());
+            }
+            // Remember which subjects don't have a form yet, so that they're not queried again
+            chunk.forEach(subject -> questionnaires
+                .forEach(questionnaire -> cache.putIfAbsent(formKey(subject, questionnaire), null)));
+        }
+    }
+
+    private String formKey(final String subjectUUID, final String questionnaireUUID)
+    {
+        return subjectUUID + ":" + questionnaireUUID;
+    }
+
     private void checkinNodes()
     {
         this.nodesToCheckin.get().forEach(node -> {
@@ -437,26 +717,41 @@ private void createFormsAndSubjects(ResourceResolver resolver, ResultSet sqlRow,
         List<ClarityDataProcessor> processors)
         throws ParseException, PersistenceException, RepositoryException, SQLException
     {
-        Map<String, String> row = new HashMap<>();
+        final Map<String, String> row = processRow(readRow(sqlRow, this.clarityImportConfiguration.get()), processors);
+        if (row == null) {
+            return;
+        }
+        // Recursively move down the local Clarity Import configuration tree
+        walkThroughLocalConfig(resolver, row, this.clarityImportConfiguration.get(),
+            resolver.resolve("/Subjects"));
+    }
+
+    private Map<String, String> readRow(final ResultSet sqlRow, final ClaritySubjectMapping mapping)
+        throws SQLException
+    {
+        final Map<String, String> row = new HashMap<>();
         final int columnCount = sqlRow.getMetaData().getColumnCount();
         for (int column = 1; column <= columnCount; column++) {
             row.put(sqlRow.getMetaData().getColumnName(column), sqlRow.getString(column));
         }
-        addSubjectIdentifiersToData(row, this.clarityImportConfiguration.get());
+        addSubjectIdentifiersToData(row, mapping);
+        return row;
+    }
 
+    private Map<String, String> processRow(final Map<String, String> input, final List<ClarityDataProcessor> processors)
+    {
+        Map<String, String> row = input;
         for (ClarityDataProcessor processor : processors) {
             try {
                 row = processor.processEntry(row);
                 if (row == null) {
-                    return;
+                    return null;
                 }
             } catch (Exception e) {
                 LOGGER.error("Unhandled exception while processing data: {}", e.getMessage(), e);
             }
         }
-        // Recursively move down the local Clarity Import configuration tree
-        walkThroughLocalConfig(resolver, row, this.clarityImportConfiguration.get(),
-            resolver.resolve("/Subjects"));
+        return row;
     }
 
     private void addSubjectIdentifiersToData(final Map<String, String> row, final ClaritySubjectMapping subjectMapping)
@@ -478,8 +773,8 @@ private void walkThroughLocalConfig(ResourceResolver resolver, Map<String, Strin
 
             for (ClarityQuestionnaireMapping questionnaireMapping : childSubjectMapping.questionnaires) {
                 boolean updatesExisting = questionnaireMapping.updatesExisting;
-                Resource formNode = getFormForSubject(resolver, questionnaireMapping.getQuestionnaireResource(resolver),
-                    newSubjectParent);
+                Resource formNode = updatesExisting ? getFormForSubject(resolver,
+                    questionnaireMapping.getQuestionnaireResource(resolver), newSubjectParent) : null;
 
                 if (updatesExisting && (formNode != null)) {
                     // Update the answers to an existing Form
@@ -492,8 +787,15 @@ private void walkThroughLocalConfig(ResourceResolver resolver, Map<String, Strin
                     // Attach all the Answer nodes to it
                     populateEmptyForm(resolver, formNode, questionnaireMapping, row);
 
-                    // Commit the changes to the JCR
-                    resolver.commit();
+                    if (isBatched()) {
+                        // The form will be saved with the rest of the batch, until then queries can't find it
+                        this.formCache.get().put(formKey(newSubjectParent.getValueMap().get(UUID_PROP, ""),
+                            questionnaireMapping.getQuestionnaireResource(resolver).getValueMap().get(UUID_PROP, "")),
+                            formNode.getPath());
+                    } else {
+                        // Commit the changes to the JCR
+                        resolver.commit();
+                    }
 
                     // Perform a JCR check-in to this cards:Form node once the import is completed
                     this.nodesToCheckin.get().add(formNode.getPath());
@@ -527,13 +829,8 @@ private Resource getOrCreateSubject(ResourceResolver resolver, Map<String, Strin
             return null;
         }
 
-        String subjectMatchQuery = String.format(
-            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-            identifier);
-        resolver.refresh();
-        final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
-        if (subjectResourceIter.hasNext()) {
-            final Resource subjectResource = subjectResourceIter.next();
+        final Resource subjectResource = this.importCache.getSubject(identifier, resolver);
+        if (subjectResource != null) {
             this.versionManager.get().checkout(subjectResource.getPath());
             this.nodesToCheckin.get().add(subjectResource.getPath());
             return subjectResource;
@@ -547,7 +844,12 @@ private Resource getOrCreateSubject(ResourceResolver resolver, Map<String, Strin
                 ClarityImportTask.PRIMARY_TYPE_PROP, "cards:Subject",
                 "identifier", identifier,
                 "type", patientType.adaptTo(Node.class)));
-            resolver.commit();
+            if (isBatched()) {
+                // The subject will be saved with the rest of the batch, until then queries can't find it
+                this.importCache.subjectCreated(identifier, newSubject);
+            } else {
+                resolver.commit();
+            }
 
             // Adjust the incrementMetricOnCreation referenced metric
             if (!"".equals(incrementMetricOnCreation)) {
@@ -563,10 +865,22 @@ private Resource getFormForSubject(ResourceResolver resolver, Resource questionn
         Resource subjectResource)
     {
         // Get the jcr:uuid associated with questionnairePath
-        String questionnaireUUID = questionnaireResource.getValueMap().get("jcr:uuid", "");
+        String questionnaireUUID = questionnaireResource.getValueMap().get(UUID_PROP, "");
 
         // Get the jcr:uuid associated with subjectPath
-        String subjectUUID = subjectResource.getValueMap().get("jcr:uuid", "");
+        String subjectUUID = subjectResource.getValueMap().get(UUID_PROP, "");
+
+        // In batch mode, the form may already be known, or known not to exist
+        final String key = formKey(subjectUUID, questionnaireUUID);
+        final Map<String, String> cache = this.formCache.get();
+        if (isBatched() && cache.containsKey(key)) {
+            final String cachedPath = cache.get(key);
+            final Resource cachedForm = cachedPath == null ? null : resolver.getResource(cachedPath);
+            // The form may have been deleted since it was cached, in which case look it up again
+            if (cachedPath == null || cachedForm != null) {
+                return cachedForm;
+            }
+        }
 
         // Query for a cards:Form node with the specified questionnaire and subject
         String formMatchQuery = String.format(
@@ -577,13 +891,15 @@ private Resource getFormForSubject(ResourceResolver resolver, Resource questionn
             subjectUUID,
             questionnaireUUID);
 
-        resolver.refresh();
+        if (!isBatched()) {
+            resolver.refresh();
+        }
         final Iterator<Resource> formResourceIter = resolver.findResources(formMatchQuery, "JCR-SQL2");
-        if (formResourceIter.hasNext()) {
-            return formResourceIter.next();
+        final Resource result = formResourceIter.hasNext() ? formResourceIter.next() : null;
+        if (isBatched()) {
+            cache.put(key, result == null ? null : result.getPath());
         }
-
-        return null;
+        return result;
     }
 
     // Methods for updating an existing form
@@ -731,5 +1047,7 @@ private void cleanupState()
         this.versionManager.remove();
         this.clarityImportConfiguration.remove();
         this.sqlColumnToDataType.remove();
+        this.formCache.remove();
+        this.importCache.end();
     }
 }
@@ -37,6 +37,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(immediate = true)
@@ -54,6 +55,9 @@
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private ClarityImportCache importCache;
+
     /** A list of all available data processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.UPDATE,
         policy = ReferencePolicy.DYNAMIC)
@@ -87,8 +91,8 @@ public void configAdded(final ClarityImportConfig newConfig)
         options.name(SCHEDULER_JOB_PREFIX + config.name());
         options.canRunConcurrently(true);
 
-        final Runnable job =
-            new ClarityImportTask(config, config.dayToImport(), this.resolverFactory, this.rrp, this.processors);
+        final Runnable job = new ClarityImportTask(config, config.dayToImport(), this.resolverFactory, this.rrp,
+            this.importCache, this.processors);
         try {
             this.scheduler.schedule(job, options);
             LOGGER.debug("Activated scheduled clarity import configuration {}", config.name());
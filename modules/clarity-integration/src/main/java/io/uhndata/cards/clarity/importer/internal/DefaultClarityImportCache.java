@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.clarity.importer.internal;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
+
+/**
+ * Default implementation of {@link ClarityImportCache}, keeping the path of each subject looked up by the import
+ * running on the current thread.
+ *
+ * @version $Id$
+ */
+@Component(service = ClarityImportCache.class)
+public class DefaultClarityImportCache implements ClarityImportCache
+{
+    /** How many identifiers to look up in a single query, to keep the query string reasonably short. */
+    private static final int IDENTIFIERS_PER_QUERY = 100;
+
+    /** Marks identifiers known not to belong to any subject. */
+    private static final String ABSENT = "";
+
+    private static final String IDENTIFIER_PROP = "identifier";
+
+    /** Maps subject identifiers to subject paths, only set while an import is running on the thread. */
+    private final ThreadLocal<Map<String, String>> subjects = new ThreadLocal<>();
+
+    @Override
+    public void start()
+    {
+        this.subjects.set(new HashMap<>());
+    }
+
+    @Override
+    public void end()
+    {
+        this.subjects.remove();
+    }
+
+    @Override
+    public void clear()
+    {
+        final Map<String, String> cache = this.subjects.get();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void prefetchSubjects(final Collection<String> identifiers, final ResourceResolver resolver)
+    {
+        final Map<String, String> cache = this.subjects.get();
+        if (cache == null) {
+            return;
+        }
+        final List<String> missing = identifiers.stream()
+            .filter(StringUtils::isNotEmpty)
+            .filter(identifier -> !cache.containsKey(identifier))
+            .distinct()
+            .collect(Collectors.toList());
+        for (int start = 0; start < missing.size(); start += IDENTIFIERS_PER_QUERY) {
+            final List<String> chunk = missing.subList(start, Math.min(start + IDENTIFIERS_PER_QUERY, missing.size()));
+            final String query = String.format(
+                "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier' IN (%s)"
+                    + " option (index tag property)",
+                chunk.stream().map(identifier -> "'" + escape(identifier) + "'").collect(Collectors.joining(",")));
+            final Iterator<Resource> results = resolver.findResources(query, "JCR-SQL2");
+            while (results.hasNext()) {
+                final Resource subject = results.next();
+                // Like a query for a single identifier, the first result wins
+                cache.putIfAbsent(subject.getValueMap().get(IDENTIFIER_PROP, ABSENT), subject.getPath());
+            }
+            chunk.forEach(identifier -> cache.putIfAbsent(identifier, ABSENT));
+        }
+    }
+
+    @Override
+    public Resource getSubject(final String identifier, final ResourceResolver resolver)
+    {
+        if (StringUtils.isEmpty(identifier)) {
+            return null;
+        }
+        final Map<String, String> cache = this.subjects.get();
+        if (cache == null) {
+            resolver.refresh();
+            return findSubject(identifier, resolver);
+        }
+        final String cached = cache.get(identifier);
+        if (ABSENT.equals(cached)) {
+            return null;
+        } else if (cached != null) {
+            final Resource subject = resolver.getResource(cached);
+            // The subject may have been deleted since it was cached, in which case look it up again
+            if (subject != null) {
+                return subject;
+            }
+        }
+        final Resource subject = findSubject(identifier, resolver);
+        cache.put(identifier, subject == null ? ABSENT : subject.getPath());
+        return subject;
+    }
+
+    @Override
+    public void subjectCreated(final String identifier, final Resource subject)
+    {
+        final Map<String, String> cache = this.subjects.get();
+        if (cache != null) {
+            cache.put(identifier, subject.getPath());
+        }
+    }
+
+    private Resource findSubject(final String identifier, final ResourceResolver resolver)
+    {
+        final String query = String.format(
+            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
+            escape(identifier));
+        final Iterator<Resource> results = resolver.findResources(query, "JCR-SQL2");
+        return results.hasNext() ? results.next() : null;
+    }
+
+    private static String escape(final String value)
+    {
+        return value.replace("'", "''");
+    }
+}
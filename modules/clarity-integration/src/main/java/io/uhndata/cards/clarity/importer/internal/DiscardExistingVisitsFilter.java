@@ -35,6 +35,8 @@
 import javax.jcr.version.OnParentVersionAction;
 import javax.jcr.version.VersionManager;
 
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
@@ -47,6 +49,7 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -62,13 +65,16 @@ public class DiscardExistingVisitsFilter extends AbstractClarityDataProcessor im
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(DiscardExistingVisitsFilter.class);
 
-    private static final SimpleDateFormat SQL_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss");
+    private static final String SQL_DATE_FORMAT = "yyyy-MM-dd' 'HH:mm:ss";
 
-    private static final SimpleDateFormat JCR_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    private static final String JCR_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
 
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private ClarityImportCache importCache;
+
     @Reference
     private FormUtils formUtils;
 
@@ -127,13 +133,16 @@ public Map<String, String> processEntry(final Map<String, String> input)
 
     private void deleteEvents(final Map<String, String> input) throws RepositoryException, ParseException
     {
+        // Date formats are not thread safe, and the import may run this filter on several threads
+        final SimpleDateFormat jcrDateFormat = new SimpleDateFormat(JCR_DATE_FORMAT);
         final Calendar startTime = Calendar.getInstance();
-        startTime.setTime(SQL_DATE_FORMAT.parse(input.getOrDefault(this.dateColumn, "")));
+        startTime.setTime(new SimpleDateFormat(SQL_DATE_FORMAT).parse(input.getOrDefault(this.dateColumn, "")));
         atMidnight(startTime);
         final Calendar endTime = (Calendar) startTime.clone();
         endTime.add(Calendar.DATE, 1);
-        final Session session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
-        final String patientUuid = findSubject(input, session);
+        final ResourceResolver resolver = this.rrp.getThreadResourceResolver();
+        final Session session = resolver.adaptTo(Session.class);
+        final String patientUuid = findSubject(input, resolver);
         final String formQuery = String.format(
             "SELECT vi.* FROM [cards:Form] AS vi"
                 + " INNER JOIN [cards:DateAnswer] AS time ON time.form = vi.[jcr:uuid]"
@@ -144,8 +153,8 @@ private void deleteEvents(final Map<String, String> input) throws RepositoryExce
             session.getNode("/Questionnaires/Visit information").getIdentifier(),
             patientUuid,
             session.getNode("/Questionnaires/Visit information/time").getIdentifier(),
-            JCR_DATE_FORMAT.format(startTime.getTime()),
-            JCR_DATE_FORMAT.format(endTime.getTime()));
+            jcrDateFormat.format(startTime.getTime()),
+            jcrDateFormat.format(endTime.getTime()));
         final NodeIterator visits =
             session.getWorkspace().getQueryManager().createQuery(formQuery, "JCR-SQL2").execute().getNodes();
         while (visits.hasNext()) {
@@ -158,19 +167,14 @@ private void deleteEvents(final Map<String, String> input) throws RepositoryExce
         }
     }
 
-    private String findSubject(final Map<String, String> input, final Session session) throws RepositoryException
+    private String findSubject(final Map<String, String> input, final ResourceResolver resolver)
+        throws RepositoryException
     {
-        final String subjectId = input.get("/SubjectTypes/Patient");
-        String subjectMatchQuery = String.format(
-            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-            subjectId);
-        session.refresh(true);
-        final NodeIterator subjectResourceIter =
-            session.getWorkspace().getQueryManager().createQuery(subjectMatchQuery, "JCR-SQL2").execute().getNodes();
-        if (!subjectResourceIter.hasNext()) {
+        final Resource subject = this.importCache.getSubject(input.get("/SubjectTypes/Patient"), resolver);
+        if (subject == null) {
             return null;
         }
-        return subjectResourceIter.nextNode().getIdentifier();
+        return subject.adaptTo(Node.class).getIdentifier();
     }
 
     @SuppressWarnings("unchecked")
@@ -23,7 +23,6 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,6 +45,7 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.forms.api.QuestionnaireUtils;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
@@ -70,6 +70,9 @@ public class RecentVisitDiscardFilter extends AbstractClarityDataProcessor imple
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private ClarityImportCache importCache;
+
     @Reference
     private QuestionnaireUtils questionnaireUtils;
 
@@ -124,15 +127,11 @@ public Map<String, String> processEntry(final Map<String, String> input)
             LOGGER.warn("Discarded visit {} due to no subject identifier", id);
             return null;
         } else {
-            // Get all patients with that identifier
+            // Get the patient with that identifier
             ResourceResolver resolver = this.rrp.getThreadResourceResolver();
-            String subjectMatchQuery = String.format(
-                "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-                subjectId);
-            resolver.refresh();
-            final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
+            final Resource subject = this.importCache.getSubject(subjectId, resolver);
             // Should only be 0 or 1 patient with that identifier. Process it if found.
-            if (subjectResourceIter.hasNext() && subjectHasRecentSurveyEvent(subjectResourceIter.next(), id)) {
+            if (subject != null && subjectHasRecentSurveyEvent(subject, id)) {
                 return null;
             }
         }
@@ -19,7 +19,6 @@
 
 package io.uhndata.cards.clarity.importer.internal;
 
-import java.util.Iterator;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -40,6 +39,7 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClarityImportCache;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.forms.api.QuestionnaireUtils;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
@@ -60,6 +60,9 @@ public class UnsubscribedFilter extends AbstractClarityDataProcessor implements
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private ClarityImportCache importCache;
+
     @Reference
     private QuestionnaireUtils questionnaireUtils;
 
@@ -100,15 +103,11 @@ public Map<String, String> processEntry(final Map<String, String> input)
             LOGGER.warn("Discarded visit {} due to no mrn", id);
             return null;
         } else {
-            // Get all patients with that MRN
+            // Get the patient with that MRN
             ResourceResolver resolver = this.rrp.getThreadResourceResolver();
-            String subjectMatchQuery = String.format(
-                "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-                mrn);
-            resolver.refresh();
-            final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
+            final Resource subject = this.importCache.getSubject(mrn, resolver);
             // Should only be 0 or 1 patient with that MRN. Process it if found.
-            if (subjectResourceIter.hasNext() && patientHasUnsubscribed(subjectResourceIter.next(), id)) {
+            if (subject != null && patientHasUnsubscribed(subject, id)) {
                 LOGGER.error("discarding patient");
                 return null;
             }
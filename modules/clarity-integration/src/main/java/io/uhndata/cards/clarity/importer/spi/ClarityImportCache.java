@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.clarity.importer.spi;
+
+import java.util.Collection;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * Looks up subjects by their identifier during a Clarity import. While a batched import is running on the current
+ * thread, the subjects needed by a batch of rows are fetched together with a single query, and the results are
+ * remembered until the end of the import, so that the importer and the {@link ClarityDataProcessor processors} don't
+ * have to query the repository again for every row. Outside of a batched import, each lookup runs its own query.
+ *
+ * @version $Id$
+ */
+public interface ClarityImportCache
+{
+    /**
+     * Start caching subjects for an import running on the current thread.
+     */
+    void start();
+
+    /**
+     * Stop caching subjects on the current thread, and forget everything cached so far.
+     */
+    void end();
+
+    /**
+     * Forget everything cached so far, for example after discarding unsaved changes that may have created subjects.
+     */
+    void clear();
+
+    /**
+     * Look up several subjects at once and cache the results. Does nothing if no import is running on the current
+     * thread.
+     *
+     * @param identifiers the identifiers of the subjects to look up, empty identifiers are ignored
+     * @param resolver the resolver to use for querying
+     */
+    void prefetchSubjects(Collection<String> identifiers, ResourceResolver resolver);
+
+    /**
+     * Find a subject by its identifier.
+     *
+     * @param identifier the identifier of the subject
+     * @param resolver the resolver to use for querying
+     * @return the subject resource, or {@code null} if no subject has this identifier
+     */
+    Resource getSubject(String identifier, ResourceResolver resolver);
+
+    /**
+     * Record a subject created by the import, not saved yet and thus not visible to queries.
+     *
+     * @param identifier the identifier of the new subject
+     * @param subject the new subject resource
+     */
+    void subjectCreated(String identifier, Resource subject);
+}
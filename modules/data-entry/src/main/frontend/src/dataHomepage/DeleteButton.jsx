@@ -43,6 +43,7 @@ function DeleteButton(props) {
   const [ deleteRecursive, setDeleteRecursive ] = useState(false);
   const [ entryNotFound, setEntryNotFound ] = useState(false);
   const [ deletionInProgress, setDeletionInProgress ] = useState(false);
+  const [ deletionProgress, setDeletionProgress ] = useState(null);
 
   const buttonText = label || ("Delete " + (entryType?.toLowerCase() || '')).trim();
   const defaultDialogAction = `Are you sure you want to delete ${entryType} ${entryName}?`;
@@ -117,6 +118,43 @@ function DeleteButton(props) {
     }
   }
 
+  let finishDelete = () => {
+    setDeletionInProgress(false);
+    setDeletionProgress(null);
+    closeDialog();
+    if (onComplete) {onComplete();}
+    if (navigateBack) {goBack();}
+  }
+
+  // Recursive deletes run in a background job on the server, poll its status until it finishes
+  let pollDeleteJob = (statusUrl) => {
+    fetchWithReLogin(globalLoginDisplay, statusUrl, {
+      headers: {
+        Accept: "application/json"
+      }
+    })
+      .then((response) => response.ok ? response.json() : Promise.reject(response))
+      .then((json) => {
+        if (json.state === "SUCCEEDED") {
+          finishDelete();
+        } else if (json.state === "QUEUED" || json.state === "ACTIVE") {
+          setDeletionProgress(json.total > 0 ? Math.floor(100 * json.processed / json.total) : null);
+          setTimeout(() => pollDeleteJob(statusUrl), 1000);
+        } else {
+          setDeletionInProgress(false);
+          setDeletionProgress(null);
+          setErrorMessage(`${defaultErrorMessage} ${json.message || ""}`.trim());
+          openError();
+        }
+      })
+      .catch(() => {
+        setDeletionInProgress(false);
+        setDeletionProgress(null);
+        setErrorMessage(defaultErrorMessage);
+        openError();
+      });
+  }
+
   let handleDelete = () => {
     // If no path is provided, display the button but don't do any delete calls
     // and consider deletion successful since there's nothing to do
@@ -129,6 +167,7 @@ function DeleteButton(props) {
     let url = new URL(entryPath, window.location.origin);
     if (deleteRecursive) {
       url.searchParams.set("recursive", true);
+      url.searchParams.set("background", true);
     }
     setDeletionInProgress(true);
     fetchWithReLogin(globalLoginDisplay, url, {
@@ -137,12 +176,12 @@ function DeleteButton(props) {
         Accept: "application/json"
       }
     }).then((response) => {
-      setDeletionInProgress(false);
-      if (response.ok)  {
-        closeDialog();
-        if (onComplete) {onComplete();}
-        if (navigateBack) {goBack();}
+      if (response.status === 202) {
+        response.json().then((json) => pollDeleteJob(new URL(json.status, window.location.origin)));
+      } else if (response.ok)  {
+        finishDelete();
       } else {
+        setDeletionInProgress(false);
         handleError(response.status, response);
       }
     });
@@ -186,7 +225,8 @@ function DeleteButton(props) {
               onClick={() => handleDelete()}
               disabled={deletionInProgress}
             >
-              { deletionInProgress ? "Deleting..." : deleteRecursive ? "Delete All" : "Delete" }
+              { deletionInProgress ? `Deleting...${deletionProgress !== null ? ` ${deletionProgress}%` : ""}`
+                : deleteRecursive ? "Delete All" : "Delete" }
             </Button>
         </DialogActions>
       </Dialog>
@@ -20,35 +20,40 @@
 
 import java.io.IOException;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.json.stream.JsonGenerator;
 import javax.servlet.Servlet;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.internal.ResourceCountIndex;
+
 /**
  * A servlet that counts the number of resources that meet specified filters.
  * <p>
@@ -60,6 +65,12 @@
  * <li><code>includeallstatus</code>: if true, incomplete forms will be included. Otherwise, they will be excluded
  * unless searched for directly using {@code fieldname="statusFlags"}
  * </ul>
+ * <p>
+ * Counting all the forms, the forms of one questionnaire, or the subjects of one type, is answered directly from the
+ * {@link ResourceCountIndex}. Other counts require running the query, and their results are cached in
+ * {@code /QueryCache} for a few minutes, in a node whose name is derived from the query. Neither the index nor the
+ * cache take access rights into account, which is fine since only the administrator can use this servlet.
+ * </p>
  *
  * @version $Id$
  */
@@ -73,7 +84,13 @@ public class CountServlet extends PaginationServlet
 
     private static final long serialVersionUID = -6068156942302219324L;
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private static final String QUERY_CACHE_PATH = "/QueryCache";
+
+    /** How long a cached count is valid for, in milliseconds. */
+    private static final long QUERY_CACHE_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    @Reference
+    private ResourceCountIndex countIndex;
 
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
@@ -100,14 +117,14 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
                 return;
             }
 
-            // Get a QueryManager object
-            final QueryManager queryManager = session.getWorkspace().getQueryManager();
-
-            // Create the Query object
-            Query filterQuery = queryManager.createQuery(createQuery(request, session, filters), "JCR-SQL2");
+            // Simple counts don't need a query at all
+            long count = getIndexedCount(request, filters);
+            if (count < 0) {
+                count = getCachedCount(request, session, createQuery(request, session, filters), filters);
+            }
 
-            // Get the results and write the response
-            writeResponse(request, response, filterQuery, filters, session);
+            // Write the response
+            writeResponse(response, count);
         } catch (Exception e) {
             LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
             return;
@@ -136,15 +153,12 @@ private void writeEmptyResponse(final SlingHttpServletResponse response) throws
     /**
      * Write the response.
      *
-     * @param request the current request
      * @param response the HTTP response
-     * @param query the query to execute
+     * @param count the number of resources matching the request
      * @throws IOException if failed or interrupted I/O operation
-     * @throws RepositoryException if accessing the repository fails
      */
-    private void writeResponse(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
-                               final Query query, final Map<FilterType, List<Filter>> filters, Session session)
-            throws IOException, RepositoryException
+    private void writeResponse(final SlingHttpServletResponse response, final long count)
+            throws IOException
     {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
@@ -152,35 +166,174 @@ private void writeResponse(final SlingHttpServletRequest request, final SlingHtt
         final Writer out = response.getWriter();
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
-            long count = getCount(query, response);
             jsonGen.write("count", count);
-            createQueryCacheNode(request, session, count, filters);
-            try {
-                session.save();
-            } catch (final RepositoryException e) {
-                LOGGER.error("Failed to commit queryCache: {}", e.getMessage(), e);
-            }
             jsonGen.writeEnd().flush();
         }
     }
 
     /**
-     * Creates a <code>QueryCache</code> node that represents the current QueryCache instance with identified
-     * filters.
+     * Get the count from the count index, if the request only asks for all the forms or subjects, the forms of a
+     * questionnaire, the incomplete forms, or the subjects of a type.
+     *
+     * @param request the current request
+     * @param filters a list of filters
+     * @return the number of matching resources, or {@code -1} if the request cannot be answered by the count index
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private long getIndexedCount(final SlingHttpServletRequest request, final Map<FilterType, List<Filter>> filters)
+        throws RepositoryException
+    {
+        if (StringUtils.isNotBlank(request.getParameter("filter"))) {
+            // Full text searches always need a query
+            return -1;
+        }
+        final String fieldName = StringUtils.defaultString(request.getParameter(FIELDNAME));
+        final String fieldValue = request.getParameter(FIELDVALUE);
+        if (StringUtils.isNotEmpty(fieldName) && (StringUtils.isBlank(fieldValue)
+            || !"=".equals(getSanitizedFieldParameters(request).get(FIELDCOMPARATOR)))) {
+            // Only exact matches on a field can be answered by the count index
+            return -1;
+        }
+        final boolean includeAllStatus = Boolean.parseBoolean(request.getParameter("includeallstatus"));
+
+        final String nodeType = getNodeType(request);
+        final String path = request.getResource().getPath();
+        if ("/Forms".equals(path) && "cards:Form".equals(nodeType)) {
+            // Only the questionnaire can be filtered, either as a field or as a filter, but not both
+            final String questionnaireFilter = getQuestionnaireFilter(filters);
+            if (questionnaireFilter == null) {
+                return -1;
+            } else if (StringUtils.isNotEmpty(questionnaireFilter)) {
+                return StringUtils.isEmpty(fieldName)
+                    ? this.countIndex.countForms(questionnaireFilter, includeAllStatus) : -1;
+            }
+            switch (fieldName) {
+                case "":
+                    return this.countIndex.countForms(null, includeAllStatus);
+                case "questionnaire":
+                    return this.countIndex.countForms(fieldValue, includeAllStatus);
+                case "statusFlags":
+                    return "INCOMPLETE".equals(fieldValue) ? this.countIndex.countIncompleteForms(null) : -1;
+                default:
+                    return -1;
+            }
+        } else if ("/Subjects".equals(path) && SUBJECT_IDENTIFIER.equals(nodeType) && filters.isEmpty()) {
+            switch (fieldName) {
+                case "":
+                    return this.countIndex.countSubjects(null);
+                case "type":
+                    return this.countIndex.countSubjects(fieldValue);
+                default:
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if the only filter requested is an exact match on the questionnaire.
+     *
+     * @param filters a list of filters
+     * @return an empty string if there are no filters, the requested questionnaire identifier if the only filter is an
+     *         exact match on the questionnaire, and {@code null} if other filters are present
+     */
+    private String getQuestionnaireFilter(final Map<FilterType, List<Filter>> filters)
+    {
+        if (filters.isEmpty()) {
+            return "";
+        }
+        final List<Filter> childFilters = filters.get(FilterType.CHILD);
+        if (filters.size() == 1 && childFilters != null && childFilters.size() == 1) {
+            final Filter filter = childFilters.get(0);
+            if (QUESTIONNAIRE_IDENTIFIER.equals(filter.getName()) && "=".equals(filter.getComparator())
+                && StringUtils.isNotBlank(filter.getValue())) {
+                return filter.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the count from the query cache, running the query and caching its result if it was not cached already, or
+     * if the cached result is too old.
      *
      * @param request the current request
      * @param session the current session
+     * @param query the query to count the results of
+     * @param filters a list of filters, stored along with the cached count for reference
+     * @return the number of resources matching the query
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private long getCachedCount(final SlingHttpServletRequest request, final Session session, final String query,
+        final Map<FilterType, List<Filter>> filters) throws RepositoryException
+    {
+        // The same query always uses the same cache node
+        final String cacheNodeName = UUID.nameUUIDFromBytes(query.getBytes(StandardCharsets.UTF_8)).toString();
+        final Node cacheHomepage = session.getNode(QUERY_CACHE_PATH);
+        if (cacheHomepage.hasNode(cacheNodeName)) {
+            final Node cached = cacheHomepage.getNode(cacheNodeName);
+            if (isValidCacheEntry(cached, query)) {
+                return cached.getProperty("count").getLong();
+            }
+        }
+
+        final long count = getCount(session, query);
+        try {
+            storeQueryCacheNode(request, cacheHomepage, cacheNodeName, query, count, filters);
+            session.save();
+        } catch (final RepositoryException e) {
+            // Another request may have stored the same count concurrently, this is not a problem
+            LOGGER.warn("Failed to commit queryCache: {}", e.getMessage());
+            session.refresh(false);
+        }
+        return count;
+    }
+
+    /**
+     * Check if a cached count is for the specified query, and if it is still recent enough to be used.
+     *
+     * @param cached a {@code cards:QueryCache} node
+     * @param query the query that must be counted
+     * @return {@code true} if the cached count can be used
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private boolean isValidCacheEntry(final Node cached, final String query) throws RepositoryException
+    {
+        if (!cached.hasProperty("query") || !cached.hasProperty("count") || !cached.hasProperty("time")
+            || !query.equals(cached.getProperty("query").getString())) {
+            return false;
+        }
+        try {
+            return cached.getProperty("time").getDate().getTimeInMillis() + QUERY_CACHE_TTL
+                > System.currentTimeMillis();
+        } catch (final ValueFormatException e) {
+            // Old cache entries stored the time as a plain string
+            return false;
+        }
+    }
+
+    /**
+     * Creates or updates the <code>QueryCache</code> node that holds the count for a query, along with the identified
+     * filters.
+     *
+     * @param request the current request
+     * @param cacheHomepage the {@code /QueryCache} node
+     * @param cacheNodeName the name of the cache node for this query
+     * @param query the query that was counted
      * @param count the number of Resources that meet the conditions specified in the request
      * @param filters a list of filters
      * @throws RepositoryException if accessing the repository fails
      */
-    private void createQueryCacheNode(final SlingHttpServletRequest request, final Session session, final long count,
-                                      final Map<FilterType, List<Filter>> filters) throws RepositoryException
+    private void storeQueryCacheNode(final SlingHttpServletRequest request, final Node cacheHomepage,
+        final String cacheNodeName, final String query, final long count, final Map<FilterType, List<Filter>> filters)
+        throws RepositoryException
     {
-        Node node = session.getNode("/QueryCache").addNode(UUID.randomUUID().toString(), "cards:QueryCache");
+        final Node node = cacheHomepage.hasNode(cacheNodeName) ? cacheHomepage.getNode(cacheNodeName)
+            : cacheHomepage.addNode(cacheNodeName, "cards:QueryCache");
         node.setProperty("countType", "=");
         node.setProperty("count", count);
-        node.setProperty("time", DATE_FORMAT.format(new Date()));
+        node.setProperty("time", Calendar.getInstance());
+        node.setProperty("query", query);
         node.setProperty("resourceType", request.getResource().getName());
         if (filters.isEmpty()) {
             return;
@@ -209,32 +362,26 @@ private void createQueryCacheNode(final SlingHttpServletRequest request, final S
     /**
      * Counts the number of Resources that meet the conditions specified in the query.
      *
+     * @param session the current session
      * @param query the query to execute
      * @return a long-typed number of the number of Resources with the specified parameters
-     * @throws IOException if failed or interrupted I/O operation
+     * @throws RepositoryException if running the query fails
      */
-    private long getCount(final Query query, final SlingHttpServletResponse response) throws IOException
+    private long getCount(final Session session, final String query) throws RepositoryException
     {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        final Query filterQuery = queryManager.createQuery(query, "JCR-SQL2");
         long count = 0;
         // Which unique items have been seen so far in the query results
         final Set<String> seenResources = new HashSet<>();
-        // Execute the query
-        try {
-            final QueryResult filterResult = query.execute();
-            final NodeIterator results = filterResult.getNodes();
-
-            while (results.hasNext()) {
-                Node n = results.nextNode();
-                // If this resource was already seen, ignore it
-                if (!seenResources.contains(n.getPath())) {
-                    seenResources.add(n.getPath());
-                    ++count;
-                }
+        // Only the paths are needed, so the rows are used instead of loading the nodes
+        final RowIterator results = filterQuery.execute().getRows();
+        while (results.hasNext()) {
+            // If this resource was already seen, ignore it
+            if (seenResources.add(results.nextRow().getPath())) {
+                ++count;
             }
-        } catch (RepositoryException e) {
-            writeEmptyResponse(response);
         }
-
         return count;
     }
 
@@ -22,9 +22,13 @@
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -32,9 +36,12 @@
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.version.OnParentVersionAction;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
 import javax.jcr.version.VersionManager;
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
@@ -47,11 +54,19 @@
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.internal.DeleteJobExecutor;
+
 /**
  * A servlet that tries to delete a given node and returns an explanation if deletion is not possible.
  * <p>
@@ -59,6 +74,10 @@
  * </p>
  * <ul>
  * <li><code>recursive</code>: whether nodes which reference the item should be deleted; defaults to false</li>
+ * <li><code>background</code>: whether to delete the nodes in a background job instead of during the request; defaults
+ * to false. The response is then {@code 202 Accepted}, with the job {@code id} and the {@code status} URL that the
+ * {@link DeleteStatusServlet} answers, which can be polled until the job finishes. If one of the nodes is still
+ * referenced by a node that would not be deleted, no job is started and the response is {@code 409 Conflict}</li>
  * </ul>
  *
  * @version $Id$
@@ -80,17 +99,21 @@ public class DeleteServlet extends SlingAllMethodsServlet
     /** The Resource Resolver for the current request. */
     private final ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
 
-    /** A list of all nodes traversed by {@code traverseNode}. */
-    private final ThreadLocal<Set<Node>> nodesTraversed =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    /**
+     * All nodes traversed by {@code traverseNode}, keyed by path. Node does not implement {@code equals} and
+     * {@code hashCode}, so the same node obtained in two different ways can only be recognized by its path.
+     */
+    private final ThreadLocal<Map<String, Node>> nodesTraversed = ThreadLocal.withInitial(LinkedHashMap::new);
+
+    /** All nodes that should be deleted, keyed by path. */
+    private final ThreadLocal<Map<String, Node>> nodesToDelete = ThreadLocal.withInitial(LinkedHashMap::new);
 
-    /** A set of all nodes that should be deleted. */
-    private final ThreadLocal<Set<Node>> nodesToDelete =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    /** The paths of all nodes that are descendants of nodes in {@code nodesToDelete}. */
+    private final ThreadLocal<Set<String>> childNodesDeleted = ThreadLocal.withInitial(HashSet::new);
 
-    /** A set of all nodes that are children of nodes in {@code nodesToDelete}. */
-    private final ThreadLocal<Set<Node>> childNodesDeleted =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    @Reference(fieldOption = FieldOption.REPLACE, cardinality = ReferenceCardinality.OPTIONAL,
+        policyOption = ReferencePolicyOption.GREEDY)
+    private JobManager jobManager;
 
     /**
      * A function that operates on a {@link Node}. As opposed to a simple {@code Consumer}, it can forward a
@@ -113,11 +136,12 @@ public class DeleteServlet extends SlingAllMethodsServlet
      */
     private NodeConsumer deleteNode = (node) -> {
         // Keep track of each child node we've already deleted
-        boolean isChild = nodeSetContains(this.childNodesDeleted.get(), node) != null;
-        boolean alreadyDeleting = nodeSetContains(this.nodesToDelete.get(), node) != null;
-        if (!isChild && !alreadyDeleting) {
-            this.nodesToDelete.get().add(node);
+        final String path = node.getPath();
+        if (this.childNodesDeleted.get().contains(path) || this.nodesToDelete.get().containsKey(path)) {
+            // Already handled, along with all of its descendants
+            return;
         }
+        this.nodesToDelete.get().put(path, node);
         this.iterateChildren(node, this.markChildNodeDeleted, false);
     };
 
@@ -125,7 +149,7 @@ public class DeleteServlet extends SlingAllMethodsServlet
      * Add a node to a list of traversed nodes.
      */
     private NodeConsumer traverseNode = (node) -> {
-        this.nodesTraversed.get().add(node);
+        this.nodesTraversed.get().put(node.getPath(), node);
     };
 
     /**
@@ -136,35 +160,13 @@ public class DeleteServlet extends SlingAllMethodsServlet
     };
 
     private NodeConsumer markChildNodeDeleted = (node) -> {
-        this.childNodesDeleted.get().add(node);
+        final String path = node.getPath();
+        this.childNodesDeleted.get().add(path);
 
         // Attempting to delete this node will fail -- remove it
-        // contains() appears to not be working, so we'll unroll the equality here
-        Node toRemove = nodeSetContains(this.nodesToDelete.get(), node);
-        if (toRemove != null) {
-            this.nodesToDelete.get().remove(toRemove);
-        }
+        this.nodesToDelete.get().remove(path);
     };
 
-    /**
-     * Determine whether or not a set contains a particular node.
-     * This is necessary because contains() seems to fail to recognize the same node
-     * that was obtained in two different ways.
-     *
-     * @param includeRoot whether or not to include the root node as a child
-     */
-    private Node nodeSetContains(Set<Node> set, Node node)
-        throws RepositoryException
-    {
-        for (Node n : set) {
-            if (n.getPath().equals(node.getPath())) {
-                return n;
-            }
-        }
-
-        return null;
-    }
-
     @Override
     public void doDelete(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
         throws ServletException, IOException
@@ -175,32 +177,19 @@ public void doDelete(final SlingHttpServletRequest request, final SlingHttpServl
             this.nodeToDelete.set(node);
             this.resolver.set(resourceResolver);
             final Session session = resourceResolver.adaptTo(Session.class);
-            final VersionManager versionManager = session.getWorkspace().getVersionManager();
-            final Set<Node> nodesToCheckin = new TreeSet<>(new NodeComparator());
 
             final Boolean recursive = Boolean.parseBoolean(request.getParameter("recursive"));
 
             if (recursive) {
                 handleRecursiveDeleteChildren(node);
-            } else {
-                handleDelete(response, node);
-            }
-
-            // Delete all of our pending nodes, checking out the parent to avoid version conflict issues
-            for (final Node n : this.nodesToDelete.get()) {
-                final Node versionableAncestor = findVersionableAncestor(n);
-                if (versionableAncestor != null && !versionableAncestor.isCheckedOut()) {
-                    nodesToCheckin.add(versionableAncestor);
-                    versionManager.checkout(versionableAncestor.getPath());
-                }
-                n.remove();
+            } else if (!handleDelete(response, node)) {
+                return;
             }
 
-            session.save();
-
-            // Check each parent back in
-            for (final Node versionableNode : nodesToCheckin) {
-                versionManager.checkin(versionableNode.getPath());
+            if (Boolean.parseBoolean(request.getParameter("background"))) {
+                startDeleteJob(request, response, session);
+            } else {
+                deleteNodes(session);
             }
         } catch (AccessDeniedException e) {
             LOGGER.error("AccessDeniedException trying to delete node: {}", e.getMessage(), e);
@@ -219,16 +208,215 @@ public void doDelete(final SlingHttpServletRequest request, final SlingHttpServl
         }
     }
 
+    /**
+     * Delete all of our pending nodes in the current session, checking out their versionable parents to avoid version
+     * conflict issues.
+     *
+     * @param session the session of the current request
+     * @throws RepositoryException if deletion fails due to a repository error
+     */
+    private void deleteNodes(final Session session) throws RepositoryException
+    {
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        final Set<String> nodesToCheckin = new TreeSet<>();
+
+        for (final Node n : this.nodesToDelete.get().values()) {
+            final Node versionableAncestor = DeleteJobExecutor.findVersionableAncestor(n);
+            if (versionableAncestor != null && !versionableAncestor.isCheckedOut()) {
+                nodesToCheckin.add(versionableAncestor.getPath());
+                versionManager.checkout(versionableAncestor.getPath());
+            }
+            n.remove();
+        }
+
+        session.save();
+
+        // Check each parent back in
+        for (final String versionablePath : nodesToCheckin) {
+            versionManager.checkin(versionablePath);
+        }
+    }
+
+    /**
+     * Queue a background job deleting all of our pending nodes. The nodes are not deleted by the requesting user, so
+     * the user's right to delete each of them is checked here, before the job is queued.
+     *
+     * @param request the current request
+     * @param response the HTTP response, where the job identifier will be sent
+     * @param session the session of the current request
+     * @throws IOException if sending the response fails
+     * @throws AccessDeniedException if the requesting user does not have permission to delete any of the nodes
+     * @throws RepositoryException if checking access rights fails due to a repository error
+     */
+    private void startDeleteJob(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final Session session)
+        throws IOException, AccessDeniedException, RepositoryException
+    {
+        if (this.jobManager == null) {
+            sendJsonError(response, SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Background jobs are not available");
+            return;
+        }
+
+        // The job deletes the nodes in separate batches, so a node must not be removed before its referrers
+        final List<String> paths;
+        try {
+            paths = orderForDeletion(this.nodesToDelete.get());
+        } catch (ReferentialIntegrityException e) {
+            sendJsonError(response, SlingHttpServletResponse.SC_CONFLICT, e.getMessage());
+            return;
+        }
+        final Set<String> versionablePaths = new HashSet<>();
+        final AccessControlManager acm = session.getAccessControlManager();
+        final Privilege[] versionManagement = { acm.privilegeFromName(Privilege.JCR_VERSION_MANAGEMENT) };
+        for (final Map.Entry<String, Node> entry : this.nodesToDelete.get().entrySet()) {
+            if (!session.hasPermission(entry.getKey(), Session.ACTION_REMOVE)) {
+                throw new AccessDeniedException("Cannot delete " + entry.getKey());
+            }
+            // Deleting from a checked in form requires checking it out first
+            final Node versionableAncestor = DeleteJobExecutor.findVersionableAncestor(entry.getValue());
+            if (versionableAncestor != null && !versionableAncestor.isCheckedOut()
+                && versionablePaths.add(versionableAncestor.getPath())
+                && !acm.hasPrivileges(versionableAncestor.getPath(), versionManagement)) {
+                throw new AccessDeniedException("Cannot check out " + versionableAncestor.getPath());
+            }
+        }
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(DeleteJobExecutor.PATHS_PROPERTY, paths.toArray(new String[0]));
+        properties.put(DeleteJobExecutor.USER_PROPERTY, request.getRemoteUser());
+        final Job job = this.jobManager.addJob(DeleteJobExecutor.TOPIC, properties);
+        if (job == null) {
+            sendJsonError(response, SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                "Failed to start the delete job");
+            return;
+        }
+
+        // The status is served by any resource homepage, use the one containing the deleted node
+        final String path = this.nodeToDelete.get().getPath();
+        final String homepage = path.substring(0, Math.max(path.indexOf('/', 1), 1));
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        final JsonGenerator jsonGen = Json.createGenerator(response.getWriter());
+        jsonGen.writeStartObject()
+            .write("id", job.getId())
+            .write("total", paths.size())
+            .write("status", homepage + ".deleteStatus.json?id=" + job.getId())
+            .writeEnd().close();
+    }
+
+    /**
+     * Order the nodes to delete so that every node comes after all the other nodes to delete that hold a hard reference
+     * to it, or to one of its descendants. Saving the removal of a referenced node fails while a referrer still exists,
+     * so when the nodes are deleted in separate batches, the referrers must go first. Otherwise, the order in which the
+     * nodes were found is kept.
+     *
+     * @param nodes the nodes to delete, keyed by path, in the order they were found
+     * @return the paths of the nodes to delete, each one after its referrers
+     * @throws ReferentialIntegrityException if one of the nodes is referenced by a node that is not deleted, in which
+     *             case deleting the nodes cannot succeed
+     * @throws RepositoryException if accessing the references fails
+     */
+    static List<String> orderForDeletion(final Map<String, Node> nodes) throws RepositoryException
+    {
+        final Map<String, Set<String>> referrers = new HashMap<>();
+        for (final Map.Entry<String, Node> entry : nodes.entrySet()) {
+            final Set<String> nodeReferrers = new LinkedHashSet<>();
+            collectReferrers(entry.getValue(), nodes.keySet(), nodeReferrers);
+            // References within the same subtree are removed together with it
+            nodeReferrers.remove(entry.getKey());
+            referrers.put(entry.getKey(), nodeReferrers);
+        }
+
+        final List<String> result = new ArrayList<>(nodes.size());
+        final Set<String> visited = new HashSet<>();
+        for (final String path : nodes.keySet()) {
+            addAfterReferrers(path, referrers, visited, result);
+        }
+        return result;
+    }
+
+    /**
+     * Find which of the nodes to delete hold a hard reference to the given node or to one of its descendants. Weak
+     * references don't prevent deleting a node, and are ignored.
+     *
+     * @param node the node whose subtree to check
+     * @param deleted the paths of all the nodes to delete
+     * @param result where to add the paths of the nodes to delete containing the referrers
+     * @throws ReferentialIntegrityException if a referrer is not deleted
+     * @throws RepositoryException if accessing the references fails
+     */
+    private static void collectReferrers(final Node node, final Set<String> deleted, final Set<String> result)
+        throws RepositoryException
+    {
+        final PropertyIterator references = node.getReferences();
+        while (references.hasNext()) {
+            final String referrer = references.nextProperty().getParent().getPath();
+            final String deletedAncestor = findDeletedAncestor(referrer, deleted);
+            if (deletedAncestor != null) {
+                result.add(deletedAncestor);
+            } else if (!referrer.startsWith("/jcr:system/")) {
+                // References from the version storage are not checked by the repository
+                throw new ReferentialIntegrityException(node.getPath() + " is still referenced by " + referrer);
+            }
+        }
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            collectReferrers(children.nextNode(), deleted, result);
+        }
+    }
+
+    /**
+     * Find the node to delete that the given path belongs to.
+     *
+     * @param path a node path
+     * @param deleted the paths of all the nodes to delete
+     * @return the path itself or its nearest ancestor which is in {@code deleted}, or {@code null} if the node at the
+     *         given path is not deleted
+     */
+    private static String findDeletedAncestor(final String path, final Set<String> deleted)
+    {
+        for (String current = path; !current.isEmpty(); current = StringUtils.substringBeforeLast(current, "/")) {
+            if (deleted.contains(current)) {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a path to the deletion order, after the paths of its referrers. A node that is already visited is not added
+     * again, which also stops cycles of references.
+     *
+     * @param path the path to add
+     * @param referrers the referrers of each node to delete
+     * @param visited the paths already visited
+     * @param result the deletion order being built
+     */
+    private static void addAfterReferrers(final String path, final Map<String, Set<String>> referrers,
+        final Set<String> visited, final List<String> result)
+    {
+        if (!visited.add(path)) {
+            return;
+        }
+        for (final String referrer : referrers.get(path)) {
+            addAfterReferrers(referrer, referrers, visited, result);
+        }
+        result.add(path);
+    }
+
     /**
      * Attempt to delete a node. If other nodes refer to it, user will be informed that deletion could not occur.
      *
      * @param response the HTTP response to be used to convey failure to the user
      * @param node the node to attempt deletion
+     * @return {@code true} if the node can be deleted, {@code false} if the user was informed that it cannot
      * @throws IOException if sending an error to the response fails
      * @throws AccessDeniedException if the requesting user does not have permission to delete the node
      * @throws RepositoryException if deletion fails due to a repository error
      */
-    private void handleDelete(final SlingHttpServletResponse response, final Node node)
+    private boolean handleDelete(final SlingHttpServletResponse response, final Node node)
         throws IOException, AccessDeniedException, RepositoryException
     {
         // Check if this node or its children are referenced by other nodes
@@ -236,7 +424,6 @@ private void handleDelete(final SlingHttpServletResponse response, final Node no
 
         if (this.nodesTraversed.get().size() == 0) {
             this.deleteNode.accept(node);
-            this.resolver.get().adaptTo(Session.class).save();
         } else {
             String referencedNodes = listReferrersFromTraversal();
             if (referencedNodes == null || referencedNodes.length() > 0) {
@@ -244,12 +431,14 @@ private void handleDelete(final SlingHttpServletResponse response, final Node no
                 sendJsonError(response, SlingHttpServletResponse.SC_CONFLICT,
                     String.format("This item is referenced %s.",
                     StringUtils.isEmpty(referencedNodes) ? "by unknown item(s)" : "in " + referencedNodes));
+                return false;
             } else {
                 // References were found but they are not references that need user prompting to delete.
                 // Do not inform user, just delete.
                 handleRecursiveDeleteChildren(node);
             }
         }
+        return true;
     }
 
     /**
@@ -406,7 +595,7 @@ private String listReferrersFromTraversal()
             List<String> subjectTypes = new ArrayList<>();
             List<String> questionnaires = new ArrayList<>();
 
-            for (Node n : this.nodesTraversed.get()) {
+            for (Node n : this.nodesTraversed.get().values()) {
                 switch (n.getPrimaryNodeType().getName()) {
                     case "cards:Form":
                         formCount++;
@@ -593,57 +782,4 @@ private static void sendJsonError(final SlingHttpServletResponse response, int s
         jsonGen.writeEnd().close();
         response.setStatus(sc);
     }
-
-    /**
-     * Finds and returns an ancestor of the given node that is versionable, if any.
-     *
-     * @param n a node
-     * @return an ancestor node of the input node that is versionable, or {@code null} if no such ancestor exists
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Node findVersionableAncestor(final Node n) throws RepositoryException
-    {
-        // Abort early if no ancestor is accessible
-        if (n == null || n.getDepth() == 0 || isNonVersionable(n)) {
-            return null;
-        }
-
-        Node ancestor = n.getParent();
-        while (ancestor.getDepth() > 0 && !ancestor.isNodeType("mix:versionable")) {
-            try {
-                ancestor = ancestor.getParent();
-            } catch (AccessDeniedException e) {
-                // The parent is inaccessible to us
-                return null;
-            }
-        }
-
-        if (ancestor.isNodeType("mix:versionable")) {
-            return ancestor;
-        }
-        return null;
-    }
-
-    private boolean isNonVersionable(final Node n) throws RepositoryException
-    {
-        return n.getDefinition().getOnParentVersion() == OnParentVersionAction.IGNORE;
-    }
-
-    /**
-     * Node does not implement {@code equals} and {@code hashCode}, so in order to properly detect if two Node instances
-     * reference the same node, we need an explicit comparator that compares the two node paths. This comparator may
-     * throw {@code NullPointerException} if any of the nodes to compare are null.
-     */
-    private static class NodeComparator implements Comparator<Node>
-    {
-        @Override
-        public int compare(Node o1, Node o2)
-        {
-            try {
-                return o1.getPath().compareTo(o2.getPath());
-            } catch (RepositoryException e) {
-                return 0;
-            }
-        }
-    }
 }
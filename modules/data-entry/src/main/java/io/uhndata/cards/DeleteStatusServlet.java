@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Objects;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.Servlet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+
+import io.uhndata.cards.internal.DeleteJobExecutor;
+
+/**
+ * A servlet reporting the progress of a background delete job started by the {@link DeleteServlet}, meant to be polled
+ * by the UI until the job finishes.
+ * <p>
+ * This servlet supports the following parameters:
+ * </p>
+ * <ul>
+ * <li><code>id</code>: the identifier of the job, as returned when the job was started; mandatory</li>
+ * </ul>
+ * <p>
+ * The response is a JSON object with the job's {@code state}, which is one of {@code QUEUED}, {@code ACTIVE},
+ * {@code SUCCEEDED}, {@code FAILED} or {@code STOPPED}, the {@code total} number of nodes to delete, how many were
+ * {@code processed} so far, and a {@code message} once the job finishes. Only the user who started a job can see it.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+    resourceTypes = { "cards/ResourceHomepage" },
+    selectors = { "deleteStatus" },
+    methods = { "GET" })
+public class DeleteStatusServlet extends SlingSafeMethodsServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    @Reference(fieldOption = FieldOption.REPLACE, cardinality = ReferenceCardinality.OPTIONAL,
+        policyOption = ReferencePolicyOption.GREEDY)
+    private JobManager jobManager;
+
+    @Reference
+    private DeleteJobExecutor deleteJobExecutor;
+
+    @Override
+    public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException
+    {
+        final String id = request.getParameter("id");
+        if (StringUtils.isBlank(id)) {
+            writeStatus(response, SlingHttpServletResponse.SC_BAD_REQUEST, null, "Missing job id", -1, -1);
+            return;
+        }
+        final String user = request.getRemoteUser();
+
+        // A job still known to the job manager is either pending, running, or failed and waiting to be retried
+        final Job job = this.jobManager == null ? null : this.jobManager.getJobById(id);
+        if (job != null && DeleteJobExecutor.TOPIC.equals(job.getTopic())
+            && Objects.equals(user, job.getProperty(DeleteJobExecutor.USER_PROPERTY, String.class))) {
+            writeStatus(response, SlingHttpServletResponse.SC_OK, toState(job.getJobState()), job.getResultMessage(),
+                job.getProgressStepCount(), job.getFinishedProgressStep());
+            return;
+        }
+
+        // Finished jobs are forgotten by the job manager, look at the outcome recorded by the executor instead
+        final DeleteJobExecutor.Outcome outcome = this.deleteJobExecutor.getOutcome(id);
+        if (outcome != null && Objects.equals(user, outcome.getUserId())) {
+            final boolean succeeded = DeleteJobExecutor.Outcome.SUCCEEDED.equals(outcome.getState());
+            writeStatus(response, SlingHttpServletResponse.SC_OK, outcome.getState(), outcome.getMessage(),
+                outcome.getTotal(), succeeded ? outcome.getTotal() : outcome.getRemoved());
+            return;
+        }
+
+        writeStatus(response, SlingHttpServletResponse.SC_NOT_FOUND, null, "Unknown job", -1, -1);
+    }
+
+    /**
+     * Map the job manager's states to the few states reported to the UI.
+     *
+     * @param state the state of a job
+     * @return a simplified state
+     */
+    private static String toState(final Job.JobState state)
+    {
+        switch (state) {
+            case QUEUED:
+                return "QUEUED";
+            case ACTIVE:
+                return "ACTIVE";
+            case SUCCEEDED:
+                return DeleteJobExecutor.Outcome.SUCCEEDED;
+            case STOPPED:
+            case DROPPED:
+                return DeleteJobExecutor.Outcome.STOPPED;
+            default:
+                return DeleteJobExecutor.Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Send the status of a job.
+     *
+     * @param response the response object to write to
+     * @param sc the HTTP response code to send
+     * @param state the state of the job, may be {@code null} if the job is not known
+     * @param message a message describing the job's result, may be {@code null}
+     * @param total the total number of nodes to delete, or a negative number if not known yet
+     * @param processed the number of nodes processed so far
+     */
+    private static void writeStatus(final SlingHttpServletResponse response, final int sc, final String state,
+        final String message, final int total, final int processed)
+        throws IOException
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(sc);
+
+        final Writer out = response.getWriter();
+        final JsonGenerator jsonGen = Json.createGenerator(out);
+        jsonGen.writeStartObject();
+        if (state != null) {
+            jsonGen.write("state", state);
+        }
+        if (total >= 0) {
+            jsonGen.write("total", total);
+            jsonGen.write("processed", Math.max(processed, 0));
+        }
+        if (!StringUtils.isEmpty(message)) {
+            jsonGen.write("message", message);
+        }
+        jsonGen.writeEnd().close();
+    }
+}
@@ -20,13 +20,17 @@
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -44,7 +48,6 @@
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 import javax.json.Json;
-import javax.json.JsonObject;
 import javax.json.stream.JsonGenerator;
 import javax.servlet.Servlet;
 
@@ -58,6 +61,8 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.ResourceJsonWriter;
+
 /**
  * A servlet that lists resources of a specific type, depending on which "homepage" resource the request is targeting.
  * <p>
@@ -70,6 +75,12 @@
  * {@code (*blastoma OR *noma OR tumor*) recurrent}; no filter set by default</li>
  * <li><code>includeallstatus</code>: if true, incomplete forms will be included. Otherwise, they will be excluded
  * unless searched for directly using {@code fieldname="statusFlags"}
+ * <li><code>cursor</code>: enables the keyset pagination mode, where instead of skipping {@code offset} results, the
+ * query continues right after the last resource returned in the previous page; an empty value requests the first page,
+ * and each response includes in its {@code cursor} field the opaque value to use for requesting the next page, or
+ * {@code null} if there are no more results; in this mode, the total number of results is not computed</li>
+ * <li><code>estimatetotal</code>: if true, no resources are returned, only an estimate of the total number of
+ * matching resources, computed in the same way as in the default offset mode</li>
  * </ul>
  *
  * @version $Id$
@@ -84,6 +95,11 @@ public class PaginationServlet extends SlingSafeMethodsServlet
     protected static final String FIELDNAME = "fieldname";
     protected static final String FIELDCOMPARATOR = "fieldcomparator";
     protected static final String FIELDVALUE = "fieldvalue";
+
+    protected static final String SUBJECT_IDENTIFIER = "cards:Subject";
+
+    protected static final String QUESTIONNAIRE_IDENTIFIER = "cards:Questionnaire";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(PaginationServlet.class);
 
     private static final long serialVersionUID = -6068156942302219324L;
@@ -95,10 +111,6 @@ public class PaginationServlet extends SlingSafeMethodsServlet
         Arrays.asList("=", "<>", "<", "<=", ">", ">=", "LIKE", "notes contain", "contains", " IS NULL",
             " IS NOT NULL");
 
-    private static final String SUBJECT_IDENTIFIER = "cards:Subject";
-
-    private static final String QUESTIONNAIRE_IDENTIFIER = "cards:Questionnaire";
-
     private static final String CREATED_DATE_IDENTIFIER = "cards:Created";
 
     private static final String CREATED_BY_IDENTIFIER = "cards:CreatedBy";
@@ -110,6 +122,8 @@ public class PaginationServlet extends SlingSafeMethodsServlet
     private static final List<String> NODE_FILTERS = Arrays.asList(CREATED_DATE_IDENTIFIER, CREATED_BY_IDENTIFIER,
         MODIFIED_BY_IDENTIFIER, MODIFIED_DATE_IDENTIFIER);
 
+    private static final String CREATED_PROPERTY = "jcr:created";
+
     /**
      * Various supported filter types.
      */
@@ -222,6 +236,72 @@ private String formatDate(String original)
         }
     }
 
+    /**
+     * A position in the query results, used for keyset pagination. Since results are sorted by their creation date,
+     * the next page can be retrieved by only asking for resources created after the last returned resource. Several
+     * resources may share the same creation date, so the paths of the already returned resources with that exact
+     * creation date are also kept, to be skipped in the next page.
+     */
+    protected static final class PageCursor
+    {
+        private static final String SEPARATOR = "\n";
+
+        /** The creation date of the last returned resource, in the ISO 8601 format used by JCR. */
+        private final String created;
+
+        /** The paths of the already returned resources having the same creation date as the last returned resource. */
+        private final Set<String> paths;
+
+        PageCursor(final String created, final Set<String> paths)
+        {
+            this.created = created;
+            this.paths = paths;
+        }
+
+        /**
+         * Parse an opaque cursor value received in a request.
+         *
+         * @param value the cursor value, may be empty
+         * @return a parsed cursor, or {@code null} if the value is empty, meaning that the first page is requested
+         * @throws IllegalArgumentException if the value is not a valid cursor
+         */
+        static PageCursor parse(final String value) throws IllegalArgumentException
+        {
+            if (StringUtils.isBlank(value)) {
+                return null;
+            }
+            final String[] parts =
+                new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8).split(SEPARATOR);
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            // Validate the date, since it will be used in the query
+            ZonedDateTime.parse(parts[0], DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+            return new PageCursor(parts[0], new HashSet<>(Arrays.asList(parts).subList(1, parts.length)));
+        }
+
+        String getCreated()
+        {
+            return this.created;
+        }
+
+        Set<String> getPaths()
+        {
+            return this.paths;
+        }
+
+        /**
+         * Serialize this cursor into an opaque value that can be sent to the client.
+         *
+         * @return a base64 encoded string
+         */
+        String serialize()
+        {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (this.created + SEPARATOR + String.join(SEPARATOR, this.paths)).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
         throws IOException, IllegalArgumentException
@@ -235,6 +315,8 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
 
             final long limit = getLongValueOrDefault(request.getParameter("limit"), 10);
             final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
+            final boolean cursorMode = request.getParameter("cursor") != null;
+            final boolean estimateTotal = Boolean.parseBoolean(request.getParameter("estimatetotal"));
 
             // Check for special cases in request and return zero results if any
             if (checkForSpecialEmptyFilter(request, filters, response)) {
@@ -246,11 +328,29 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             // Get a QueryManager object
             final QueryManager queryManager = session.getWorkspace().getQueryManager();
 
+            if (cursorMode && !estimateTotal) {
+                final PageCursor cursor;
+                try {
+                    cursor = PageCursor.parse(request.getParameter("cursor"));
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    response.sendError(SlingHttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+                    return;
+                }
+                Query filterQuery =
+                    queryManager.createQuery(createQuery(request, session, filters, cursor), "JCR-SQL2");
+                writeCursorResponse(request, response, cursor, limit, filterQuery);
+                return;
+            }
+
             // Create the Query object
             Query filterQuery = queryManager.createQuery(createQuery(request, session, filters), "JCR-SQL2");
 
             // Get the results and write the response
-            writeResponse(request, response, offset, limit, filterQuery);
+            if (estimateTotal) {
+                writeTotalEstimateResponse(request, response, offset, limit, filterQuery);
+            } else {
+                writeResponse(request, response, offset, limit, filterQuery);
+            }
         } catch (Exception e) {
             LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
             return;
@@ -332,13 +432,80 @@ private void writeResponse(final SlingHttpServletRequest request, final SlingHtt
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
             jsonGen.writeStartArray("rows");
-            long[] limits = writeResources(jsonGen, query, offset, limit, request);
+            long[] limits = writeResources(jsonGen, query, offset, limit, request, true);
             jsonGen.writeEnd();
             writeSummary(jsonGen, request, limits);
             jsonGen.writeEnd().flush();
         }
     }
 
+    /**
+     * Write a response containing only an estimate of the total number of matching resources, without serializing any
+     * resource.
+     *
+     * @param request the current request
+     * @param response the HTTP response
+     * @param offset the offset of the page for which the total is estimated, used for gauging how far to count
+     * @param limit the page size for which the total is estimated, used for gauging how far to count
+     * @param query the query to execute
+     * @throws IOException if failed or interrupted I/O operation
+     */
+    private void writeTotalEstimateResponse(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response, final long offset, final long limit, final Query query)
+        throws IOException
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
+        final Writer out = response.getWriter();
+        try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+            jsonGen.writeStartObject();
+            long[] limits = writeResources(jsonGen, query, offset, limit, request, false);
+            jsonGen.write("req", request.getParameter("req"));
+            jsonGen.write("totalrows", limits[3]);
+            jsonGen.write("totalIsApproximate", limits[4] == 1);
+            jsonGen.writeEnd().flush();
+        }
+    }
+
+    /**
+     * Write the response for the keyset pagination mode.
+     *
+     * @param request the current request
+     * @param response the HTTP response
+     * @param cursor the position after which to start returning resources, {@code null} for the first page
+     * @param limit how many resources from the query results to serialize
+     * @param query the query to execute, already restricted to start at the cursor position
+     * @throws IOException if failed or interrupted I/O operation
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void writeCursorResponse(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final PageCursor cursor, final long limit, final Query query)
+        throws IOException, RepositoryException
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
+        final Writer out = response.getWriter();
+        try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+            jsonGen.writeStartObject();
+            jsonGen.writeStartArray("rows");
+            final List<String> returned = new ArrayList<>();
+            final boolean hasMore = writeCursorResources(jsonGen, query, cursor, limit, returned, request);
+            jsonGen.writeEnd();
+            jsonGen.write("req", request.getParameter("req"));
+            jsonGen.write("limit", limit);
+            jsonGen.write("returnedrows", returned.size());
+            final PageCursor next = hasMore ? getNextCursor(cursor, returned, request) : null;
+            if (next == null) {
+                jsonGen.writeNull("cursor");
+            } else {
+                jsonGen.write("cursor", next.serialize());
+            }
+            jsonGen.writeEnd().flush();
+        }
+    }
+
     /**
      * Returns a type of results to return, a node type like {@code cards:Form} or {@code cards:Subject}.
      *
@@ -346,7 +513,7 @@ private void writeResponse(final SlingHttpServletRequest request, final SlingHtt
      * @return a node type string
      * @throws RepositoryException if accessing the repository fails
      */
-    private String getNodeType(final SlingHttpServletRequest request) throws RepositoryException
+    protected String getNodeType(final SlingHttpServletRequest request) throws RepositoryException
     {
         final Node node = request.getResource().adaptTo(Node.class);
         return node.hasProperty("childNodeType") ? node.getProperty("childNodeType").getString()
@@ -364,6 +531,22 @@ private String getNodeType(final SlingHttpServletRequest request) throws Reposit
      */
     protected String createQuery(final SlingHttpServletRequest request, Session session,
         final Map<FilterType, List<Filter>> filters) throws RepositoryException
+    {
+        return createQuery(request, session, filters, null);
+    }
+
+    /**
+     * Generates a JCR SQL Query from the request, only matching resources starting at the specified cursor position.
+     *
+     * @param request the current request
+     * @param session a valid JCR session
+     * @param filters a list of filters
+     * @param cursor the position after which to look for resources, may be {@code null} to start from the beginning
+     * @return a query that takes into account the requested filters and cursor
+     * @throws RepositoryException if accessing the repository fails
+     */
+    protected String createQuery(final SlingHttpServletRequest request, Session session,
+        final Map<FilterType, List<Filter>> filters, final PageCursor cursor) throws RepositoryException
     {
         // If we want this query to be fast, we need to use the exact nodetype requested.
         final String nodeType = getNodeType(request);
@@ -417,6 +600,13 @@ protected String createQuery(final SlingHttpServletRequest request, Session sess
 
         // Results ordering
         final boolean sortDescending = Boolean.valueOf(request.getParameter("descending"));
+
+        // Start from the cursor position; resources created at the exact cursor date that were already returned are
+        // skipped while processing the results
+        if (cursor != null) {
+            query.append(String.format(" and n.'%s'%s'%s'", CREATED_PROPERTY, sortDescending ? "<=" : ">=",
+                this.sanitizeValue(cursor.getCreated())));
+        }
         query.append(" order by n.'jcr:created'").append(sortDescending ? " DESC" : " ASC");
 
         // Force using the lucene indexes
@@ -961,13 +1151,15 @@ private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletReq
      * @param resultLimit how many resources from the query results to serialize, may be 0 if we only want a count of
      *            the resources
      * @param request the current request
+     * @param includeResources whether the resources in the requested page should be serialized, or only counted
      * @return an array of values defining the range of the result: limits[0] is the 0-based offset, i.e. how many
      *         results were skipped; limits[1] is the requested limit, the maximum number of results to return;
      *         limits[2] is the number of results actually returned, equal to or less than limits[1]; limits[3] is an
      *         approximate number of total items that match the query
      */
     private long[] writeResources(final JsonGenerator jsonGen, final Query query,
-        final long resultOffset, final long resultLimit, final SlingHttpServletRequest request)
+        final long resultOffset, final long resultLimit, final SlingHttpServletRequest request,
+        final boolean includeResources)
     {
         // Problem 1: Currently Oak does not support DISTINCT, so we must manually ensure uniqueness of the results.
         // Problem 2: Currently Oak does not support giving a total number of matches, so we must gauge it.
@@ -1023,8 +1215,9 @@ private long[] writeResources(final JsonGenerator jsonGen, final Query query,
                     // If we've passed the "offset" mark, and we didn't output "limit" items yet, include the
                     // resource in the output
                     if (seenResources.size() > resultOffset && limitCounter > 0) {
-                        jsonGen.write(
-                            request.getResourceResolver().resolve(path + selectors).adaptTo(JsonObject.class));
+                        if (includeResources) {
+                            writeResource(jsonGen, request, path + selectors);
+                        }
                         --limitCounter;
                         ++returnedResults;
                     }
@@ -1055,6 +1248,105 @@ private long[] writeResources(final JsonGenerator jsonGen, final Query query,
         };
     }
 
+    /**
+     * Serialize the query results into the response JSON for the keyset pagination mode. Unlike
+     * {@link #writeResources}, this stops as soon as the requested page is complete, and only remembers the resources
+     * seen in the current page.
+     *
+     * @param jsonGen the JSON generator where the results should be serialized
+     * @param query the query to execute, already restricted to start at the cursor position
+     * @param cursor the position after which to start returning resources, {@code null} for the first page
+     * @param resultLimit how many resources from the query results to serialize
+     * @param returned will be filled with the paths of the serialized resources, in order
+     * @param request the current request
+     * @return {@code true} if there are more results after the returned ones, {@code false} otherwise
+     */
+    private boolean writeCursorResources(final JsonGenerator jsonGen, final Query query, final PageCursor cursor,
+        final long resultLimit, final List<String> returned, final SlingHttpServletRequest request)
+    {
+        final String selectors =
+            (request.getParameter("resourceSelectors") == null ? "" : "." + request.getParameter("resourceSelectors"))
+                .replaceAll("\\.\\.", ".");
+        // Oak does not support DISTINCT, and resources returned in the previous page with the cursor creation date
+        // will be returned again, so skip them
+        final Set<String> seenResources = cursor == null ? new HashSet<>() : new HashSet<>(cursor.getPaths());
+
+        try {
+            final RowIterator rows = query.execute().getRows();
+            while (rows.hasNext()) {
+                final String path = rows.nextRow().getPath();
+                if (!seenResources.add(path)) {
+                    continue;
+                }
+                if (returned.size() >= resultLimit) {
+                    return true;
+                }
+                writeResource(jsonGen, request, path + selectors);
+                returned.add(path);
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Serialize a resource directly into the response, without building its full JSON representation in memory first.
+     *
+     * @param jsonGen the JSON generator where the resource should be serialized
+     * @param request the current request
+     * @param pathWithSelectors the path of the resource to serialize, including the serialization selectors
+     */
+    private void writeResource(final JsonGenerator jsonGen, final SlingHttpServletRequest request,
+        final String pathWithSelectors)
+    {
+        final ResourceJsonWriter writer =
+            request.getResourceResolver().resolve(pathWithSelectors).adaptTo(ResourceJsonWriter.class);
+        if (writer != null) {
+            writer.write(jsonGen);
+        } else {
+            jsonGen.writeNull();
+        }
+    }
+
+    /**
+     * Compute the cursor pointing right after the last returned resource.
+     *
+     * @param cursor the cursor used for retrieving the current page, {@code null} for the first page
+     * @param returned the paths of the resources returned in the current page, in order
+     * @param request the current request
+     * @return the cursor for the next page, or {@code null} if no resources were returned
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private PageCursor getNextCursor(final PageCursor cursor, final List<String> returned,
+        final SlingHttpServletRequest request) throws RepositoryException
+    {
+        if (returned.isEmpty()) {
+            return null;
+        }
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+        final String lastCreated = getCreated(session, returned.get(returned.size() - 1));
+        final Set<String> paths = new LinkedHashSet<>();
+        // All the returned resources created at the same time as the last one must be skipped in the next page
+        for (int i = returned.size() - 1; i >= 0; --i) {
+            final String path = returned.get(i);
+            if (!lastCreated.equals(getCreated(session, path))) {
+                break;
+            }
+            paths.add(path);
+        }
+        // Including the ones returned in previous pages, if they have the same creation date
+        if (cursor != null && lastCreated.equals(cursor.getCreated())) {
+            paths.addAll(cursor.getPaths());
+        }
+        return new PageCursor(lastCreated, paths);
+    }
+
+    private String getCreated(final Session session, final String path) throws RepositoryException
+    {
+        return session.getNode(path).getProperty(CREATED_PROPERTY).getString();
+    }
+
     /**
      * Convert a request parameter, which may be missing or invalid, into a proper long, with fallback to a default
      * value.
@@ -16,7 +16,9 @@
  */
 package io.uhndata.cards;
 
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -36,22 +38,24 @@
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 import javax.script.Bindings;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.scripting.SlingBindings;
 import org.apache.sling.api.scripting.SlingScriptHelper;
 import org.apache.sling.scripting.sightly.pojo.Use;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.internal.QuickSearchCoordinator;
+import io.uhndata.cards.serialize.ResourceJsonWriter;
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchParametersFactory;
@@ -117,7 +121,7 @@ public class QueryBuilder implements Use
 
     private Logger logger = LoggerFactory.getLogger(QueryBuilder.class);
 
-    private String content;
+    private String content = "";
 
     private ResourceResolver resourceResolver;
 
@@ -147,10 +151,14 @@ public class QueryBuilder implements Use
     /** Quick search engines. */
     private List<QuickSearchEngine> searchEngines;
 
+    /** Runs the quick search engines in parallel. */
+    private QuickSearchCoordinator searchCoordinator;
+
     /**
      * Get the results of the query as a JSON array.
      *
-     * @return a serialized JsonArray with all the content matching the query
+     * @return a serialized JsonArray with all the content matching the query, or an empty string if the results were
+     *         already written directly into the script output
      */
     public String getContent()
     {
@@ -160,10 +168,14 @@ public String getContent()
     @Override
     public void init(Bindings bindings)
     {
+        // If possible, the results are written directly into the script output, instead of being collected as a String
+        final Writer scriptOutput = (Writer) bindings.get(SlingBindings.OUT);
+        final StringWriter buffer = scriptOutput == null ? new StringWriter() : null;
         SlingHttpServletRequest request = (SlingHttpServletRequest) bindings.get("request");
         this.resourceResolver = (ResourceResolver) bindings.get("resolver");
         final SlingScriptHelper slingHelper = (SlingScriptHelper) bindings.get("sling");
         this.searchEngines = Arrays.asList(slingHelper.getServices(QuickSearchEngine.class, null));
+        this.searchCoordinator = slingHelper.getService(QuickSearchCoordinator.class);
 
         try {
             this.offset = getLongValueOrDefault(request.getParameter("offset"), 0);
@@ -178,26 +190,32 @@ public void init(Bindings bindings)
             final String showTotalRowsParam = request.getParameter("showTotalRows");
             this.showTotalRows = StringUtils.isBlank(showTotalRowsParam) || "true".equals(showTotalRowsParam);
 
-            QueryResult results = query(request);
-            if (results == null) {
-                return;
+            // The generator is not closed, since that would also close the script output, it is only flushed
+            final JsonGenerator jsonGen = Json.createGenerator(scriptOutput == null ? buffer : scriptOutput);
+            jsonGen.writeStartObject();
+            QueryResult results = query(request, jsonGen);
+            if (results != null) {
+                // output the results into our content
+                if ("true".equals(request.getParameter("rawResults"))) {
+                    this.outputRawQueryResults(jsonGen, results);
+                } else {
+                    this.outputQueryResults(jsonGen, results);
+                }
             }
-
-            // output the results into our content
-            JsonObjectBuilder builder = Json.createObjectBuilder();
-            if ("true".equals(request.getParameter("rawResults"))) {
-                this.outputRawQueryResults(builder, results);
-            } else {
-                this.outputQueryResults(builder, results);
+            jsonGen.writeEnd().flush();
+            if (buffer != null) {
+                this.content = buffer.toString();
             }
-            this.content = builder.build().toString();
         } catch (Exception e) {
             this.logger.error("Failed to query resources: {}", e.getMessage(), e);
-            this.content = "Unknown error: " + e.fillInStackTrace();
+            // Once results are streamed into the script output, appending an error message would only corrupt them
+            if (buffer != null) {
+                this.content = "Unknown error: " + e.fillInStackTrace();
+            }
         }
     }
 
-    private QueryResult query(final SlingHttpServletRequest request)
+    private QueryResult query(final SlingHttpServletRequest request, final JsonGenerator jsonGen)
         throws UnsupportedEncodingException, RepositoryException
     {
         final String jcrQuery = request.getParameter("query");
@@ -216,7 +234,7 @@ private QueryResult query(final SlingHttpServletRequest request)
             // A quick search is special, since the results are not simply serialized nodes, but search results
             // enriched with match information, and the quick search engines already take care of not returning more
             // results than needed
-            quickSearch(this.urlDecode(quickQuery));
+            quickSearch(this.urlDecode(quickQuery), jsonGen);
             return null;
         } else {
             results = EmptyResults.INSTANCE;
@@ -266,15 +284,18 @@ private QueryResult fullTextSearch(String query) throws RepositoryException
     /**
      * Finds [cards:Form]s, [cards:Subject]s, and [cards:Questionnaire]s using the given full text search, and outputs
      * the result as a JSON. This performs the search in such a way that values in child nodes (e.g. cards:Answers of an
-     * cards:Form) are aggregated to their parent.
+     * cards:Form) are aggregated to their parent. All the supported engines are queried in parallel, and they stop as
+     * soon as enough results are found. If the total is requested, the results are only counted up to the end of the
+     * batch containing the requested page, and the total is marked as approximate if there are more.
      *
      * @param query text to search
+     * @param jsonGen the JSON generator where the results should be serialized
      */
-    private void quickSearch(final String query) throws RepositoryException, UnsupportedEncodingException
+    private void quickSearch(final String query, final JsonGenerator jsonGen)
     {
         final List<String> allowedResourceTypes = (this.resourceTypes != null && this.resourceTypes.length > 0)
             ? Arrays.asList(this.resourceTypes) : Collections.singletonList("cards:Form");
-        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        jsonGen.writeStartArray("rows");
 
         final SearchParameters searchParameters = SearchParametersFactory.newSearchParameters()
             .withType("quick")
@@ -283,44 +304,42 @@ private void quickSearch(final String query) throws RepositoryException, Unsuppo
             .withMaxResults(this.limit)
             .build();
 
-        long totalRows = 0L;
-        long outputRows = 0L;
         final List<QuickSearchEngine> supportedEngines = this.searchEngines.stream()
             .filter(e -> allowedResourceTypes.stream().anyMatch(type -> e.isTypeSupported(type)))
             .collect(Collectors.toList());
-        for (final QuickSearchEngine engine : supportedEngines) {
-            final QuickSearchEngine.Results results = engine.quickSearch(searchParameters, this.resourceResolver);
-            while (results.hasNext()) {
-                if (outputRows >= this.limit && !this.showTotalRows) {
-                    break;
-                }
-                if (totalRows < this.offset || outputRows >= this.limit) {
-                    results.skip();
-                } else {
-                    builder.add(results.next());
-                    ++outputRows;
-                }
-                ++totalRows;
-            }
-        }
+        final QuickSearchCoordinator.Results results = this.searchCoordinator.search(supportedEngines,
+            searchParameters, this.resourceResolver, this.offset, this.limit,
+            this.showTotalRows ? getTotalLimit() : this.offset + this.limit);
+        results.getRows().forEach(jsonGen::write);
+
+        jsonGen.writeEnd();
+        buildResults(jsonGen, results.getRows().size(), results.getTotal(), results.isTotalApproximate() ? 1 : 0);
+    }
 
-        final JsonObjectBuilder output = Json.createObjectBuilder();
-        buildResults(output, builder.build(), outputRows, totalRows, 0);
-        this.content = output.build().toString();
+    /**
+     * Compute how many results to count when an exact total is not needed: enough to fill the batch of
+     * {@code QUERY_SIZE_MULTIPLIER * limit} results which contains the requested page, and one more to know if there
+     * are more results.
+     *
+     * @return a number of results
+     */
+    private long getTotalLimit()
+    {
+        // Batch size:
+        final long batchSize = QUERY_SIZE_MULTIPLIER * this.limit;
+        // Batch fully containing the requested page, and one more for the "more than" check:
+        return (((long) Math.ceil(((double) this.offset) / ((double) batchSize))) + 1) * batchSize + 1;
     }
 
     /**
      * Serialize search results, subject to the an offset and a limit. Write metadata about the request and response.
      * This includes the number of returned and total matching nodes, and copying some request parameters.
      *
-     * @param output the JSON object generator where the results should be serialized
-     * @param rows an iterator over the nodes to serialize, which will be consumed
-     * @param serializeChildren whether child nodes of the search results must be serialized as well
-     * @param req the current request number
-     * @param offset the requested offset, may be the default value of {0}
+     * @param jsonGen the JSON generator where the results should be serialized
+     * @param queryResults the query results, whose rows will be consumed
      * @throws RepositoryException if running the query fails
      */
-    private void outputQueryResults(final JsonObjectBuilder output, final QueryResult queryResults)
+    private void outputQueryResults(final JsonGenerator jsonGen, final QueryResult queryResults)
         throws RepositoryException
     {
         Set<String> seenPaths = new HashSet<>();
@@ -331,15 +350,9 @@ private void outputQueryResults(final JsonObjectBuilder output, final QueryResul
         // How many more items to include in the output
         long limitCounter = this.limit;
 
-        // Batch size:
-        long totalLimit = (QUERY_SIZE_MULTIPLIER * this.limit);
-        // Batch fully containing the requested page:
-        totalLimit = (((long) Math.ceil(((double) this.offset) / ((double) totalLimit))) + 1) * totalLimit;
-        // And one more for the "more than" check:
-        ++totalLimit;
-        totalLimit = this.showTotalRows ? Long.MAX_VALUE : totalLimit;
+        final long totalLimit = this.showTotalRows ? Long.MAX_VALUE : getTotalLimit();
 
-        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        jsonGen.writeStartArray("rows");
 
         final RowIterator rows = queryResults.getRows();
 
@@ -360,7 +373,7 @@ private void outputQueryResults(final JsonObjectBuilder output, final QueryResul
                     --offsetCounter;
                     // Count up to our limit
                 } else if (limitCounter > 0) {
-                    builder.add(serializeNode(path));
+                    serializeNode(path, jsonGen);
                     --limitCounter;
                     ++returnedRows;
                 }
@@ -375,19 +388,20 @@ private void outputQueryResults(final JsonObjectBuilder output, final QueryResul
         if (seenPaths.size() == totalLimit) {
             andMore = 1;
         }
-        buildResults(output, builder.build(), returnedRows, seenPaths.size() - andMore, andMore);
+        jsonGen.writeEnd();
+        buildResults(jsonGen, returnedRows, seenPaths.size() - andMore, andMore);
     }
 
     /**
      * Serialize search results, subject to the an offset and a limit. Write metadata about the request and response.
      * This includes the number of returned and total matching nodes, and copying some request parameters.
      *
-     * @param output the JSON object generator where the results should be serialized
+     * @param jsonGen the JSON generator where the results should be serialized
      * @param queryResults the raw query results
      * @throws RepositoryException if running the query fails
      */
     @SuppressWarnings("checkstyle:CyclomaticComplexity")
-    private void outputRawQueryResults(final JsonObjectBuilder output, final QueryResult queryResults)
+    private void outputRawQueryResults(final JsonGenerator jsonGen, final QueryResult queryResults)
         throws RepositoryException
     {
         long returnedRows = 0;
@@ -397,17 +411,11 @@ private void outputRawQueryResults(final JsonObjectBuilder output, final QueryRe
         // How many more items to include in the output
         long limitCounter = this.limit;
 
-        // Batch size:
-        long totalLimit = (QUERY_SIZE_MULTIPLIER * this.limit);
-        // Batch fully containing the requested page:
-        totalLimit = (((long) Math.ceil(((double) this.offset) / ((double) totalLimit))) + 1) * totalLimit;
-        // And one more for the "more than" check:
-        ++totalLimit;
-        totalLimit = this.showTotalRows ? Long.MAX_VALUE : totalLimit;
+        final long totalLimit = this.showTotalRows ? Long.MAX_VALUE : getTotalLimit();
 
         long totalRows = 0;
 
-        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        jsonGen.writeStartArray("rows");
 
         final RowIterator rows = queryResults.getRows();
 
@@ -429,7 +437,7 @@ private void outputRawQueryResults(final JsonObjectBuilder output, final QueryRe
                         final Value value = row.getValue(column);
                         serializedRow.add(column, value == null ? JsonValue.NULL : Json.createValue(value.getString()));
                     }
-                    builder.add(serializedRow.build());
+                    jsonGen.write(serializedRow.build());
                     --limitCounter;
                     ++returnedRows;
                 }
@@ -446,16 +454,17 @@ private void outputRawQueryResults(final JsonObjectBuilder output, final QueryRe
         if (totalRows == totalLimit) {
             andMore = 1;
         }
-        buildResults(output, builder.build(), returnedRows, totalRows - andMore, andMore);
+        jsonGen.writeEnd();
+        buildResults(jsonGen, returnedRows, totalRows - andMore, andMore);
     }
 
     /**
-     * Serialize a node to be placed in the output.
+     * Serialize a node directly into the output.
      *
      * @param path JCR path of the node to serialize
-     * @return a JsonObject
+     * @param jsonGen the JSON generator where the node should be serialized
      */
-    private JsonObject serializeNode(final String path)
+    private void serializeNode(final String path, final JsonGenerator jsonGen)
     {
         final Resource resource = this.resourceResolver.resolve(path + this.resourceSelectors);
         // If there are children we can add, we'll add them as child properties of the JsonObject
@@ -467,22 +476,26 @@ private JsonObject serializeNode(final String path)
                 builder.add(child.getName(), child.adaptTo(JsonObject.class));
             }
 
-            return builder.build();
+            jsonGen.write(builder.build());
         } else {
-            return resource.adaptTo(JsonObject.class);
+            final ResourceJsonWriter writer = resource.adaptTo(ResourceJsonWriter.class);
+            if (writer != null) {
+                writer.write(jsonGen);
+            } else {
+                jsonGen.writeNull();
+            }
         }
     }
 
-    private void buildResults(final JsonObjectBuilder output, final JsonArray data, final long returnedRows,
-        final long totalRows, final long totalIsApproximate)
+    private void buildResults(final JsonGenerator jsonGen, final long returnedRows, final long totalRows,
+        final long totalIsApproximate)
     {
-        output.add("rows", data);
-        output.add("req", this.requestID);
-        output.add("offset", this.offset);
-        output.add("limit", this.limit);
-        output.add("returnedrows", returnedRows);
-        output.add("totalrows", totalRows);
-        output.add("totalIsApproximate", totalIsApproximate);
+        jsonGen.write("req", this.requestID);
+        jsonGen.write("offset", this.offset);
+        jsonGen.write("limit", this.limit);
+        jsonGen.write("returnedrows", returnedRows);
+        jsonGen.write("totalrows", totalRows);
+        jsonGen.write("totalIsApproximate", totalIsApproximate);
     }
 
     /**
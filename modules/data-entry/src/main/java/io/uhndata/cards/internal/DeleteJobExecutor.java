@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.OnParentVersionAction;
+import javax.jcr.version.VersionManager;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes, in the background, the nodes that the {@code DeleteServlet} found must be removed together with a resource.
+ * Removing a patient along with all their visits and forms can touch many thousands of nodes, so instead of a single
+ * large commit inside the HTTP request, the nodes are removed in batches, each one committed separately, and each
+ * versionable form is checked out and back in only once per batch.
+ * <p>
+ * The requesting user's access rights are checked by the servlet before the job is queued, the job itself runs as
+ * the {@code cards-delete-job} service user.
+ * </p>
+ * <p>
+ * The paths are deleted in the order given, which the servlet arranges so that the nodes holding a hard reference come
+ * before the nodes they reference; a committed batch thus never leaves behind a node referencing a removed one. If a
+ * batch cannot be committed, it is discarded and the job fails, keeping the nodes not deleted yet. Retrying the job
+ * resumes from there, since nodes that no longer exist are skipped.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { DeleteJobExecutor.class, JobExecutor.class },
+    property = JobExecutor.PROPERTY_TOPICS + "=" + DeleteJobExecutor.TOPIC)
+@Designate(ocd = DeleteJobExecutor.Config.class)
+public final class DeleteJobExecutor implements JobExecutor
+{
+    /** The topic of the delete jobs. */
+    public static final String TOPIC = "io/uhndata/cards/delete";
+
+    /** The job property holding the paths of the nodes to delete, as a string array. */
+    public static final String PATHS_PROPERTY = "paths";
+
+    /** The job property holding the name of the user who requested the deletion. */
+    public static final String USER_PROPERTY = "userId";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeleteJobExecutor.class);
+
+    private static final String VERSIONABLE = "mix:versionable";
+
+    private static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** How many finished jobs to remember, so that their outcome can still be reported to the user. */
+    private static final int MAX_OUTCOMES = 1000;
+
+    @ObjectClassDefinition(name = "Background delete",
+        description = "Configuration for the background removal of resources along with everything referencing them")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Batch size",
+            description = "How many nodes to delete before committing")
+        int batchSize() default DEFAULT_BATCH_SIZE;
+    }
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final int batchSize;
+
+    /** The outcome of the recently finished jobs, keyed by job identifier, oldest first. */
+    private final Map<String, Outcome> outcomes = new LinkedHashMap<>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Outcome> eldest)
+        {
+            return size() > MAX_OUTCOMES;
+        }
+    };
+
+    @Activate
+    public DeleteJobExecutor(final Config config)
+    {
+        this.batchSize = Math.max(config.batchSize(), 1);
+    }
+
+    @Override
+    public JobExecutionResult process(final Job job, final JobExecutionContext context)
+    {
+        final String[] paths = job.getProperty(PATHS_PROPERTY, String[].class);
+        final String userId = job.getProperty(USER_PROPERTY, String.class);
+        if (paths == null) {
+            return context.result().message("No nodes to delete").cancelled();
+        }
+        context.initProgress(paths.length, -1);
+
+        final long start = System.currentTimeMillis();
+        int removed = 0;
+        int batches = 0;
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, "deleteJob"))) {
+            final Session session = resolver.adaptTo(Session.class);
+            for (int from = 0; from < paths.length; from += this.batchSize) {
+                if (context.isStopped()) {
+                    final String message = String.format("Stopped after deleting %d of %d nodes", removed,
+                        paths.length);
+                    record(job.getId(), new Outcome(userId, Outcome.STOPPED, paths.length, removed, message));
+                    return context.result().message(message).cancelled();
+                }
+                final int to = Math.min(from + this.batchSize, paths.length);
+                removed += deleteBatch(session, paths, from, to);
+                ++batches;
+                context.incrementProgress(to - from);
+            }
+        } catch (LoginException | RepositoryException e) {
+            LOGGER.error("Failed to delete {} nodes requested by {}: {}", paths.length, userId, e.getMessage(), e);
+            final String message = String.format("Failed after deleting %d of %d nodes: %s", removed, paths.length,
+                e.getMessage());
+            context.log(message);
+            record(job.getId(), new Outcome(userId, Outcome.FAILED, paths.length, removed, message));
+            return context.result().message(message).failed();
+        }
+
+        final String message = String.format("Deleted %d nodes", removed);
+        LOGGER.info("Deleted {} nodes requested by {} in {} batches, in {}ms", removed, userId, batches,
+            System.currentTimeMillis() - start);
+        record(job.getId(), new Outcome(userId, Outcome.SUCCEEDED, paths.length, removed, message));
+        return context.result().message(message).succeeded();
+    }
+
+    /**
+     * The outcome of a recently finished job. Once a job succeeds, the job manager forgets it, so this is the only
+     * place where its result can still be found.
+     *
+     * @param jobId the identifier of a delete job
+     * @return the outcome of the job, or {@code null} if the job hasn't finished yet, or finished too long ago
+     */
+    public Outcome getOutcome(final String jobId)
+    {
+        synchronized (this.outcomes) {
+            return this.outcomes.get(jobId);
+        }
+    }
+
+    /**
+     * Finds and returns an ancestor of the given node that is versionable, if any.
+     *
+     * @param n a node
+     * @return an ancestor node of the input node that is versionable, or {@code null} if no such ancestor exists
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public static Node findVersionableAncestor(final Node n) throws RepositoryException
+    {
+        // Abort early if no ancestor is accessible
+        if (n == null || n.getDepth() == 0 || isNonVersionable(n)) {
+            return null;
+        }
+
+        Node ancestor = n.getParent();
+        while (ancestor.getDepth() > 0 && !ancestor.isNodeType(VERSIONABLE)) {
+            try {
+                ancestor = ancestor.getParent();
+            } catch (AccessDeniedException e) {
+                // The parent is inaccessible to us
+                return null;
+            }
+        }
+
+        if (ancestor.isNodeType(VERSIONABLE)) {
+            return ancestor;
+        }
+        return null;
+    }
+
+    /**
+     * Delete one batch of nodes and commit. The versionable ancestors of the deleted nodes are checked out before, and
+     * checked back in after the commit. The referrers of a node are either in an earlier batch, or in the same batch.
+     *
+     * @param session the service session
+     * @param paths all the paths to delete
+     * @param from the index of the first path in this batch
+     * @param to the index after the last path in this batch
+     * @return the number of nodes actually deleted
+     * @throws RepositoryException if deleting or committing fails
+     */
+    private int deleteBatch(final Session session, final String[] paths, final int from, final int to)
+        throws RepositoryException
+    {
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        final Set<String> toCheckin = new LinkedHashSet<>();
+        int removed = 0;
+        try {
+            for (int i = from; i < to; ++i) {
+                if (!session.nodeExists(paths[i])) {
+                    // Already deleted, by an earlier attempt of this job or by someone else
+                    continue;
+                }
+                final Node node = session.getNode(paths[i]);
+                final Node versionableAncestor = findVersionableAncestor(node);
+                if (versionableAncestor != null && !versionableAncestor.isCheckedOut()) {
+                    toCheckin.add(versionableAncestor.getPath());
+                    versionManager.checkout(versionableAncestor.getPath());
+                }
+                node.remove();
+                ++removed;
+            }
+            session.save();
+        } catch (RepositoryException e) {
+            session.refresh(false);
+            throw e;
+        } finally {
+            for (final String path : toCheckin) {
+                if (session.nodeExists(path)) {
+                    versionManager.checkin(path);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isNonVersionable(final Node n) throws RepositoryException
+    {
+        return n.getDefinition().getOnParentVersion() == OnParentVersionAction.IGNORE;
+    }
+
+    private void record(final String jobId, final Outcome outcome)
+    {
+        synchronized (this.outcomes) {
+            this.outcomes.put(jobId, outcome);
+        }
+    }
+
+    /** How a delete job ended. */
+    public static final class Outcome
+    {
+        /** All the nodes were deleted. */
+        public static final String SUCCEEDED = "SUCCEEDED";
+
+        /** Deleting failed, the nodes not deleted yet are kept, and the job may be retried later. */
+        public static final String FAILED = "FAILED";
+
+        /** The job was stopped before deleting all the nodes. */
+        public static final String STOPPED = "STOPPED";
+
+        private final String userId;
+
+        private final String state;
+
+        private final int total;
+
+        private final int removed;
+
+        private final String message;
+
+        Outcome(final String userId, final String state, final int total, final int removed, final String message)
+        {
+            this.userId = userId;
+            this.state = state;
+            this.total = total;
+            this.removed = removed;
+            this.message = message;
+        }
+
+        public String getUserId()
+        {
+            return this.userId;
+        }
+
+        public String getState()
+        {
+            return this.state;
+        }
+
+        public int getTotal()
+        {
+            return this.total;
+        }
+
+        public int getRemoved()
+        {
+            return this.removed;
+        }
+
+        public String getMessage()
+        {
+            return this.message;
+        }
+    }
+}
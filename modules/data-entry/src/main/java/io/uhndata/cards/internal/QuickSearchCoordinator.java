@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+
+/**
+ * Runs a quick search on several {@link QuickSearchEngine}s at the same time. Each engine runs in its own thread, with
+ * its own clone of the user's resource resolver, and thus its own JCR session. The results are merged in the order of
+ * the engines, and an engine stops as soon as the engines before it already found enough results.
+ *
+ * @version $Id$
+ */
+@Component(service = QuickSearchCoordinator.class)
+public final class QuickSearchCoordinator
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuickSearchCoordinator.class);
+
+    private static final int MIN_THREADS = 4;
+
+    @Reference
+    private ThreadResourceResolverProvider rrp;
+
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate()
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors()),
+            task -> {
+                final Thread thread = new Thread(task, "QuickSearch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Run a quick search.
+     *
+     * @param engines the engines to query, in the order in which their results must be returned
+     * @param parameters the search parameters
+     * @param resolver the resource resolver of the user running the search
+     * @param offset how many results to skip
+     * @param limit how many results to return
+     * @param countLimit how many results to count at most, at least {@code offset + limit}; the engines are stopped
+     *            once this many results are found, so larger values give more accurate totals but slower searches
+     * @return the requested page of results, along with the number of results found
+     */
+    public Results search(final List<QuickSearchEngine> engines, final SearchParameters parameters,
+        final ResourceResolver resolver, final long offset, final long limit, final long countLimit)
+    {
+        final Search search = new Search(engines, parameters, offset + limit, Math.max(offset + limit, countLimit));
+        final List<EngineResults> engineResults = new ArrayList<>(engines.size());
+        if (engines.size() == 1) {
+            // Nothing to run in parallel, avoid the overhead of a new session
+            engineResults.add(search.run(0, resolver));
+        } else {
+            final List<Future<EngineResults>> futures = new ArrayList<>(engines.size());
+            for (int i = 0; i < engines.size(); ++i) {
+                final int engine = i;
+                futures.add(this.executor.submit(() -> runWithOwnSession(search, engine, resolver)));
+            }
+            for (Future<EngineResults> future : futures) {
+                engineResults.add(getResults(future));
+            }
+        }
+        return search.merge(engineResults, offset);
+    }
+
+    private EngineResults runWithOwnSession(final Search search, final int engine, final ResourceResolver resolver)
+    {
+        try (ResourceResolver ownResolver = resolver.clone(null)) {
+            this.rrp.push(ownResolver);
+            try {
+                return search.run(engine, ownResolver);
+            } finally {
+                this.rrp.pop();
+            }
+        } catch (LoginException e) {
+            LOGGER.warn("Failed to open a session for quick search: {}", e.getMessage(), e);
+            return search.done(engine, List.of(), 0);
+        }
+    }
+
+    private EngineResults getResults(final Future<EngineResults> future)
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            LOGGER.warn("Quick search failed: {}", e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+        }
+        return new EngineResults(List.of(), 0);
+    }
+
+    /**
+     * The results of a quick search.
+     */
+    public static final class Results
+    {
+        private final List<JsonObject> rows;
+
+        private final long total;
+
+        private final boolean totalIsApproximate;
+
+        Results(final List<JsonObject> rows, final long total, final boolean totalIsApproximate)
+        {
+            this.rows = rows;
+            this.total = total;
+            this.totalIsApproximate = totalIsApproximate;
+        }
+
+        /**
+         * The requested page of results.
+         *
+         * @return a list of search results, may be empty
+         */
+        public List<JsonObject> getRows()
+        {
+            return this.rows;
+        }
+
+        /**
+         * The number of matches found.
+         *
+         * @return the number of matches, a lower bound if {@link #isTotalApproximate()}
+         */
+        public long getTotal()
+        {
+            return this.total;
+        }
+
+        /**
+         * Whether more matches exist than the ones counted.
+         *
+         * @return {@code true} if the search stopped counting before all the matches were found
+         */
+        public boolean isTotalApproximate()
+        {
+            return this.totalIsApproximate;
+        }
+    }
+
+    /**
+     * The state shared by the engines running for one search.
+     */
+    private static final class Search
+    {
+        private final List<QuickSearchEngine> engines;
+
+        private final SearchParameters parameters;
+
+        /** How many results must be fully serialized, from the start. */
+        private final long needed;
+
+        /** How many results to count at most. */
+        private final long countLimit;
+
+        /** How many results each engine has found so far. */
+        private final AtomicLongArray found;
+
+        Search(final List<QuickSearchEngine> engines, final SearchParameters parameters, final long needed,
+            final long countLimit)
+        {
+            this.engines = engines;
+            this.parameters = parameters;
+            this.needed = needed;
+            this.countLimit = countLimit;
+            this.found = new AtomicLongArray(engines.size());
+        }
+
+        EngineResults run(final int engine, final ResourceResolver resolver)
+        {
+            final QuickSearchEngine.Results results =
+                this.engines.get(engine).quickSearch(this.parameters, resolver);
+            final List<JsonObject> rows = new ArrayList<>();
+            long count = 0;
+            while (results.hasNext() && count + foundBefore(engine) < this.countLimit) {
+                if (count < this.needed) {
+                    rows.add(results.next());
+                } else {
+                    results.skip();
+                }
+                this.found.set(engine, ++count);
+            }
+            return done(engine, rows, count);
+        }
+
+        EngineResults done(final int engine, final List<JsonObject> rows, final long count)
+        {
+            // Also marks failed engines as done, so that the following engines can stop
+            this.found.set(engine, count);
+            return new EngineResults(rows, count);
+        }
+
+        /**
+         * Merge the results of all the engines, in order.
+         *
+         * @param engineResults the results of each engine
+         * @param offset how many results to skip
+         * @return the requested page of results
+         */
+        Results merge(final List<EngineResults> engineResults, final long offset)
+        {
+            final List<JsonObject> page = new ArrayList<>();
+            long position = 0;
+            for (EngineResults results : engineResults) {
+                for (JsonObject row : results.rows) {
+                    if (position >= offset && position < this.needed) {
+                        page.add(row);
+                    }
+                    ++position;
+                }
+                position += results.count - results.rows.size();
+            }
+            if (position >= this.countLimit && this.countLimit > this.needed) {
+                // Counting stopped early, there may be more results
+                return new Results(page, this.countLimit - 1, true);
+            }
+            return new Results(page, Math.min(position, this.countLimit), false);
+        }
+
+        /**
+         * Count how many results the engines before the given one have found so far. Since the earlier engines keep
+         * searching, this is a lower bound of their final result count.
+         *
+         * @param engine the index of an engine
+         * @return a number of results
+         */
+        private long foundBefore(final int engine)
+        {
+            long result = 0;
+            for (int i = 0; i < engine; ++i) {
+                result += this.found.get(i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The results found by one engine: the first {@code needed} results, and how many results were found in total.
+     */
+    private static final class EngineResults
+    {
+        private final List<JsonObject> rows;
+
+        private final long count;
+
+        EngineResults(final List<JsonObject> rows, final long count)
+        {
+            this.rows = rows;
+            this.count = count;
+        }
+    }
+}
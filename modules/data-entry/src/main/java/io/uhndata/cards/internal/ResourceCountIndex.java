@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Keeps the number of forms for each questionnaire and the number of subjects for each subject type, so that simple
+ * counts don't require running a query over all the resources. The counters are computed once, the first time they
+ * are needed, from the latest repository state, and afterwards they are kept up to date by looking at the changes
+ * made to {@code /Forms} and {@code /Subjects} in every commit, including commits made by other cluster nodes.
+ * <p>
+ * Access rights are not taken into account, all resources are counted.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { ResourceCountIndex.class, Observer.class })
+public final class ResourceCountIndex implements Observer
+{
+    private static final String FORMS = "Forms";
+
+    private static final String SUBJECTS = "Subjects";
+
+    private static final String INCOMPLETE = "INCOMPLETE";
+
+    /** The key used for the counters that cover all the resources, regardless of their questionnaire or type. */
+    private static final String ALL = "";
+
+    /** Guards the initial computation of the counters, so that only one request actually does it. */
+    private final Object initializationLock = new Object();
+
+    /** The latest repository state, guarded by {@code this}. */
+    private NodeState lastRoot;
+
+    /** The counters, {@code null} until they are needed for the first time. */
+    private volatile Counters counters;
+
+    @Override
+    public synchronized void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        if (this.counters != null && this.lastRoot != null) {
+            this.counters.update(this.lastRoot, root);
+        }
+        this.lastRoot = root;
+    }
+
+    /**
+     * Count the forms, either all the forms, or just the forms for one questionnaire.
+     *
+     * @param questionnaire the identifier of a questionnaire, or {@code null} to count all the forms
+     * @param includeIncomplete whether forms marked as {@code INCOMPLETE} should be counted as well
+     * @return the number of forms, or {@code -1} if the counters are not available yet
+     */
+    public long countForms(final String questionnaire, final boolean includeIncomplete)
+    {
+        final Counters current = getCounters();
+        if (current == null) {
+            return -1;
+        }
+        final String key = StringUtils.defaultString(questionnaire);
+        return includeIncomplete ? current.get(current.forms, key)
+            : current.get(current.forms, key) - current.get(current.incompleteForms, key);
+    }
+
+    /**
+     * Count the forms marked as {@code INCOMPLETE}, either all of them, or just the ones for one questionnaire.
+     *
+     * @param questionnaire the identifier of a questionnaire, or {@code null} to count the incomplete forms of all
+     *            questionnaires
+     * @return the number of incomplete forms, or {@code -1} if the counters are not available yet
+     */
+    public long countIncompleteForms(final String questionnaire)
+    {
+        final Counters current = getCounters();
+        return current == null ? -1 : current.get(current.incompleteForms, StringUtils.defaultString(questionnaire));
+    }
+
+    /**
+     * Count the subjects, either all the subjects, or just the subjects of one type.
+     *
+     * @param type the identifier of a subject type, or {@code null} to count all the subjects
+     * @return the number of subjects, or {@code -1} if the counters are not available yet
+     */
+    public long countSubjects(final String type)
+    {
+        final Counters current = getCounters();
+        return current == null ? -1 : current.get(current.subjects, StringUtils.defaultString(type));
+    }
+
+    private Counters getCounters()
+    {
+        Counters result = this.counters;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this.initializationLock) {
+            result = this.counters;
+            if (result == null) {
+                final NodeState snapshot;
+                synchronized (this) {
+                    snapshot = this.lastRoot;
+                }
+                if (snapshot == null) {
+                    // No repository state was received yet
+                    return null;
+                }
+                // The full count is done outside the lock, so that commits aren't blocked while it runs
+                result = new Counters();
+                result.update(EmptyNodeState.EMPTY_NODE, snapshot);
+                synchronized (this) {
+                    // Catch up with the changes made in the meantime
+                    result.update(snapshot, this.lastRoot);
+                    this.counters = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The actual counters, keyed by questionnaire or subject type, with the totals stored under the {@link #ALL} key.
+     */
+    private static final class Counters
+    {
+        private final Map<String, AtomicLong> forms = new ConcurrentHashMap<>();
+
+        private final Map<String, AtomicLong> incompleteForms = new ConcurrentHashMap<>();
+
+        private final Map<String, AtomicLong> subjects = new ConcurrentHashMap<>();
+
+        long get(final Map<String, AtomicLong> counts, final String key)
+        {
+            final AtomicLong result = counts.get(key);
+            return result == null ? 0 : result.get();
+        }
+
+        void update(final NodeState before, final NodeState after)
+        {
+            // The counting editor never throws exceptions, so the result can be ignored
+            EditorDiff.process(new RootEditor(), before, after);
+        }
+
+        void add(final Map<String, AtomicLong> counts, final String key, final long delta)
+        {
+            counts.computeIfAbsent(ALL, k -> new AtomicLong()).addAndGet(delta);
+            if (StringUtils.isNotEmpty(key)) {
+                counts.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+            }
+        }
+
+        void count(final NodeState node, final long delta)
+        {
+            if (isForm(node)) {
+                final String questionnaire = getReference(node, "questionnaire");
+                add(this.forms, questionnaire, delta);
+                if (isIncomplete(node)) {
+                    add(this.incompleteForms, questionnaire, delta);
+                }
+            } else if (isSubject(node)) {
+                add(this.subjects, getReference(node, "type"), delta);
+            }
+        }
+
+        /**
+         * The editor invoked on the repository root, which only looks at the forms and subjects homepages.
+         */
+        private final class RootEditor extends DefaultEditor
+        {
+            @Override
+            public Editor childNodeAdded(final String name, final NodeState after)
+            {
+                return isTracked(name) ? new CountingEditor() : null;
+            }
+
+            @Override
+            public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+            {
+                return isTracked(name) ? new CountingEditor() : null;
+            }
+
+            @Override
+            public Editor childNodeDeleted(final String name, final NodeState before)
+            {
+                return isTracked(name) ? new CountingEditor() : null;
+            }
+
+            private boolean isTracked(final String name)
+            {
+                return FORMS.equals(name) || SUBJECTS.equals(name);
+            }
+        }
+
+        /**
+         * The editor that actually updates the counters. Subjects may have child subjects, so their children are
+         * inspected as well, but the answers inside forms are never looked at.
+         */
+        private final class CountingEditor extends DefaultEditor
+        {
+            @Override
+            public Editor childNodeAdded(final String name, final NodeState after)
+            {
+                count(after, 1);
+                return descend(after);
+            }
+
+            @Override
+            public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+            {
+                if (isForm(before) != isForm(after) || isSubject(before) != isSubject(after)
+                    || isIncomplete(before) != isIncomplete(after)
+                    || !StringUtils.equals(getReference(before, "questionnaire"), getReference(after, "questionnaire"))
+                    || !StringUtils.equals(getReference(before, "type"), getReference(after, "type"))) {
+                    count(before, -1);
+                    count(after, 1);
+                }
+                return descend(after);
+            }
+
+            @Override
+            public Editor childNodeDeleted(final String name, final NodeState before)
+            {
+                count(before, -1);
+                return descend(before);
+            }
+
+            private Editor descend(final NodeState node)
+            {
+                return isForm(node) ? null : this;
+            }
+        }
+    }
+
+    private static boolean isForm(final NodeState node)
+    {
+        return "cards:Form".equals(node.getName("jcr:primaryType"));
+    }
+
+    private static boolean isSubject(final NodeState node)
+    {
+        return "cards:Subject".equals(node.getName("jcr:primaryType"));
+    }
+
+    private static boolean isIncomplete(final NodeState node)
+    {
+        final PropertyState flags = node.getProperty("statusFlags");
+        if (flags == null) {
+            return false;
+        }
+        for (String flag : flags.getValue(Type.STRINGS)) {
+            if (INCOMPLETE.equals(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getReference(final NodeState node, final String property)
+    {
+        final PropertyState reference = node.getProperty(property);
+        return reference == null || reference.isArray() ? null : reference.getValue(Type.STRING);
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.spi.SubstringSearchIndex;
+
+/**
+ * Trigram based implementation of the {@link SubstringSearchIndex}. Every indexed text is split into all its
+ * overlapping sequences of three characters, and for each such trigram the index keeps the paths of the nodes
+ * containing it. A search only looks at the nodes containing the rarest trigram of the searched text, and checks each
+ * of them against the full text, so its cost depends on the number of candidates, not on the size of the repository.
+ * <p>
+ * The lowercase texts are kept in memory along with the trigrams. The index is built in the background the first time
+ * it is needed, from the latest repository state, and afterwards it is kept up to date by looking at the changes made
+ * to {@code /Forms} and {@code /Subjects} in every commit, including commits made by other cluster nodes. Until it is
+ * ready, searches are not answered, and the quick search engines fall back to their queries.
+ * </p>
+ * <p>
+ * The observer only records the latest repository state, the index itself is built and updated on a dedicated
+ * thread, so commits are never delayed by the indexing. Several commits received while an update runs are processed
+ * together by the next update, so the index may briefly lag behind the repository.
+ * </p>
+ * <p>
+ * The index can be disabled, and its size is bounded: once the indexed texts exceed the configured number of
+ * characters, the index is discarded and not built again, and all searches fall back to queries.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { SubstringSearchIndex.class, Observer.class })
+@Designate(ocd = TrigramSearchIndex.Config.class)
+public final class TrigramSearchIndex implements SubstringSearchIndex, Observer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrigramSearchIndex.class);
+
+    private static final int GRAM_LENGTH = 3;
+
+    private static final long DEFAULT_MAX_SIZE = 50_000_000L;
+
+    private static final String FORMS = "Forms";
+
+    private static final String SUBJECTS = "Subjects";
+
+    private static final String TEXT_ANSWER_TYPE = "cards:TextAnswer";
+
+    private static final String SUBJECT_TYPE = "cards:Subject";
+
+    @ObjectClassDefinition(name = "Quick search index",
+        description = "Configuration for the in-memory index used by the quick search for text answers and subject"
+            + " identifiers")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Enabled",
+            description = "Whether the quick search uses the in-memory index; if disabled, queries are always used")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Maximum size",
+            description = "The maximum number of characters of text to keep in memory; the trigrams take several"
+                + " times as much memory. If the indexed texts grow larger, the index is discarded and queries are"
+                + " used instead")
+        long maxSize() default DEFAULT_MAX_SIZE;
+    }
+
+    private final boolean enabled;
+
+    private final long maxSize;
+
+    /** The thread building and updating the index. */
+    private final ExecutorService executor;
+
+    /** Whether the index is being built, or was already built, or was discarded for being too large. */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** Whether an update of the index is already queued. */
+    private final AtomicBoolean updateQueued = new AtomicBoolean();
+
+    /** The latest repository state received by the observer. */
+    private volatile NodeState latestRoot;
+
+    /** The repository state reflected by the index, only accessed from the indexing thread. */
+    private NodeState indexedRoot;
+
+    /** The index, {@code null} until it is built, or after it was discarded. */
+    private volatile Index index;
+
+    @Activate
+    public TrigramSearchIndex(final Config config)
+    {
+        this(config, Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "TrigramSearchIndex");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    TrigramSearchIndex(final Config config, final ExecutorService executor)
+    {
+        this.enabled = config.enabled();
+        this.maxSize = config.maxSize();
+        this.executor = executor;
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.executor.shutdownNow();
+        this.index = null;
+    }
+
+    @Override
+    public void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        if (!this.enabled) {
+            return;
+        }
+        this.latestRoot = root;
+        if (this.index != null && this.updateQueued.compareAndSet(false, true)) {
+            this.executor.execute(this::update);
+        }
+    }
+
+    @Override
+    public Iterator<Node> search(final String field, final String text, final Session session)
+    {
+        if (!this.enabled || text == null || text.length() < GRAM_LENGTH) {
+            return null;
+        }
+        final Index current = getIndex();
+        if (current == null) {
+            return null;
+        }
+        final Field target = current.fields.get(field);
+        if (target == null) {
+            return null;
+        }
+        return target.search(text.toLowerCase(Locale.ROOT)).stream()
+            .map(path -> getNode(session, path))
+            .filter(Objects::nonNull)
+            .iterator();
+    }
+
+    private Index getIndex()
+    {
+        final Index result = this.index;
+        if (result == null && this.started.compareAndSet(false, true)) {
+            this.executor.execute(this::build);
+        }
+        return result;
+    }
+
+    private void build()
+    {
+        try {
+            final NodeState snapshot = this.latestRoot;
+            if (snapshot == null) {
+                // No repository state was received yet, try again on the next search
+                this.started.set(false);
+                return;
+            }
+            LOGGER.info("Building the quick search index");
+            final Index result = new Index(this.maxSize);
+            result.update(EmptyNodeState.EMPTY_NODE, snapshot);
+            if (result.isFull()) {
+                discard();
+                return;
+            }
+            this.indexedRoot = snapshot;
+            this.index = result;
+            LOGGER.info("Quick search index ready");
+            // Catch up with the changes received in the meantime; later changes queue their own update
+            update();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to build the quick search index: {}", e.getMessage(), e);
+            this.started.set(false);
+        }
+    }
+
+    private void update()
+    {
+        // Cleared before looking at the latest state, so that a commit received during the update queues another one
+        this.updateQueued.set(false);
+        final Index current = this.index;
+        final NodeState root = this.latestRoot;
+        if (current == null || root == this.indexedRoot) {
+            return;
+        }
+        try {
+            current.update(this.indexedRoot, root);
+            this.indexedRoot = root;
+            if (current.isFull()) {
+                discard();
+            }
+        } catch (RuntimeException e) {
+            // The index may be inconsistent now, rebuild it on the next search
+            LOGGER.error("Failed to update the quick search index: {}", e.getMessage(), e);
+            this.index = null;
+            this.indexedRoot = null;
+            this.started.set(false);
+        }
+    }
+
+    private void discard()
+    {
+        LOGGER.warn("The quick search index exceeds the maximum size of {} characters, queries will be used instead",
+            this.maxSize);
+        // Keep started set, so that the index isn't built again
+        this.index = null;
+        this.indexedRoot = null;
+    }
+
+    private static Node getNode(final Session session, final String path)
+    {
+        try {
+            // Only return the nodes that the user can access
+            return session.nodeExists(path) ? session.getNode(path) : null;
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+
+    private static Set<String> getTrigrams(final String text)
+    {
+        final Set<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); ++i) {
+            result.add(text.substring(i, i + GRAM_LENGTH));
+        }
+        return result;
+    }
+
+    /**
+     * All the indexed fields.
+     */
+    private static final class Index
+    {
+        private final Field answers = new Field();
+
+        private final Field subjects = new Field();
+
+        private final Map<String, Field> fields =
+            Map.of(TEXT_ANSWERS, this.answers, SUBJECT_IDENTIFIERS, this.subjects);
+
+        private final long maxSize;
+
+        Index(final long maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        boolean isFull()
+        {
+            return this.answers.size + this.subjects.size > this.maxSize;
+        }
+
+        void update(final NodeState before, final NodeState after)
+        {
+            // The indexing editor never throws exceptions, so the result can be ignored
+            EditorDiff.process(new RootEditor(), before, after);
+        }
+
+        /**
+         * The editor invoked on the repository root, which only looks at the forms and subjects homepages.
+         */
+        private final class RootEditor extends DefaultEditor
+        {
+            @Override
+            public Editor childNodeAdded(final String name, final NodeState after)
+            {
+                return getEditor(name);
+            }
+
+            @Override
+            public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+            {
+                return getEditor(name);
+            }
+
+            @Override
+            public Editor childNodeDeleted(final String name, final NodeState before)
+            {
+                return getEditor(name);
+            }
+
+            private Editor getEditor(final String name)
+            {
+                if (FORMS.equals(name)) {
+                    return new IndexingEditor("/" + name, Index.this, Index.this.answers, TEXT_ANSWER_TYPE);
+                } else if (SUBJECTS.equals(name)) {
+                    return new IndexingEditor("/" + name, Index.this, Index.this.subjects, SUBJECT_TYPE);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The editor that actually updates the index, looking at all the descendants of a homepage.
+     */
+    private static final class IndexingEditor extends DefaultEditor
+    {
+        private final String path;
+
+        private final Index index;
+
+        private final Field field;
+
+        private final String nodeType;
+
+        IndexingEditor(final String path, final Index index, final Field field, final String nodeType)
+        {
+            this.path = path;
+            this.index = index;
+            this.field = field;
+            this.nodeType = nodeType;
+        }
+
+        @Override
+        public Editor childNodeAdded(final String name, final NodeState after)
+        {
+            return index(name, after);
+        }
+
+        @Override
+        public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            return index(name, after);
+        }
+
+        @Override
+        public Editor childNodeDeleted(final String name, final NodeState before)
+        {
+            final String childPath = this.path + "/" + name;
+            this.field.put(childPath, null);
+            return new IndexingEditor(childPath, this.index, this.field, this.nodeType);
+        }
+
+        private Editor index(final String name, final NodeState node)
+        {
+            if (this.index.isFull()) {
+                // The index will be discarded, don't waste more memory on it
+                return null;
+            }
+            final String childPath = this.path + "/" + name;
+            this.field.put(childPath, getText(node));
+            return new IndexingEditor(childPath, this.index, this.field, this.nodeType);
+        }
+
+        private String getText(final NodeState node)
+        {
+            if (!this.nodeType.equals(node.getName("jcr:primaryType"))) {
+                return null;
+            }
+            final String result = SUBJECT_TYPE.equals(this.nodeType)
+                ? getValues(node, "identifier")
+                : joinNonNull(getValues(node, "value"), getValues(node, "note"));
+            return result == null ? null : result.toLowerCase(Locale.ROOT);
+        }
+
+        private String getValues(final NodeState node, final String property)
+        {
+            final PropertyState values = node.getProperty(property);
+            if (values == null || values.count() == 0) {
+                return null;
+            }
+            final StringBuilder result = new StringBuilder();
+            for (String value : values.getValue(Type.STRINGS)) {
+                if (result.length() > 0) {
+                    result.append('\n');
+                }
+                result.append(value);
+            }
+            return result.toString();
+        }
+
+        private String joinNonNull(final String first, final String second)
+        {
+            if (first == null || second == null) {
+                return first == null ? second : first;
+            }
+            return first + '\n' + second;
+        }
+    }
+
+    /**
+     * The trigrams and texts of one indexed field. Updates are only made from the indexing thread, while searches may
+     * run concurrently.
+     */
+    private static final class Field
+    {
+        /** The paths of the nodes containing each trigram. */
+        private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+
+        /** The lowercase text of each indexed node. */
+        private final Map<String, String> texts = new ConcurrentHashMap<>();
+
+        /** The total length of the indexed texts, only accessed from the indexing thread. */
+        private long size;
+
+        /**
+         * Index or unindex a node.
+         *
+         * @param path the path of the node
+         * @param text the new lowercase text of the node, {@code null} to remove the node from the index
+         */
+        void put(final String path, final String text)
+        {
+            final String previous = text == null ? this.texts.remove(path) : this.texts.put(path, text);
+            if (Objects.equals(previous, text)) {
+                return;
+            }
+            this.size += (text == null ? 0 : text.length()) - (previous == null ? 0 : previous.length());
+            final Set<String> newTrigrams = text == null ? Set.of() : getTrigrams(text);
+            newTrigrams.forEach(trigram -> this.postings.computeIfAbsent(trigram, k -> ConcurrentHashMap.newKeySet())
+                .add(path));
+            if (previous != null) {
+                getTrigrams(previous).stream().filter(trigram -> !newTrigrams.contains(trigram))
+                    .forEach(trigram -> this.postings.computeIfPresent(trigram, (k, paths) -> {
+                        paths.remove(path);
+                        return paths.isEmpty() ? null : paths;
+                    }));
+            }
+        }
+
+        /**
+         * Find the nodes containing a text.
+         *
+         * @param text the lowercase text to search for, at least three characters long
+         * @return the paths of the matching nodes, sorted by their text
+         */
+        List<String> search(final String text)
+        {
+            Set<String> candidates = null;
+            for (String trigram : getTrigrams(text)) {
+                final Set<String> paths = this.postings.get(trigram);
+                if (paths == null) {
+                    return List.of();
+                }
+                if (candidates == null || paths.size() < candidates.size()) {
+                    candidates = paths;
+                }
+            }
+            return candidates.stream()
+                .filter(path -> {
+                    final String candidateText = this.texts.get(path);
+                    return candidateText != null && candidateText.contains(text);
+                })
+                .sorted(Comparator.comparing((String path) -> this.texts.getOrDefault(path, ""))
+                    .thenComparing(Comparator.naturalOrder()))
+                .collect(Collectors.toList());
+        }
+    }
+}
@@ -18,6 +18,10 @@
  */
 package io.uhndata.cards.spi;
 
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
@@ -213,4 +217,28 @@ public static boolean isValidNodeName(String name)
             return false;
         }
     }
+
+    /**
+     * Wrap the untyped node iterator returned by a JCR query into a typed iterator.
+     *
+     * @param nodes the nodes returned by a query
+     * @return an iterator over the same nodes
+     */
+    public static Iterator<Node> toIterator(final NodeIterator nodes)
+    {
+        return new Iterator<>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public Node next()
+            {
+                return nodes.nextNode();
+            }
+        };
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.spi;
+
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+/**
+ * Service used by {@link QuickSearchEngine}s to find resources containing a piece of text, ignoring case. Unlike a
+ * {@code like '%text%'} query, which has to look at every candidate node in the repository, the time needed to answer
+ * depends on the number of matches.
+ *
+ * @version $Id$
+ * @since 0.9.26
+ */
+public interface SubstringSearchIndex
+{
+    /** The values and notes of {@code cards:TextAnswer} nodes. */
+    String TEXT_ANSWERS = "textAnswers";
+
+    /** The identifiers of {@code cards:Subject} nodes. */
+    String SUBJECT_IDENTIFIERS = "subjectIdentifiers";
+
+    /**
+     * Find the nodes whose indexed text contains the given text, ignoring case.
+     *
+     * @param field which of the indexed texts to search, one of {@link #TEXT_ANSWERS} or {@link #SUBJECT_IDENTIFIERS}
+     * @param text the text to search for
+     * @param session the session used for accessing the matched nodes, only the nodes accessible to its user are
+     *            returned
+     * @return the matching nodes, sorted by their indexed text, or {@code null} if the index cannot answer this search,
+     *         for example if the text is too short, or if the index is not ready yet, in which case the caller should
+     *         fall back to a query
+     */
+    Iterator<Node> search(String field, String text, Session session);
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.version.OnParentVersionAction;
+import javax.jcr.version.VersionManager;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.internal.DeleteJobExecutor;
+
+/**
+ * Unit tests for the background deletion started by {@link DeleteServlet}, checking that the nodes are deleted in an
+ * order that the repository accepts even when they are committed in separate batches.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DeleteServletTest
+{
+    private static final String SUBJECT_TYPE = "/SubjectTypes/Patient";
+
+    private static final String QUESTIONNAIRE = "/Questionnaires/Q";
+
+    private static final String JOB_ID = "job";
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private JobExecutionContext context;
+
+    @Mock
+    private JobExecutionContext.ResultBuilder resultBuilder;
+
+    @Mock
+    private JobExecutionResult succeeded;
+
+    @Mock
+    private JobExecutionResult failed;
+
+    /** All the nodes in the repository. */
+    private Set<String> nodes;
+
+    /** The hard references in the repository, from each referrer node to the nodes it references. */
+    private Map<String, List<String>> references;
+
+    /** The nodes removed but not saved yet. */
+    private Set<String> removed;
+
+    /** How many saves succeed before one fails as if the repository was unavailable, or -1 if none fails. */
+    private int savesBeforeFailure;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.nodes = new TreeSet<>();
+        this.references = new HashMap<>();
+        this.removed = new HashSet<>();
+        this.savesBeforeFailure = -1;
+
+        // A subject type used by many subjects, each with a form
+        addNode(SUBJECT_TYPE);
+        for (int i = 0; i < 10; ++i) {
+            addNode("/Subjects/s" + i, SUBJECT_TYPE);
+            addNode("/Forms/f" + i, "/Subjects/s" + i);
+        }
+        // A questionnaire, with an answer referencing one of its questions
+        addNode(QUESTIONNAIRE);
+        addNode(QUESTIONNAIRE + "/q1");
+        addNode("/Forms/g1", QUESTIONNAIRE);
+        addNode("/Forms/g1/a1", QUESTIONNAIRE + "/q1");
+
+        mockRepository();
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Mockito.anyMapOf(String.class, Object.class)))
+            .thenReturn(this.resolver);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.context.result()).thenReturn(this.resultBuilder);
+        Mockito.when(this.resultBuilder.message(Mockito.anyString())).thenReturn(this.resultBuilder);
+        Mockito.when(this.resultBuilder.succeeded()).thenReturn(this.succeeded);
+        Mockito.when(this.resultBuilder.failed()).thenReturn(this.failed);
+    }
+
+    @Test
+    public void referrersComeBeforeTheNodesTheyReference() throws RepositoryException
+    {
+        // The nodes the servlet finds for deleting the subject type, but sorted by path
+        final List<String> sorted = subjectTypeClosure();
+
+        final List<String> order = DeleteServlet.orderForDeletion(nodesToDelete(sorted));
+
+        Assert.assertEquals(sorted.size(), order.size());
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertTrue(order.indexOf("/Forms/f" + i) < order.indexOf("/Subjects/s" + i));
+            Assert.assertTrue(order.indexOf("/Subjects/s" + i) < order.indexOf(SUBJECT_TYPE));
+        }
+    }
+
+    @Test
+    public void referencesToDescendantsAreFollowed() throws RepositoryException
+    {
+        // The answer is deleted together with its form, which is found after the questionnaire
+        final List<String> order =
+            DeleteServlet.orderForDeletion(nodesToDelete(List.of(QUESTIONNAIRE, "/Forms/g1")));
+
+        Assert.assertEquals(List.of("/Forms/g1", QUESTIONNAIRE), order);
+    }
+
+    @Test(expected = ReferentialIntegrityException.class)
+    public void referrersThatAreNotDeletedAreRejected() throws RepositoryException
+    {
+        DeleteServlet.orderForDeletion(nodesToDelete(List.of(SUBJECT_TYPE, "/Subjects/s0", "/Forms/f0")));
+    }
+
+    @Test
+    public void orderedNodesAreDeletedInSmallBatches() throws Exception
+    {
+        final List<String> found = new ArrayList<>(this.nodes);
+        found.removeIf(path -> path.startsWith(QUESTIONNAIRE + "/") || "/Forms/g1/a1".equals(path));
+        final List<String> order = DeleteServlet.orderForDeletion(nodesToDelete(found));
+
+        final DeleteJobExecutor executor = executor(3);
+        Assert.assertSame(this.succeeded, executor.process(job(order), this.context));
+        Assert.assertTrue(this.nodes.isEmpty());
+        Assert.assertEquals(DeleteJobExecutor.Outcome.SUCCEEDED, executor.getOutcome(JOB_ID).getState());
+    }
+
+    @Test
+    public void sortedNodesCannotBeDeletedInSmallBatches() throws Exception
+    {
+        // The subject type sorts before the subjects, and its batch is rejected while they still reference it
+        final List<String> sorted = subjectTypeClosure();
+
+        Assert.assertSame(this.failed, executor(3).process(job(sorted), this.context));
+        Assert.assertTrue(this.nodes.containsAll(List.of(SUBJECT_TYPE, "/Subjects/s1")));
+    }
+
+    @Test
+    public void failedJobCanBeRetried() throws Exception
+    {
+        final List<String> order = DeleteServlet.orderForDeletion(nodesToDelete(subjectTypeClosure()));
+        final DeleteJobExecutor executor = executor(4);
+        final Job job = job(order);
+
+        // The second batch fails, only the first one is committed
+        this.savesBeforeFailure = 1;
+        Assert.assertSame(this.failed, executor.process(job, this.context));
+        Assert.assertTrue(Collections.disjoint(this.nodes, order.subList(0, 4)));
+        Assert.assertTrue(this.nodes.containsAll(order.subList(4, order.size())));
+        Assert.assertEquals(DeleteJobExecutor.Outcome.FAILED, executor.getOutcome(JOB_ID).getState());
+        Assert.assertEquals(4, executor.getOutcome(JOB_ID).getRemoved());
+
+        // The retry skips the nodes already deleted, and finishes the job
+        Assert.assertSame(this.succeeded, executor.process(job, this.context));
+        Assert.assertEquals(Set.of(QUESTIONNAIRE, QUESTIONNAIRE + "/q1", "/Forms/g1", "/Forms/g1/a1"), this.nodes);
+        Assert.assertEquals(order.size() - 4, executor.getOutcome(JOB_ID).getRemoved());
+    }
+
+    private void addNode(final String path, final String... referenced)
+    {
+        this.nodes.add(path);
+        if (referenced.length > 0) {
+            this.references.put(path, List.of(referenced));
+        }
+    }
+
+    /** The subject type, the subjects of that type, and their forms, sorted by path. */
+    private List<String> subjectTypeClosure()
+    {
+        final List<String> result = new ArrayList<>(this.nodes);
+        result.removeIf(path -> path.startsWith(QUESTIONNAIRE) || path.startsWith("/Forms/g1"));
+        return result;
+    }
+
+    private Map<String, Node> nodesToDelete(final List<String> paths) throws RepositoryException
+    {
+        final Map<String, Node> result = new LinkedHashMap<>();
+        for (final String path : paths) {
+            result.put(path, node(path));
+        }
+        return result;
+    }
+
+    private Job job(final List<String> paths)
+    {
+        final Job job = Mockito.mock(Job.class);
+        Mockito.when(job.getId()).thenReturn(JOB_ID);
+        Mockito.when(job.getProperty(DeleteJobExecutor.PATHS_PROPERTY, String[].class))
+            .thenReturn(paths.toArray(new String[0]));
+        Mockito.when(job.getProperty(DeleteJobExecutor.USER_PROPERTY, String.class)).thenReturn("admin");
+        return job;
+    }
+
+    private DeleteJobExecutor executor(final int batchSize) throws Exception
+    {
+        final DeleteJobExecutor.Config config = Mockito.mock(DeleteJobExecutor.Config.class);
+        Mockito.when(config.batchSize()).thenReturn(batchSize);
+        final DeleteJobExecutor executor = new DeleteJobExecutor(config);
+        // The constructor only takes the configuration, the other services are injected in fields
+        final Field resolverFactoryField = DeleteJobExecutor.class.getDeclaredField("resolverFactory");
+        resolverFactoryField.setAccessible(true);
+        resolverFactoryField.set(executor, this.resolverFactory);
+        return executor;
+    }
+
+    /**
+     * Make the session work on the in-memory repository. Like the real repository, it refuses to save the removal of
+     * a node that is still referenced.
+     */
+    private void mockRepository() throws RepositoryException
+    {
+        final Workspace workspace = Mockito.mock(Workspace.class);
+        Mockito.when(workspace.getVersionManager()).thenReturn(Mockito.mock(VersionManager.class));
+        Mockito.when(this.session.getWorkspace()).thenReturn(workspace);
+        Mockito.when(this.session.nodeExists(Mockito.anyString()))
+            .thenAnswer(invocation -> exists((String) invocation.getArguments()[0]));
+        Mockito.when(this.session.getNode(Mockito.anyString()))
+            .thenAnswer(invocation -> node((String) invocation.getArguments()[0]));
+        Mockito.doAnswer(invocation -> {
+            this.removed.clear();
+            return null;
+        }).when(this.session).refresh(Mockito.anyBoolean());
+        Mockito.doAnswer(invocation -> {
+            save();
+            return null;
+        }).when(this.session).save();
+    }
+
+    private void save() throws RepositoryException
+    {
+        if (this.savesBeforeFailure >= 0 && this.savesBeforeFailure-- == 0) {
+            throw new RepositoryException("The repository is unavailable");
+        }
+        for (final Map.Entry<String, List<String>> reference : this.references.entrySet()) {
+            if (!exists(reference.getKey())) {
+                continue;
+            }
+            for (final String target : reference.getValue()) {
+                if (this.removed.contains(target)) {
+                    throw new ReferentialIntegrityException(target + " is referenced by " + reference.getKey());
+                }
+            }
+        }
+        this.nodes.removeAll(this.removed);
+        this.removed.clear();
+    }
+
+    private boolean exists(final String path)
+    {
+        return this.nodes.contains(path) && !this.removed.contains(path);
+    }
+
+    private Node node(final String path) throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        Mockito.when(node.getPath()).thenReturn(path);
+        // Nothing is versioned in the in-memory repository
+        final NodeDefinition definition = Mockito.mock(NodeDefinition.class);
+        Mockito.when(definition.getOnParentVersion()).thenReturn(OnParentVersionAction.IGNORE);
+        Mockito.when(node.getDefinition()).thenReturn(definition);
+        Mockito.when(node.getNodes()).thenAnswer(invocation -> nodeIterator(this.nodes.stream()
+            .filter(child -> child.startsWith(path + "/") && child.indexOf('/', path.length() + 1) < 0)
+            .collect(Collectors.toList())));
+        Mockito.when(node.getReferences()).thenAnswer(invocation -> propertyIterator(this.references.entrySet()
+            .stream()
+            .filter(reference -> reference.getValue().contains(path) && exists(reference.getKey()))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList())));
+        Mockito.doAnswer(invocation -> {
+            this.nodes.stream().filter(n -> n.equals(path) || n.startsWith(path + "/")).forEach(this.removed::add);
+            return null;
+        }).when(node).remove();
+        return node;
+    }
+
+    private NodeIterator nodeIterator(final List<String> paths)
+    {
+        final Iterator<String> iterator = paths.iterator();
+        final NodeIterator result = Mockito.mock(NodeIterator.class);
+        Mockito.when(result.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        Mockito.when(result.nextNode()).thenAnswer(invocation -> node(iterator.next()));
+        return result;
+    }
+
+    /** The references held by the given nodes, as properties whose parent is the referrer. */
+    private PropertyIterator propertyIterator(final List<String> referrers)
+    {
+        final Iterator<String> iterator = referrers.iterator();
+        final PropertyIterator result = Mockito.mock(PropertyIterator.class);
+        Mockito.when(result.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        Mockito.when(result.nextProperty()).thenAnswer(invocation -> {
+            final Property reference = Mockito.mock(Property.class);
+            final Node referrer = node(iterator.next());
+            Mockito.when(reference.getParent()).thenReturn(referrer);
+            return reference;
+        });
+        return result;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.spi.SubstringSearchIndex;
+
+/**
+ * Unit tests for {@link TrigramSearchIndex}, checking that added, changed and removed nodes are reflected in the
+ * search results.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TrigramSearchIndexTest
+{
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String TEXT_ANSWER = "cards:TextAnswer";
+
+    private static final String VALUE = "value";
+
+    @Mock
+    private TrigramSearchIndex.Config config;
+
+    @Mock
+    private Session session;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final NodeBuilder root = EmptyNodeState.EMPTY_NODE.builder();
+
+    private TrigramSearchIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        Mockito.when(this.config.maxSize()).thenReturn(1000L);
+        Mockito.when(this.session.nodeExists(Mockito.anyString())).thenReturn(true);
+        Mockito.when(this.session.getNode(Mockito.anyString())).thenAnswer(invocation -> {
+            final Node node = Mockito.mock(Node.class);
+            Mockito.when(node.getPath()).thenReturn((String) invocation.getArguments()[0]);
+            return node;
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.index.deactivate();
+    }
+
+    @Test
+    public void searchesAreNotAnsweredUntilTheIndexIsReady() throws Exception
+    {
+        start();
+        answer("f1", "a1", "Hello world");
+        commit();
+        Assert.assertNull(search(SubstringSearchIndex.TEXT_ANSWERS, "hello"));
+        waitForIndexing();
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "hello"));
+    }
+
+    @Test
+    public void addedAnswersAreFound() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "Second opinion");
+        answer("f2", "a1", "First opinion");
+        answer("f2", "a2", "Unrelated");
+        commit();
+
+        // Sorted by text, ignoring case
+        Assert.assertEquals(List.of("/Forms/f2/a1", "/Forms/f1/a1"),
+            search(SubstringSearchIndex.TEXT_ANSWERS, "OPINION"));
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "nd opi"));
+        Assert.assertEquals(List.of(), search(SubstringSearchIndex.TEXT_ANSWERS, "opinions"));
+    }
+
+    @Test
+    public void notesAndMultipleValuesAreIndexed() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "Headache").setProperty("note", "Started last week");
+        answer("f1", "a2", "ignored").setProperty(VALUE, List.of("Red", "Green"), Type.STRINGS);
+        commit();
+
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "last week"));
+        Assert.assertEquals(List.of("/Forms/f1/a2"), search(SubstringSearchIndex.TEXT_ANSWERS, "green"));
+    }
+
+    @Test
+    public void changedAnswersAreReindexed() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "Before the change");
+        commit();
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "before"));
+
+        answer("f1", "a1", "After the change");
+        commit();
+        Assert.assertEquals(List.of(), search(SubstringSearchIndex.TEXT_ANSWERS, "before"));
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "after"));
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "the change"));
+    }
+
+    @Test
+    public void removedAnswersAreNotFound() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "Keep this");
+        answer("f1", "a2", "Remove this");
+        answer("f2", "a1", "Remove the whole form");
+        commit();
+
+        this.root.child("Forms").child("f1").child("a2").remove();
+        this.root.child("Forms").child("f2").remove();
+        commit();
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "this"));
+        Assert.assertEquals(List.of(), search(SubstringSearchIndex.TEXT_ANSWERS, "remove"));
+    }
+
+    @Test
+    public void onlyTheSearchedFieldIsLookedAt() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "P0001");
+        this.root.child("Subjects").child("p1").setProperty(PRIMARY_TYPE, "cards:Subject", Type.NAME)
+            .setProperty("identifier", "P0001");
+        this.root.child("Forms").child("f1").setProperty(PRIMARY_TYPE, "cards:Form", Type.NAME)
+            .setProperty(VALUE, "P0001");
+        commit();
+
+        Assert.assertEquals(List.of("/Subjects/p1"), search(SubstringSearchIndex.SUBJECT_IDENTIFIERS, "p0001"));
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "p0001"));
+        Assert.assertNull(search("unknown", "p0001"));
+    }
+
+    @Test
+    public void inaccessibleNodesAreNotReturned() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "Visible answer");
+        answer("f2", "a1", "Hidden answer");
+        commit();
+        Mockito.when(this.session.nodeExists("/Forms/f2/a1")).thenReturn(false);
+
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "answer"));
+    }
+
+    @Test
+    public void shortTextsAreNotAnswered() throws Exception
+    {
+        startReady();
+        answer("f1", "a1", "ab");
+        commit();
+
+        Assert.assertNull(search(SubstringSearchIndex.TEXT_ANSWERS, "ab"));
+    }
+
+    @Test
+    public void disabledIndexNeverAnswers() throws Exception
+    {
+        Mockito.when(this.config.enabled()).thenReturn(false);
+        startReady();
+        answer("f1", "a1", "Hello world");
+        commit();
+
+        Assert.assertNull(search(SubstringSearchIndex.TEXT_ANSWERS, "hello"));
+    }
+
+    @Test
+    public void tooLargeIndexIsDiscarded() throws Exception
+    {
+        Mockito.when(this.config.maxSize()).thenReturn(20L);
+        startReady();
+        answer("f1", "a1", "Short text");
+        commit();
+        Assert.assertEquals(List.of("/Forms/f1/a1"), search(SubstringSearchIndex.TEXT_ANSWERS, "short"));
+
+        answer("f1", "a2", "Text long enough to exceed the limit");
+        commit();
+        Assert.assertNull(search(SubstringSearchIndex.TEXT_ANSWERS, "short"));
+        // It is not built again
+        waitForIndexing();
+        Assert.assertNull(search(SubstringSearchIndex.TEXT_ANSWERS, "short"));
+    }
+
+    private void start()
+    {
+        this.index = new TrigramSearchIndex(this.config, this.executor);
+    }
+
+    /**
+     * Start the index and wait until it is built from an empty repository.
+     */
+    private void startReady() throws Exception
+    {
+        start();
+        commit();
+        search(SubstringSearchIndex.TEXT_ANSWERS, "anything");
+        waitForIndexing();
+    }
+
+    private NodeBuilder answer(final String form, final String name, final String value)
+    {
+        return this.root.child("Forms").child(form).child(name).setProperty(PRIMARY_TYPE, TEXT_ANSWER, Type.NAME)
+            .setProperty(VALUE, value);
+    }
+
+    private void commit() throws Exception
+    {
+        this.index.contentChanged(this.root.getNodeState(), CommitInfo.EMPTY);
+        waitForIndexing();
+    }
+
+    private void waitForIndexing() throws Exception
+    {
+        // The index uses a single thread, so once this task runs all the previously queued ones are done
+        this.executor.submit(() -> { }).get();
+    }
+
+    private List<String> search(final String field, final String text) throws Exception
+    {
+        final Iterator<Node> nodes = this.index.search(field, text, this.session);
+        if (nodes == null) {
+            return null;
+        }
+        final List<String> result = new ArrayList<>();
+        while (nodes.hasNext()) {
+            result.add(nodes.next().getPath());
+        }
+        return result;
+    }
+}
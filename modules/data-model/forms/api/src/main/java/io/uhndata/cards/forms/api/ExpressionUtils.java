@@ -88,6 +88,26 @@ default String evaluate(Node question, Map<String, Object> values, Set<String> c
      */
     ExpressionResult evaluate(Node question, Map<String, Object> values, Type<?> type, Set<String> changedQuestions);
 
+    /**
+     * Count how many times an already parsed expression was reused instead of parsing it again.
+     *
+     * @return the number of expression cache hits since the service started, {@code 0} if caching is not supported
+     */
+    default long getCacheHits()
+    {
+        return 0;
+    }
+
+    /**
+     * Count how many times an expression had to be parsed because it was not already cached, or it was outdated.
+     *
+     * @return the number of expression cache misses since the service started, {@code 0} if caching is not supported
+     */
+    default long getCacheMisses()
+    {
+        return 0;
+    }
+
     /**
      *
      */
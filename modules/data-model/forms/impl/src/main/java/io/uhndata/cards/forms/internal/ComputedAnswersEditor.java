@@ -16,19 +16,16 @@
  */
 package io.uhndata.cards.forms.internal;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
 import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
@@ -53,6 +50,8 @@ public class ComputedAnswersEditor extends AnswersEditor
 
     private final ExpressionUtils expressionUtils;
 
+    private final ComputedAnswersPlanCache planCache;
+
     /**
      * Simple constructor.
      *
@@ -62,13 +61,15 @@ public class ComputedAnswersEditor extends AnswersEditor
      * @param questionnaireUtils for working with questionnaire data
      * @param formUtils for working with form data
      * @param expressionUtils for evaluating the computed questions
+     * @param planCache provides the order in which computed questions must be evaluated
      */
     public ComputedAnswersEditor(final NodeBuilder nodeBuilder, final Session currentSession,
         final ResourceResolverFactory rrf, final QuestionnaireUtils questionnaireUtils, final FormUtils formUtils,
-        final ExpressionUtils expressionUtils)
+        final ExpressionUtils expressionUtils, final ComputedAnswersPlanCache planCache)
     {
         super(nodeBuilder, currentSession, rrf, questionnaireUtils, formUtils);
         this.expressionUtils = expressionUtils;
+        this.planCache = planCache;
     }
 
     @Override
@@ -93,7 +94,8 @@ protected ComputedAnswerChangeTracker getAnswerChangeTracker()
     protected ComputedAnswersEditor getNewEditor(String name)
     {
         return new ComputedAnswersEditor(this.currentNodeBuilder.getChildNode(name),
-            this.currentSession, this.rrf, this.questionnaireUtils, this.formUtils, this.expressionUtils);
+            this.currentSession, this.rrf, this.questionnaireUtils, this.formUtils, this.expressionUtils,
+            this.planCache);
     }
 
     @Override
@@ -117,67 +119,66 @@ public Editor childNodeAdded(final String name, final NodeState after)
     @Override
     protected void handleLeave(final NodeState form)
     {
-        // Get a list of all current answers for the form for use in computing answers
-        final Map<String, Object> answersByQuestionName = getNodeAnswers(form);
-
-        // Get a list of all unanswered computed questions that need to be calculated
+        // Get the precomputed evaluation plan of the questionnaire
         final Node questionnaireNode = getQuestionnaire();
         if (questionnaireNode == null) {
             return;
         }
-        final QuestionTree computedQuestionsTree =
-            getUnmodifiedMatchingQuestions(questionnaireNode);
+        final ComputedAnswersPlanCache.Plan plan = this.planCache.getPlan(questionnaireNode);
+        if (plan == null || plan.isEmpty()) {
+            return;
+        }
 
-        // There are computed questions that were not modified in the most recent save, calculate them!
-        if (computedQuestionsTree != null) {
-            Map<Node, NodeBuilder> questionAndAnswers =
-                computedQuestionsTree.getQuestionAndAnswers(this.currentNodeBuilder);
-            // Try to determine the right order in which answers should be computed, so that the answers that depend on
-            // other computed answers are evaluated after all their dependencies have been evaluated
-            final Set<String> questionNames = questionAndAnswers.keySet().stream()
-                .map(this.questionnaireUtils::getQuestionName)
-                .collect(Collectors.toSet());
-            final Map<String, Set<String>> computedAnswerDependencies =
-                questionAndAnswers.keySet().stream().map(question -> {
-                    Set<String> dependencies = this.expressionUtils.getDependencies(question);
-                    dependencies.retainAll(questionNames);
-                    return Pair.of(this.questionnaireUtils.getQuestionName(question), dependencies);
-                }).collect(Collectors.toConcurrentMap(Pair::getKey, Pair::getValue));
-            final List<String> orderedAnswersToCompute = sortDependencies(computedAnswerDependencies);
+        // Get a list of all current answers for the form for use in computing answers
+        final Map<String, Object> answersByQuestionName = getNodeAnswers(form);
+        final Map<String, NodeBuilder> answersToCompute = plan.getAnswers(this.currentNodeBuilder, this.formUtils);
 
-            final Set<String> changedQuestions = new HashSet<>();
-            for (String modifiedAnswer : this.answerChangeTracker.getAllModifiedAnswers()) {
-                try {
-                    Node questionNode = this.currentSession.getNodeByIdentifier(modifiedAnswer);
-                    String name = questionNode.getName();
-                    changedQuestions.add(name);
-                } catch (Exception e) {
-                    // Could not find the answer: not an answer the user has permissions to edit so can't be modified
-                    // by the user
-                }
+        final Set<String> changedQuestions = new HashSet<>();
+        for (String modifiedAnswer : this.answerChangeTracker.getAllModifiedAnswers()) {
+            try {
+                Node questionNode = this.currentSession.getNodeByIdentifier(modifiedAnswer);
+                String name = questionNode.getName();
+                changedQuestions.add(name);
+            } catch (Exception e) {
+                // Could not find the answer: not an answer the user has permissions to edit so can't be modified
+                // by the user
             }
+        }
+        // Only the computed questions depending on the modified answers may need to be recomputed
+        final Set<String> affectedQuestions = plan.getAffectedQuestions(changedQuestions);
 
-            // We have the right order, compute all the missing answers
-            orderedAnswersToCompute.stream()
-                // Get the right answer node
-                .map(questionName -> questionAndAnswers.entrySet().stream()
-                    .filter(
-                        entry -> questionName.equals(this.questionnaireUtils.getQuestionName(entry.getKey())))
-                    .findFirst().get())
-                // Evaluate it
-                .forEachOrdered(entry -> {
-                    computeAnswer(entry, form, answersByQuestionName, changedQuestions);
-                });
+        // The plan is already in the right order, compute all the missing answers
+        for (ComputedAnswersPlanCache.PlanNode question : plan.getOrderedQuestions()) {
+            final NodeBuilder answer = answersToCompute.get(question.getName());
+            // Skip questions that were modified in the most recent save, and questions missing from the form
+            if (answer == null
+                || this.answerChangeTracker.getMatchedModifiedAnswers().contains(question.getIdentifier())) {
+                continue;
+            }
+            // Questions which depend on other answers, none of which changed, don't need to be recomputed if they
+            // already have an answer
+            if (!question.getInputs().isEmpty() && !affectedQuestions.contains(question.getName())
+                && answer.hasProperty(FormUtils.VALUE_PROPERTY)) {
+                continue;
+            }
+            try {
+                final Node questionNode = this.serviceSession.getNodeByIdentifier(question.getIdentifier());
+                if (computeAnswer(questionNode, answer, form, answersByQuestionName, changedQuestions)) {
+                    // This answer changed, so the questions depending on it must also be recomputed
+                    affectedQuestions.addAll(plan.getAffectedQuestions(Collections.singleton(question.getName())));
+                }
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to access computed question {}: {}", question.getName(), e.getMessage());
+            }
         }
     }
 
-    // Calculate and save the answer for the provided computed question if it should be evaluated
-    private void computeAnswer(final Map.Entry<Node, NodeBuilder> entry, NodeState form,
+    // Calculate and save the answer for the provided computed question if it should be evaluated, and report whether
+    // the answer was (re)computed
+    private boolean computeAnswer(final Node question, final NodeBuilder answer, NodeState form,
         final Map<String, Object> answersByQuestionName, final Set<String> changedQuestions)
     {
         try {
-            final Node question = entry.getKey();
-            final NodeBuilder answer = entry.getValue();
             Type<?> resultType = getAnswerType(question);
 
             ExpressionUtils.ExpressionResult expressionResult = this.expressionUtils.evaluate(question,
@@ -194,7 +195,7 @@ private void computeAnswer(final Map.Entry<Node, NodeBuilder> entry, NodeState f
                     && !expressionResult.expressionUsedChangedValue()
                     && existingAnswer != null
             ) {
-                return;
+                return false;
             }
 
             Object result = expressionResult.getResult();
@@ -221,30 +222,12 @@ private void computeAnswer(final Map.Entry<Node, NodeBuilder> entry, NodeState f
             } else {
                 answersByQuestionName.put(questionName, result);
             }
+            return true;
         } catch (RepositoryException e) {
             // Should not happen
             LOGGER.warn("Error calculating computing answer", e);
         }
-    }
-
-    private List<String> sortDependencies(final Map<String, Set<String>> computedAnswerDependencies)
-    {
-        final List<String> result = new ArrayList<>();
-        final Set<String> processedAnswers = new HashSet<>();
-        computedAnswerDependencies.keySet()
-            .forEach(answer -> addAnswer(answer, computedAnswerDependencies, result, processedAnswers));
-        return result;
-    }
-
-    private void addAnswer(final String answer, final Map<String, Set<String>> dependencies,
-        final List<String> orderedAnswersToCompute, final Set<String> processedAnswers)
-    {
-        if (!processedAnswers.contains(answer)) {
-            processedAnswers.add(answer);
-            dependencies.get(answer)
-                .forEach(dependency -> addAnswer(dependency, dependencies, orderedAnswersToCompute, processedAnswers));
-            orderedAnswersToCompute.add(answer);
-        }
+        return false;
     }
 
     private Map<String, Object> getNodeAnswers(final NodeState currentNode)
@@ -61,6 +61,9 @@ public class ComputedAnswersEditorProvider implements EditorProvider
     @Reference
     private ExpressionUtils expressionUtils;
 
+    @Reference
+    private ComputedAnswersPlanCache planCache;
+
     @Override
     public Editor getRootEditor(NodeState before, NodeState after, NodeBuilder builder, CommitInfo info)
         throws CommitFailedException
@@ -73,7 +76,8 @@ public Editor getRootEditor(NodeState before, NodeState after, NodeBuilder build
             return new ComputedAnswersEditor(builder, resolver.adaptTo(Session.class), this.rrf,
                 this.questionnaireUtils,
                 this.formUtils,
-                this.expressionUtils);
+                this.expressionUtils,
+                this.planCache);
         }
         return null;
     }
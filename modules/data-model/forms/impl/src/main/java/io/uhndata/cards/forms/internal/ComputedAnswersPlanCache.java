@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.forms.api.ExpressionUtils;
+import io.uhndata.cards.forms.api.FormUtils;
+import io.uhndata.cards.forms.api.QuestionnaireUtils;
+
+/**
+ * Holds, for each questionnaire, the list of computed questions sorted in the order in which they must be evaluated,
+ * along with their dependencies. Since this only depends on the questionnaire definition, it is computed once and
+ * reused for every form saved, until the questionnaire changes.
+ *
+ * @version $Id$
+ */
+@Component(service = { ComputedAnswersPlanCache.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class ComputedAnswersPlanCache implements ResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ComputedAnswersPlanCache.class);
+
+    @Reference
+    private QuestionnaireUtils questionnaireUtils;
+
+    @Reference
+    private ExpressionUtils expressionUtils;
+
+    /** Computed plans, keyed by the identifier of the questionnaire they were computed for. */
+    private final Map<String, Plan> plans = new ConcurrentHashMap<>();
+
+    /** Incremented every time a questionnaire changes, so that plans computed concurrently aren't stored stale. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Get the evaluation plan for a questionnaire, computing it if it isn't already cached.
+     *
+     * @param questionnaire a questionnaire node, accessed through a session that can read all of its questions
+     * @return the evaluation plan, or {@code null} if the questionnaire cannot be accessed
+     */
+    public Plan getPlan(final Node questionnaire)
+    {
+        try {
+            final String key = questionnaire.getIdentifier();
+            Plan result = this.plans.get(key);
+            if (result == null) {
+                final long currentGeneration = this.generation.get();
+                result = new Plan(questionnaire);
+                if (this.generation.get() == currentGeneration) {
+                    this.plans.put(key, result);
+                }
+            }
+            return result;
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to compute the computed answers plan for {}: {}", questionnaire, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.generation.incrementAndGet();
+        changes.stream().map(ResourceChange::getPath).distinct()
+            .forEach(path -> this.plans.values().removeIf(plan -> plan.contains(path)));
+    }
+
+    /**
+     * An immutable evaluation plan for the computed questions of a questionnaire.
+     */
+    public final class Plan
+    {
+        private final String path;
+
+        private final PlanNode root;
+
+        /** All the computed questions, keyed by their name, in the order in which they must be evaluated. */
+        private final Map<String, PlanNode> orderedQuestions;
+
+        /** For each question name, the names of the computed questions that directly use it in their expression. */
+        private final Map<String, Set<String>> dependents;
+
+        Plan(final Node questionnaire) throws RepositoryException
+        {
+            this.path = questionnaire.getPath();
+            final Map<String, PlanNode> questions = new HashMap<>();
+            PlanNode tree = buildTree(questionnaire, questions);
+            this.root = tree != null ? tree : new PlanNode(questionnaire, Collections.emptyList());
+
+            // Build the reverse dependency graph, from an input question to the computed questions using it
+            final Map<String, Set<String>> reverse = new HashMap<>();
+            questions.values().forEach(question -> question.getInputs()
+                .forEach(input -> reverse.computeIfAbsent(input, k -> new HashSet<>()).add(question.getName())));
+            reverse.replaceAll((k, v) -> Collections.unmodifiableSet(v));
+            this.dependents = Collections.unmodifiableMap(reverse);
+
+            // Sort the computed questions so that dependencies are evaluated before the questions that use them
+            final Map<String, PlanNode> sorted = new LinkedHashMap<>();
+            questions.keySet().forEach(name -> addQuestion(name, questions, sorted, new HashSet<>()));
+            this.orderedQuestions = Collections.unmodifiableMap(sorted);
+        }
+
+        private PlanNode buildTree(final Node node, final Map<String, PlanNode> questions) throws RepositoryException
+        {
+            if (ComputedAnswersPlanCache.this.questionnaireUtils.isComputedQuestion(node)) {
+                final PlanNode question = new PlanNode(node,
+                    ComputedAnswersPlanCache.this.expressionUtils.getDependencies(node));
+                questions.putIfAbsent(question.getName(), question);
+                return question;
+            } else if (ComputedAnswersPlanCache.this.questionnaireUtils.isQuestionnaire(node)
+                || ComputedAnswersPlanCache.this.questionnaireUtils.isSection(node)) {
+                final List<PlanNode> children = new ArrayList<>();
+                for (NodeIterator i = node.getNodes(); i.hasNext();) {
+                    final PlanNode child = buildTree(i.nextNode(), questions);
+                    if (child != null) {
+                        children.add(child);
+                    }
+                }
+                return children.isEmpty() ? null : new PlanNode(node, children);
+            }
+            return null;
+        }
+
+        private void addQuestion(final String name, final Map<String, PlanNode> questions,
+            final Map<String, PlanNode> sorted, final Set<String> visiting)
+        {
+            final PlanNode question = questions.get(name);
+            if (question == null || sorted.containsKey(name) || !visiting.add(name)) {
+                // Not a computed question, already sorted, or a dependency cycle
+                return;
+            }
+            question.getInputs().forEach(input -> addQuestion(input, questions, sorted, visiting));
+            sorted.put(name, question);
+        }
+
+        boolean contains(final String changedPath)
+        {
+            return changedPath.equals(this.path) || changedPath.startsWith(this.path + "/")
+                || this.path.startsWith(changedPath + "/");
+        }
+
+        /**
+         * Check if the questionnaire has any computed questions.
+         *
+         * @return {@code true} if there's at least one computed question
+         */
+        public boolean isEmpty()
+        {
+            return this.orderedQuestions.isEmpty();
+        }
+
+        /**
+         * List the computed questions, sorted in the order in which they must be evaluated.
+         *
+         * @return an immutable collection of computed questions
+         */
+        public Collection<PlanNode> getOrderedQuestions()
+        {
+            return this.orderedQuestions.values();
+        }
+
+        /**
+         * Find all the computed questions that directly or indirectly depend on any of the specified questions.
+         *
+         * @param changedQuestions a set of question names
+         * @return a new mutable set of computed question names, may be empty
+         */
+        public Set<String> getAffectedQuestions(final Collection<String> changedQuestions)
+        {
+            final Set<String> result = new HashSet<>();
+            final Deque<String> toProcess = new ArrayDeque<>(changedQuestions);
+            while (!toProcess.isEmpty()) {
+                for (String dependent : this.dependents.getOrDefault(toProcess.pop(), Collections.emptySet())) {
+                    if (result.add(dependent)) {
+                        toProcess.push(dependent);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Find the answers corresponding to the computed questions in a form. If a question has more than one answer,
+         * for example in a recurrent section, only one of them is returned.
+         *
+         * @param form the form node being edited
+         * @param formUtils for working with form data
+         * @return the answer node for each computed question present in the form, keyed by the question name
+         */
+        public Map<String, NodeBuilder> getAnswers(final NodeBuilder form, final FormUtils formUtils)
+        {
+            final Map<String, NodeBuilder> result = new HashMap<>();
+            collectAnswers(this.root, form, formUtils, result);
+            return result;
+        }
+
+        private void collectAnswers(final PlanNode node, final NodeBuilder builder, final FormUtils formUtils,
+            final Map<String, NodeBuilder> result)
+        {
+            if (node.isQuestion()) {
+                result.put(node.getName(), builder);
+                return;
+            }
+            for (String childNodeName : builder.getChildNodeNames()) {
+                final NodeBuilder childNode = builder.getChildNode(childNodeName);
+                final String childIdentifier;
+                if (formUtils.isAnswerSection(childNode)) {
+                    childIdentifier = formUtils.getSectionIdentifier(childNode);
+                } else if (formUtils.isAnswer(childNode)) {
+                    childIdentifier = formUtils.getQuestionIdentifier(childNode);
+                } else {
+                    continue;
+                }
+                final PlanNode child = node.getChild(childIdentifier);
+                if (child != null) {
+                    collectAnswers(child, childNode, formUtils, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * A node of the questionnaire tree restricted to the computed questions and the sections that contain them.
+     */
+    public static final class PlanNode
+    {
+        private final String identifier;
+
+        private final String name;
+
+        private final Set<String> inputs;
+
+        private final Map<String, PlanNode> children;
+
+        PlanNode(final Node question, final Set<String> inputs) throws RepositoryException
+        {
+            this.identifier = question.getIdentifier();
+            this.name = question.getName();
+            this.inputs = Collections.unmodifiableSet(inputs);
+            this.children = null;
+        }
+
+        PlanNode(final Node section, final List<PlanNode> children) throws RepositoryException
+        {
+            this.identifier = section.getIdentifier();
+            this.name = section.getName();
+            this.inputs = Collections.emptySet();
+            final Map<String, PlanNode> childrenByIdentifier = new HashMap<>();
+            children.forEach(child -> childrenByIdentifier.put(child.getIdentifier(), child));
+            this.children = Collections.unmodifiableMap(childrenByIdentifier);
+        }
+
+        public String getIdentifier()
+        {
+            return this.identifier;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public boolean isQuestion()
+        {
+            return this.children == null;
+        }
+
+        /**
+         * The names of the questions used in the expression of this computed question.
+         *
+         * @return an immutable set of question names, empty for sections and for expressions without arguments
+         */
+        public Set<String> getInputs()
+        {
+            return this.inputs;
+        }
+
+        PlanNode getChild(final String childIdentifier)
+        {
+            return this.children == null ? null : this.children.get(childIdentifier);
+        }
+    }
+}
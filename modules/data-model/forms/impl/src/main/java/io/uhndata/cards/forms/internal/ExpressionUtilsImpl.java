@@ -22,40 +22,79 @@
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 import org.apache.jackrabbit.oak.api.Type;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.forms.api.ExpressionUtils;
 
-@Component(service = ExpressionUtils.class)
-public final class ExpressionUtilsImpl implements ExpressionUtils
+/**
+ * Default implementation of {@link ExpressionUtils}. Parsed expressions are cached per question, and each thread
+ * evaluating expressions gets its own JavaScript engine holding the compiled scripts, so that saving a form with many
+ * computed questions doesn't create a new engine and recompile every expression each time. The cache is invalidated
+ * whenever a questionnaire changes.
+ *
+ * @version $Id$
+ */
+@Component(service = { ExpressionUtils.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class ExpressionUtilsImpl implements ExpressionUtils, ResourceChangeListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpressionUtilsImpl.class);
 
+    /** The maximum number of parsed expressions to hold in memory before the cache is flushed. */
+    private static final int MAX_CACHED_EXPRESSIONS = 10_000;
+
+    /** Temporary variable name used when converting Java arrays into JavaScript arrays. */
+    private static final String CONVERSION_KEY = "tmpCardsObjectConversionKey";
+
     @Reference
     private ScriptEngineManager manager;
 
+    /** Parsed expressions, keyed by the identifier of the question they belong to. */
+    private final Map<String, ParsedExpression> cache = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Script engines are not thread safe, so each thread gets its own engine along with its compiled scripts. Not a
+     * {@code ThreadLocal}, since the engines of pooled threads could not be discarded when the component goes away.
+     */
+    private final Map<Thread, ScriptEngineHolder> engines = Collections.synchronizedMap(new WeakHashMap<>());
+
     @Override
     public Set<String> getDependencies(final Node question)
     {
-        return parseExpressionInputs(
-            getExpressionFromQuestion(question), Collections.emptyMap()).getQuestions().keySet();
+        return new HashSet<>(getParsedExpression(question).getQuestions().keySet());
     }
 
     @Override
@@ -69,14 +108,47 @@ public String getExpressionFromQuestion(final Node question)
         }
     }
 
-    private Object toJavaScriptObject(ScriptEngine javascriptEngine, Object javaObject)
+    @Override
+    public long getCacheHits()
+    {
+        return this.cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+        return this.cacheMisses.get();
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        // Drop all the cached expressions from the questionnaires that changed
+        changes.stream().map(change -> getQuestionnairePath(change.getPath())).distinct()
+            .forEach(questionnaire -> this.cache.values()
+                .removeIf(expression -> expression.getQuestionPath().startsWith(questionnaire + "/")
+                    || expression.getQuestionPath().equals(questionnaire)));
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.engines.clear();
+        this.cache.clear();
+    }
+
+    private String getQuestionnairePath(final String path)
+    {
+        // Questionnaires are stored as /Questionnaires/Name, everything below belongs to that questionnaire
+        final int end = path.indexOf('/', "/Questionnaires/".length());
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    private Object toJavaScriptObject(ScriptEngineHolder javascriptEngine, Object javaObject)
     {
         if (javaObject != null && (javaObject.getClass().isArray() || javaObject instanceof List)) {
             try {
-                String tempKey = "tmpCardsObjectConversionKey";
-                Bindings tmpBindings = javascriptEngine.createBindings();
-                tmpBindings.put(tempKey, javaObject);
-                return javascriptEngine.eval("Java.from(" + tempKey + ")", tmpBindings);
+                return javascriptEngine.toJavaScriptArray(javaObject);
             } catch (ScriptException e) {
                 LOGGER.warn("Parsing Object {} to JSObject failed: {}", javaObject,
                     e.getMessage(), e);
@@ -90,24 +162,37 @@ public ExpressionResult evaluate(final Node question, final Map<String, Object>
         Set<String> changedQuestions)
     {
         try {
-            String expression = getExpressionFromQuestion(question);
-            ExpressionUtilsImpl.ParsedExpression parsedExpression = parseExpressionInputs(expression, values);
-            if (parsedExpression.hasMissingValue()) {
+            ExpressionUtilsImpl.ParsedExpression parsedExpression = getParsedExpression(question);
+            Map<String, Object> argumentValues = new LinkedHashMap<>();
+            boolean missingValue = false;
+            boolean usedChangedValue = false;
+            for (ExpressionArgument argument : parsedExpression.getQuestions().values()) {
+                Object value = getQuestionValue(argument.getQuestionName(), values, argument.getDefaultValue(),
+                    argument.isArray());
+                if (value == null) {
+                    if (!argument.isOptional()) {
+                        missingValue = true;
+                    } else if (argument.isArray()) {
+                        value = new Object[] {};
+                    }
+                }
+                argumentValues.put(argument.getArgument(), value);
+                if (changedQuestions.contains(argument.getQuestionName())) {
+                    usedChangedValue = true;
+                }
+            }
+            if (missingValue) {
                 return new ExpressionResult(true, false, null, parsedExpression.getQuestions().size());
             }
 
-            ScriptEngine engine = this.manager.getEngineByName("JavaScript");
-
+            ScriptEngineHolder engine = this.engines.computeIfAbsent(Thread.currentThread(),
+                thread -> new ScriptEngineHolder(this.manager.getEngineByName("JavaScript")));
             Bindings env = engine.createBindings();
-            AtomicBoolean usedChangedValue = new AtomicBoolean(false);
-            parsedExpression.getQuestions().forEach((key, value) -> {
-                env.put(value.getArgument(), toJavaScriptObject(engine, value.getValue()));
-                if (changedQuestions.contains(value.getQuestionName())) {
-                    usedChangedValue.set(true);
-                }
-            });
-            Object result = engine.eval("(function(){" + parsedExpression.getExpression() + "})()", env);
-            return new ExpressionResult(false, usedChangedValue.get(), ValueFormatter.formatResult(result, type),
+            for (Map.Entry<String, Object> argument : argumentValues.entrySet()) {
+                env.put(argument.getKey(), toJavaScriptObject(engine, argument.getValue()));
+            }
+            Object result = engine.eval(parsedExpression, env);
+            return new ExpressionResult(false, usedChangedValue, ValueFormatter.formatResult(result, type),
                 parsedExpression.getQuestions().size());
         } catch (ScriptException e) {
             LOGGER.warn("Evaluating the expression for question {} failed: {}", question,
@@ -116,19 +201,48 @@ public ExpressionResult evaluate(final Node question, final Map<String, Object>
         return new ExpressionResult(false, false, null, 0);
     }
 
-    private ExpressionUtilsImpl.ParsedExpression parseExpressionInputs(final String expression,
-        final Map<String, Object> values)
+    /**
+     * Retrieve the parsed expression of a computed question, either from the cache, or by parsing it and storing the
+     * result in the cache. A cached expression is only reused if the expression stored in the question is the same as
+     * the one it was parsed from.
+     *
+     * @param question the question node
+     * @return the parsed expression, may be an empty expression if the question doesn't have an expression
+     */
+    private ParsedExpression getParsedExpression(final Node question)
     {
-        ExpressionParser parser = new ExpressionParser(expression, values);
-        return parser.parse();
+        final String expression = getExpressionFromQuestion(question);
+        String key;
+        String path;
+        try {
+            key = question.getIdentifier();
+            path = question.getPath();
+        } catch (RepositoryException e) {
+            // Not a proper question node, just parse it without caching
+            return new ExpressionParser(expression, "").parse();
+        }
+
+        ParsedExpression result = this.cache.get(key);
+        if (result != null && result.getSource().hashCode() == expression.hashCode()
+            && result.getSource().equals(expression)) {
+            this.cacheHits.incrementAndGet();
+            return result;
+        }
+        this.cacheMisses.incrementAndGet();
+        result = new ExpressionParser(expression, path).parse();
+        if (this.cache.size() >= MAX_CACHED_EXPRESSIONS) {
+            this.cache.clear();
+        }
+        this.cache.put(key, result);
+        return result;
     }
 
     private final class ExpressionParser
     {
+        private final String source;
+        private final String questionPath;
         private String expression;
-        private final Map<String, Object> questionValues;
-        private boolean missingValue;
-        private Map<String, ExpressionArgument> questions = new HashMap<>();
+        private Map<String, ExpressionArgument> questions = new LinkedHashMap<>();
 
         // Next argument details
         private boolean isArrayArgument;
@@ -138,10 +252,11 @@ private ExpressionUtilsImpl.ParsedExpression parseExpressionInputs(final String
         private int end;
 
 
-        ExpressionParser(String expression, final Map<String, Object> questionValues)
+        ExpressionParser(String expression, final String questionPath)
         {
+            this.source = expression;
             this.expression = expression;
-            this.questionValues = questionValues;
+            this.questionPath = questionPath;
 
             scanNextArgument();
         }
@@ -160,7 +275,7 @@ public ParsedExpression parse()
             while (hasNextArgument()) {
                 parseNextArgument();
             }
-            return new ParsedExpression(this.questions, this.expression, this.missingValue);
+            return new ParsedExpression(this.source, this.questionPath, this.questions, this.expression);
 
         }
 
@@ -203,19 +318,8 @@ private void parseNextArgument()
 
             // Insert this question into the list of arguments
             if (!this.questions.containsKey(questionName)) {
-                Object questionValue = getQuestionValue(questionName, this.questionValues,
-                    getDefaultValue(hasDefault, defaultStart), this.isArrayArgument);
-
-                if (questionValue == null) {
-                    if (!isOptional) {
-                        this.missingValue = true;
-                    } else if (this.isArrayArgument) {
-                        questionValue = new Object[]{};
-                    }
-                }
-
                 ExpressionArgument arg = new ExpressionArgument("arg" + this.questions.size(), questionName,
-                    questionValue);
+                    getDefaultValue(hasDefault, defaultStart), this.isArrayArgument, isOptional);
 
                 this.questions.put(questionName, arg);
             }
@@ -259,34 +363,47 @@ private Object getQuestionValue(String questionName, final Map<String, Object> v
         return value;
     }
 
+    /**
+     * An expression with all its {@code @{...}} arguments extracted and replaced by plain variable names. Instances are
+     * immutable and independent of the values being evaluated, so they can be shared between threads.
+     */
     private static final class ParsedExpression
     {
-        private final Map<String, ExpressionArgument> questions;
+        private final String source;
 
-        private final String expression;
+        private final String questionPath;
+
+        private final Map<String, ExpressionArgument> questions;
 
-        private final boolean missingValue;
+        private final String script;
 
-        ParsedExpression(Map<String, ExpressionArgument> questions, String expression, boolean missingValue)
+        ParsedExpression(String source, String questionPath, Map<String, ExpressionArgument> questions,
+            String expression)
         {
+            this.source = source;
+            this.questionPath = questionPath;
             this.questions = questions;
-            this.expression = expression;
-            this.missingValue = missingValue;
+            this.script = "(function(){" + expression + "})()";
         }
 
-        public Map<String, ExpressionArgument> getQuestions()
+        public String getSource()
         {
-            return this.questions;
+            return this.source;
+        }
+
+        public String getQuestionPath()
+        {
+            return this.questionPath;
         }
 
-        public String getExpression()
+        public Map<String, ExpressionArgument> getQuestions()
         {
-            return this.expression;
+            return this.questions;
         }
 
-        public boolean hasMissingValue()
+        public String getScript()
         {
-            return this.missingValue;
+            return this.script;
         }
     }
 
@@ -294,13 +411,18 @@ public boolean hasMissingValue()
     {
         private final String argument;
         private final String questionName;
-        private final Object value;
+        private final String defaultValue;
+        private final boolean isArray;
+        private final boolean isOptional;
 
-        ExpressionArgument(String argument, String questionName, Object value)
+        ExpressionArgument(String argument, String questionName, String defaultValue, boolean isArray,
+            boolean isOptional)
         {
             this.argument = argument;
             this.questionName = questionName;
-            this.value = value;
+            this.defaultValue = defaultValue;
+            this.isArray = isArray;
+            this.isOptional = isOptional;
         }
 
         public String getArgument()
@@ -313,9 +435,69 @@ public String getQuestionName()
             return this.questionName;
         }
 
-        public Object getValue()
+        public String getDefaultValue()
+        {
+            return this.defaultValue;
+        }
+
+        public boolean isArray()
+        {
+            return this.isArray;
+        }
+
+        public boolean isOptional()
+        {
+            return this.isOptional;
+        }
+    }
+
+    /**
+     * A script engine confined to a single thread, along with the scripts it already compiled. Compiled scripts are
+     * weakly referenced by their parsed expression, so they are discarded once the expression is evicted from the
+     * cache.
+     */
+    private static final class ScriptEngineHolder
+    {
+        private final ScriptEngine engine;
+
+        private final Map<ParsedExpression, CompiledScript> scripts = new WeakHashMap<>();
+
+        private CompiledScript arrayConverter;
+
+        ScriptEngineHolder(final ScriptEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        Bindings createBindings()
         {
-            return this.value;
+            return this.engine.createBindings();
+        }
+
+        Object eval(final ParsedExpression expression, final Bindings env) throws ScriptException
+        {
+            if (!(this.engine instanceof Compilable)) {
+                return this.engine.eval(expression.getScript(), env);
+            }
+            CompiledScript script = this.scripts.get(expression);
+            if (script == null) {
+                script = ((Compilable) this.engine).compile(expression.getScript());
+                this.scripts.put(expression, script);
+            }
+            return script.eval(env);
+        }
+
+        Object toJavaScriptArray(final Object javaObject) throws ScriptException
+        {
+            Bindings tmpBindings = this.engine.createBindings();
+            tmpBindings.put(CONVERSION_KEY, javaObject);
+            if (!(this.engine instanceof Compilable)) {
+                return this.engine.eval("Java.from(" + CONVERSION_KEY + ")", tmpBindings);
+            }
+            if (this.arrayConverter == null) {
+                this.arrayConverter = ((Compilable) this.engine).compile("Java.from(" + CONVERSION_KEY + ")");
+            }
+            return this.arrayConverter.eval(tmpBindings);
         }
     }
 
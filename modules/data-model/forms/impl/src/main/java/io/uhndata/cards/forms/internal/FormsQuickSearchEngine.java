@@ -19,13 +19,13 @@
 package io.uhndata.cards.forms.internal;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
-import javax.jcr.query.RowIterator;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 
@@ -42,9 +42,11 @@
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.spi.SubstringSearchIndex;
 
 /**
- * Finds {@code [cards:Forms]}s with answers or notes matching the given full text search.
+ * Finds {@code [cards:Forms]}s with answers or notes matching the given full text search. The matching answers are
+ * looked up in the {@link SubstringSearchIndex} when possible, and with a query otherwise.
  *
  * @version $Id$
  */
@@ -58,6 +60,9 @@ public class FormsQuickSearchEngine implements QuickSearchEngine
     @Reference
     private FormUtils formUtils;
 
+    @Reference
+    private SubstringSearchIndex searchIndex;
+
     @Override
     public List<String> getSupportedTypes()
     {
@@ -69,9 +74,14 @@ public QuickSearchEngine.Results quickSearch(final SearchParameters query,
         final ResourceResolver resourceResolver)
     {
         try {
-            final String sqlQuery = getQuery(query.getQuery());
-            final RowIterator queryResults = resourceResolver.adaptTo(Session.class).getWorkspace().getQueryManager()
-                .createQuery(sqlQuery.toString(), Query.JCR_SQL2).execute().getRows();
+            final Session session = resourceResolver.adaptTo(Session.class);
+            Iterator<Node> queryResults =
+                this.searchIndex.search(SubstringSearchIndex.TEXT_ANSWERS, query.getQuery(), session);
+            if (queryResults == null) {
+                final String sqlQuery = getQuery(query.getQuery());
+                queryResults = SearchUtils.toIterator(session.getWorkspace().getQueryManager()
+                    .createQuery(sqlQuery, Query.JCR_SQL2).execute().getNodes());
+            }
             return new FormsResults(query.getQuery(), queryResults, resourceResolver);
         } catch (final RepositoryException e) {
             LOGGER.warn("Failed to search for subjects: {}", e.getMessage(), e);
@@ -95,13 +105,13 @@ private String getQuery(final String textQuery)
 
     private final class FormsResults implements QuickSearchEngine.Results
     {
-        private final RowIterator queryResults;
+        private final Iterator<Node> queryResults;
 
         private final String query;
 
         private final ResourceResolver resolver;
 
-        FormsResults(final String query, final RowIterator queryResults, final ResourceResolver resolver)
+        FormsResults(final String query, final Iterator<Node> queryResults, final ResourceResolver resolver)
         {
             this.query = query;
             this.queryResults = queryResults;
@@ -117,14 +127,14 @@ public boolean hasNext()
         @Override
         public void skip()
         {
-            this.queryResults.nextRow();
+            this.queryResults.next();
         }
 
         @Override
         public JsonObject next()
         {
             try {
-                final Node item = this.queryResults.nextRow().getNode();
+                final Node item = this.queryResults.next();
                 final Pair<String, Boolean> match = getMatch(this.query, item);
                 String questionText = null;
                 String questionPath = "";
@@ -31,7 +31,7 @@
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
 
-import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVWriter;
 
 /**
  * Servlet that outputs all the Form data for a Questionnaire to a CSV.
@@ -52,11 +52,13 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         final Resource questionnaire = request.getResource();
         final String csvPath = questionnaire.getPath() + ".data"
             + questionnaire.getResourceMetadata().getResolutionPathInfo();
-        final CSVString csv = questionnaire.getResourceResolver().resolve(csvPath).adaptTo(CSVString.class);
+        final ResourceCSVWriter csv =
+            questionnaire.getResourceResolver().resolve(csvPath).adaptTo(ResourceCSVWriter.class);
         final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HHmm");
         response.addHeader("Content-disposition", "attachment; filename=" + questionnaire.getName()
             + "_" + dateFormat.format(new Date()) + ".csv");
         response.setCharacterEncoding("UTF-8");
-        response.getWriter().write(csv.toString());
+        // The CSV is written directly into the response, so that it doesn't need to be fully held in memory
+        csv.write(response.getWriter());
     }
 }
@@ -16,12 +16,17 @@
  */
 package io.uhndata.cards.forms.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
@@ -42,13 +47,15 @@
 
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.forms.api.QuestionnaireUtils;
+import io.uhndata.cards.forms.internal.ReferenceQuestionsIndex.Referrer;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 /**
  * Change listener looking for modified Forms whose Answers are referenced in other Forms. Initially, when the Form is
  * changed, this handler goes through all the Answers which belong to the Form and checks whether a given Answer is
  * referenced elsewhere. If so, the source and referenced Answer values are compared and if they do not match the
- * referenced value is updated to match the source value.
+ * referenced value is updated to match the source value. Only answers to questions that are copied by a reference
+ * question, according to the {@link ReferenceQuestionsIndex}, are checked.
  *
  * @version $Id$
  */
@@ -76,6 +83,9 @@ public class ReferenceAnswersChangedListener implements ResourceChangeListener
     @Reference
     private QuestionnaireUtils questionnaireUtils;
 
+    @Reference
+    private ReferenceQuestionsIndex referenceQuestions;
+
     @Override
     public void onChange(List<ResourceChange> changes)
     {
@@ -107,7 +117,7 @@ private void handleEvent(final ResourceChange event)
             try {
                 this.rrp.push(localResolver);
                 NodeIterator children = form.getNodes();
-                checkAndUpdateAnswersValues(children, session);
+                checkAndUpdateAnswersValues(children, session, new HashMap<>());
             } catch (RepositoryException e) {
                 LOGGER.error(e.getMessage(), e);
             } finally {
@@ -129,47 +139,27 @@ private void handleEvent(final ResourceChange event)
      * @param nodeIterator an iterator of nodes of which have changed due to an update made to a Form
      * @param serviceResolver a ResourceResolver that can be used for querying the JCR
      * @param session a service session providing access to the repository
+     * @param subjectForms cache of the forms of the changed form's subject, keyed by questionnaire identifier
      */
-    private void checkAndUpdateAnswersValues(final NodeIterator nodeIterator, final Session session)
-        throws RepositoryException
+    private void checkAndUpdateAnswersValues(final NodeIterator nodeIterator, final Session session,
+        final Map<String, List<Node>> subjectForms) throws RepositoryException
     {
         final VersionManager versionManager = session.getWorkspace().getVersionManager();
         Set<String> checkoutPaths = new HashSet<>();
         while (nodeIterator.hasNext()) {
             final Node node = nodeIterator.nextNode();
             if (node.isNodeType("cards:AnswerSection")) {
-                checkAndUpdateAnswersValues(node.getNodes(), session);
+                checkAndUpdateAnswersValues(node.getNodes(), session, subjectForms);
             } else if (node.isNodeType("cards:Answer")) {
-                final String answerNodeType = node.getPrimaryNodeType().getName();
-                final String subject = this.formUtils.getSubject(this.formUtils.getForm(node)).getIdentifier();
-                // TODO: is this query needed with the refactor in CARDS-2509/2571?
-                // May be possible to replace it with a loop on node.getReferences()
-                final NodeIterator resourceIteratorReferencingAnswers = session
-                    .getWorkspace().getQueryManager().createQuery(
-                        // Answers that were explicitly copied from this answer
-                        "SELECT a.* FROM [" + answerNodeType + "] AS a WHERE a.copiedFrom = '"
-                            + escape(node.getPath()) + "'"
-                            + " UNION "
-                            // Answers that don't have a value yet
-                            + "SELECT a.* FROM [" + answerNodeType + "] AS a"
-                            + "  INNER JOIN [cards:Form] AS f ON a.form = f.[jcr:uuid]"
-                            + "  INNER JOIN [cards:Question] AS q ON a.question = q.[jcr:uuid]"
-                            + "  WHERE"
-                            // The answer doesn't have a value
-                            + "    a.value is null"
-                            // The answer's question references this question
-                            + "    AND q.question = '"
-                            + escape(node.getProperty("question").getNode().getPath()) + "'"
-                            // The answer belongs to the same subject or one of its descendants
-                            + "    AND f.relatedSubjects = '" + subject + "'"
-                            // Use the fast index for the query
-                            + " OPTION (index tag cards)",
-                        "JCR-SQL2")
-                    .execute().getNodes();
+                final List<Referrer> referrers = this.referenceQuestions
+                    .getReferrers(node.getProperty("question").getNode().getPath(), session);
+                if (referrers.isEmpty()) {
+                    // No reference question copies this answer, so no other answer can depend on it
+                    continue;
+                }
                 final Property sourceAnswerValue =
                     !node.hasProperty(VALUE) ? null : node.getProperty(VALUE);
-                while (resourceIteratorReferencingAnswers.hasNext()) {
-                    final Node referenceAnswer = resourceIteratorReferencingAnswers.nextNode();
+                for (Node referenceAnswer : findReferencingAnswers(node, referrers, session, subjectForms)) {
                     if (shouldUpdateValue(sourceAnswerValue, referenceAnswer)) {
                         final Node formNode = this.formUtils.getForm(referenceAnswer);
                         final String referenceFormPath = formNode.getPath();
@@ -193,6 +183,76 @@ private void checkAndUpdateAnswersValues(final NodeIterator nodeIterator, final
         }
     }
 
+    /**
+     * Find the answers that copy, or should copy, the value of an answer.
+     *
+     * @param answer the source answer
+     * @param referrers the reference questions copying the source answer's question
+     * @param session a service session providing access to the repository
+     * @param subjectForms cache of the forms already looked up while processing the current event, keyed by
+     *            questionnaire identifier
+     * @return the referencing answers, may be empty
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Collection<Node> findReferencingAnswers(final Node answer, final List<Referrer> referrers,
+        final Session session, final Map<String, List<Node>> subjectForms) throws RepositoryException
+    {
+        final Map<String, Node> result = new LinkedHashMap<>();
+        final String answerNodeType = answer.getPrimaryNodeType().getName();
+
+        // Answers that were explicitly copied from this answer
+        final NodeIterator copies = session.getWorkspace().getQueryManager().createQuery(
+            "SELECT a.* FROM [" + answerNodeType + "] AS a WHERE a.copiedFrom = '" + escape(answer.getPath()) + "'",
+            "JCR-SQL2").execute().getNodes();
+        while (copies.hasNext()) {
+            final Node copy = copies.nextNode();
+            result.put(copy.getPath(), copy);
+        }
+
+        // Answers to the reference questions that don't have a value yet, in the forms of the same subject or one of
+        // its descendants
+        final String subject = this.formUtils.getSubject(this.formUtils.getForm(answer)).getIdentifier();
+        for (Referrer referrer : referrers) {
+            final Node question;
+            try {
+                question = session.getNodeByIdentifier(referrer.getQuestionIdentifier());
+            } catch (ItemNotFoundException e) {
+                // The question was just removed, and the index will be rebuilt
+                continue;
+            }
+            final List<Node> forms = subjectForms.computeIfAbsent(referrer.getQuestionnaireIdentifier(),
+                questionnaire -> findForms(questionnaire, subject, session));
+            for (Node form : forms) {
+                for (Node candidate : this.formUtils.getAllAnswers(form, question)) {
+                    if (!candidate.hasProperty(VALUE) && candidate.isNodeType(answerNodeType)) {
+                        result.putIfAbsent(candidate.getPath(), candidate);
+                    }
+                }
+            }
+        }
+        return result.values();
+    }
+
+    private List<Node> findForms(final String questionnaire, final String subject, final Session session)
+    {
+        final List<Node> result = new ArrayList<>();
+        try {
+            final NodeIterator forms = session.getWorkspace().getQueryManager().createQuery(
+                "SELECT f.* FROM [cards:Form] AS f"
+                    + " WHERE f.questionnaire = '" + escape(questionnaire) + "'"
+                    + " AND f.relatedSubjects = '" + escape(subject) + "'"
+                    // Use the fast index for the query
+                    + " OPTION (index tag cards)",
+                "JCR-SQL2").execute().getNodes();
+            while (forms.hasNext()) {
+                result.add(forms.nextNode());
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to find the forms referencing answers of {}: {}", subject, e.getMessage());
+        }
+        return result;
+    }
+
     private boolean shouldUpdateValue(final Property source, final Node reference) throws RepositoryException
     {
         String updateMode = "";
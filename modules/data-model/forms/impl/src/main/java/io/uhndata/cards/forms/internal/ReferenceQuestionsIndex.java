@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.forms.api.QuestionnaireUtils;
+
+/**
+ * Reverse index of reference questions: for each question copied by at least one reference question, the reference
+ * questions copying it. Since this only depends on the questionnaire definitions, it is built once, the first time it
+ * is needed, and rebuilt after any questionnaire changes.
+ *
+ * @version $Id$
+ */
+@Component(service = { ReferenceQuestionsIndex.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class ReferenceQuestionsIndex implements ResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceQuestionsIndex.class);
+
+    @Reference
+    private QuestionnaireUtils questionnaireUtils;
+
+    /** The reference questions, keyed by the path of the question they copy; {@code null} until built. */
+    private volatile Map<String, List<Referrer>> index;
+
+    /** Incremented every time a questionnaire changes, so that an index built concurrently isn't stored stale. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * List the reference questions copying the answers of a question.
+     *
+     * @param questionPath the path of a question
+     * @param session a session that can read all the questionnaires, used for building the index if needed
+     * @return an immutable list of reference questions, empty if the question isn't referenced anywhere, or if the
+     *         index cannot be built
+     */
+    public List<Referrer> getReferrers(final String questionPath, final Session session)
+    {
+        Map<String, List<Referrer>> current = this.index;
+        if (current == null) {
+            final long currentGeneration = this.generation.get();
+            try {
+                current = build(session);
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to index the reference questions: {}", e.getMessage(), e);
+                return Collections.emptyList();
+            }
+            if (this.generation.get() == currentGeneration) {
+                this.index = current;
+            }
+        }
+        return current.getOrDefault(questionPath, Collections.emptyList());
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.generation.incrementAndGet();
+        this.index = null;
+    }
+
+    private Map<String, List<Referrer>> build(final Session session) throws RepositoryException
+    {
+        final Map<String, List<Referrer>> result = new HashMap<>();
+        final NodeIterator questions = session.getWorkspace().getQueryManager().createQuery(
+            "SELECT q.* FROM [cards:Question] AS q WHERE q.entryMode = 'reference' AND q.question IS NOT NULL",
+            "JCR-SQL2").execute().getNodes();
+        while (questions.hasNext()) {
+            final Node question = questions.nextNode();
+            final Node questionnaire = this.questionnaireUtils.getOwnerQuestionnaire(question);
+            if (questionnaire == null) {
+                continue;
+            }
+            result.computeIfAbsent(question.getProperty("question").getString(), k -> new ArrayList<>())
+                .add(new Referrer(question, questionnaire));
+        }
+        result.replaceAll((k, v) -> Collections.unmodifiableList(v));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * A reference question, along with the questionnaire it belongs to.
+     */
+    public static final class Referrer
+    {
+        private final String questionIdentifier;
+
+        private final String questionnaireIdentifier;
+
+        Referrer(final Node question, final Node questionnaire) throws RepositoryException
+        {
+            this.questionIdentifier = question.getIdentifier();
+            this.questionnaireIdentifier = questionnaire.getIdentifier();
+        }
+
+        public String getQuestionIdentifier()
+        {
+            return this.questionIdentifier;
+        }
+
+        public String getQuestionnaireIdentifier()
+        {
+            return this.questionnaireIdentifier;
+        }
+    }
+}
@@ -71,6 +71,13 @@ public int getPriority()
         return 95;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        // The copied answers are only added to the resource being serialized
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(final Resource resource)
     {
@@ -98,12 +98,7 @@ public void start(Resource resource)
 
         this.filters.set(this.filtersParser.parseFilters(this.selectors.get()));
 
-        final Map<String, String> optionsMap = new HashMap<>();
-        Arrays.asList(this.selectors.get().split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
-            .filter(s -> StringUtils.startsWith(s, "dataOption:"))
-            .map(s -> StringUtils.substringAfter(s, "dataOption:"))
-            .forEach(s -> optionsMap.put(StringUtils.substringBefore(s, "="),
-                StringUtils.substringAfter(s, "=").replaceAll("\\\\\\.", ".")));
+        final Map<String, String> optionsMap = parseOptions(this.selectors.get());
         this.options.set(optionsMap);
 
         setDisplayLevel(optionsMap.get("descendantData"));
@@ -158,10 +153,55 @@ public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> s
 
     private String getCurrentSelectors()
     {
-        if (this.options.get().containsKey("formSelectors")) {
-            return "." + this.options.get().get("formSelectors") + ".json";
+        return getFormSelectors(this.options.get(), this.selectors.get());
+    }
+
+    /**
+     * Parse the {@code dataOption:name=value} selectors.
+     *
+     * @param selectors the selectors of the serialized resource
+     * @return the requested options, may be empty
+     */
+    static Map<String, String> parseOptions(final String selectors)
+    {
+        final Map<String, String> optionsMap = new HashMap<>();
+        Arrays.asList(selectors.split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
+            .filter(s -> StringUtils.startsWith(s, "dataOption:"))
+            .map(s -> StringUtils.substringAfter(s, "dataOption:"))
+            .forEach(s -> optionsMap.put(StringUtils.substringBefore(s, "="),
+                StringUtils.substringAfter(s, "=").replaceAll("\\\\\\.", ".")));
+        return optionsMap;
+    }
+
+    /**
+     * Get the selectors to use when serializing the forms.
+     *
+     * @param options the requested options, as parsed by {@link #parseOptions}
+     * @param defaultSelectors the selectors to use when no specific form selectors are requested
+     * @return a selectors string, starting with a dot
+     */
+    static String getFormSelectors(final Map<String, String> options, final String defaultSelectors)
+    {
+        if (options.containsKey("formSelectors")) {
+            return "." + options.get("formSelectors") + ".json";
         }
-        return this.selectors.get();
+        return defaultSelectors;
+    }
+
+    /**
+     * Generate the query for the forms to serialize.
+     *
+     * @param condition the condition selecting the forms, for example {@code form.questionnaire = '<uuid>'}
+     * @param filters the requested data filters
+     * @return a JCR-SQL2 query, sorting forms in the order of their creation
+     */
+    static String generateFormsQuery(final String condition, final DataFilters filters)
+    {
+        return "select form.* from [cards:Form] as form" + filters.getExtraQuerySelectors()
+            + " where (" + condition + ")"
+            + filters.getExtraQueryConditions()
+            + " order by form.'jcr:created' ASC"
+            + " OPTION (index tag cards)";
     }
 
     @Override
@@ -216,17 +256,11 @@ private void storeForm(final Resource form, final Map<String, JsonArrayBuilder>
 
     private String generateDataQuery(String currentNodeIdentifier) throws RepositoryException
     {
-        StringBuilder result = new StringBuilder("select form.* from [cards:Form] as form");
-        result.append(this.filters.get().getExtraQuerySelectors());
-        result.append(" where (form."
+        StringBuilder condition = new StringBuilder("form."
             + this.uuidsWithEntityFilter.get().get(currentNodeIdentifier) + " = '" + currentNodeIdentifier + "'");
         this.uuidsWithEntityFilter.get().remove(currentNodeIdentifier);
-        this.uuidsWithEntityFilter.get()
-            .forEach((key, value) -> result.append(" or form.").append(value).append(" = '").append(key).append("'"));
-        result.append(")");
-        result.append(this.filters.get().getExtraQueryConditions());
-        result.append(" order by form.'jcr:created' ASC");
-        result.append(" OPTION (index tag cards)");
-        return result.toString();
+        this.uuidsWithEntityFilter.get().forEach(
+            (key, value) -> condition.append(" or form.").append(value).append(" = '").append(key).append("'"));
+        return generateFormsQuery(condition.toString(), this.filters.get());
     }
 }
@@ -19,6 +19,8 @@
 package io.uhndata.cards.forms.internal.serialize;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -27,6 +29,8 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.jcr.query.Query;
 import javax.json.JsonArray;
@@ -42,9 +46,11 @@
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.DataFiltersParser;
 import io.uhndata.cards.serialize.spi.ResourceCSVProcessor;
 
 /**
@@ -57,6 +63,9 @@ public class QuestionnaireToCsvProcessor implements ResourceCSVProcessor
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(QuestionnaireToCsvProcessor.class);
 
+    /** Matches the {@code data} selector, which enables the serialization of the questionnaire's forms. */
+    private static final Pattern DATA_SELECTOR = Pattern.compile("\\.data(?=\\.|$)");
+
     private static final String IDENTIFIER_HEADER = "Identifier";
 
     private static final String CREATED_HEADER = "Created";
@@ -66,6 +75,9 @@ public class QuestionnaireToCsvProcessor implements ResourceCSVProcessor
 
     private static final String UUID_PROP = "jcr:uuid";
 
+    @Reference
+    private DataFiltersParser filtersParser;
+
     @Override
     public boolean canProcess(final Resource resource)
     {
@@ -75,28 +87,61 @@ public boolean canProcess(final Resource resource)
     @Override
     public String serialize(final Resource resource)
     {
+        final StringWriter output = new StringWriter();
+        try {
+            if (serializeQuestionnaire(resource, output)) {
+                return output.toString();
+            }
+        } catch (final IOException e) {
+            // Should not happen since we're printing to a string
+            LOGGER.error("Error in CSV export of {} questionnaire", resource.getName());
+        }
+        return null;
+    }
+
+    @Override
+    public void serialize(final Resource resource, final Writer output) throws IOException
+    {
+        serializeQuestionnaire(resource, output);
+    }
+
+    /**
+     * Write the CSV for a questionnaire. The forms are serialized and written one by one, so that only one form needs
+     * to be held in memory at a time, regardless of the number of forms.
+     *
+     * @param resource the questionnaire resource
+     * @param output the writer where the CSV text is written
+     * @return {@code false} if the questionnaire could not be serialized, {@code true} otherwise
+     * @throws IOException if writing to the output fails
+     */
+    private boolean serializeQuestionnaire(final Resource resource, final Writer output) throws IOException
+    {
+        final String resolutionPathInfo = resource.getResourceMetadata().getResolutionPathInfo();
         // The proper serialization depends on "deep", "dereference", and "-labels", but we may allow other JSON
         // processors to be enabled/disabled to further customize the data, so we also append the original selectors
-        final String processedPath = resource.getPath()
-            + resource.getResourceMetadata().getResolutionPathInfo() + ".deep.dereference.-labels";
-        final JsonObject result = resource.getResourceResolver().resolve(processedPath).adaptTo(JsonObject.class);
-
-        if (result != null) {
-            return processQuestionnaire(result, resource.getResourceResolver(),
-                resource.getResourceMetadata().getResolutionPathInfo());
+        final String selectors = resolutionPathInfo + ".deep.dereference.-labels";
+        // The forms are not serialized along with the questionnaire, instead they are queried and processed one by one
+        final Matcher dataSelector = DATA_SELECTOR.matcher(selectors);
+        final boolean includeData = dataSelector.find();
+        final JsonObject questionnaire = resource.getResourceResolver()
+            .resolve(resource.getPath() + dataSelector.replaceAll("")).adaptTo(JsonObject.class);
+        if (questionnaire == null) {
+            return false;
         }
-        return null;
+        processQuestionnaire(questionnaire, resource.getResourceResolver(), resolutionPathInfo,
+            includeData ? selectors : null, output);
+        return true;
     }
 
-    private String processQuestionnaire(final JsonObject questionnaire, final ResourceResolver resolver,
-        final String resolutionPathInfo)
+    private void processQuestionnaire(final JsonObject questionnaire, final ResourceResolver resolver,
+        final String resolutionPathInfo, final String dataSelectors, final Writer output) throws IOException
     {
         try {
-            final StringBuilder output = new StringBuilder();
             CSVFormat format = CSVFormat.DEFAULT;
             if (resolutionPathInfo.endsWith(".tsv")) {
                 format = CSVFormat.TDF;
             }
+            // The printer is not closed, since that would also close the output
             final CSVPrinter csvPrinter = new CSVPrinter(output, format);
 
             // CSV data aggregator mapping Question UUIDs to pairs of corresponding row number to answer in the csv
@@ -134,17 +179,16 @@ private String processQuestionnaire(final JsonObject questionnaire, final Resour
             }
 
             // Aggregate form answers to the csvData collector for the CSV output
-            if (questionnaire.containsKey("@data")) {
-                processFormsToRows(questionnaire.getJsonArray("@data"), csvData, csvPrinter);
+            if (dataSelectors != null) {
+                processFormsToRows(questionnaire, resolver, dataSelectors, csvData, csvPrinter);
             }
 
-            // All done, flush, close and return the CSV
-            csvPrinter.close(true);
-            return output.toString();
+            // All done, flush the CSV
+            csvPrinter.flush();
         } catch (final IOException e) {
             LOGGER.error("Error in CSV export of {} questionnaire", questionnaire.getString("@name"));
+            throw e;
         }
-        return null;
     }
 
     private void getSubjectTypes(final ResourceResolver resolver, final Map<String, Map<Integer, String>> csvData,
@@ -221,16 +265,36 @@ private void processHeaderElement(final JsonObject nodeJson, final Map<String, M
         }
     }
 
-    private void processFormsToRows(final JsonArray formsJson, final Map<String, Map<Integer, String>> csvData,
-        final CSVPrinter csvPrinter)
+    /**
+     * Query the forms of the questionnaire, and write them one by one to the CSV. This is the same query that the
+     * {@link DataProcessor} would run, with the same data filters.
+     *
+     * @param questionnaire the JSON serialization of the questionnaire, without its data
+     * @param resolver the resource resolver to use for querying and serializing forms
+     * @param selectors the selectors requested for the questionnaire, including the data filters and options
+     * @param csvData data aggregator
+     * @param csvPrinter the CSV output
+     * @throws IOException if writing to the output fails
+     */
+    private void processFormsToRows(final JsonObject questionnaire, final ResourceResolver resolver,
+        final String selectors, final Map<String, Map<Integer, String>> csvData, final CSVPrinter csvPrinter)
+        throws IOException
     {
-        for (final JsonValue form : formsJson) {
-            processForm((JsonObject) form, csvData, csvPrinter);
+        final String query = DataProcessor.generateFormsQuery(
+            "form.questionnaire = '" + questionnaire.getString(UUID_PROP) + "'",
+            this.filtersParser.parseFilters(selectors));
+        final String formSelectors = DataProcessor.getFormSelectors(DataProcessor.parseOptions(selectors), selectors);
+        final Iterator<Resource> forms = resolver.findResources(query, Query.JCR_SQL2);
+        while (forms.hasNext()) {
+            final JsonObject form = resolver.resolve(forms.next().getPath() + formSelectors).adaptTo(JsonObject.class);
+            if (form != null) {
+                processForm(form, csvData, csvPrinter);
+            }
         }
     }
 
     private void processForm(final JsonObject form, final Map<String, Map<Integer, String>> csvData,
-        final CSVPrinter csvPrinter)
+        final CSVPrinter csvPrinter) throws IOException
     {
         // Collect information regarding the form subjects and subject parents
         if (form.containsKey("subject")) {
@@ -292,11 +356,7 @@ private void processForm(final JsonObject form, final Map<String, Map<Integer, S
                 row.add(StringUtils.defaultString(answerList.get(level)));
             }
             // Print one row for the level
-            try {
-                csvPrinter.printRecord(row.toArray());
-            } catch (final IOException e) {
-                // Should not happen since we're printing to a string
-            }
+            csvPrinter.printRecord(row.toArray());
         }
 
         // Empty csvData for next form
@@ -57,6 +57,12 @@ public int getPriority()
         return 5;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
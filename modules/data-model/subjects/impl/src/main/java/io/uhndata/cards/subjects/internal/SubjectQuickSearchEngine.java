@@ -19,27 +19,30 @@
 package io.uhndata.cards.subjects.internal;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
-import javax.jcr.query.RowIterator;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.spi.SubstringSearchIndex;
 
 /**
- * Finds {@code [cards:Subject]}s with identifiers matching the given full text search.
+ * Finds {@code [cards:Subject]}s with identifiers matching the given full text search. The matching subjects are
+ * looked up in the {@link SubstringSearchIndex} when possible, and with a query otherwise.
  *
  * @version $Id$
  */
@@ -50,6 +53,9 @@ public class SubjectQuickSearchEngine implements QuickSearchEngine
 
     private static final List<String> SUPPORTED_TYPES = Collections.singletonList("cards:Subject");
 
+    @Reference
+    private SubstringSearchIndex searchIndex;
+
     @Override
     public List<String> getSupportedTypes()
     {
@@ -60,15 +66,19 @@ public List<String> getSupportedTypes()
     public QuickSearchEngine.Results quickSearch(final SearchParameters query, final ResourceResolver resourceResolver)
     {
         try {
-            final StringBuilder sqlQuery = new StringBuilder()
-                .append("select [jcr:path] from [cards:Subject] as a where lower([identifier]) like '%")
-                .append(SearchUtils.escapeLikeText(query.getQuery().toLowerCase()))
-                .append("%' order by [identifier] option(index tag cards)");
-
-            return new SubjectsResults(query.getQuery(),
-                resourceResolver.adaptTo(Session.class).getWorkspace().getQueryManager()
-                    .createQuery(sqlQuery.toString(), Query.JCR_SQL2).execute().getRows(),
-                resourceResolver);
+            final Session session = resourceResolver.adaptTo(Session.class);
+            Iterator<Node> queryResults =
+                this.searchIndex.search(SubstringSearchIndex.SUBJECT_IDENTIFIERS, query.getQuery(), session);
+            if (queryResults == null) {
+                final StringBuilder sqlQuery = new StringBuilder()
+                    .append("select [jcr:path] from [cards:Subject] as a where lower([identifier]) like '%")
+                    .append(SearchUtils.escapeLikeText(query.getQuery().toLowerCase()))
+                    .append("%' order by [identifier] option(index tag cards)");
+                queryResults = SearchUtils.toIterator(session.getWorkspace().getQueryManager()
+                    .createQuery(sqlQuery.toString(), Query.JCR_SQL2).execute().getNodes());
+            }
+
+            return new SubjectsResults(query.getQuery(), queryResults, resourceResolver);
         } catch (final RepositoryException e) {
             LOGGER.warn("Failed to search for subjects: {}", e.getMessage(), e);
         }
@@ -79,11 +89,11 @@ private final class SubjectsResults implements QuickSearchEngine.Results
     {
         private final String query;
 
-        private final RowIterator queryResults;
+        private final Iterator<Node> queryResults;
 
         private final ResourceResolver resolver;
 
-        SubjectsResults(final String query, final RowIterator queryResults,
+        SubjectsResults(final String query, final Iterator<Node> queryResults,
             final ResourceResolver resolver)
         {
             this.query = query;
@@ -108,7 +118,7 @@ public JsonObject next()
         {
             try {
                 // No need to go through results list if we do not want total number of matches
-                final Node item = this.queryResults.nextRow().getNode();
+                final Node item = this.queryResults.next();
 
                 final String resourceValue = item.getProperty("identifier").getString();
 
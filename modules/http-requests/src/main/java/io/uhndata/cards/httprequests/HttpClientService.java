@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.httprequests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends HTTP requests to external services through a shared pool of connections. Connections are kept alive between
+ * requests, so sending many requests to the same server doesn't open a new connection, with a new TLS handshake, for
+ * each one. Request bodies can be streamed instead of being built in memory first.
+ *
+ * @version $Id$
+ */
+public interface HttpClientService
+{
+    /**
+     * Writes a request body directly to the connection.
+     */
+    @FunctionalInterface
+    interface BodyWriter
+    {
+        /**
+         * Write the request body.
+         *
+         * @param out the stream to write to, closing it is allowed but not required
+         * @throws IOException if writing fails
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Send a POST request.
+     *
+     * @param url the URL to send the request to
+     * @param data the request body
+     * @param contentType the value of the {@code Content-Type} header
+     * @param payloadEncoding the charset used for encoding the request body
+     * @return the response
+     * @throws IOException if sending the request or receiving the response fails
+     */
+    HttpResponse post(String url, String data, String contentType, String payloadEncoding) throws IOException;
+
+    /**
+     * Send a POST request with a body encoded in UTF-8.
+     *
+     * @param url the URL to send the request to
+     * @param data the request body
+     * @param contentType the value of the {@code Content-Type} header
+     * @return the response
+     * @throws IOException if sending the request or receiving the response fails
+     */
+    default HttpResponse post(String url, String data, String contentType) throws IOException
+    {
+        return post(url, data, contentType, "UTF-8");
+    }
+
+    /**
+     * Send a POST request, streaming the body from an input stream.
+     *
+     * @param url the URL to send the request to
+     * @param body the request body, read until its end but not closed
+     * @param contentType the value of the {@code Content-Type} header
+     * @return the response
+     * @throws IOException if sending the request or receiving the response fails
+     */
+    HttpResponse post(String url, InputStream body, String contentType) throws IOException;
+
+    /**
+     * Send a POST request, with a body written directly to the connection.
+     *
+     * @param url the URL to send the request to
+     * @param body writes the request body
+     * @param contentType the value of the {@code Content-Type} header
+     * @return the response
+     * @throws IOException if sending the request, writing the body, or receiving the response fails
+     */
+    HttpResponse post(String url, BodyWriter body, String contentType) throws IOException;
+
+    /**
+     * Send a POST request in the background. Many requests can be submitted at once, they will be sent in parallel by
+     * a few threads, reusing the pooled connections. If too many requests are waiting, the request is sent on the
+     * calling thread instead, which slows down the caller until the backlog is cleared.
+     *
+     * @param url the URL to send the request to
+     * @param body writes the request body, called on a background thread
+     * @param contentType the value of the {@code Content-Type} header
+     * @return the future response, which fails with the {@link IOException} if sending the request fails
+     */
+    CompletableFuture<HttpResponse> postAsync(String url, BodyWriter body, String contentType);
+}
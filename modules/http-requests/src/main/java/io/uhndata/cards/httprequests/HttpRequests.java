@@ -19,18 +19,25 @@
 
 package io.uhndata.cards.httprequests;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 
+/**
+ * Static helpers for sending HTTP requests, for code that can't get a {@link HttpClientService} injected. Each request
+ * uses its own client, closed once the response is read, so connections are not reused; prefer the
+ * {@link HttpClientService} when sending many requests.
+ *
+ * @version $Id$
+ */
 public final class HttpRequests
 {
     // Hide the utility class constructor
@@ -38,35 +45,21 @@ private HttpRequests()
     {
     }
 
-    private static String readInputStream(InputStream stream) throws IOException
-    {
-        final BufferedReader br = new BufferedReader(new InputStreamReader(stream, "utf-8"));
-        String responseLine = null;
-        final StringBuilder retVal = new StringBuilder();
-        while ((responseLine = br.readLine()) != null) {
-            retVal.append(responseLine.trim());
-        }
-        return retVal.toString();
-    }
-
     public static HttpResponse doHttpPost(final String url, final String data, final String contentType,
         final String payloadEncoding)
         throws IOException
     {
-        CloseableHttpClient client = HttpClients.createDefault();
-        HttpPost httpPost = new HttpPost(url);
-        StringEntity entity = new StringEntity(data, payloadEncoding);
-        httpPost.setEntity(entity);
+        final HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(new StringEntity(data, payloadEncoding));
         httpPost.setHeader("Content-type", contentType);
-        CloseableHttpResponse response = client.execute(httpPost);
-        String responseString = readInputStream(response.getEntity().getContent());
-        StatusLine statusLine = response.getStatusLine();
-        HttpResponse httpResponse = new HttpResponse(-1, responseString);
-        if (statusLine != null) {
-            httpResponse.setStatusCode(statusLine.getStatusCode());
+        try (CloseableHttpClient client = HttpClients.createDefault();
+            CloseableHttpResponse response = client.execute(httpPost)) {
+            final HttpEntity responseEntity = response.getEntity();
+            final String payload =
+                responseEntity == null ? "" : EntityUtils.toString(responseEntity, StandardCharsets.UTF_8);
+            final StatusLine statusLine = response.getStatusLine();
+            return new HttpResponse(statusLine == null ? -1 : statusLine.getStatusCode(), payload);
         }
-        client.close();
-        return httpResponse;
     }
 
     public static HttpResponse doHttpPost(final String url, final String data, final String contentType)
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.httprequests.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.httprequests.HttpClientService;
+import io.uhndata.cards.httprequests.HttpResponse;
+
+/**
+ * {@link HttpClientService} backed by a pooling Apache HTTP client.
+ *
+ * @version $Id$
+ */
+@Component(service = HttpClientService.class)
+@Designate(ocd = PooledHttpClientService.Config.class)
+@SuppressWarnings("checkstyle:ClassFanOutComplexity")
+public class PooledHttpClientService implements HttpClientService
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledHttpClientService.class);
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_SERVER = 10;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 60_000;
+
+    private static final int DEFAULT_KEEP_ALIVE = 30_000;
+
+    private static final int DEFAULT_ASYNC_THREADS = 4;
+
+    /** How many asynchronous requests can wait for a thread before the callers have to send them themselves. */
+    private static final int ASYNC_QUEUE_CAPACITY = 100;
+
+    /** Pooled connections idle for longer than this are checked before being reused. */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    private final CloseableHttpClient client;
+
+    private final ThreadPoolExecutor executor;
+
+    @ObjectClassDefinition(name = "HTTP client",
+        description = "Configuration for the pooled HTTP client used for sending requests to external services")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Maximum connections", description = "How many connections can be open at once")
+        int maxConnections() default DEFAULT_MAX_CONNECTIONS;
+
+        @AttributeDefinition(name = "Maximum connections per server",
+            description = "How many connections can be open at once to the same server")
+        int maxConnectionsPerServer() default DEFAULT_MAX_CONNECTIONS_PER_SERVER;
+
+        @AttributeDefinition(name = "Connect timeout",
+            description = "How long to wait for a connection to be established or to become available in the pool,"
+                + " in milliseconds. 0 means no timeout.")
+        int connectTimeout() default DEFAULT_CONNECT_TIMEOUT;
+
+        @AttributeDefinition(name = "Socket timeout",
+            description = "How long to wait for data from the server, in milliseconds. 0 means no timeout.")
+        int socketTimeout() default DEFAULT_SOCKET_TIMEOUT;
+
+        @AttributeDefinition(name = "Keep alive",
+            description = "How long to keep an idle connection open for reuse, in milliseconds, unless the server asks"
+                + " for a shorter time")
+        int keepAlive() default DEFAULT_KEEP_ALIVE;
+
+        @AttributeDefinition(name = "Asynchronous threads",
+            description = "How many threads send the requests submitted in the background")
+        int asyncThreads() default DEFAULT_ASYNC_THREADS;
+    }
+
+    @Activate
+    public PooledHttpClientService(final Config config)
+    {
+        final int connectTimeout = config.connectTimeout();
+        final int keepAlive = config.keepAlive();
+        final int asyncThreads = config.asyncThreads();
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.maxConnections());
+        connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerServer());
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        this.client = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(config.socketTimeout())
+                .build())
+            .setKeepAliveStrategy((response, context) -> {
+                final long requested = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                    context);
+                return requested > 0 ? Math.min(requested, keepAlive) : keepAlive;
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+            .build();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ASYNC_QUEUE_CAPACITY),
+            task -> {
+                final Thread thread = new Thread(task, "HttpClientService-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            (task, pool) -> {
+                if (pool.isShutdown()) {
+                    throw new RejectedExecutionException("The HTTP client was stopped");
+                }
+                // Too many pending requests, slow down the caller by letting it send this one itself
+                task.run();
+            });
+    }
+
+    @Deactivate
+    public void deactivate()
+    {
+        this.executor.shutdown();
+        try {
+            this.client.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the HTTP client: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public HttpResponse post(final String url, final String data, final String contentType,
+        final String payloadEncoding) throws IOException
+    {
+        return execute(url, new StringEntity(data, payloadEncoding), contentType);
+    }
+
+    @Override
+    public HttpResponse post(final String url, final InputStream body, final String contentType) throws IOException
+    {
+        return execute(url, new InputStreamEntity(body), contentType);
+    }
+
+    @Override
+    public HttpResponse post(final String url, final BodyWriter body, final String contentType) throws IOException
+    {
+        return execute(url, new WriterEntity(body), contentType);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> postAsync(final String url, final BodyWriter body,
+        final String contentType)
+    {
+        final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    result.complete(post(url, body, contentType));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private HttpResponse execute(final String url, final HttpEntity entity, final String contentType)
+        throws IOException
+    {
+        final HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(entity);
+        httpPost.setHeader("Content-type", contentType);
+        try (CloseableHttpResponse response = this.client.execute(httpPost)) {
+            // Reading the whole response releases the connection back into the pool
+            final HttpEntity responseEntity = response.getEntity();
+            final String payload =
+                responseEntity == null ? "" : EntityUtils.toString(responseEntity, StandardCharsets.UTF_8);
+            final StatusLine statusLine = response.getStatusLine();
+            return new HttpResponse(statusLine == null ? -1 : statusLine.getStatusCode(), payload);
+        }
+    }
+
+    /**
+     * A request body written by a {@link BodyWriter}. The length is not known in advance, so it is sent chunked.
+     */
+    private static final class WriterEntity extends AbstractHttpEntity
+    {
+        private final BodyWriter writer;
+
+        WriterEntity(final BodyWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return false;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent()
+        {
+            throw new UnsupportedOperationException("The request body can only be written");
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException
+        {
+            // The connection owns the stream, the writer may close it as if it was its own
+            this.writer.writeTo(new FilterOutputStream(out)
+            {
+                @Override
+                public void write(final byte[] bytes, final int offset, final int length) throws IOException
+                {
+                    this.out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    flush();
+                }
+            });
+        }
+
+        @Override
+        public boolean isStreaming()
+        {
+            return false;
+        }
+    }
+}
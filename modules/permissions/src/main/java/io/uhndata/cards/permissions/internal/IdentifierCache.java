@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.permissions.internal;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the parts of the repository structure that the restriction patterns need: the identifiers of the
+ * questionnaires, sections, questions and subjects, and the parent of each subject. Restrictions are evaluated for
+ * every node and property read, so they must not look up nodes in the session each time.
+ * <p>
+ * Entries are discarded when the corresponding node, or one of its ancestors, changes or is removed. The patterns
+ * holding resolved identifiers {@link #watch(Iterable) register} the paths they resolved, and when one of these nodes,
+ * or one of its ancestors, is added or removed, the {@link #getGeneration() generation} is incremented, so that the
+ * patterns know when to resolve them again. Other changes, such as new subjects or edited questions, leave the
+ * generation unchanged.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { IdentifierCache.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.PATHS + "=/Subjects",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class IdentifierCache implements ResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdentifierCache.class);
+
+    /** Once this many entries are cached, the cache is emptied and starts over. */
+    private static final int MAX_ENTRIES = 100_000;
+
+    /** Stored as the parent of top level subjects. */
+    private static final String NO_PARENT = "";
+
+    /** Node identifiers, keyed by path; sorted, so that the descendants of a removed node can be found quickly. */
+    private final ConcurrentNavigableMap<String, String> identifiers = new ConcurrentSkipListMap<>();
+
+    /** The identifier of the parent of each subject, keyed by the identifier of the subject. */
+    private final Map<String, String> parents = new ConcurrentHashMap<>();
+
+    /** Approximately how many entries are cached, since counting the sorted map's entries is slow. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The paths of the nodes whose identifiers are held by patterns; sorted, so that descendants can be found. */
+    private final NavigableSet<String> watched = new ConcurrentSkipListSet<>();
+
+    /** Incremented when a watched node, or one of its ancestors, is added or removed. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Incremented on every change, so that lookups running meanwhile don't store what may already be stale. */
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * A number that changes every time one of the {@link #watch(Iterable) watched} nodes, or one of its ancestors, is
+     * added or removed, which includes nodes being moved or re-created.
+     *
+     * @return the current generation
+     */
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    /**
+     * Start watching some paths, so that the {@link #getGeneration() generation} changes whenever the identifiers of
+     * these nodes may change.
+     *
+     * @param paths the paths of questionnaires, sections, questions or subjects, which don't have to exist yet
+     */
+    public void watch(final Iterable<String> paths)
+    {
+        paths.forEach(this.watched::add);
+    }
+
+    /**
+     * Get the identifier of a node.
+     *
+     * @param path the path of a questionnaire, section, question or subject
+     * @param session the session used to look up the node if it is not cached yet, may be {@code null}
+     * @return the node's identifier, or {@code null} if the node doesn't exist or cannot be accessed
+     */
+    public String getIdentifier(final String path, final Session session)
+    {
+        String result = this.identifiers.get(path);
+        if (result == null && session != null) {
+            final long currentChanges = this.changes.get();
+            try {
+                result = session.getNode(path).getIdentifier();
+                store(currentChanges, path, result, null);
+            } catch (PathNotFoundException e) {
+                // Not created yet, or not accessible, will be looked up again next time
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to look up {}: {}", path, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the identifiers of several nodes.
+     *
+     * @param paths the paths of questionnaires, sections, questions or subjects
+     * @param session the session used to look up the nodes not cached yet, may be {@code null}
+     * @return a new set with the identifiers of the nodes that exist and can be accessed, may be empty
+     */
+    public Set<String> getIdentifiers(final Iterable<String> paths, final Session session)
+    {
+        final Set<String> result = new HashSet<>();
+        for (String path : paths) {
+            final String identifier = getIdentifier(path, session);
+            if (identifier != null) {
+                result.add(identifier);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the parent of a subject.
+     *
+     * @param identifier the identifier of a subject
+     * @param session the session used to look up the subject if it is not cached yet, may be {@code null}
+     * @return the identifier of the parent subject, an empty string if this is a top level subject, or {@code null} if
+     *         the subject doesn't exist or cannot be accessed
+     */
+    public String getParentSubject(final String identifier, final Session session)
+    {
+        String result = this.parents.get(identifier);
+        if (result == null && session != null) {
+            final long currentChanges = this.changes.get();
+            try {
+                final Node subject = session.getNodeByIdentifier(identifier);
+                result = subject.hasProperty("parents") ? subject.getProperty("parents").getString() : NO_PARENT;
+                store(currentChanges, subject.getPath(), identifier, result);
+            } catch (ItemNotFoundException e) {
+                LOGGER.debug("Subject UUID {} is inaccessible", identifier, e);
+            } catch (RepositoryException e) {
+                LOGGER.error("Failed to find subject UUID {}", identifier, e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.changes.incrementAndGet();
+        changes.stream().filter(change -> change.getType() != ResourceChange.ChangeType.ADDED)
+            .map(ResourceChange::getPath).distinct()
+            .forEach(path -> {
+                // Remove the node itself and all its descendants; '0' is the character after '/'
+                forget(path, this.identifiers.remove(path));
+                this.identifiers.subMap(path + "/", path + "0")
+                    .forEach((descendantPath, descendant) -> forget(descendantPath, descendant));
+            });
+        // Only once the stale entries are gone, so that patterns resolving their targets again don't find them
+        if (changes.stream().anyMatch(change -> change.getType() != ResourceChange.ChangeType.CHANGED
+            && isWatched(change.getPath()))) {
+            this.generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Check if a node, or one of its descendants, is watched.
+     *
+     * @param path the path of a node that was added or removed
+     * @return {@code true} if the identifier of a watched node may have changed
+     */
+    private boolean isWatched(final String path)
+    {
+        return this.watched.contains(path) || !this.watched.subSet(path + "/", path + "0").isEmpty();
+    }
+
+    private void store(final long expectedChanges, final String path, final String identifier,
+        final String parent)
+    {
+        if (this.changes.get() != expectedChanges) {
+            // Something changed while looking up the node, what was found may already be stale
+            return;
+        }
+        if (this.size.incrementAndGet() > MAX_ENTRIES) {
+            this.size.set(0);
+            this.identifiers.clear();
+            this.parents.clear();
+        }
+        this.identifiers.put(path, identifier);
+        if (parent != null) {
+            this.parents.put(identifier, parent);
+        }
+    }
+
+    private void forget(final String path, final String identifier)
+    {
+        if (identifier != null) {
+            this.identifiers.remove(path);
+            this.parents.remove(identifier);
+            this.size.decrementAndGet();
+        }
+    }
+}
@@ -43,6 +43,9 @@ public class QuestionRestrictionFactory implements RestrictionFactory
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private IdentifierCache identifierCache;
+
     @Override
     public RestrictionPattern forValue(final PropertyState value)
     {
@@ -50,7 +53,8 @@ public RestrictionPattern forValue(final PropertyState value)
         if (this.rrp.getThreadResourceResolver() != null) {
             session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
         }
-        return new QuestionRestrictionPattern(value.getValue(Type.STRINGS), session);
+        return new QuestionRestrictionPattern(
+            new TargetIdentifiers(value.getValue(Type.STRINGS), this.identifierCache, session));
     }
 
     @Override
@@ -18,10 +18,6 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-
-import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Tree;
 import org.apache.jackrabbit.oak.api.Type;
@@ -34,20 +30,16 @@
  */
 public class QuestionRestrictionPattern implements RestrictionPattern
 {
-    private final Session session;
-
-    private final Iterable<String> targetQuestions;
+    private final TargetIdentifiers targetQuestions;
 
     /**
      * Constructor which receives the configured restriction.
      *
-     * @param values paths to specific question for which the rule applies
-     * @param session current session, needed for dereferencing the current node's question
+     * @param targets the specific question for which the rule applies
      */
-    public QuestionRestrictionPattern(final Iterable<String> values, final Session session)
+    public QuestionRestrictionPattern(final TargetIdentifiers targets)
     {
-        this.targetQuestions = values;
-        this.session = session;
+        this.targetQuestions = targets;
     }
 
     @Override
@@ -59,19 +51,9 @@ public boolean matches(final Tree tree, final PropertyState property)
             || !tree.getProperty("sling:resourceSuperType").getValue(Type.STRING).equals("cards/Answer")) {
             return false;
         }
-        try {
-            // Check if the question for this answer is one of the ones specified in the restriction
-            final String answerQuestionPath =
-                this.session.getNodeByIdentifier(tree.getProperty("question").getValue(Type.REFERENCE)).getPath();
-            for (final String targetQuestion : this.targetQuestions) {
-                if (StringUtils.equals(targetQuestion, answerQuestionPath)) {
-                    return true;
-                }
-            }
-        } catch (final RepositoryException e) {
-            // Should not happen
-        }
-        return false;
+        // Check if the question for this answer is one of the ones specified in the restriction
+        final PropertyState target = tree.getProperty("question");
+        return target != null && this.targetQuestions.contains(target.getValue(Type.REFERENCE));
     }
 
     @Override
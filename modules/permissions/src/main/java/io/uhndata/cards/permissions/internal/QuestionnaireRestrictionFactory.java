@@ -46,6 +46,9 @@ public class QuestionnaireRestrictionFactory implements RestrictionFactory
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private IdentifierCache identifierCache;
+
     @Override
     public RestrictionPattern forValue(final PropertyState value)
     {
@@ -60,7 +63,8 @@ public RestrictionPattern forValue(final PropertyState value)
         final List<String> processedValues = new ArrayList<>();
         value.getValue(Type.STRINGS).forEach(rawValue -> processedValues.add(rawValue.replace('*', ' ')));
 
-        return new QuestionnaireRestrictionPattern(processedValues, session);
+        return new QuestionnaireRestrictionPattern(
+            new TargetIdentifiers(processedValues, this.identifierCache, session));
     }
 
     @Override
@@ -18,10 +18,6 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-
-import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Tree;
 import org.apache.jackrabbit.oak.api.Type;
@@ -34,20 +30,16 @@
  */
 public class QuestionnaireRestrictionPattern implements RestrictionPattern
 {
-    private final Session session;
-
-    private final Iterable<String> targetQuestionnaires;
+    private final TargetIdentifiers targetQuestionnaires;
 
     /**
      * Constructor which receives the configured restriction.
      *
-     * @param values paths to specific questionnaires for which the rule applies
-     * @param session current session, needed for dereferencing the current node's questionnaire
+     * @param targets the specific questionnaires for which the rule applies
      */
-    public QuestionnaireRestrictionPattern(final Iterable<String> values, final Session session)
+    public QuestionnaireRestrictionPattern(final TargetIdentifiers targets)
     {
-        this.targetQuestionnaires = values;
-        this.session = session;
+        this.targetQuestionnaires = targets;
     }
 
     @Override
@@ -59,19 +51,9 @@ public boolean matches(final Tree tree, final PropertyState property)
             || !tree.getProperty("sling:resourceType").getValue(Type.STRING).equals("cards/Form")) {
             return false;
         }
-        try {
-            // Check if the question for this answer is one of the ones specified in the restriction
-            final String questionnairePath =
-                this.session.getNodeByIdentifier(tree.getProperty("questionnaire").getValue(Type.REFERENCE)).getPath();
-            for (final String targetQuestionnaire : this.targetQuestionnaires) {
-                if (StringUtils.equals(targetQuestionnaire, questionnairePath)) {
-                    return true;
-                }
-            }
-        } catch (final RepositoryException | NullPointerException e) {
-            // Should not happen
-        }
-        return false;
+        // Check if the questionnaire for this form is one of the ones specified in the restriction
+        final PropertyState target = tree.getProperty("questionnaire");
+        return target != null && this.targetQuestionnaires.contains(target.getValue(Type.REFERENCE));
     }
 
     @Override
@@ -43,6 +43,9 @@ public class SectionRestrictionFactory implements RestrictionFactory
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private IdentifierCache identifierCache;
+
     @Override
     public RestrictionPattern forValue(final PropertyState value)
     {
@@ -50,7 +53,8 @@ public RestrictionPattern forValue(final PropertyState value)
         if (this.rrp.getThreadResourceResolver() != null) {
             session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
         }
-        return new SectionRestrictionPattern(value.getValue(Type.STRINGS), session);
+        return new SectionRestrictionPattern(
+            new TargetIdentifiers(value.getValue(Type.STRINGS), this.identifierCache, session));
     }
 
     @Override
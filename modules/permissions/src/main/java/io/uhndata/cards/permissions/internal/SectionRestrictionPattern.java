@@ -18,10 +18,6 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-
-import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Tree;
 import org.apache.jackrabbit.oak.api.Type;
@@ -34,20 +30,16 @@
  */
 public class SectionRestrictionPattern implements RestrictionPattern
 {
-    private final Session session;
-
-    private final Iterable<String> targetSections;
+    private final TargetIdentifiers targetSections;
 
     /**
      * Constructor which receives the configured restriction.
      *
-     * @param values paths to specific sections for which the rule applies
-     * @param session current session, needed for dereferencing the current node's section
+     * @param targets the specific sections for which the rule applies
      */
-    public SectionRestrictionPattern(final Iterable<String> values, final Session session)
+    public SectionRestrictionPattern(final TargetIdentifiers targets)
     {
-        this.targetSections = values;
-        this.session = session;
+        this.targetSections = targets;
     }
 
     @Override
@@ -59,19 +51,9 @@ public boolean matches(final Tree tree, final PropertyState property)
             || !tree.getProperty("sling:resourceType").getValue(Type.STRING).equals("cards/AnswerSection")) {
             return false;
         }
-        try {
-            // Check if the section for this AnswerSection is one of the ones specified in the restriction
-            final String sectionPath =
-                this.session.getNodeByIdentifier(tree.getProperty("section").getValue(Type.REFERENCE)).getPath();
-            for (final String targetSection : this.targetSections) {
-                if (StringUtils.equals(targetSection, sectionPath)) {
-                    return true;
-                }
-            }
-        } catch (final RepositoryException e) {
-            // Should not happen
-        }
-        return false;
+        // Check if the section for this AnswerSection is one of the ones specified in the restriction
+        final PropertyState target = tree.getProperty("section");
+        return target != null && this.targetSections.contains(target.getValue(Type.REFERENCE));
     }
 
     @Override
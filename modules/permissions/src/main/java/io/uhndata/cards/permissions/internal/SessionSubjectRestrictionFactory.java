@@ -46,6 +46,9 @@ public class SessionSubjectRestrictionFactory implements RestrictionFactory
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private IdentifierCache identifierCache;
+
     @Override
     public RestrictionPattern forValue(PropertyState value)
     {
@@ -53,7 +56,7 @@ public RestrictionPattern forValue(PropertyState value)
         if (this.rrp.getThreadResourceResolver() != null) {
             session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
         }
-        return new SessionSubjectRestrictionPattern(session);
+        return new SessionSubjectRestrictionPattern(session, this.identifierCache);
     }
 
     @Override
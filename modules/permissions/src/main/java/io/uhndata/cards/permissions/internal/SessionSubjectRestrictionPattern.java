@@ -18,7 +18,6 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.commons.lang3.StringUtils;
@@ -42,14 +41,19 @@ public class SessionSubjectRestrictionPattern implements RestrictionPattern
     /** The current session, which may contain a subject identifier. */
     private final Session session;
 
+    /** Resolves the session's subject path to the identifier that forms reference it by. */
+    private final IdentifierCache identifierCache;
+
     /**
      * Constructor passing all the needed information.
      *
      * @param session the current session
+     * @param identifierCache the shared identifier cache
      */
-    public SessionSubjectRestrictionPattern(final Session session)
+    public SessionSubjectRestrictionPattern(final Session session, final IdentifierCache identifierCache)
     {
         this.session = session;
+        this.identifierCache = identifierCache;
     }
 
     @Override
@@ -95,12 +99,8 @@ private boolean isFormForSubject(final Tree start, final String sessionSubject)
         // This is a form. Check if the node has a subject
         final PropertyState subjectProperty = form.getProperty("subject");
         // If there is a subject set, this authorization rule only applies if it is the same as the session's subject
-        try {
-            return subjectProperty != null && StringUtils.equals(sessionSubject,
-                this.session.getNodeByIdentifier(subjectProperty.getValue(Type.STRING)).getPath());
-        } catch (RepositoryException e) {
-            return false;
-        }
+        return subjectProperty != null && StringUtils.equals(subjectProperty.getValue(Type.STRING),
+            this.identifierCache.getIdentifier(sessionSubject, this.session));
     }
 
     private boolean isSubject(final Tree start, final String sessionSubject)
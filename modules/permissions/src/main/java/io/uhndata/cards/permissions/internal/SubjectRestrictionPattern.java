@@ -18,9 +18,6 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.ItemNotFoundException;
-import javax.jcr.Node;
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.commons.lang3.StringUtils;
@@ -42,17 +39,21 @@ public class SubjectRestrictionPattern implements RestrictionPattern
 
     private final String targetSubject;
     private final Session session;
+    private final IdentifierCache identifierCache;
 
     /**
      * Constructor which receives the configured restriction.
      *
      * @param value the identifier (UUID) of a specific subject
      * @param session the session used to retrieve subjects by UUID
+     * @param identifierCache remembers the parent of each subject, so that the chain of parents isn't retrieved from
+     *            the session every time
      */
-    public SubjectRestrictionPattern(String value, Session session)
+    public SubjectRestrictionPattern(String value, Session session, IdentifierCache identifierCache)
     {
         this.targetSubject = value;
         this.session = session;
+        this.identifierCache = identifierCache;
     }
 
     @Override
@@ -106,20 +107,12 @@ private boolean matchesReference(String uuid)
             return false;
         }
 
-        String nextUuid = uuid;
-        try {
-            Node subject = this.session.getNodeByIdentifier(nextUuid);
-            while (subject.hasProperty("parents")) {
-                nextUuid = subject.getProperty("parents").getString();
-                if (StringUtils.equals(nextUuid, this.targetSubject)) {
-                    return true;
-                }
-                subject = this.session.getNodeByIdentifier(nextUuid);
+        String nextUuid = this.identifierCache.getParentSubject(uuid, this.session);
+        while (StringUtils.isNotEmpty(nextUuid)) {
+            if (StringUtils.equals(nextUuid, this.targetSubject)) {
+                return true;
             }
-        } catch (ItemNotFoundException e) {
-            LOGGER.debug("Subject UUID {} is inaccessible", nextUuid, e);
-        } catch (RepositoryException e) {
-            LOGGER.error("Failed to find subject UUID {}", nextUuid, e);
+            nextUuid = this.identifierCache.getParentSubject(nextUuid, this.session);
         }
         return false;
     }
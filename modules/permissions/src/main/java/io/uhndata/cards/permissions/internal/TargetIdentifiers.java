@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.permissions.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+/**
+ * The nodes targeted by a restriction, configured as paths, resolved to the identifiers that the restricted nodes
+ * reference them by. Identifiers are resolved when the restriction is created, and again only after one of the target
+ * nodes, or one of their ancestors, is added or removed, so checking a node against the restriction is just a set
+ * lookup.
+ *
+ * @version $Id$
+ */
+public final class TargetIdentifiers
+{
+    private final List<String> paths;
+
+    private final IdentifierCache cache;
+
+    private final Session session;
+
+    private volatile Resolved resolved;
+
+    /**
+     * @param paths the configured target paths
+     * @param cache the shared identifier cache
+     * @param session the session used for looking up targets that are not cached yet, may be {@code null}
+     */
+    public TargetIdentifiers(final Iterable<String> paths, final IdentifierCache cache, final Session session)
+    {
+        final List<String> pathList = new ArrayList<>();
+        paths.forEach(pathList::add);
+        this.paths = Collections.unmodifiableList(pathList);
+        this.cache = cache;
+        this.session = session;
+        cache.watch(this.paths);
+        this.resolved = resolve();
+    }
+
+    /**
+     * Check if a node is one of the targets.
+     *
+     * @param identifier the identifier of a node, may be {@code null}
+     * @return {@code true} if the node is one of the configured targets
+     */
+    public boolean contains(final String identifier)
+    {
+        Resolved current = this.resolved;
+        if (current.generation != this.cache.getGeneration()) {
+            current = resolve();
+            this.resolved = current;
+        }
+        return identifier != null && current.identifiers.contains(identifier);
+    }
+
+    private Resolved resolve()
+    {
+        final long generation = this.cache.getGeneration();
+        return new Resolved(generation, this.cache.getIdentifiers(this.paths, this.session));
+    }
+
+    /** The identifiers resolved for a generation of the cache. */
+    private static final class Resolved
+    {
+        private final long generation;
+
+        private final Set<String> identifiers;
+
+        Resolved(final long generation, final Set<String> identifiers)
+        {
+            this.generation = generation;
+            this.identifiers = identifiers;
+        }
+    }
+}
@@ -36,6 +36,9 @@
     /** Default value for the file name format. */
     String FILE_NAME_FORMAT = "{subject}_{period}";
 
+    /** Default size of the parts of large files, in megabytes. */
+    int UPLOAD_PART_SIZE = 8;
+
     @AttributeDefinition(name = "Name", description = "Configuration name")
     String name();
 
@@ -83,6 +86,17 @@
             + " and only the 'questionnaire' export data type supports anything other than JSON at the moment.")
     String exportFormat() default "json";
 
+    @AttributeDefinition(name = "Export threads",
+        description = "How many subjects to export at the same time. When this is more than 0, each subject is"
+            + " serialized only once and streamed directly to S3, without building the whole file in memory first."
+            + " 0 exports the subjects one at a time, as complete files.")
+    int exportThreads() default 0;
+
+    @AttributeDefinition(name = "Upload part size",
+        description = "When exporting with several threads, files larger than this many megabytes are uploaded in"
+            + " several parts. S3 requires at least 5.")
+    int uploadPartSize() default UPLOAD_PART_SIZE;
+
     @AttributeDefinition(name = "S3 Endpoint URL",
         description = "An URL like https://s3.server:9000 without the trailing slash.")
     String endpoint() default "%ENV%S3_ENDPOINT_URL";
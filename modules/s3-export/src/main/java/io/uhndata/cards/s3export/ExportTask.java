@@ -19,25 +19,40 @@
 
 package io.uhndata.cards.s3export;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 import javax.json.JsonValue.ValueType;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.LoginException;
@@ -57,7 +72,10 @@
 import io.uhndata.cards.metrics.Metrics;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVWriter;
+import io.uhndata.cards.serialize.ResourceJsonWriter;
 
+@SuppressWarnings({ "checkstyle:ClassDataAbstractionCoupling", "checkstyle:ClassFanOutComplexity" })
 public class ExportTask implements Runnable
 {
     /** Default log. */
@@ -76,6 +94,18 @@ public class ExportTask implements Runnable
 
     private static final Pattern FORMATTED_END = Pattern.compile("\\{end\\((.*?)\\)\\}");
 
+    private static final String SUBSERVICE_NAME = "S3Export";
+
+    private static final String EXPORTED_FORMS_METRIC = "S3ExportedForms";
+
+    private static final String EXPORTED_SUBJECTS_METRIC = "S3ExportedSubjects";
+
+    private static final String EXPORTED_BYTES_METRIC = "S3ExportedBytes";
+
+    private static final String EXPORT_TIME_METRIC = "S3ExportTime";
+
+    private static final int MEGABYTE = 1024 * 1024;
+
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
@@ -129,52 +159,161 @@ public void run()
         }
     }
 
-    public void doManualExport(LocalDate lower, LocalDate upper) throws LoginException
+    public void doManualExport(LocalDate lower, LocalDate upper) throws LoginException, IOException
     {
         LOGGER.info("Executing Manual S3 Export {}", this.config.name());
         doExport(lower != null ? lower.atStartOfDay(ZoneId.systemDefault()) : null,
             upper != null ? upper.atStartOfDay(ZoneId.systemDefault()) : null);
     }
 
-    public void doScheduledExport() throws LoginException
+    public void doScheduledExport() throws LoginException, IOException
     {
         LOGGER.info("Executing Scheduled S3 Export {}", this.config.name());
         doExport(getPastDayStartString(this.config.frequencyInDays()), getPastDayStartString(0));
     }
 
-    public void doDailyExport() throws LoginException
+    public void doDailyExport() throws LoginException, IOException
     {
         LOGGER.info("Executing Daily S3 Export {}", this.config.name());
         doExport(getPastDayStartString(0), null);
     }
 
-    private void doExport(final ZonedDateTime startDate, final ZonedDateTime endDate) throws LoginException
+    private void doExport(final ZonedDateTime startDate, final ZonedDateTime endDate)
+        throws LoginException, IOException
     {
         final String startDateString = startDate == null ? null : startDate.format(JCR_DATE_FORMAT);
         final String endDateString = endDate == null ? null : endDate.format(JCR_DATE_FORMAT);
+        final long startTime = System.nanoTime();
+        final AtomicLong exportedBytes = new AtomicLong();
+        final AtomicInteger exportedSubjects = new AtomicInteger();
+        // The client is thread safe, and keeps its connections open between uploads
+        final AmazonS3 s3 = createClient();
         boolean mustPopResolver = false;
-        try (ResourceResolver resolver =
-            this.resolverFactory.getServiceResourceResolver(Map.of(ResourceResolverFactory.SUBSERVICE, "S3Export"))) {
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME))) {
             this.rrp.push(resolver);
             mustPopResolver = true;
 
             Set<SubjectIdentifier> changedSubjects = this.getChangedSubjects(startDateString, endDateString, resolver);
 
-            for (SubjectIdentifier identifier : changedSubjects) {
-                SubjectContents subjectContents =
-                    getSubjectContents(identifier.getPath(), startDateString, endDateString, resolver);
-                if (subjectContents != null) {
-                    String filename =
-                        getTargetFileName(cleanString(identifier.getSubjectId()), startDate, endDate);
-                    this.output(subjectContents, filename);
+            if (this.config.exportThreads() > 0) {
+                streamSubjects(changedSubjects, s3, startDate, endDate, exportedBytes, exportedSubjects);
+            } else {
+                for (SubjectIdentifier identifier : changedSubjects) {
+                    SubjectContents subjectContents =
+                        getSubjectContents(identifier.getPath(), startDateString, endDateString, resolver);
+                    if (subjectContents != null) {
+                        String filename =
+                            getTargetFileName(cleanString(identifier.getSubjectId()), startDate, endDate);
+                        exportedBytes.addAndGet(this.output(s3, subjectContents, filename));
+                        exportedSubjects.incrementAndGet();
+                    }
                 }
             }
-        } catch (Exception e) {
-            throw e;
         } finally {
             if (mustPopResolver) {
                 this.rrp.pop();
             }
+            s3.shutdown();
+            reportThroughput(exportedSubjects.get(), exportedBytes.get(), System.nanoTime() - startTime);
+        }
+    }
+
+    /*
+     * Export the subjects on a pool of threads. Each subject is serialized once, straight into its S3 upload, and the
+     * list of exported forms is collected from the same serialization. At most two subjects per thread are waiting
+     * to be exported at any time. If some subjects fail, the others are still exported, and the first failure is
+     * rethrown at the end.
+     */
+    private void streamSubjects(final Set<SubjectIdentifier> subjects, final AmazonS3 s3,
+        final ZonedDateTime startDate, final ZonedDateTime endDate, final AtomicLong exportedBytes,
+        final AtomicInteger exportedSubjects) throws IOException
+    {
+        final int threads = this.config.exportThreads();
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+            task -> new Thread(task, "S3Export-" + this.config.name() + "-" + threadCount.incrementAndGet()));
+        final Semaphore pending = new Semaphore(2 * threads);
+        final List<Future<?>> results = new ArrayList<>(subjects.size());
+        try {
+            for (SubjectIdentifier identifier : subjects) {
+                pending.acquire();
+                results.add(executor.submit(() -> {
+                    try {
+                        exportedBytes.addAndGet(streamSubject(identifier, s3, startDate, endDate));
+                        exportedSubjects.incrementAndGet();
+                        return null;
+                    } finally {
+                        pending.release();
+                    }
+                }));
+            }
+            Throwable failure = null;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Failed to export a subject: {}", e.getCause().getMessage(), e.getCause());
+                    failure = failure == null ? e.getCause() : failure;
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IOException("S3 export failed: " + failure.getMessage(), failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("S3 export interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long streamSubject(final SubjectIdentifier identifier, final AmazonS3 s3, final ZonedDateTime startDate,
+        final ZonedDateTime endDate) throws LoginException, IOException
+    {
+        final String startDateString = startDate == null ? null : startDate.format(JCR_DATE_FORMAT);
+        final String endDateString = endDate == null ? null : endDate.format(JCR_DATE_FORMAT);
+        final String filename = getTargetFileName(cleanString(identifier.getSubjectId()), startDate, endDate);
+        // JCR sessions can't be shared between threads
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME))) {
+            this.rrp.push(resolver);
+            try {
+                final String subjectDataUrl =
+                    getSubjectDataUrl(identifier.getPath(), ".data.deep", startDateString, endDateString);
+                final Resource subjectData = resolver.resolve(subjectDataUrl);
+                final S3UploadStream upload = new S3UploadStream(s3, env(this.config.bucket()), filename,
+                    this.config.uploadPartSize() * MEGABYTE);
+                final List<String> forms;
+                try {
+                    if ("json".equals(this.config.exportFormat())) {
+                        final FormPathCollector generator = new FormPathCollector(
+                            Json.createGenerator(new OutputStreamWriter(upload, StandardCharsets.UTF_8)));
+                        subjectData.adaptTo(ResourceJsonWriter.class).write(generator);
+                        // Closing the generator closes the upload, which stores the file
+                        generator.close();
+                        forms = generator.getFormPaths();
+                    } else {
+                        final Writer writer = new OutputStreamWriter(upload, StandardCharsets.UTF_8);
+                        subjectData.adaptTo(ResourceCSVWriter.class).write(writer);
+                        writer.close();
+                        // The forms can't be recovered from the CSV, list them with a lighter serialization
+                        forms = listForms(resolver.resolve(getSubjectDataUrl(identifier.getPath(),
+                            ".data.identify.-properties.-dereference", startDateString, endDateString))
+                            .adaptTo(JsonObject.class));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Don't leave a truncated file behind
+                    upload.abort();
+                    throw e;
+                }
+                logExported(forms, subjectDataUrl, filename);
+                return upload.getBytesWritten();
+            } finally {
+                this.rrp.pop();
+            }
         }
     }
 
@@ -288,15 +427,7 @@ public String getData()
 
         public List<String> getSummary()
         {
-            return this.summary.values().stream()
-                .filter(v -> v.getValueType() == ValueType.ARRAY)
-                .map(JsonValue::asJsonArray)
-                .flatMap(JsonArray::stream)
-                .filter(v -> v.getValueType() == ValueType.OBJECT)
-                .map(JsonValue::asJsonObject)
-                .filter(v -> v.containsKey("@path"))
-                .map(v -> v.getString("@path"))
-                .collect(Collectors.toList());
+            return listForms(this.summary);
         }
 
         public String getUrl()
@@ -305,6 +436,19 @@ public String getUrl()
         }
     }
 
+    private static List<String> listForms(final JsonObject summary)
+    {
+        return summary.values().stream()
+            .filter(v -> v.getValueType() == ValueType.ARRAY)
+            .map(JsonValue::asJsonArray)
+            .flatMap(JsonArray::stream)
+            .filter(v -> v.getValueType() == ValueType.OBJECT)
+            .map(JsonValue::asJsonObject)
+            .filter(v -> v.containsKey("@path"))
+            .map(v -> v.getString("@path"))
+            .collect(Collectors.toList());
+    }
+
     private Set<SubjectIdentifier> getChangedSubjects(String requestDateStringLower,
         String requestDateStringUpper, final ResourceResolver resolver) throws LoginException
     {
@@ -332,20 +476,10 @@ private Set<SubjectIdentifier> getChangedSubjects(String requestDateStringLower,
     private SubjectContents getSubjectContents(String path, String requestDateStringLower,
         String requestDateStringUpper, final ResourceResolver resolver) throws LoginException
     {
-        // FIXME This doesn't take into account the questionnairesToBeExported setting
-        final String subjectDataUrl = String.format("%s%s.data.deep"
-            + ".dataFilter:modifiedAfter=%s" + (requestDateStringUpper != null ? ".dataFilter:modifiedBefore=%s" : "")
-            // FIXME This is hardcoded for now, revisit once CARDS-2430 is done
-            + ".dataFilter:statusNot=INCOMPLETE",
-            path, StringUtils.defaultString(this.config.selectors()), escapeForDataUrl(requestDateStringLower),
-            requestDateStringUpper != null ? escapeForDataUrl(requestDateStringUpper) : "");
-
-        final String identifiedSubjectDataUrl = String.format("%s%s.data.identify.-properties.-dereference"
-            + ".dataFilter:modifiedAfter=%s" + (requestDateStringUpper != null ? ".dataFilter:modifiedBefore=%s" : "")
-            // FIXME This is hardcoded for now, revisit once CARDS-2430 is done
-            + ".dataFilter:statusNot=INCOMPLETE",
-            path, StringUtils.defaultString(this.config.selectors()), escapeForDataUrl(requestDateStringLower),
-            requestDateStringUpper != null ? escapeForDataUrl(requestDateStringUpper) : "");
+        final String subjectDataUrl =
+            getSubjectDataUrl(path, ".data.deep", requestDateStringLower, requestDateStringUpper);
+        final String identifiedSubjectDataUrl = getSubjectDataUrl(path, ".data.identify.-properties.-dereference",
+            requestDateStringLower, requestDateStringUpper);
         final Resource subjectData = resolver.resolve(subjectDataUrl);
         final Resource identifiedSubjectData = resolver.resolve(identifiedSubjectDataUrl);
         final Class<?> c = "json".equals(this.config.exportFormat()) ? JsonObject.class : CSVString.class;
@@ -353,32 +487,62 @@ private SubjectContents getSubjectContents(String path, String requestDateString
             identifiedSubjectData.adaptTo(JsonObject.class), subjectDataUrl);
     }
 
-    private void output(SubjectContents input, String filename)
+    private String getSubjectDataUrl(final String path, final String serializationSelectors,
+        final String requestDateStringLower, final String requestDateStringUpper)
+    {
+        // FIXME This doesn't take into account the questionnairesToBeExported setting
+        return String.format("%s%s%s"
+            + ".dataFilter:modifiedAfter=%s" + (requestDateStringUpper != null ? ".dataFilter:modifiedBefore=%s" : "")
+            // FIXME This is hardcoded for now, revisit once CARDS-2430 is done
+            + ".dataFilter:statusNot=INCOMPLETE",
+            path, StringUtils.defaultString(this.config.selectors()), serializationSelectors,
+            escapeForDataUrl(requestDateStringLower),
+            requestDateStringUpper != null ? escapeForDataUrl(requestDateStringUpper) : "");
+    }
+
+    private AmazonS3 createClient()
     {
         final String s3EndpointUrl = env(this.config.endpoint());
         final String s3EndpointRegion = env(this.config.region());
-        final String s3BucketName = env(this.config.bucket());
         final String awsKey = env(this.config.accessKey());
         final String awsSecret = env(this.config.secretKey());
         final EndpointConfiguration endpointConfig =
             new EndpointConfiguration(s3EndpointUrl, s3EndpointRegion);
         final AWSCredentials credentials = new BasicAWSCredentials(awsKey, awsSecret);
-        final AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+        return AmazonS3ClientBuilder.standard()
             .withEndpointConfiguration(endpointConfig)
             .withPathStyleAccessEnabled(true)
             .withCredentials(new AWSStaticCredentialsProvider(credentials))
             .build();
-        try {
-            s3.putObject(s3BucketName, filename, input.getData());
-            input.getSummary().forEach(form -> {
-                LOGGER.info("Exported {}", form);
-                Metrics.increment(this.resolverFactory, "S3ExportedForms", 1);
-            });
-            LOGGER.info("Exported {} to {}", input.getUrl(), filename);
-            Metrics.increment(this.resolverFactory, "S3ExportedSubjects", 1);
-        } catch (Exception e) {
-            throw e;
+    }
+
+    private long output(AmazonS3 s3, SubjectContents input, String filename)
+    {
+        s3.putObject(env(this.config.bucket()), filename, input.getData());
+        logExported(input.getSummary(), input.getUrl(), filename);
+        return input.getData().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private void logExported(final List<String> forms, final String url, final String filename)
+    {
+        forms.forEach(form -> LOGGER.info("Exported {}", form));
+        if (!forms.isEmpty()) {
+            Metrics.increment(this.resolverFactory, EXPORTED_FORMS_METRIC, forms.size());
         }
+        LOGGER.info("Exported {} to {}", url, filename);
+        Metrics.increment(this.resolverFactory, EXPORTED_SUBJECTS_METRIC, 1);
+    }
+
+    private void reportThroughput(final int subjects, final long bytes, final long nanos)
+    {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        final long elapsed = Math.max(1, millis);
+        LOGGER.info("S3 export {} sent {} subjects, {} bytes in {} ms: {} subjects/s, {} KB/s", this.config.name(),
+            subjects, bytes, millis, subjects * 1000L / elapsed, bytes * 1000L / 1024 / elapsed);
+        Metrics.createStatistic(this.resolverFactory, EXPORTED_BYTES_METRIC, "Number Of Bytes Exported to S3 bucket");
+        Metrics.createStatistic(this.resolverFactory, EXPORT_TIME_METRIC, "Milliseconds Spent Exporting to S3 bucket");
+        Metrics.increment(this.resolverFactory, EXPORTED_BYTES_METRIC, bytes);
+        Metrics.increment(this.resolverFactory, EXPORT_TIME_METRIC, millis);
     }
 
     private String env(final String value)
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.s3export;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Passes a subject's JSON serialization through to another generator, while noting the paths of the exported forms,
+ * so that the exported forms can be listed without serializing the subject a second time. The forms are the objects
+ * with a {@code @path} found in the arrays directly under the subject, where the data processor places them.
+ * <p>
+ * When a resource is streamed, the children of the root node are always written as whole values, so only those need
+ * to be inspected.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class FormPathCollector implements JsonGenerator
+{
+    private static final String PATH = "@path";
+
+    private final JsonGenerator delegate;
+
+    private final List<String> formPaths = new ArrayList<>();
+
+    private int depth;
+
+    FormPathCollector(final JsonGenerator delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the paths of the forms written so far
+     */
+    List<String> getFormPaths()
+    {
+        return this.formPaths;
+    }
+
+    @Override
+    public JsonGenerator writeStartObject()
+    {
+        ++this.depth;
+        this.delegate.writeStartObject();
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeStartObject(final String name)
+    {
+        ++this.depth;
+        this.delegate.writeStartObject(name);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeKey(final String name)
+    {
+        this.delegate.writeKey(name);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeStartArray()
+    {
+        ++this.depth;
+        this.delegate.writeStartArray();
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeStartArray(final String name)
+    {
+        ++this.depth;
+        this.delegate.writeStartArray(name);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final JsonValue value)
+    {
+        if (this.depth == 1 && value.getValueType() == ValueType.ARRAY) {
+            value.asJsonArray().stream()
+                .filter(v -> v.getValueType() == ValueType.OBJECT)
+                .map(JsonValue::asJsonObject)
+                .filter(v -> v.containsKey(PATH))
+                .forEach(v -> this.formPaths.add(v.getString(PATH)));
+        }
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final String value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final BigInteger value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final BigDecimal value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final int value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final long value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final double value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String name, final boolean value)
+    {
+        this.delegate.write(name, value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeNull(final String name)
+    {
+        this.delegate.writeNull(name);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeEnd()
+    {
+        --this.depth;
+        this.delegate.writeEnd();
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final JsonValue value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final String value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final BigDecimal value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final BigInteger value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final int value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final long value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final double value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator write(final boolean value)
+    {
+        this.delegate.write(value);
+        return this;
+    }
+
+    @Override
+    public JsonGenerator writeNull()
+    {
+        this.delegate.writeNull();
+        return this;
+    }
+
+    @Override
+    public void close()
+    {
+        this.delegate.close();
+    }
+
+    @Override
+    public void flush()
+    {
+        this.delegate.flush();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.s3export;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads everything written to it as an S3 object, without knowing the size of the object in advance. The data is
+ * sent in parts of a fixed size as soon as each part is filled, using a multipart upload, so only one part is held in
+ * memory at a time. Objects smaller than a part are sent with a single simple upload when the stream is closed.
+ * <p>
+ * If writing the object fails half way, {@link #abort()} must be called instead of {@link #close()}, so that the
+ * parts already uploaded are discarded instead of being stored as a truncated object.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class S3UploadStream extends OutputStream
+{
+    /** S3 refuses parts smaller than 5 MB, except for the last one. */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final String CONTENT_TYPE = "text/plain";
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final byte[] buffer;
+
+    private int buffered;
+
+    private long bytesWritten;
+
+    private String uploadId;
+
+    private final List<PartETag> parts = new ArrayList<>();
+
+    private boolean closed;
+
+    /**
+     * @param s3 the client to upload with
+     * @param bucket the bucket to store the object in
+     * @param key the name of the object
+     * @param partSize how many bytes to send in each part, at least {@link #MIN_PART_SIZE}
+     */
+    S3UploadStream(final AmazonS3 s3, final String bucket, final String key, final int partSize)
+    {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.buffer = new byte[Math.max(partSize, MIN_PART_SIZE)];
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        ensureOpen();
+        if (this.buffered == this.buffer.length) {
+            uploadPart();
+        }
+        this.buffer[this.buffered++] = (byte) b;
+        ++this.bytesWritten;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException
+    {
+        ensureOpen();
+        int written = 0;
+        while (written < length) {
+            if (this.buffered == this.buffer.length) {
+                uploadPart();
+            }
+            final int chunk = Math.min(length - written, this.buffer.length - this.buffered);
+            System.arraycopy(bytes, offset + written, this.buffer, this.buffered, chunk);
+            this.buffered += chunk;
+            written += chunk;
+        }
+        this.bytesWritten += length;
+    }
+
+    /**
+     * Finish the upload, storing the object.
+     *
+     * @throws IOException if the upload fails, in which case the object is not stored
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.uploadId == null) {
+                final ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType(CONTENT_TYPE);
+                metadata.setContentLength(this.buffered);
+                this.s3.putObject(this.bucket, this.key, new ByteArrayInputStream(this.buffer, 0, this.buffered),
+                    metadata);
+            } else {
+                if (this.buffered > 0) {
+                    sendPart();
+                }
+                this.s3.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(this.bucket, this.key, this.uploadId, this.parts));
+            }
+        } catch (SdkClientException e) {
+            abort();
+            throw new IOException("Failed to upload " + this.key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Cancel the upload, discarding the parts already sent. Does nothing if the stream was already closed successfully.
+     */
+    void abort()
+    {
+        this.closed = true;
+        if (this.uploadId != null) {
+            try {
+                this.s3.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, this.uploadId));
+            } catch (SdkClientException e) {
+                // The bucket's lifecycle rules will have to clean up the orphaned parts
+            }
+            this.uploadId = null;
+        }
+    }
+
+    /**
+     * @return how many bytes were written to this stream
+     */
+    long getBytesWritten()
+    {
+        return this.bytesWritten;
+    }
+
+    private void uploadPart() throws IOException
+    {
+        try {
+            if (this.uploadId == null) {
+                final ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType(CONTENT_TYPE);
+                this.uploadId = this.s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(this.bucket, this.key, metadata)).getUploadId();
+            }
+            sendPart();
+        } catch (SdkClientException e) {
+            abort();
+            throw new IOException("Failed to upload " + this.key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void sendPart()
+    {
+        final UploadPartRequest request = new UploadPartRequest()
+            .withBucketName(this.bucket)
+            .withKey(this.key)
+            .withUploadId(this.uploadId)
+            .withPartNumber(this.parts.size() + 1)
+            .withInputStream(new ByteArrayInputStream(this.buffer, 0, this.buffered))
+            .withPartSize(this.buffered);
+        this.parts.add(this.s3.uploadPart(request).getPartETag());
+        this.buffered = 0;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (this.closed) {
+            throw new IOException("The upload of " + this.key + " is already finished");
+        }
+    }
+}
@@ -19,9 +19,11 @@
 
 package io.uhndata.cards.scheduledcsvexport;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -43,7 +45,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
-import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVWriter;
 
 public class ExportTask implements Runnable
 {
@@ -101,13 +103,12 @@ public void run()
             for (String questionnaire : this.questionnairesToBeExported) {
                 final File csvFile = new File(
                     this.savePath + File.separatorChar + getTargetFileName(questionnaire, timePeriod));
-                try (FileWriter writer = new FileWriter(csvFile)) {
+                try (Writer writer = new BufferedWriter(new FileWriter(csvFile))) {
                     final String csvPath = String.format(
                         questionnaire + "%s.data.dataFilter:modifiedAfter=%s.dataFilter:modifiedBefore=%s.%s",
                         StringUtils.defaultString(this.customSelectors), escapeForDataUrl(modifiedAfterDate),
                         escapeForDataUrl(modifiedBeforeDate), this.exportFormat);
-                    final CSVString csv = resolver.resolve(csvPath).adaptTo(CSVString.class);
-                    writer.write(csv.toString());
+                    resolver.resolve(csvPath).adaptTo(ResourceCSVWriter.class).write(writer);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -30,6 +30,8 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.httprequests.HttpClientService;
+
 @Component(immediate = true)
 public class ScheduledSlackNotifications
 {
@@ -40,6 +42,9 @@
     @Reference
     private ResourceResolverFactory resolverFactory;
 
+    @Reference
+    private HttpClientService httpClient;
+
     /** The scheduler for rescheduling jobs. */
     @Reference
     private Scheduler scheduler;
@@ -55,7 +60,7 @@ protected void activate(ComponentContext componentContext) throws Exception
         slackNotificationsOptions.name("slackNightlyNotifications");
         slackNotificationsOptions.canRunConcurrently(true);
 
-        final Runnable slackNotificationsJob = new SlackNotificationsTask(this.resolverFactory);
+        final Runnable slackNotificationsJob = new SlackNotificationsTask(this.resolverFactory, this.httpClient);
 
         try {
             this.scheduler.schedule(slackNotificationsJob, slackNotificationsOptions);
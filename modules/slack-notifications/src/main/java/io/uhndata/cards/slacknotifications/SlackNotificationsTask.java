@@ -37,7 +37,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.uhndata.cards.httprequests.HttpRequests;
+import io.uhndata.cards.httprequests.HttpClientService;
 import io.uhndata.cards.metrics.Metrics;
 
 public class SlackNotificationsTask implements Runnable
@@ -52,9 +52,12 @@ public class SlackNotificationsTask implements Runnable
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
-    SlackNotificationsTask(final ResourceResolverFactory resolverFactory)
+    private final HttpClientService httpClient;
+
+    SlackNotificationsTask(final ResourceResolverFactory resolverFactory, final HttpClientService httpClient)
     {
         this.resolverFactory = resolverFactory;
+        this.httpClient = httpClient;
     }
 
     private String buildNotificationLine(String prevValue, Map<String, Long> statMap, String name)
@@ -85,7 +88,7 @@ private void postToSlack(String slackUrl, String msg, String color)
                     )
                 )
                 .build();
-            HttpRequests.getPostResponse(slackUrl, slackApiReq.toString(), "application/json");
+            this.httpClient.post(slackUrl, slackApiReq.toString(), "application/json");
         } catch (IOException e) {
             LOGGER.warn("Failed to send performance update to Slack");
         }
@@ -73,6 +73,9 @@ public class CardsTokenImpl implements CardsToken
     /** Oak root, which can be used to remove tokens when trying to authenticate using an expired token. */
     private final Root root;
 
+    /** Recently validated tokens, may be {@code null} if validations should not be cached. */
+    private final ValidatedTokenCache validatedTokens;
+
     /** The login token string. */
     private final String loginToken;
 
@@ -103,6 +106,7 @@ public CardsTokenImpl(final Node tokenNode, final String token, final String use
     {
         this.tokenNode = tokenNode;
         this.root = null;
+        this.validatedTokens = null;
         this.tokenTree = null;
         this.loginToken = token;
         this.userId = userId;
@@ -135,11 +139,14 @@ public CardsTokenImpl(final Node tokenNode, final String token, final String use
      * @param tokenTree an Oak tree node storing a token
      * @param token the login token
      * @param userId the user that the token authenticates
+     * @param validatedTokens recently validated tokens, may be {@code null}
      */
-    public CardsTokenImpl(final Root root, final Tree tokenTree, final String token, final String userId)
+    public CardsTokenImpl(final Root root, final Tree tokenTree, final String token, final String userId,
+        final ValidatedTokenCache validatedTokens)
     {
         this.tokenNode = null;
         this.root = root;
+        this.validatedTokens = validatedTokens;
         this.tokenTree = tokenTree;
         this.loginToken = token;
         this.userId = userId;
@@ -190,6 +197,9 @@ public boolean resetExpiration(long loginTime)
     @Override
     public boolean remove()
     {
+        if (this.validatedTokens != null) {
+            this.validatedTokens.invalidate(this.loginToken);
+        }
         try {
             if (this.tokenNode != null) {
                 // This will not work, tokens are loaded by the token manager in a service session closed as soon as the
@@ -216,11 +226,20 @@ public boolean matches(TokenCredentials tokenCredentials)
         // The login token contains both the token node UUID, and the secret key, so extract just the key
         final String credentialsToken = StringUtils.substringAfter(tokenCredentials.getToken(), TOKEN_DELIMITER);
 
-        // Check the validity of the login token
-        if (this.validationKey == null
-            || !PasswordUtil.isSame(this.validationKey, computeSecretToken(credentialsToken, this.userId))) {
+        // Check the validity of the login token, unless the same token was recently validated against the same hash
+        if (this.validationKey == null) {
             return false;
         }
+        if (this.validatedTokens == null || !this.validatedTokens.isValidated(tokenCredentials.getToken(),
+            this.validationKey, this.userId)) {
+            if (!PasswordUtil.isSame(this.validationKey, computeSecretToken(credentialsToken, this.userId))) {
+                return false;
+            }
+            if (this.validatedTokens != null) {
+                this.validatedTokens.validated(tokenCredentials.getToken(), this.validationKey, this.userId,
+                    this.expirationTime);
+            }
+        }
 
         // All good, update credential attributes with the data in the token.
         // The attributes will then be added to the session, which makes them usable post-authentication in other code.
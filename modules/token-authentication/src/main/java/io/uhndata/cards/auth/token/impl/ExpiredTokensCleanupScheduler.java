@@ -22,19 +22,42 @@
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.scheduler.ScheduleOptions;
 import org.apache.sling.commons.scheduler.Scheduler;
-import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Component(immediate = true)
+@Designate(ocd = ExpiredTokensCleanupScheduler.Config.class)
 public class ExpiredTokensCleanupScheduler
 {
     /** Default log. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpiredTokensCleanupScheduler.class);
 
+    private static final String JOB_NAME = "ExpiredTokensCleanup";
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final int DEFAULT_BATCH_PAUSE = 1000;
+
+    @ObjectClassDefinition(name = "Expired tokens cleanup",
+        description = "Configuration for the nightly removal of expired login tokens")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Batch size",
+            description = "How many tokens to delete before committing. 0 deletes all the expired tokens at once.")
+        int batchSize() default DEFAULT_BATCH_SIZE;
+
+        @AttributeDefinition(name = "Pause between batches",
+            description = "How long to wait after committing a batch before starting the next one, in milliseconds")
+        int batchPause() default DEFAULT_BATCH_PAUSE;
+    }
+
     /** Provides access to resources. */
     @Reference
     private ResourceResolverFactory resolverFactory;
@@ -44,14 +67,15 @@
     private Scheduler scheduler;
 
     @Activate
-    protected void activate(final ComponentContext componentContext) throws Exception
+    protected void activate(final Config config) throws Exception
     {
         final ScheduleOptions cleanupOptions = this.scheduler.EXPR("0 0 0 * * ? *");
-        cleanupOptions.name("ExpiredTokensCleanup");
+        cleanupOptions.name(JOB_NAME);
         cleanupOptions.onSingleInstanceOnly(true);
         cleanupOptions.canRunConcurrently(false);
 
-        final Runnable cleanupJob = new ExpiredTokensCleanupTask(this.resolverFactory);
+        final Runnable cleanupJob =
+            new ExpiredTokensCleanupTask(this.resolverFactory, config.batchSize(), config.batchPause());
 
         try {
             this.scheduler.schedule(cleanupJob, cleanupOptions);
@@ -60,4 +84,10 @@ protected void activate(final ComponentContext componentContext) throws Exceptio
             LOGGER.error("ExpiredTokensCleanupTask Failed to schedule: {}", e.getMessage(), e);
         }
     }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.scheduler.unschedule(JOB_NAME);
+    }
 }
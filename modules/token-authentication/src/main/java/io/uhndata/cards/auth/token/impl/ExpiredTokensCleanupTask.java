@@ -21,10 +21,14 @@
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 import javax.jcr.query.Query;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
@@ -35,37 +39,152 @@
 
 import io.uhndata.cards.auth.token.CardsToken;
 
+/**
+ * Deletes the expired tokens, along with the token folders left empty. Tokens are deleted in batches, each batch
+ * committed separately, with a pause between batches, so that removing many tokens at once doesn't build a huge
+ * change set or keep the repository busy.
+ *
+ * @version $Id$
+ */
 public class ExpiredTokensCleanupTask implements Runnable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpiredTokensCleanupTask.class);
 
+    /** Deeper folders first, so that a folder is only checked after its emptied subfolders were removed. */
+    private static final Comparator<String> DEEPEST_FIRST =
+        Comparator.comparingInt((String path) -> StringUtils.countMatches(path, '/')).reversed()
+            .thenComparing(Comparator.naturalOrder());
+
     private final ResourceResolverFactory rrf;
 
-    ExpiredTokensCleanupTask(final ResourceResolverFactory rrf)
+    private final int batchSize;
+
+    private final long batchPause;
+
+    /**
+     * @param rrf the resolver factory used for obtaining a service session
+     * @param batchSize how many tokens to delete in each commit, 0 means all of them in a single commit
+     * @param batchPause how long to wait between batches, in milliseconds
+     */
+    ExpiredTokensCleanupTask(final ResourceResolverFactory rrf, final int batchSize, final long batchPause)
     {
         this.rrf = rrf;
+        this.batchSize = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+        this.batchPause = Math.max(batchPause, 0);
     }
 
     @Override
     public void run()
     {
+        final long start = System.currentTimeMillis();
+        long removed = 0;
+        int batches = 0;
         try (ResourceResolver resolver = this.rrf.getServiceResourceResolver(null)) {
-            final Iterator<Resource> resources = resolver.findResources("SELECT * FROM [cards:Token] WHERE ["
+            final String query = "SELECT * FROM [cards:Token] WHERE ["
                 + CardsToken.TOKEN_ATTRIBUTE_EXPIRY + "] < '"
-                + ZonedDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx")) + "'",
-                Query.JCR_SQL2);
-            resources.forEachRemaining(token -> {
-                try {
-                    resolver.delete(token);
-                } catch (final PersistenceException e) {
-                    LOGGER.warn("Failed to delete expired token {}: {}", token.getPath(), e.getMessage());
+                + ZonedDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx")) + "'";
+            boolean moreTokens = true;
+            while (moreTokens) {
+                if (batches > 0 && !pause()) {
+                    break;
                 }
-            });
-            resolver.commit();
+                final BatchResult batch = deleteBatch(resolver, query);
+                ++batches;
+                removed += batch.deleted;
+                // Stop if the last batch wasn't full, or if nothing could be deleted, to avoid retrying forever
+                moreTokens = batch.found == this.batchSize && batch.deleted > 0;
+            }
         } catch (final LoginException e) {
             LOGGER.warn("Invalid setup, service rights not set up for the expired tokens cleanup task");
+        }
+        LOGGER.info("Removed {} expired tokens in {} batches, in {} ms", removed, batches,
+            System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Delete one batch of expired tokens, and the folders they leave empty, and commit.
+     *
+     * @param resolver the service resolver
+     * @param query the query finding the expired tokens
+     * @return how many tokens were found and how many were deleted
+     */
+    private BatchResult deleteBatch(final ResourceResolver resolver, final String query)
+    {
+        final BatchResult result = new BatchResult();
+        final NavigableSet<String> folders = new TreeSet<>(DEEPEST_FIRST);
+        final Iterator<Resource> tokens = resolver.findResources(query, Query.JCR_SQL2);
+        while (tokens.hasNext() && result.found < this.batchSize) {
+            final Resource token = tokens.next();
+            ++result.found;
+            try {
+                final Resource folder = token.getParent();
+                resolver.delete(token);
+                ++result.deleted;
+                if (folder != null) {
+                    folders.add(folder.getPath());
+                }
+            } catch (final PersistenceException e) {
+                LOGGER.warn("Failed to delete expired token {}: {}", token.getPath(), e.getMessage());
+            }
+        }
+        pruneFolders(resolver, folders);
+        try {
+            resolver.commit();
         } catch (final PersistenceException e) {
             LOGGER.warn("Failed to delete expired tokens: {}", e.getMessage());
+            resolver.revert();
+            result.deleted = 0;
         }
+        return result;
+    }
+
+    /**
+     * Delete the token folders left empty, from the trie folders up to the user's folder.
+     *
+     * @param resolver the service resolver
+     * @param folders the folders that contained deleted tokens
+     */
+    private void pruneFolders(final ResourceResolver resolver, final NavigableSet<String> folders)
+    {
+        while (!folders.isEmpty()) {
+            final String path = folders.pollFirst();
+            if (!path.startsWith(CardsToken.TOKENS_NODE_PATH + "/")) {
+                continue;
+            }
+            final Resource folder = resolver.getResource(path);
+            if (folder == null || folder.hasChildren()) {
+                continue;
+            }
+            try {
+                resolver.delete(folder);
+                folders.add(StringUtils.substringBeforeLast(path, "/"));
+            } catch (final PersistenceException e) {
+                LOGGER.warn("Failed to delete empty token folder {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Give other repository users a chance to work between batches.
+     *
+     * @return {@code false} if the thread was interrupted and the cleanup should stop
+     */
+    private boolean pause()
+    {
+        try {
+            Thread.sleep(this.batchPause);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Counts for one batch. */
+    private static final class BatchResult
+    {
+        private int found;
+
+        private int deleted;
     }
 }
@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.auth.token.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.metrics.Metrics;
+
+/**
+ * Remembers the login tokens that were recently validated, so that the salted, iterated hash of the secret key doesn't
+ * have to be computed again for every request of the same user. Since a page loads many resources, each one
+ * authenticated with the same token, this is where most of the authentication time used to go.
+ * <p>
+ * Tokens are not stored as such, only an HMAC of each token, keyed with a random key generated when the service
+ * starts, so a copy of the cache's memory doesn't reveal any usable token. A cached validation is only trusted for
+ * the same stored hash and user, and only until the configured time to live, or the token's own expiration, passes.
+ * Entries are also discarded when the token is removed, or when the user logs out.
+ * </p>
+ * <p>
+ * The number of validations answered from the cache, and of the ones that required checking the secret key, are
+ * reported in the {@code TokenCacheHits} and {@code TokenCacheMisses} metrics.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = ValidatedTokenCache.class)
+@Designate(ocd = ValidatedTokenCache.Config.class)
+public final class ValidatedTokenCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidatedTokenCache.class);
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final int HMAC_KEY_SIZE = 32;
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final int DEFAULT_TIME_TO_LIVE = 300;
+
+    private static final String HITS_METRIC = "TokenCacheHits";
+
+    private static final String MISSES_METRIC = "TokenCacheMisses";
+
+    /** How often to report the accumulated hits and misses, since each update is a repository commit. */
+    private static final long METRICS_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final ResourceResolverFactory resolverFactory;
+
+    private final int maxEntries;
+
+    private final long timeToLive;
+
+    private final SecretKeySpec hmacKey;
+
+    /** Mac instances are not thread safe, and creating one for every request is needlessly slow. */
+    private final ThreadLocal<Mac> macs;
+
+    /** The validated tokens, keyed by their HMAC, in least recently used order. */
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Hits not reported in the metrics yet. */
+    private final AtomicLong pendingHits = new AtomicLong();
+
+    /** Misses not reported in the metrics yet. */
+    private final AtomicLong pendingMisses = new AtomicLong();
+
+    /** When the metrics were last updated, in milliseconds since the epoch. */
+    private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+    @ObjectClassDefinition(name = "Token validation cache",
+        description = "Configuration for the cache of recently validated login tokens")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Maximum entries",
+            description = "How many validated tokens to remember. The least recently used ones are forgotten first."
+                + " 0 disables the cache.")
+        int maxEntries() default DEFAULT_MAX_ENTRIES;
+
+        @AttributeDefinition(name = "Time to live",
+            description = "For how many seconds a validated token is trusted without checking its secret key again")
+        int timeToLive() default DEFAULT_TIME_TO_LIVE;
+    }
+
+    @Activate
+    public ValidatedTokenCache(final Config config, @Reference final ResourceResolverFactory resolverFactory)
+    {
+        this.resolverFactory = resolverFactory;
+        this.maxEntries = Math.max(config.maxEntries(), 0);
+        this.timeToLive = TimeUnit.SECONDS.toMillis(Math.max(config.timeToLive(), 0));
+        final byte[] key = new byte[HMAC_KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        this.hmacKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::createMac);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest)
+            {
+                return size() > ValidatedTokenCache.this.maxEntries;
+            }
+        };
+        Metrics.createStatistic(resolverFactory, HITS_METRIC, "Number of login tokens validated from the cache");
+        Metrics.createStatistic(resolverFactory, MISSES_METRIC,
+            "Number of login tokens validated by checking their secret key");
+    }
+
+    /**
+     * Check if a login token was recently validated.
+     *
+     * @param loginToken the login token presented by the user
+     * @param validationKey the hash of the secret key currently stored in the token node
+     * @param userId the user that the token node authenticates
+     * @return {@code true} if the same token was successfully validated against the same stored hash, recently enough
+     */
+    public boolean isValidated(final String loginToken, final String validationKey, final String userId)
+    {
+        if (this.maxEntries == 0) {
+            return false;
+        }
+        final String digest = digest(loginToken);
+        if (digest == null) {
+            return false;
+        }
+        final Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(digest);
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                this.entries.remove(digest);
+            }
+        }
+        if (entry != null && entry.expiration >= System.currentTimeMillis()
+            && Objects.equals(entry.validationKey, validationKey) && Objects.equals(entry.userId, userId)) {
+            this.hits.incrementAndGet();
+            this.pendingHits.incrementAndGet();
+            report();
+            return true;
+        }
+        this.misses.incrementAndGet();
+        this.pendingMisses.incrementAndGet();
+        report();
+        return false;
+    }
+
+    /**
+     * Remember that a login token was successfully validated.
+     *
+     * @param loginToken the login token presented by the user
+     * @param validationKey the hash of the secret key stored in the token node
+     * @param userId the user that the token authenticates
+     * @param tokenExpiration when the token itself expires, may be {@code null}
+     */
+    public void validated(final String loginToken, final String validationKey, final String userId,
+        final Calendar tokenExpiration)
+    {
+        if (this.maxEntries == 0 || this.timeToLive == 0) {
+            return;
+        }
+        final String digest = digest(loginToken);
+        if (digest == null) {
+            return;
+        }
+        long expiration = System.currentTimeMillis() + this.timeToLive;
+        if (tokenExpiration != null) {
+            expiration = Math.min(expiration, tokenExpiration.getTimeInMillis());
+        }
+        synchronized (this.entries) {
+            this.entries.put(digest, new Entry(validationKey, userId, expiration));
+        }
+    }
+
+    /**
+     * Forget a login token, so that it will be fully validated again the next time it is presented.
+     *
+     * @param loginToken the login token to forget, may be {@code null}
+     */
+    public void invalidate(final String loginToken)
+    {
+        final String digest = digest(loginToken);
+        if (digest != null) {
+            synchronized (this.entries) {
+                this.entries.remove(digest);
+            }
+        }
+    }
+
+    /**
+     * The number of validations answered from the cache since the service started.
+     *
+     * @return a number of validations
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * The number of validations that required checking the secret key since the service started.
+     *
+     * @return a number of validations
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * The number of validated tokens currently remembered, including the ones that have expired but were not yet
+     * discarded.
+     *
+     * @return a number of entries
+     */
+    public int getSize()
+    {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    private void report()
+    {
+        final long now = System.currentTimeMillis();
+        final long last = this.lastReport.get();
+        if (now - last >= METRICS_INTERVAL && this.lastReport.compareAndSet(last, now)) {
+            Metrics.increment(this.resolverFactory, HITS_METRIC, this.pendingHits.getAndSet(0));
+            Metrics.increment(this.resolverFactory, MISSES_METRIC, this.pendingMisses.getAndSet(0));
+        }
+    }
+
+    private String digest(final String loginToken)
+    {
+        if (loginToken == null) {
+            return null;
+        }
+        final Mac mac = this.macs.get();
+        if (mac == null) {
+            return null;
+        }
+        return Base64.getEncoder().encodeToString(mac.doFinal(loginToken.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Mac createMac()
+    {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(this.hmacKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            LOGGER.warn("Token validations cannot be cached: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /** A successful validation. */
+    private static final class Entry
+    {
+        private final String validationKey;
+
+        private final String userId;
+
+        private final long expiration;
+
+        Entry(final String validationKey, final String userId, final long expiration)
+        {
+            this.validationKey = validationKey;
+            this.userId = userId;
+            this.expiration = expiration;
+        }
+    }
+}
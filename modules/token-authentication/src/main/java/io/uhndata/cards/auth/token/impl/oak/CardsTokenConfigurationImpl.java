@@ -22,6 +22,9 @@
 import org.apache.jackrabbit.oak.spi.security.authentication.token.TokenConfiguration;
 import org.apache.jackrabbit.oak.spi.security.authentication.token.TokenProvider;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.auth.token.impl.ValidatedTokenCache;
 
 /**
  * Custom TokenConfiguration implementation which returns the CARDS-specific token provider.
@@ -33,6 +36,9 @@
     property = "service.ranking:Integer=0")
 public class CardsTokenConfigurationImpl extends ConfigurationBase implements TokenConfiguration
 {
+    @Reference
+    private ValidatedTokenCache validatedTokens;
+
     @Override
     public String getName()
     {
@@ -42,6 +48,6 @@ public String getName()
     @Override
     public TokenProvider getTokenProvider(Root root)
     {
-        return new CardsTokenProvider(root);
+        return new CardsTokenProvider(root, this.validatedTokens);
     }
 }
@@ -31,6 +31,7 @@
 
 import io.uhndata.cards.auth.token.CardsToken;
 import io.uhndata.cards.auth.token.impl.CardsTokenImpl;
+import io.uhndata.cards.auth.token.impl.ValidatedTokenCache;
 
 /**
  * Custom token provider that uses {@code cards:Token} nodes to store authentication tokens, to be used with the Oak
@@ -46,15 +47,20 @@ public class CardsTokenProvider implements TokenProvider, TokenConstants
     /** Oak API that can retrieve a Tree given its internal identifier. */
     private final IdentifierManager identifierManager;
 
+    /** Recently validated tokens. */
+    private final ValidatedTokenCache validatedTokens;
+
     /**
      * Constructor passing all the needed information.
      *
      * @param root the current root that can be used to read and commit trees
+     * @param validatedTokens recently validated tokens, may be {@code null}
      */
-    public CardsTokenProvider(final Root root)
+    public CardsTokenProvider(final Root root, final ValidatedTokenCache validatedTokens)
     {
         this.root = root;
         this.identifierManager = new IdentifierManager(this.root);
+        this.validatedTokens = validatedTokens;
     }
 
     @Override
@@ -89,7 +95,7 @@ public TokenInfo getTokenInfo(final String loginToken)
         // Check that it is a good token node
         if (isValidTokenTree(tokenTree)) {
             // Parse and return the token information
-            return new CardsTokenImpl(this.root, tokenTree, loginToken, getUser(tokenTree));
+            return new CardsTokenImpl(this.root, tokenTree, loginToken, getUser(tokenTree), this.validatedTokens);
         }
         // Invalid token
         return null;
@@ -41,6 +41,7 @@
 
 import io.uhndata.cards.auth.token.CardsToken;
 import io.uhndata.cards.auth.token.TokenManager;
+import io.uhndata.cards.auth.token.impl.ValidatedTokenCache;
 
 /**
  * Implements the Sling part of token authentication, reading authentication data from the request and passing the
@@ -63,6 +64,9 @@ public class TokenAuthenticationHandler extends DefaultAuthenticationFeedbackHan
     @Reference
     private TokenManager tokenManager;
 
+    @Reference
+    private ValidatedTokenCache validatedTokens;
+
     @Override
     public AuthenticationInfo extractCredentials(HttpServletRequest request, HttpServletResponse response)
     {
@@ -96,6 +100,8 @@ public void dropCredentials(HttpServletRequest request, HttpServletResponse resp
             .findFirst()
             .orElse(null);
         if (existingCookie != null) {
+            // The user is logging out, the token must be fully checked again if it is ever presented again
+            this.validatedTokens.invalidate(existingCookie.getValue());
             response.reset();
             final Cookie eraseCookie = new Cookie(TOKEN_COOKIE_NAME, "");
             eraseCookie.setMaxAge(0);
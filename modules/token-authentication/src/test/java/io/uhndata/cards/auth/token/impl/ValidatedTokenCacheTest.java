@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.auth.token.impl;
+
+import java.util.Calendar;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link ValidatedTokenCache}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ValidatedTokenCacheTest
+{
+    private static final String TOKEN = "token-id.secret";
+
+    private static final String KEY = "stored-hash";
+
+    private static final String USER = "alice";
+
+    @Mock
+    private ValidatedTokenCache.Config config;
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Before
+    public void setup() throws LoginException
+    {
+        // Metrics are not available, they are silently skipped
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Mockito.anyMapOf(String.class, Object.class)))
+            .thenThrow(new LoginException("No repository in unit tests"));
+    }
+
+    @Test
+    public void validatedTokenIsAHit()
+    {
+        final ValidatedTokenCache cache = cache(10, 300);
+        Assert.assertFalse(cache.isValidated(TOKEN, KEY, USER));
+        cache.validated(TOKEN, KEY, USER, null);
+        Assert.assertTrue(cache.isValidated(TOKEN, KEY, USER));
+        Assert.assertTrue(cache.isValidated(TOKEN, KEY, USER));
+
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void hitRequiresTheSameStoredHashAndUser()
+    {
+        final ValidatedTokenCache cache = cache(10, 300);
+        cache.validated(TOKEN, KEY, USER, null);
+        Assert.assertFalse(cache.isValidated(TOKEN, "another-hash", USER));
+        Assert.assertFalse(cache.isValidated(TOKEN, KEY, "bob"));
+        Assert.assertFalse(cache.isValidated("token-id.another-secret", KEY, USER));
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void expiredTokenIsNotAHit()
+    {
+        final ValidatedTokenCache cache = cache(10, 300);
+        final Calendar expired = Calendar.getInstance();
+        expired.add(Calendar.SECOND, -1);
+        cache.validated(TOKEN, KEY, USER, expired);
+        Assert.assertFalse(cache.isValidated(TOKEN, KEY, USER));
+        // The expired entry is discarded when it is found
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void zeroTimeToLiveDisablesCaching()
+    {
+        final ValidatedTokenCache cache = cache(10, 0);
+        cache.validated(TOKEN, KEY, USER, null);
+        Assert.assertFalse(cache.isValidated(TOKEN, KEY, USER));
+    }
+
+    @Test
+    public void invalidatedTokenIsNotAHit()
+    {
+        final ValidatedTokenCache cache = cache(10, 300);
+        cache.validated(TOKEN, KEY, USER, null);
+        cache.invalidate(TOKEN);
+        Assert.assertFalse(cache.isValidated(TOKEN, KEY, USER));
+        cache.invalidate(null);
+    }
+
+    @Test
+    public void leastRecentlyUsedTokensAreForgotten()
+    {
+        final ValidatedTokenCache cache = cache(2, 300);
+        cache.validated("t1", KEY, USER, null);
+        cache.validated("t2", KEY, USER, null);
+        Assert.assertTrue(cache.isValidated("t1", KEY, USER));
+        cache.validated("t3", KEY, USER, null);
+
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertTrue(cache.isValidated("t1", KEY, USER));
+        Assert.assertFalse(cache.isValidated("t2", KEY, USER));
+        Assert.assertTrue(cache.isValidated("t3", KEY, USER));
+    }
+
+    private ValidatedTokenCache cache(final int maxEntries, final int timeToLive)
+    {
+        Mockito.when(this.config.maxEntries()).thenReturn(maxEntries);
+        Mockito.when(this.config.timeToLive()).thenReturn(timeToLive);
+        return new ValidatedTokenCache(this.config, this.resolverFactory);
+    }
+}
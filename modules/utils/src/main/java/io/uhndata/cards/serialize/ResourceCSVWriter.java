@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the CSV serialization of a resource directly into a {@link Writer}, instead of building the whole text in
+ * memory first. Obtain an instance by adapting a resource, for example
+ * {@code resourceResolver.resolve("/Questionnaires/Q1.data.csv").adaptTo(ResourceCSVWriter.class)}. The output is
+ * the same as the one obtained by adapting the resource to a {@link CSVString}.
+ *
+ * @version $Id$
+ * @since 0.9.26
+ */
+@FunctionalInterface
+public interface ResourceCSVWriter
+{
+    /**
+     * Write the resource as CSV. The writer is flushed, but not closed.
+     *
+     * @param output the writer to write to
+     * @throws IOException if writing to the output fails
+     */
+    void write(Writer output) throws IOException;
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Writes the JSON serialization of a resource directly into a {@link JsonGenerator}, instead of building the whole
+ * {@code JsonObject} in memory first. Obtain an instance by adapting a resource, for example
+ * {@code resourceResolver.resolve("/path/to/resource.deep").adaptTo(ResourceJsonWriter.class)}. The output is the
+ * same as the one obtained by adapting the resource to a {@code JsonObject}, except for the order of the keys, since
+ * each child of the resource is written as soon as it is serialized.
+ * <p>
+ * Only the top level of the resource is streamed: each direct child of the resource, and each node it references, is
+ * still fully serialized in memory before being written, since the processors return the serialization of a child as
+ * a whole value. This suits resources with many small children, like a subject with its forms, but not a single very
+ * large child.
+ * </p>
+ *
+ * @version $Id$
+ * @since 0.9.26
+ */
+public interface ResourceJsonWriter
+{
+    /**
+     * Write the resource as a value, either the root value, or an item in an array.
+     *
+     * @param generator the generator to write to
+     */
+    void write(JsonGenerator generator);
+
+    /**
+     * Write the resource as the value of a key in an object.
+     *
+     * @param key the name of the key under which to write the resource
+     * @param generator the generator to write to
+     */
+    void write(String key, JsonGenerator generator);
+}
@@ -19,6 +19,7 @@
 package io.uhndata.cards.serialize;
 
 import java.util.List;
+import java.util.Optional;
 
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
@@ -32,14 +33,15 @@
 
 /**
  * AdapterFactory that converts Apache Sling resources to CSV format. This is just a shell, the actual serialization
- * is provided by implementations of the {@link ResourceCSVProcessor} service.
+ * is provided by implementations of the {@link ResourceCSVProcessor} service. Resources can also be adapted to a
+ * {@link ResourceCSVWriter}, which writes the CSV directly into a {@code Writer}.
  *
  * @version $Id$
  */
 @Component(
     service = { AdapterFactory.class },
     property = { "adaptables=org.apache.sling.api.resource.Resource",
-        "adapters=io.uhndata.cards.serialize.CSVString" })
+        "adapters=io.uhndata.cards.serialize.CSVString", "adapters=io.uhndata.cards.serialize.ResourceCSVWriter" })
 public class ResourceToCSVAdapterFactory implements AdapterFactory
 {
     /** A list of all available processors. */
@@ -54,6 +56,19 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
             return null;
         }
         final Resource resource = (Resource) adaptable;
+        if (ResourceCSVWriter.class.equals(type)) {
+            final ResourceCSVWriter writer = output -> {
+                final Optional<ResourceCSVProcessor> processor =
+                    this.allProcessors.stream().filter(p -> p.canProcess(resource)).findFirst();
+                if (processor.isPresent()) {
+                    processor.get().serialize(resource, output);
+                } else {
+                    output.write(resource.getPath());
+                }
+                output.flush();
+            };
+            return type.cast(writer);
+        }
         final String result = this.allProcessors.stream()
             .filter(p -> p.canProcess(resource))
             .findFirst()
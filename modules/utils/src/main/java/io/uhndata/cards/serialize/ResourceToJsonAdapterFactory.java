@@ -20,8 +20,12 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import javax.jcr.Node;
@@ -32,7 +36,9 @@
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
@@ -43,6 +49,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.internal.QuestionnaireSerializationCache;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
@@ -56,23 +63,38 @@
  * {@link ResourceJsonProcessor#isEnabledByDefault(Resource) enabled by default}, for example the {@code properties},
  * {@code identify}, and {@code dereference} processors; to disable them, use their name prefixed by {@code -} in the
  * selectors, e.g. {@code /path/to/resource.-dereference.json}.
+ * <p>
+ * Resources can also be adapted to a {@link ResourceJsonWriter}, which writes the serialization directly into a
+ * {@code JsonGenerator}, so that the serialization of large resources doesn't need to be fully held in memory. Only the
+ * children of the resource are written one by one; each of them is still serialized whole.
+ * </p>
  *
  * @version $Id$
  */
 @Component(
     service = { AdapterFactory.class },
-    property = { "adaptables=org.apache.sling.api.resource.Resource", "adapters=javax.json.JsonObject" })
+    property = { "adaptables=org.apache.sling.api.resource.Resource", "adapters=javax.json.JsonObject",
+        "adapters=io.uhndata.cards.serialize.ResourceJsonWriter" })
 public class ResourceToJsonAdapterFactory
     implements AdapterFactory
 {
     /** Logging helper. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ResourceToJsonAdapterFactory.class);
 
+    /** The maximum number of different resource type and selectors combinations to remember. */
+    private static final int MAX_CACHED_CHAINS = 1000;
+
     /** A list of all available processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
-        policy = ReferencePolicy.DYNAMIC)
+        policy = ReferencePolicy.DYNAMIC, bind = "processorAdded", unbind = "processorRemoved")
     private volatile List<ResourceJsonProcessor> allProcessors;
 
+    /** The enabled processors, computed once for each resource type and selectors combination. */
+    private final Map<String, ProcessorChain> processorChains = new ConcurrentHashMap<>();
+
+    @Reference
+    private QuestionnaireSerializationCache definitionsCache;
+
     @Override
     public <A> A getAdapter(final Object adaptable, final Class<A> type)
     {
@@ -80,17 +102,18 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
             return null;
         }
         final Resource resource = (Resource) adaptable;
-        // The list of processors that are enabled for the current resource serialization.
-        List<ResourceJsonProcessor> enabledProcessors = setupProcessors(resource);
-
-        // To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed
-        // so far down the stack.
-        Stack<String> processedNodes = new Stack<>();
+        if (ResourceJsonWriter.class.equals(type)) {
+            return type.cast(new StreamingWriter(resource));
+        }
+        final SerializationContext context = new SerializationContext(resource, setupProcessors(resource));
 
-        start(resource, enabledProcessors);
-        final Node node = resource.adaptTo(Node.class);
-        JsonValue result = serializeNode(node, enabledProcessors, processedNodes);
-        end(resource, enabledProcessors);
+        final JsonValue result;
+        start(resource, context.enabledProcessors);
+        try {
+            result = serializeNode(resource.adaptTo(Node.class), context);
+        } finally {
+            end(resource, context.enabledProcessors);
+        }
         if (result != null) {
             return type.cast(result);
         }
@@ -104,34 +127,159 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
      * @param node the node to serialize
      * @return a JSON value, either a JsonObject or a JsonString
      */
-    private JsonValue serializeNode(final Node node, final List<ResourceJsonProcessor> enabledProcessors,
-        final Stack<String> processedNodes)
+    private JsonValue serializeNode(final Node node, final SerializationContext context)
     {
         if (node == null) {
             return null;
         }
 
         try {
-            final boolean alreadyProcessed = processedNodes.contains(node.getPath());
-            processedNodes.add(node.getPath());
-            if (!alreadyProcessed) {
+            // Questionnaire definitions referenced from forms are serialized once and reused
+            final String cacheKey =
+                context.cacheScope != null && this.definitionsCache.isCacheable(node, context.processedNodes)
+                    ? this.definitionsCache.getKey(node, context.cacheScope) : null;
+            if (cacheKey != null) {
+                final JsonValue cached = this.definitionsCache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            final JsonValue result = serializeNodeUncached(node, context);
+            if (cacheKey != null && result != null) {
+                this.definitionsCache.put(cacheKey, node.getPath(), result);
+            }
+            return result;
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private JsonValue serializeNodeUncached(final Node node, final SerializationContext context)
+    {
+        final Set<String> processedNodes = context.processedNodes;
+        final String path;
+        try {
+            path = node.getPath();
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+            return null;
+        }
+        final boolean firstVisit = processedNodes.add(path);
+        try {
+            if (firstVisit) {
                 final JsonObjectBuilder result = Json.createObjectBuilder();
-                enterNode(node, result, enabledProcessors, processedNodes);
-                processProperties(node, result, enabledProcessors, processedNodes);
-                processChildren(node, result, enabledProcessors, processedNodes);
-                leaveNode(node, result, enabledProcessors, processedNodes);
+                enterNode(node, result, context);
+                processProperties(node, result, context);
+                processChildren(node, result::add, context);
+                leaveNode(node, result, context);
                 return result.build();
             }
             // If the node has already been processed, only include its path in the output
-            return Json.createValue(node.getPath());
+            return Json.createValue(path);
         } catch (RepositoryException e) {
             LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
         } finally {
-            processedNodes.pop();
+            if (firstVisit) {
+                processedNodes.remove(path);
+            }
         }
         return null;
     }
 
+    /**
+     * Serializes a Node directly into a JSON generator. The node's own properties are gathered first, since processors
+     * may still alter them when leaving the node, but each child is written to the generator as soon as it is
+     * serialized, so that only one child's serialization is held in memory at a time. Keys added by processors when
+     * leaving the node are written after the children, and are ignored if a child with the same name was already
+     * written.
+     * <p>
+     * Only this top level is streamed. Each child is serialized whole by {@link #serializeNode}, since
+     * {@link ResourceJsonProcessor#processChild} returns the complete value of the child, so the largest child must
+     * still fit in memory.
+     * </p>
+     * <p>
+     * If accessing the repository fails, the output is still valid JSON: the object is closed after the keys written so
+     * far, or, if nothing was written yet, {@code null} is written instead.
+     * </p>
+     *
+     * @param node the node to serialize
+     * @param key the key under which to write the node, or {@code null} if the node is written as a value
+     * @param generator the generator to write to
+     */
+    private void streamNode(final Node node, final String key, final JsonGenerator generator,
+        final SerializationContext context)
+    {
+        if (node == null) {
+            writeNull(key, generator);
+            return;
+        }
+
+        final String path;
+        try {
+            path = node.getPath();
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+            writeNull(key, generator);
+            return;
+        }
+        // This is always the root node, so it cannot have been processed already
+        context.processedNodes.add(path);
+        boolean started = false;
+        try {
+            final JsonObjectBuilder result = Json.createObjectBuilder();
+            enterNode(node, result, context);
+            processProperties(node, result, context);
+            if (key == null) {
+                generator.writeStartObject();
+            } else {
+                generator.writeStartObject(key);
+            }
+            started = true;
+            final Set<String> writtenChildren = new HashSet<>();
+            processChildren(node, (name, value) -> {
+                generator.write(name, value);
+                writtenChildren.add(name);
+            }, context);
+            leaveNode(node, result, context);
+            for (Map.Entry<String, JsonValue> entry : result.build().entrySet()) {
+                if (!writtenChildren.contains(entry.getKey())) {
+                    generator.write(entry.getKey(), entry.getValue());
+                }
+            }
+            generator.writeEnd();
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+            // Children are only written once fully serialized, so the generator is still inside this node's object
+            if (started) {
+                generator.writeEnd();
+            } else {
+                writeNull(key, generator);
+            }
+        } finally {
+            context.processedNodes.remove(path);
+        }
+    }
+
+    private static void writeNull(final String key, final JsonGenerator generator)
+    {
+        if (key == null) {
+            generator.writeNull();
+        } else {
+            generator.writeNull(key);
+        }
+    }
+
+    protected void processorAdded(final ResourceJsonProcessor processor)
+    {
+        this.processorChains.clear();
+    }
+
+    protected void processorRemoved(final ResourceJsonProcessor processor)
+    {
+        this.processorChains.clear();
+    }
+
     /**
      * Prepare the serialization of a resource by invoking {@link ResourceJsonProcessor#start} in all enabled
      * processors.
@@ -149,10 +297,9 @@ private void start(final Resource resource, final List<ResourceJsonProcessor> en
      * @param node the node to serialize
      * @param json the JSON being built
      */
-    private void enterNode(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+    private void enterNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
     {
-        enabledProcessors.forEach(p -> p.enter(node, json, n -> serializeNode(n, enabledProcessors, processedNodes)));
+        context.enabledProcessors.forEach(p -> p.enter(node, json, n -> serializeNode(n, context)));
     }
 
     /**
@@ -163,17 +310,15 @@ private void enterNode(final Node node, final JsonObjectBuilder json,
      * @param json the JSON being built
      * @throws RepositoryException if accessing the repository fails
      */
-    private void processProperties(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+    private void processProperties(final Node node, final JsonObjectBuilder json, final SerializationContext context)
         throws RepositoryException
     {
         final PropertyIterator properties = node.getProperties();
         while (properties.hasNext()) {
             Property thisProp = properties.nextProperty();
             JsonValue value = null;
-            for (ResourceJsonProcessor p : enabledProcessors) {
-                value =
-                    p.processProperty(node, thisProp, value, n -> serializeNode(n, enabledProcessors, processedNodes));
+            for (ResourceJsonProcessor p : context.enabledProcessors) {
+                value = p.processProperty(node, thisProp, value, n -> serializeNode(n, context));
             }
             if (value != null) {
                 json.add(thisProp.getName(), value);
@@ -182,26 +327,26 @@ private void processProperties(final Node node, final JsonObjectBuilder json,
     }
 
     /**
-     * Serialize the children of a node into a {@code JsonObjectBuilder} by invoking
-     * {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     * Serialize the children of a node by invoking {@link ResourceJsonProcessor#processChild} in all enabled
+     * processors.
      *
      * @param node the node to serialize
-     * @param json the JSON being built
+     * @param json receives the name and the serialization of each child that must be included in the output
      * @throws RepositoryException if accessing the repository fails
      */
-    private void processChildren(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+    private void processChildren(final Node node, final BiConsumer<String, JsonValue> json,
+        final SerializationContext context)
         throws RepositoryException
     {
         final NodeIterator children = node.getNodes();
         while (children.hasNext()) {
             final Node child = children.nextNode();
             JsonValue value = null;
-            for (ResourceJsonProcessor p : enabledProcessors) {
-                value = p.processChild(node, child, value, n -> serializeNode(n, enabledProcessors, processedNodes));
+            for (ResourceJsonProcessor p : context.enabledProcessors) {
+                value = p.processChild(node, child, value, n -> serializeNode(n, context));
             }
             if (value != null) {
-                json.add(child.getName(), value);
+                json.accept(child.getName(), value);
             }
         }
     }
@@ -213,10 +358,9 @@ private void processChildren(final Node node, final JsonObjectBuilder json,
      * @param node the node to serialize
      * @param json the JSON being built
      */
-    private void leaveNode(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+    private void leaveNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
     {
-        enabledProcessors.forEach(p -> p.leave(node, json, n -> serializeNode(n, enabledProcessors, processedNodes)));
+        context.enabledProcessors.forEach(p -> p.leave(node, json, n -> serializeNode(n, context)));
     }
 
     /**
@@ -231,17 +375,44 @@ private void end(final Resource resource, final List<ResourceJsonProcessor> enab
     }
 
     /**
-     * Compute the list of enabled processors using the resource's type and selectors. This method must be invoked only
-     * once at the start of the serialization process for a resource, and it will set the {@link #enabledProcessors}
-     * field.
+     * Get the list of enabled processors for the resource's type and selectors. This method must be invoked only once
+     * at the start of the serialization process for a resource. Since the same types of resources are serialized with
+     * the same selectors over and over, for example all the forms exported along with a subject, the result is
+     * computed once and reused until the available processors change.
      *
      * @param resource the resource to serialize
+     * @return an unmodifiable list of processors, sorted by priority
      */
     private List<ResourceJsonProcessor> setupProcessors(final Resource resource)
+    {
+        final List<ResourceJsonProcessor> available = this.allProcessors;
+        final String key = resource.getResourceType() + "\n" + resource.getResourceSuperType() + "\n"
+            + resource.getResourceMetadata().getResolutionPathInfo();
+        final ProcessorChain cached = this.processorChains.get(key);
+        if (cached != null && cached.source == available) {
+            return cached.processors;
+        }
+        final List<ResourceJsonProcessor> result = List.copyOf(computeProcessors(resource, available));
+        if (this.processorChains.size() >= MAX_CACHED_CHAINS) {
+            this.processorChains.clear();
+        }
+        this.processorChains.put(key, new ProcessorChain(available, result));
+        return result;
+    }
+
+    /**
+     * Compute the list of enabled processors using the resource's type and selectors.
+     *
+     * @param resource the resource to serialize
+     * @param available all the available processors
+     * @return a new list of processors, sorted by priority
+     */
+    private List<ResourceJsonProcessor> computeProcessors(final Resource resource,
+        final List<ResourceJsonProcessor> available)
     {
         // Compute the list of requested processor names:
         // These are enabled by default
-        final List<String> defaults = this.allProcessors.stream().filter(p -> p.isEnabledByDefault(resource))
+        final List<String> defaults = available.stream().filter(p -> p.isEnabledByDefault(resource))
             .map(ResourceJsonProcessor::getName).collect(Collectors.toList());
         // These have been requested
         final List<String> requestedProcessors =
@@ -265,7 +436,7 @@ private List<ResourceJsonProcessor> setupProcessors(final Resource resource)
         }
 
         // Build the enabled list using the requested names
-        final List<ResourceJsonProcessor> enabled = this.allProcessors.stream()
+        final List<ResourceJsonProcessor> enabled = available.stream()
             .filter(p -> requestedProcessors.contains(p.getName()))
             .filter(p -> p.canProcess(resource))
             .collect(Collectors.toList());
@@ -273,4 +444,84 @@ private List<ResourceJsonProcessor> setupProcessors(final Resource resource)
 
         return enabled;
     }
+
+    /**
+     * A {@link ResourceJsonWriter} serializing a resource with the processors enabled for it.
+     */
+    private final class StreamingWriter implements ResourceJsonWriter
+    {
+        private final Resource resource;
+
+        StreamingWriter(final Resource resource)
+        {
+            this.resource = resource;
+        }
+
+        @Override
+        public void write(final JsonGenerator generator)
+        {
+            write(null, generator);
+        }
+
+        @Override
+        public void write(final String key, final JsonGenerator generator)
+        {
+            final SerializationContext context =
+                new SerializationContext(this.resource, setupProcessors(this.resource));
+            start(this.resource, context.enabledProcessors);
+            try {
+                streamNode(this.resource.adaptTo(Node.class), key, generator, context);
+            } finally {
+                end(this.resource, context.enabledProcessors);
+            }
+        }
+    }
+
+    /**
+     * The enabled processors computed for a resource type and selectors combination, along with the list of available
+     * processors they were computed from, since they are only valid as long as the available processors don't change.
+     */
+    private static final class ProcessorChain
+    {
+        private final List<ResourceJsonProcessor> source;
+
+        private final List<ResourceJsonProcessor> processors;
+
+        ProcessorChain(final List<ResourceJsonProcessor> source, final List<ResourceJsonProcessor> processors)
+        {
+            this.source = source;
+            this.processors = processors;
+        }
+    }
+
+    /**
+     * The state of the serialization of one resource.
+     */
+    private static final class SerializationContext
+    {
+        /** The list of processors that are enabled for the current resource serialization. */
+        private final List<ResourceJsonProcessor> enabledProcessors;
+
+        /**
+         * To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed
+         * so far down the stack.
+         */
+        private final Set<String> processedNodes = new HashSet<>();
+
+        /**
+         * Identifies the serialization settings, so that cached serializations are only reused with the same ones, or
+         * {@code null} if some of the enabled processors are not pure, and nothing can be cached.
+         */
+        private final String cacheScope;
+
+        SerializationContext(final Resource resource, final List<ResourceJsonProcessor> enabledProcessors)
+        {
+            this.enabledProcessors = enabledProcessors;
+            // Several processors may share the same name, so they are identified by their class
+            this.cacheScope = enabledProcessors.stream().allMatch(ResourceJsonProcessor::isPure)
+                ? StringUtils.defaultString(resource.getResourceMetadata().getResolutionPathInfo()) + "\n"
+                    + enabledProcessors.stream().map(p -> p.getClass().getName()).collect(Collectors.joining(","))
+                : null;
+        }
+    }
 }
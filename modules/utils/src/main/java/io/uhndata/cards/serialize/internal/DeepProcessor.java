@@ -47,6 +47,12 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        return true;
+    }
+
     @Override
     public JsonValue processChild(final Node node, final Node child, final JsonValue input,
         final Function<Node, JsonValue> serializeNode)
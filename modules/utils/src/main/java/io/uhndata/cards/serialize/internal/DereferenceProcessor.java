@@ -18,27 +18,41 @@
  */
 package io.uhndata.cards.serialize.internal;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonValue;
 
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.metrics.Metrics;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
 
 /**
  * Dereference properties of type {@code REFERENCE}, {@code WEAKREFERENCE} or {@code PATH}: instead of printing the
  * internal UUID, serialize the referenced node. The name of this processor is {@code dereference}.
+ * <p>
+ * Referenced nodes are looked up with a {@link ReferenceResolver}, which batches the values of multi-valued properties
+ * and remembers the nodes already resolved while serializing a resource. The number of lookups and the time spent on
+ * them are reported in the {@code ReferenceLookups} and {@code ReferenceLookupTime} metrics.
+ * </p>
  *
  * @version $Id$
  */
@@ -47,6 +61,37 @@ public class DereferenceProcessor implements ResourceJsonProcessor
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(DereferenceProcessor.class);
 
+    private static final String LOOKUPS_METRIC = "ReferenceLookups";
+
+    private static final String TIME_METRIC = "ReferenceLookupTime";
+
+    /** How often to report the accumulated lookup statistics, since each update is a repository commit. */
+    private static final long METRICS_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /** The resolver used for the serialization currently running in each thread. */
+    private final ThreadLocal<ReferenceResolver> resolver = new ThreadLocal<>();
+
+    /** Lookups not reported in the metrics yet. */
+    private final AtomicLong pendingLookups = new AtomicLong();
+
+    /** Lookup time not reported in the metrics yet, in nanoseconds. */
+    private final AtomicLong pendingTime = new AtomicLong();
+
+    /** When the metrics were last updated, in milliseconds since the epoch. */
+    private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+    @Activate
+    protected void activate()
+    {
+        Metrics.createStatistic(this.resolverFactory, LOOKUPS_METRIC,
+            "Number of referenced nodes looked up while serializing resources");
+        Metrics.createStatistic(this.resolverFactory, TIME_METRIC,
+            "Time spent looking up referenced nodes while serializing resources, in milliseconds");
+    }
+
     @Override
     public String getName()
     {
@@ -59,12 +104,42 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        // The lookups are only remembered during one serialization to avoid repeating them, the output is the same
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
         return true;
     }
 
+    @Override
+    public void start(final Resource resource)
+    {
+        final Session session = resource.getResourceResolver().adaptTo(Session.class);
+        ReferenceResolver current = this.resolver.get();
+        if (current == null || !current.belongsTo(session)) {
+            // A resolver left over from a serialization that didn't end properly holds nodes from another session
+            current = new ReferenceResolver(session);
+            this.resolver.set(current);
+        }
+        current.enter();
+    }
+
+    @Override
+    public void end(final Resource resource)
+    {
+        final ReferenceResolver current = this.resolver.get();
+        if (current != null && current.leave()) {
+            this.resolver.remove();
+            report(current.getLookups(), current.getTime());
+        }
+    }
+
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
         final Function<Node, JsonValue> serializeNode)
@@ -89,6 +164,7 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
         switch (property.getType()) {
             case PropertyType.REFERENCE:
             case PropertyType.WEAKREFERENCE:
+                return serializeReference(property, input, serializeNode);
             case PropertyType.PATH:
                 try {
                     final Node node = property.getNode();
@@ -110,6 +186,25 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
         }
     }
 
+    private JsonValue serializeReference(final Property property, final JsonValue input,
+        final Function<Node, JsonValue> serializeNode)
+        throws RepositoryException
+    {
+        final Node node = getResolver().resolve(property.getSession(), property.getString());
+        if (node == null) {
+            // If we can't access the node, just leave the input unmodified
+            return input;
+        }
+        // Reference properties starting with "jcr:" deal with versioning,
+        // and the version trees have cyclic references.
+        // Also, the node history shouldn't be serialized.
+        if (property.getName().startsWith("jcr:")) {
+            return Json.createValue(node.getPath());
+        } else {
+            return serializeNode.apply(node);
+        }
+    }
+
     private JsonValue serializeMultiValuedProperty(final Property property, final JsonValue input,
         final Function<Node, JsonValue> serializeNode) throws RepositoryException
     {
@@ -117,20 +212,23 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
         final String name = property.getName();
 
         if (property.getType() == PropertyType.REFERENCE || property.getType() == PropertyType.WEAKREFERENCE) {
+            final List<String> identifiers = new ArrayList<>();
             for (Value value : property.getValues()) {
-                try {
-                    final Node node = property.getSession().getNodeByIdentifier(value.getString());
-                    // Reference properties starting with "jcr:" deal with versioning,
-                    // and the version trees have cyclic references.
-                    // Also, the node history shouldn't be serialized.
-                    if (name.startsWith("jcr:")) {
-                        arrayBuilder.add(node.getPath());
-                    } else {
-                        arrayBuilder.add(serializeNode.apply(node));
-                    }
-                } catch (RepositoryException e) {
-                    // If we can't access the node, just leave the input unmodified
-                    return input;
+                identifiers.add(value.getString());
+            }
+            final List<Node> nodes = getResolver().resolve(property.getSession(), identifiers);
+            if (nodes.contains(null)) {
+                // If we can't access a node, just leave the input unmodified
+                return input;
+            }
+            for (Node node : nodes) {
+                // Reference properties starting with "jcr:" deal with versioning,
+                // and the version trees have cyclic references.
+                // Also, the node history shouldn't be serialized.
+                if (name.startsWith("jcr:")) {
+                    arrayBuilder.add(node.getPath());
+                } else {
+                    arrayBuilder.add(serializeNode.apply(node));
                 }
             }
         } else if (property.getType() == PropertyType.PATH) {
@@ -151,4 +249,27 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
         }
         return arrayBuilder.build();
     }
+
+    private ReferenceResolver getResolver()
+    {
+        final ReferenceResolver result = this.resolver.get();
+        // Outside of a serialization, just use a temporary resolver
+        return result != null ? result : new ReferenceResolver(null);
+    }
+
+    private void report(final long lookups, final long time)
+    {
+        if (lookups == 0) {
+            return;
+        }
+        this.pendingLookups.addAndGet(lookups);
+        this.pendingTime.addAndGet(time);
+        final long now = System.currentTimeMillis();
+        final long last = this.lastReport.get();
+        if (now - last >= METRICS_INTERVAL && this.lastReport.compareAndSet(last, now)) {
+            Metrics.increment(this.resolverFactory, LOOKUPS_METRIC, this.pendingLookups.getAndSet(0));
+            Metrics.increment(this.resolverFactory, TIME_METRIC,
+                TimeUnit.NANOSECONDS.toMillis(this.pendingTime.getAndSet(0)));
+        }
+    }
 }
@@ -51,6 +51,12 @@ public int getPriority()
         return 10;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
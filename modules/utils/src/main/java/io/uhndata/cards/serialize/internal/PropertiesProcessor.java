@@ -54,6 +54,12 @@ public int getPriority()
         return 0;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        return true;
+    }
+
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.json.JsonValue;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * Holds the JSON serialization of questionnaire definitions: questionnaires, sections, questions and answer options.
+ * Every answer of every form references its question, so when many forms are serialized, the same definitions would
+ * otherwise be serialized over and over again.
+ * <p>
+ * Serializations are only reused for the same user, the same selectors, and the same enabled processors, and they are
+ * tied to the last modification date and base version of the questionnaire they belong to. Any change under
+ * {@code /Questionnaires} also discards the affected serializations. The cache is bounded by the total size of the
+ * serialized JSON, discarding the least recently used entries first.
+ * </p>
+ * <p>
+ * Serializations are only cached when all the enabled processors are {@link ResourceJsonProcessor#isPure() pure}, since
+ * a cached serialization skips the processors entirely. Changes to other nodes that the processors read while
+ * serializing a definition, for example the labels of the vocabulary terms used as answer options, are only seen once
+ * the questionnaire changes or the entry is evicted.
+ * </p>
+ * <p>
+ * The number of serializations found in the cache and not found, and the size of the JSON reused from the cache, are
+ * reported in the {@code QuestionnaireCacheHits}, {@code QuestionnaireCacheMisses} and {@code QuestionnaireCacheBytes}
+ * metrics.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { QuestionnaireSerializationCache.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class QuestionnaireSerializationCache implements ResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuestionnaireSerializationCache.class);
+
+    private static final String ROOT = "/Questionnaires/";
+
+    /** The maximum total size of the cached serializations, in bytes. */
+    private static final long MAX_BYTES = 32L * 1024 * 1024;
+
+    /** Serializations larger than this are not cached, since they would evict too many other entries. */
+    private static final long MAX_ENTRY_BYTES = MAX_BYTES / 8;
+
+    private static final String HITS_METRIC = "QuestionnaireCacheHits";
+
+    private static final String MISSES_METRIC = "QuestionnaireCacheMisses";
+
+    private static final String BYTES_METRIC = "QuestionnaireCacheBytes";
+
+    /** How often to report the accumulated statistics, since each update is a repository commit. */
+    private static final long METRICS_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /** The cached serializations, in least recently used order, guarded by {@code this}. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** The total size of the cached serializations, guarded by {@code this}. */
+    private long bytes;
+
+    /** Hits not reported in the metrics yet. */
+    private final AtomicLong pendingHits = new AtomicLong();
+
+    /** Misses not reported in the metrics yet. */
+    private final AtomicLong pendingMisses = new AtomicLong();
+
+    /** Size of the serializations found in the cache, not reported in the metrics yet. */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /** When the metrics were last updated, in milliseconds since the epoch. */
+    private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+    @Activate
+    protected void activate()
+    {
+        Metrics.createStatistic(this.resolverFactory, HITS_METRIC,
+            "Number of questionnaire definitions serialized from the cache");
+        Metrics.createStatistic(this.resolverFactory, MISSES_METRIC,
+            "Number of questionnaire definitions looked up in the cache and serialized again");
+        Metrics.createStatistic(this.resolverFactory, BYTES_METRIC,
+            "Size of the questionnaire definitions serialized from the cache, in bytes");
+    }
+
+    /**
+     * Check if the serialization of a node can be cached. This is only the case for questionnaire definitions
+     * referenced from outside their questionnaire, since otherwise the serialization depends on the nodes already
+     * being serialized, which are only included as their path to prevent infinite recursion. The resource being
+     * serialized itself is never cached, since processors may treat it differently from the nodes it references.
+     *
+     * @param node the node about to be serialized
+     * @param processedNodes the paths of the nodes currently being serialized, from the root to the current node
+     * @return {@code true} if the serialization of the node can be cached
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public boolean isCacheable(final Node node, final Collection<String> processedNodes) throws RepositoryException
+    {
+        return !processedNodes.isEmpty() && node.getPath().startsWith(ROOT)
+            && processedNodes.stream().noneMatch(path -> path.startsWith(ROOT));
+    }
+
+    /**
+     * Compute the cache key for a node.
+     * <p>
+     * The key includes the user's name, since access rights can hide parts of a questionnaire, for example some of its
+     * questions, and the resulting serialization must not be served to other users. The access rights of a session
+     * cannot be cheaply compared, since they come from all the groups of the user and from the access control entries
+     * applied along the path, so users with the same rights don't share entries. The cache still pays off, since the
+     * same user serializes many forms referencing the same definitions, for example in an export.
+     * </p>
+     *
+     * @param node a questionnaire definition node
+     * @param scope identifies the serialization settings, such as the selectors and the enabled processors
+     * @return a key, or {@code null} if the version of the questionnaire cannot be determined
+     * @throws RepositoryException if accessing the repository fails
+     */
+    public String getKey(final Node node, final String scope) throws RepositoryException
+    {
+        final String questionnairePath =
+            ROOT + StringUtils.substringBefore(node.getPath().substring(ROOT.length()), "/");
+        if (!node.getSession().nodeExists(questionnairePath)) {
+            return null;
+        }
+        final Node questionnaire = node.getSession().getNode(questionnairePath);
+        final String lastModified = questionnaire.hasProperty("jcr:lastModified")
+            ? questionnaire.getProperty("jcr:lastModified").getString() : "";
+        final String baseVersion = questionnaire.hasProperty("jcr:baseVersion")
+            ? questionnaire.getProperty("jcr:baseVersion").getString() : "";
+        return String.join("\n", node.getIdentifier(), lastModified, baseVersion, node.getSession().getUserID(),
+            scope);
+    }
+
+    /**
+     * Retrieve a cached serialization.
+     *
+     * @param key the cache key, as computed by {@link #getKey}
+     * @return the cached serialization, or {@code null} if it is not cached
+     */
+    public JsonValue get(final String key)
+    {
+        final Entry result;
+        synchronized (this) {
+            result = this.entries.get(key);
+        }
+        if (result == null) {
+            this.pendingMisses.incrementAndGet();
+            report();
+            return null;
+        }
+        this.pendingHits.incrementAndGet();
+        this.pendingBytes.addAndGet(result.size);
+        report();
+        return result.value;
+    }
+
+    /**
+     * Store a serialization in the cache.
+     *
+     * @param key the cache key, as computed by {@link #getKey}
+     * @param path the path of the serialized node
+     * @param value the serialization of the node
+     */
+    public void put(final String key, final String path, final JsonValue value)
+    {
+        final long size = value.toString().getBytes(StandardCharsets.UTF_8).length;
+        if (size > MAX_ENTRY_BYTES) {
+            LOGGER.debug("Not caching the serialization of {}, it is too large: {} bytes", path, size);
+            return;
+        }
+        synchronized (this) {
+            final Entry previous = this.entries.put(key, new Entry(path, value, size));
+            this.bytes += size - (previous == null ? 0 : previous.size);
+            final Iterator<Entry> oldest = this.entries.values().iterator();
+            while (this.bytes > MAX_BYTES && oldest.hasNext()) {
+                this.bytes -= oldest.next().size;
+                oldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        synchronized (this) {
+            changes.stream().map(ResourceChange::getPath).distinct().forEach(changedPath -> {
+                final Iterator<Entry> i = this.entries.values().iterator();
+                while (i.hasNext()) {
+                    final Entry entry = i.next();
+                    // Both the changed node itself and its ancestors, which include it in their serialization
+                    if (entry.path.equals(changedPath) || entry.path.startsWith(changedPath + "/")
+                        || changedPath.startsWith(entry.path + "/")) {
+                        this.bytes -= entry.size;
+                        i.remove();
+                    }
+                }
+            });
+        }
+    }
+
+    private void report()
+    {
+        final long now = System.currentTimeMillis();
+        final long last = this.lastReport.get();
+        if (now - last >= METRICS_INTERVAL && this.lastReport.compareAndSet(last, now)) {
+            Metrics.increment(this.resolverFactory, HITS_METRIC, this.pendingHits.getAndSet(0));
+            Metrics.increment(this.resolverFactory, MISSES_METRIC, this.pendingMisses.getAndSet(0));
+            Metrics.increment(this.resolverFactory, BYTES_METRIC, this.pendingBytes.getAndSet(0));
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String path;
+
+        private final JsonValue value;
+
+        private final long size;
+
+        Entry(final String path, final JsonValue value, final long size)
+        {
+            this.path = path;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves node identifiers to nodes during the serialization of one resource. All the identifiers of a multi-valued
+ * reference property are resolved together with a query, instead of one lookup per value, and every resolved node is
+ * remembered until the serialization ends, so that the same node referenced many times, for example the subject of
+ * all the forms in an export, is only looked up once.
+ *
+ * @version $Id$
+ */
+final class ReferenceResolver
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceResolver.class);
+
+    /** How many identifiers to look up in one query. */
+    private static final int BATCH_SIZE = 100;
+
+    /** The session of the serialization using this resolver, the resolved nodes belong to it. */
+    private final Session session;
+
+    /** The nodes resolved so far, with {@code null} values for identifiers that cannot be accessed. */
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /** How many serializations currently use this resolver, since serializations can be nested. */
+    private int depth;
+
+    /** How many identifiers were actually looked up in the repository. */
+    private long lookups;
+
+    /** How much time was spent looking up identifiers, in nanoseconds. */
+    private long time;
+
+    /**
+     * Constructor.
+     *
+     * @param session the session of the serialization using this resolver, may be {@code null}
+     */
+    ReferenceResolver(final Session session)
+    {
+        this.session = session;
+    }
+
+    /**
+     * Check if this resolver can be used for a serialization, since the resolved nodes can only be reused with the
+     * session they were resolved with.
+     *
+     * @param session the session of a serialization
+     * @return {@code true} if the nodes resolved so far belong to the session
+     */
+    boolean belongsTo(final Session session)
+    {
+        return this.session == session;
+    }
+
+    void enter()
+    {
+        ++this.depth;
+    }
+
+    /**
+     * Mark the end of a serialization.
+     *
+     * @return {@code true} if this was the outermost serialization, and the resolver should be discarded
+     */
+    boolean leave()
+    {
+        return --this.depth <= 0;
+    }
+
+    long getLookups()
+    {
+        return this.lookups;
+    }
+
+    long getTime()
+    {
+        return this.time;
+    }
+
+    /**
+     * Resolve one identifier.
+     *
+     * @param session the session to use for accessing the repository
+     * @param identifier a node identifier
+     * @return the referenced node, or {@code null} if it doesn't exist or cannot be accessed
+     */
+    Node resolve(final Session session, final String identifier)
+    {
+        return resolve(session, List.of(identifier)).get(0);
+    }
+
+    /**
+     * Resolve several identifiers.
+     *
+     * @param session the session to use for accessing the repository
+     * @param identifiers a list of node identifiers
+     * @return the referenced nodes, in the same order as the identifiers, with {@code null} items for the nodes that
+     *         don't exist or cannot be accessed
+     */
+    List<Node> resolve(final Session session, final List<String> identifiers)
+    {
+        final List<String> missing = identifiers.stream()
+            .filter(identifier -> !this.nodes.containsKey(identifier))
+            .distinct()
+            .collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            final long start = System.nanoTime();
+            if (missing.size() > 1) {
+                for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+                    fetch(session, missing.subList(i, Math.min(i + BATCH_SIZE, missing.size())));
+                }
+            }
+            // Single identifiers, and anything the query didn't return, for example nodes in the version storage,
+            // are looked up directly
+            missing.stream().filter(identifier -> !this.nodes.containsKey(identifier))
+                .forEach(identifier -> this.nodes.put(identifier, lookup(session, identifier)));
+            this.lookups += missing.size();
+            this.time += System.nanoTime() - start;
+        }
+        final List<Node> result = new ArrayList<>(identifiers.size());
+        identifiers.forEach(identifier -> result.add(this.nodes.get(identifier)));
+        return result;
+    }
+
+    private void fetch(final Session session, final Collection<String> identifiers)
+    {
+        final String query = identifiers.stream()
+            .map(identifier -> "'" + identifier.replace("'", "''") + "'")
+            .collect(Collectors.joining(", ", "SELECT * FROM [nt:base] WHERE [jcr:uuid] IN (", ")"));
+        try {
+            final NodeIterator results =
+                session.getWorkspace().getQueryManager().createQuery(query, Query.JCR_SQL2).execute().getNodes();
+            while (results.hasNext()) {
+                final Node node = results.nextNode();
+                this.nodes.put(node.getIdentifier(), node);
+            }
+        } catch (RepositoryException e) {
+            // The nodes will be looked up one by one instead
+            LOGGER.debug("Failed to look up referenced nodes: {}", e.getMessage(), e);
+        }
+    }
+
+    private Node lookup(final Session session, final String identifier)
+    {
+        try {
+            return session.getNodeByIdentifier(identifier);
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+}
@@ -56,6 +56,12 @@ public int getPriority()
         return 25;
     }
 
+    @Override
+    public boolean isPure()
+    {
+        return true;
+    }
+
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
         final Function<Node, JsonValue> serializeNode)
@@ -18,6 +18,9 @@
  */
 package io.uhndata.cards.serialize.spi;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import org.apache.sling.api.resource.Resource;
 
 /**
@@ -52,4 +55,21 @@ default boolean canProcess(final Resource resource)
      * @return the resource serialization as CSV text, may be empty
      */
     String serialize(Resource resource);
+
+    /**
+     * Called for serializing a resource to CSV directly into a writer. The default implementation writes the result of
+     * {@link #serialize(Resource)}, processors that may produce large outputs should override it and write the output
+     * progressively.
+     *
+     * @param resource the resource to serialize
+     * @param output the writer where the CSV text must be written, must not be closed
+     * @throws IOException if writing to the output fails
+     */
+    default void serialize(final Resource resource, final Writer output) throws IOException
+    {
+        final String result = serialize(resource);
+        if (result != null) {
+            output.write(result);
+        }
+    }
 }
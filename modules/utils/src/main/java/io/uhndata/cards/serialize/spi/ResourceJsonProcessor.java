@@ -105,6 +105,20 @@ default boolean isEnabledByDefault(final Resource resource)
         return false;
     }
 
+    /**
+     * Reports whether this processor is pure, meaning that the JSON it produces for a node other than the resource
+     * being serialized only depends on the content of the repository, and not on the resource being serialized, on the
+     * nodes serialized before, or on any other state kept between calls. The serialization of a node reached while
+     * serializing another resource may be reused, without invoking the processors again, only if all the enabled
+     * processors are pure. The default implementation returns {@code false}.
+     *
+     * @return {@code true} if this processor is pure, {@code false} otherwise
+     */
+    default boolean isPure()
+    {
+        return false;
+    }
+
     /**
      * Called at the start of the serialization process for the topmost resource, in case the current processor needs to
      * initialize some temporary state.
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * In-memory index of the terms of installed vocabularies, used for answering suggestions and browsing the term
+ * hierarchy without querying the repository.
+ *
+ * @version $Id$
+ */
+public interface VocabularyTermIndex
+{
+    /**
+     * Find the terms whose label, synonyms, or identifier contain, for each word of the given text, a word starting
+     * with it, ignoring case. Unlike a full text query, the words must match from their start, and other properties
+     * of the terms are not searched.
+     *
+     * @param vocabulary the vocabulary to search in
+     * @param text the text typed by the user
+     * @param ancestors if not empty, only return the terms that have at least one of these terms among their ancestors
+     * @return the paths of the matching terms, best matches first, or {@code null} if the vocabulary is not indexed
+     *         yet, in which case the caller should fall back to a query
+     */
+    List<String> suggest(Resource vocabulary, String text, Collection<String> ancestors);
+
+    /**
+     * Find the direct children of a term.
+     *
+     * @param vocabulary the vocabulary of the term
+     * @param identifier the identifier of the parent term
+     * @return the paths of the child terms, sorted by label, or {@code null} if the vocabulary is not indexed yet, in
+     *         which case the caller should fall back to a query
+     */
+    List<String> getChildren(Resource vocabulary, String identifier);
+}
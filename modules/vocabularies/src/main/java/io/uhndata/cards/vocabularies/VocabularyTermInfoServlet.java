@@ -21,6 +21,8 @@
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import javax.json.Json;
@@ -42,10 +44,11 @@
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
 /**
  * A servlet that extends the normal JSON object of a VocabularyTermNode by replacing IDs with objects containing their
- * name and ID.
+ * name and ID. The children of the terms are taken from the {@link VocabularyTermIndex} when it is ready.
  *
  * @version $Id$
  */
@@ -66,6 +69,9 @@ public class VocabularyTermInfoServlet extends SlingSafeMethodsServlet
     /* Copying over every child tends to bloat the response, so we only copy a subset of the data */
     private static final String[] KEYS_TO_COPY = { "identifier", "label", "@path" };
 
+    @Reference
+    private VocabularyTermIndex termIndex;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
@@ -102,6 +108,7 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             boolean hasChildren = false;
             Iterator<Resource> children = getChildren(
                 request.getResource().adaptTo(JsonObject.class),
+                vocabulary,
                 resolver,
                 parentPath
                 );
@@ -109,7 +116,7 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             while (children.hasNext()) {
                 hasChildren = true;
                 Resource child = children.next();
-                jsonGen.write(populateChildren(child.adaptTo(JsonObject.class), resolver, parentPath));
+                jsonGen.write(populateChildren(child.adaptTo(JsonObject.class), vocabulary, resolver, parentPath));
             }
             jsonGen.writeEnd();
             jsonGen.write(HAS_CHILDREN_PROPERTY, hasChildren);
@@ -167,7 +174,7 @@ private JsonValue processArray(JsonArray array, Resource vocab, ResourceResolver
                     JsonObject linkedObject = linkedValue.adaptTo(JsonObject.class);
                     // If necessary, we also populate this child's children
                     if (includeChildren) {
-                        builder.add(populateChildren(linkedObject, resolver, parentPath));
+                        builder.add(populateChildren(linkedObject, vocab, resolver, parentPath));
                     } else {
                         builder.add(linkedObject);
                     }
@@ -184,14 +191,16 @@ private JsonValue processArray(JsonArray array, Resource vocab, ResourceResolver
      * Add the children of the given node to itself.
      *
      * @param resource The resource whose children we're looking for
+     * @param vocab Vocabulary object whose children are the vocabulary terms, may be null
      * @param resolver A reference to a resource resolver
      * @param parentPath The path of the vocabulary to search through
      * @return The input resource, with its children added as a property with key CHILDREN_PROPERTY
      */
-    private JsonObject populateChildren(JsonObject resource, ResourceResolver resolver, String parentPath)
+    private JsonObject populateChildren(JsonObject resource, Resource vocab, ResourceResolver resolver,
+        String parentPath)
     {
         // Add child terms
-        Iterator<Resource> children = getChildren(resource, resolver, parentPath);
+        Iterator<Resource> children = getChildren(resource, vocab, resolver, parentPath);
 
         // Copy the resource but add cards:hasChildren to it
         JsonObjectBuilder objectCopier = Json.createObjectBuilder();
@@ -206,13 +215,21 @@ private JsonObject populateChildren(JsonObject resource, ResourceResolver resolv
      * Determine if the given resource has children or not.
      *
      * @param resource The JsonObject to obtain the children of. Must have a child with key "id"
+     * @param vocab Vocabulary object whose children are the vocabulary terms, may be null
      * @param resolver A reference to a ResourceResolver to use
      * @param parentPath the location of the vocabulary whose children we're searching
      * @return An iterator over the resource's children
      */
-    private Iterator<Resource> getChildren(JsonObject resource, ResourceResolver resolver,
+    private Iterator<Resource> getChildren(JsonObject resource, Resource vocab, ResourceResolver resolver,
         String parentPath)
     {
+        final List<String> indexedChildren =
+            vocab == null ? null : this.termIndex.getChildren(vocab, resource.getString("identifier"));
+        if (indexedChildren != null) {
+            // The children are only loaded as they are needed, often only to check if there are any
+            return indexedChildren.stream().map(resolver::getResource).filter(Objects::nonNull).iterator();
+        }
+
         // Check to see if this resource has children
         String oakQuery = String.format(
             "SELECT * FROM [cards:VocabularyTerm] AS a WHERE isdescendantnode(a, '%s') AND a.parents = '%s'"
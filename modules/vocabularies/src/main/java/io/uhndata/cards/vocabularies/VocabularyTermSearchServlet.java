@@ -23,7 +23,11 @@
 import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -34,12 +38,25 @@
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 /**
- * A servlet that performs full text match and lucene queries on vocabulary terms.
+ * A servlet that performs full text match and lucene queries on vocabulary terms. Listing the children of a term, which
+ * is what the vocabulary browser does, is answered from the {@link VocabularyTermIndex} when it is ready.
+ * <p>
+ * Suggestions, optionally restricted to some categories, can also be answered from the index, if enabled in the
+ * configuration. This changes how terms are matched: instead of a full text query matching the text anywhere in any
+ * property of a term, the index matches the terms whose identifier, label, or synonyms contain words starting with each
+ * word of the text, and lists the terms whose label starts with the text first. This is why it is disabled by default.
+ * </p>
  *
  * @version $Id$
  */
@@ -49,6 +66,7 @@
     methods = { "GET" },
     selectors = { "search" }
     )
+@Designate(ocd = VocabularyTermSearchServlet.Config.class)
 public class VocabularyTermSearchServlet extends SlingSafeMethodsServlet
 {
     private static final long serialVersionUID = -8244429250995709300L;
@@ -57,6 +75,37 @@ public class VocabularyTermSearchServlet extends SlingSafeMethodsServlet
 
     private static final int MAX_LIMIT = 1000;
 
+    /** A filter restricting the results to the children of a term. */
+    private static final Pattern PARENT_FILTER = Pattern.compile("^is_a:(\\S+)$");
+
+    /** A filter restricting the results to the descendants of a term. */
+    private static final Pattern CATEGORY_FILTER = Pattern.compile("^term_category:([^ ()]+)$");
+
+    private static final Pattern OR_SEPARATOR = Pattern.compile("\\s+OR\\s+");
+
+    private static final String NAME_SORT = "nameSort asc";
+
+    @ObjectClassDefinition(name = "Vocabulary term search",
+        description = "Configuration for the search of vocabulary terms")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Indexed suggestions",
+            description = "Answer suggestions from the in-memory term index, which matches the terms whose identifier,"
+                + " label, or synonyms contain words starting with each typed word, instead of a full text query")
+        boolean indexedSuggestions() default false;
+    }
+
+    @Reference
+    private VocabularyTermIndex termIndex;
+
+    private boolean indexedSuggestions;
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        this.indexedSuggestions = config.indexedSuggestions();
+    }
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
@@ -69,10 +118,12 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         // To avoid overloading the server, we set a limit on the number of nodes that can be returned
         limit = Math.min(limit, MAX_LIMIT);
 
-        // Parse and execute the given suggest or query
+        // Parse and execute the given suggest or query, unless the in-memory index can answer it
+        final List<String> indexedResults = findInIndex(request.getResource(), suggest, query, filter, sort);
         String parentPath = request.getResource().getPath();
-        String oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
-        Iterator<Resource> results = request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
+        String oakQuery = indexedResults == null ? constructQuery(suggest, query, filter, sort, parentPath) : "";
+        Iterator<Resource> results = indexedResults == null
+            ? request.getResourceResolver().findResources(oakQuery, "JCR-SQL2") : null;
 
         // Write the output
         // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
@@ -80,12 +131,76 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         final Writer out = response.getWriter();
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
-            long[] limits = writeNodes(jsonGen, results, offset, limit);
+            long[] limits = indexedResults == null
+                ? writeNodes(jsonGen, results, offset, limit)
+                : writeIndexedNodes(jsonGen, request.getResourceResolver(), indexedResults, offset, limit);
             writeSummary(jsonGen, request, limits, oakQuery);
             jsonGen.writeEnd().flush();
         }
     }
 
+    /**
+     * Try to answer the request from the in-memory term index. Only suggestions without a specific sort order,
+     * optionally restricted to some term categories, if enabled, and the children of a term, sorted by name, can be
+     * answered.
+     *
+     * @param vocabulary the vocabulary being searched
+     * @param suggest A fulltext query to perform, or null if it was not given
+     * @param query A lucene query to perform, or null if it was not given
+     * @param filter A filter to apply
+     * @param sort Sorting to apply
+     * @return the paths of the matching terms, or {@code null} if the request must be answered with a query
+     */
+    private List<String> findInIndex(final Resource vocabulary, final String suggest, final String query,
+        final String filter, final String sort)
+    {
+        if (StringUtils.isNotBlank(query)) {
+            return null;
+        }
+        final String decodedFilter = StringUtils.isBlank(filter) ? "" : decodeFilter(filter).trim();
+        if (StringUtils.isNotBlank(suggest)) {
+            if (!this.indexedSuggestions) {
+                return null;
+            }
+            final List<String> categories = getCategories(decodedFilter);
+            return categories == null || StringUtils.isNotBlank(sort)
+                ? null
+                : this.termIndex.suggest(vocabulary, suggest, categories);
+        }
+        final Matcher parent = PARENT_FILTER.matcher(decodedFilter);
+        if (parent.matches() && (StringUtils.isBlank(sort) || NAME_SORT.equals(sort.trim()))) {
+            return this.termIndex.getChildren(vocabulary, parent.group(1));
+        }
+        return null;
+    }
+
+    /**
+     * Parse a filter of the form {@code (term_category:A OR term_category:B)}, as sent for questions restricted to
+     * some categories.
+     *
+     * @param filter the URL-decoded filter, may be empty
+     * @return the requested categories, empty if there is no filter, or {@code null} if the filter has another form
+     */
+    private List<String> getCategories(final String filter)
+    {
+        final List<String> result = new ArrayList<>();
+        if (filter.isEmpty()) {
+            return result;
+        }
+        String categories = filter;
+        if (categories.startsWith("(") && categories.endsWith(")")) {
+            categories = categories.substring(1, categories.length() - 1).trim();
+        }
+        for (String category : OR_SEPARATOR.split(categories)) {
+            final Matcher matcher = CATEGORY_FILTER.matcher(category.trim());
+            if (!matcher.matches()) {
+                return null;
+            }
+            result.add(matcher.group(1));
+        }
+        return result;
+    }
+
     /**
      * Construct a JCR-SQL2 query with the given parameters.
      *
@@ -165,13 +280,7 @@ private String handleLuceneQuery(String query, String parentPath)
      */
     private String getConditionFromFilter(String filters)
     {
-        // URL-decode the filters
-        String decodedFilters = "";
-        try {
-            decodedFilters = URLDecoder.decode(filters, StandardCharsets.UTF_8.name());
-        } catch (UnsupportedEncodingException e) {
-            // not going to happen - value came from JDK's own StandardCharsets
-        }
+        String decodedFilters = decodeFilter(filters);
 
         decodedFilters = decodedFilters.replaceAll("'", "''");
         decodedFilters = decodedFilters.replaceAll("is_a:(.+)", "a.'parents'='$1'");
@@ -183,6 +292,23 @@ private String getConditionFromFilter(String filters)
         return (" AND " + decodedFilters);
     }
 
+    /**
+     * URL-decode the filters.
+     *
+     * @param filters the filters, as received in the request
+     * @return the decoded filters
+     */
+    private String decodeFilter(String filters)
+    {
+        String decodedFilters = "";
+        try {
+            decodedFilters = URLDecoder.decode(filters, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            // not going to happen - value came from JDK's own StandardCharsets
+        }
+        return decodedFilters;
+    }
+
     private String getOrderFromSort(String sort)
     {
         String decodedSort = sort.replace("nameSort", "[label]");
@@ -245,6 +371,33 @@ private long[] writeNodes(final JsonGenerator jsonGen, final Iterator<Resource>
         return counts;
     }
 
+    private long[] writeIndexedNodes(final JsonGenerator jsonGen, final ResourceResolver resolver,
+        final List<String> paths, final long offset, final long limit)
+    {
+        final long[] counts = new long[4];
+        counts[0] = offset;
+        counts[1] = limit;
+        counts[2] = 0;
+        counts[3] = paths.size();
+
+        jsonGen.writeStartArray("rows");
+
+        // Only the returned terms need to be loaded, the total is known from the index
+        final long start = Math.min(Math.max(offset, 0), paths.size());
+        final long end = Math.min(start + Math.max(limit, 0), paths.size());
+        for (long i = start; i < end; ++i) {
+            final Resource n = resolver.getResource(paths.get((int) i));
+            if (n != null) {
+                jsonGen.write(n.adaptTo(JsonObject.class));
+                ++counts[2];
+            }
+        }
+
+        jsonGen.writeEnd();
+
+        return counts;
+    }
+
     private long getLongValueOrDefault(final String stringValue, final long defaultValue)
     {
         long value = defaultValue;
@@ -41,7 +41,8 @@
  * Abstract class specifying a vocabulary ontology indexer specifically for the National Cancer Institute Thesaurus. The
  * class implements methods common to parsers for the NCIT, but omits file-type specific methods. The parsing and node
  * creation process is done as a transaction, meaning that if it fails, then proposed changes saved in storage will not
- * be applied, and the repository will be left in its original state.
+ * be applied, and the repository will be left in its original state. Alternatively, the terms can be saved in batches,
+ * see {@link VocabularyBulkLoader}.
  * <p>
  * The indexer assumes that the resource of the response it is given is a <code>VocabulariesHomepage</code> node under
  * which the <code>Vocabulary</code> node instance should be stored in the Jackrabbit Oak repository as a child.
@@ -56,6 +57,9 @@ public abstract class AbstractNCITIndexer implements VocabularyIndexer
     @Reference
     protected VocabularyParserUtils utils;
 
+    /** Controls when the terms of the vocabulary being indexed are saved. */
+    private final ThreadLocal<VocabularyBulkLoader> loader = new ThreadLocal<>();
+
     /**
      * Method called by the {@link io.uhndata.cards.vocabularies.VocabularyIndexerServlet} to parse and index a NCIT
      * vocabulary. Specifying the version to index is mandatory. There are two optional parameters.
@@ -73,6 +77,12 @@ public abstract class AbstractNCITIndexer implements VocabularyIndexer
      * {@link io.uhndata.cards.vocabularies.spi.VocabularyIndexException} is thrown.
      * </p>
      * You cannot create a vocabulary with the same identifier as an existing vocabulary unless you overwrite it.
+     * <p>
+     * <code>batchSize</code> - save the terms in batches of this size instead of all at once
+     * </p>
+     * <p>
+     * <code>resume</code> - if "true", continue an interrupted batched load instead of starting over
+     * </p>
      *
      * @param request http request from {@link io.uhndata.cards.vocabularies.VocabularyIndexerServlet}
      * @param response http response from {@link io.uhndata.cards.vocabularies.VocabularyIndexerServlet}
@@ -92,6 +102,8 @@ public void index(final String source, final SlingHttpServletRequest request,
 
         // Obtain the resource of the request and adapt it to a JCR node. This must be the /Vocabularies homepage node.
         Node homepage = request.getResource().adaptTo(Node.class);
+        final VocabularyBulkLoader bulkLoader = VocabularyBulkLoader.fromRequest(request);
+        this.loader.set(bulkLoader);
 
         final File temporaryFile = File.createTempFile(identifier, "");
         try {
@@ -104,8 +116,12 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Continue an interrupted bulk load if requested, otherwise delete the Vocabulary node already representing
+            // this vocabulary instance if it exists
+            final Node resumedVocabulary = bulkLoader.resume(homepage, identifier);
+            if (resumedVocabulary == null) {
+                this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            }
 
             // Load temporary NCIT zip file. Default location is at https://evs.nci.nih.gov/ftp1/NCI_Thesaurus/
             String sourceLocation = getDefaultSource(version);
@@ -123,17 +139,23 @@ public void index(final String source, final SlingHttpServletRequest request,
 
             // Create a new Vocabulary node instance representing this vocabulary instance
             String name = "National Cancer Institute Thesaurus";
-            Node vocabularyNode = createNCITVocabularyNode(homepage, identifier, name, sourceLocation, version);
+            Node vocabularyNode = resumedVocabulary != null ? resumedVocabulary
+                : createNCITVocabularyNode(homepage, identifier, name, sourceLocation, version);
+            bulkLoader.start(vocabularyNode);
 
             // Parse the NCIT zip file and create VocabularyTerm node children
             parseNCIT(temporaryFile, vocabularyNode);
 
             /*
              * Save the JCR session. If any errors occur before this step, all proposed changes will not be applied and
-             * the repository will remain in its original state. Lucene indexing is automatically performed by the
-             * Jackrabbit Oak repository when this is performed.
+             * the repository will remain in its original state, unless terms are loaded in bulk mode. Lucene indexing
+             * is automatically performed by the Jackrabbit Oak repository when this is performed.
              */
-            saveSession(homepage);
+            if (bulkLoader.isBulk()) {
+                bulkLoader.finish();
+            } else {
+                saveSession(homepage);
+            }
 
             // Success response json
             this.utils.writeStatusJson(request, response, true, null);
@@ -144,6 +166,7 @@ public void index(final String source, final SlingHttpServletRequest request,
         } finally {
             // Delete temporary source file
             FileUtils.deleteQuietly(temporaryFile);
+            this.loader.remove();
         }
     }
 
@@ -198,6 +221,11 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
         String description, String[] synonyms, String[] parents, String[] ancestors)
         throws VocabularyIndexException
     {
+        final VocabularyBulkLoader bulkLoader = this.loader.get();
+        if (bulkLoader != null && bulkLoader.getExistingTerm(identifier) != null) {
+            // Already saved by an interrupted bulk load
+            return;
+        }
         try {
             Node vocabularyTermNode = vocabularyNode.addNode("./" + identifier, "cards:VocabularyTerm");
             vocabularyTermNode.setProperty("identifier", identifier);
@@ -212,6 +240,9 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
             vocabularyTermNode.setProperty("synonyms", synonyms);
             vocabularyTermNode.setProperty("parents", parents);
             vocabularyTermNode.setProperty("ancestors", ancestors);
+            if (bulkLoader != null) {
+                bulkLoader.termAdded();
+            }
         } catch (RepositoryException e) {
             // If the identifier exists, print the identifier in the error message to identify node
             String message =
@@ -54,7 +54,8 @@
  * BioOntology server</li>
  * </ul>
  * An optional {@code version} parameter can be used to index a specific version of the target vocabulary. If not
- * specified, then the latest available version will be used.
+ * specified, then the latest available version will be used. Large vocabularies can be loaded in batches with the
+ * optional {@code batchSize} and {@code resume} parameters, see {@link VocabularyBulkLoader}.
  *
  * @version $Id$
  */
@@ -98,6 +99,7 @@ public void index(final String source, final SlingHttpServletRequest request,
 
         // Obtain the resource of the request and adapt it to a JCR node. This must be the /Vocabularies homepage node.
         Node homepage = request.getResource().adaptTo(Node.class);
+        final VocabularyBulkLoader loader = VocabularyBulkLoader.fromRequest(request);
 
         File temporaryFile = null;
         try {
@@ -110,8 +112,12 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Continue an interrupted bulk load if requested, otherwise delete the Vocabulary node already representing
+            // this vocabulary instance if it exists
+            final Node resumedVocabulary = loader.resume(homepage, identifier);
+            if (resumedVocabulary == null) {
+                this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            }
 
             // Load the description
             VocabularyDescription description;
@@ -142,15 +148,18 @@ public void index(final String source, final SlingHttpServletRequest request,
             }
 
             // Create a new Vocabulary node representing this vocabulary
-            this.vocabularyNode.set(OntologyIndexerUtils.createVocabularyNode(homepage, description));
+            this.vocabularyNode.set(resumedVocabulary != null ? resumedVocabulary
+                : OntologyIndexerUtils.createVocabularyNode(homepage, description));
+            OntologyIndexerUtils.startInstall(this.vocabularyNode.get(), loader);
 
             // Parse the source file and create VocabularyTerm node children
             parser.parse(temporaryFile, description, this::createVocabularyTermNode);
 
             /*
              * Save the JCR session and check-in nodes. If any errors occur before this step, all proposed changes
-             * will not be applied and the repository will remain in its original state. Lucene indexing is
-             * automatically performed by the Jackrabbit Oak repository when this is performed.
+             * will not be applied and the repository will remain in its original state, unless terms are loaded in
+             * bulk mode. Lucene indexing is automatically performed by the Jackrabbit Oak repository when this is
+             * performed.
              */
             OntologyIndexerUtils.finalizeInstall(homepage, this.vocabularyNode);
 
@@ -164,6 +173,7 @@ public void index(final String source, final SlingHttpServletRequest request,
             // Delete temporary source file
             FileUtils.deleteQuietly(temporaryFile);
             this.vocabularyNode.remove();
+            OntologyIndexerUtils.cleanup();
         }
     }
 
@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.vocabularies.VocabularyTermIndex;
+
+/**
+ * Keeps the terms of each vocabulary in memory, in compact arrays: the label and node name of each term, the children
+ * of each term sorted by label, and a sorted dictionary of all the words found in the labels, synonyms, and
+ * identifiers of the terms, along with the terms containing each word. Looking up the words starting with a prefix is
+ * a binary search in the dictionary, so suggestions and browsing don't need any query.
+ * <p>
+ * A vocabulary is indexed in the background the first time it is used, and any change to it discards its index, which
+ * is rebuilt the next time it is used. This includes re-indexing the vocabulary. Vocabularies that are still being
+ * loaded in bulk mode are not indexed. Until the index is ready, requests are answered with queries.
+ * </p>
+ * <p>
+ * Since an index is shared by all users, it is built with the {@code VocabularyTermIndex} service user, which can read
+ * all the terms. Access rights are checked when the matching terms are returned to the user.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { VocabularyTermIndex.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Vocabularies",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public final class InMemoryVocabularyTermIndex implements VocabularyTermIndex, ResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryVocabularyTermIndex.class);
+
+    private static final String ROOT = "/Vocabularies/";
+
+    private static final String TERM_TYPE = "cards:VocabularyTerm";
+
+    private static final String IDENTIFIER = "identifier";
+
+    private static final String LABEL = "label";
+
+    /** The properties whose words can be used for finding a term. */
+    private static final String[] SEARCHED_PROPERTIES = { IDENTIFIER, LABEL, "synonym", "synonyms" };
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /** The indexed vocabularies, by path. */
+    private final Map<String, VocabularyIndex> indexes = new ConcurrentHashMap<>();
+
+    /** The paths of the vocabularies being indexed. */
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+
+    /** Incremented on every change to a vocabulary, so that indexes built from outdated terms are discarded. */
+    private long changeCount;
+
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate()
+    {
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "VocabularyTermIndex");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.executor.shutdownNow();
+        this.indexes.clear();
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        synchronized (this) {
+            ++this.changeCount;
+            changes.stream()
+                .map(change -> getVocabularyPath(change.getPath()))
+                .filter(Objects::nonNull)
+                .distinct()
+                .forEach(this.indexes::remove);
+        }
+    }
+
+    @Override
+    public List<String> suggest(final Resource vocabulary, final String text, final Collection<String> ancestors)
+    {
+        final VocabularyIndex index = getIndex(vocabulary);
+        return index == null ? null : index.suggest(text, ancestors);
+    }
+
+    @Override
+    public List<String> getChildren(final Resource vocabulary, final String identifier)
+    {
+        final VocabularyIndex index = getIndex(vocabulary);
+        return index == null ? null : index.getChildren(identifier);
+    }
+
+    private VocabularyIndex getIndex(final Resource vocabulary)
+    {
+        final String path = vocabulary.getPath();
+        final VocabularyIndex result = this.indexes.get(path);
+        if (result == null && this.building.add(path)) {
+            try {
+                this.executor.execute(() -> build(path));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to start indexing vocabulary {}: {}", path, e.getMessage());
+                this.building.remove(path);
+            }
+        }
+        return result;
+    }
+
+    private void build(final String path)
+    {
+        final long changesBefore;
+        synchronized (this) {
+            changesBefore = this.changeCount;
+        }
+        // The session is opened after reading the change count, so it sees all the changes counted so far
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, "VocabularyTermIndex"))) {
+            final Resource resource = resolver.getResource(path);
+            final Node vocabulary = resource == null ? null : resource.adaptTo(Node.class);
+            if (vocabulary == null || VocabularyBulkLoader.isIncomplete(vocabulary)) {
+                // Nothing to index yet, try again on the next request
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final VocabularyIndex result = VocabularyIndex.build(path, vocabulary);
+            synchronized (this) {
+                if (this.changeCount != changesBefore) {
+                    // The terms were read while the vocabulary was changing, try again on the next request
+                    return;
+                }
+                this.indexes.put(path, result);
+            }
+            LOGGER.info("Indexed {} terms of vocabulary {} in {} ms", result.size(), path,
+                System.currentTimeMillis() - start);
+        } catch (LoginException | RepositoryException | RuntimeException e) {
+            LOGGER.warn("Failed to index vocabulary {}: {}", path, e.getMessage(), e);
+        } finally {
+            this.building.remove(path);
+        }
+    }
+
+    private static String getVocabularyPath(final String path)
+    {
+        if (path == null || !path.startsWith(ROOT)) {
+            return null;
+        }
+        return ROOT + StringUtils.substringBefore(path.substring(ROOT.length()), "/");
+    }
+
+    private static String[] toWords(final String text)
+    {
+        return Arrays.stream(WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT)))
+            .filter(StringUtils::isNotEmpty)
+            .toArray(String[]::new);
+    }
+
+    /**
+     * The index of one vocabulary. Terms are identified by their position in the arrays.
+     */
+    private static final class VocabularyIndex
+    {
+        /** Category filters are few, mostly coming from questionnaire definitions, so their results are cached. */
+        private static final int MAX_CACHED_FILTERS = 100;
+
+        private final String path;
+
+        /** The node name of each term. */
+        private final String[] names;
+
+        /** The label of each term. */
+        private final String[] labels;
+
+        /** The position of each term, by identifier. */
+        private final Map<String, Integer> positions;
+
+        /** The children of each term, sorted by label. */
+        private final int[][] children;
+
+        /** All the words of the searched properties, lowercase, sorted. */
+        private final String[] words;
+
+        /** The terms containing each word, in ascending order. */
+        private final int[][] postings;
+
+        /** The descendants of the terms used as category filters, by filter. */
+        private final Map<String, BitSet> descendants = new ConcurrentHashMap<>();
+
+        private VocabularyIndex(final String path, final String[] names, final String[] labels,
+            final Map<String, Integer> positions, final List<String[]> parents, final Map<String, int[]> wordTerms)
+        {
+            this.path = path;
+            this.names = names;
+            this.labels = labels;
+            this.positions = positions;
+
+            final List<List<Integer>> childLists = new ArrayList<>(names.length);
+            for (int i = 0; i < names.length; ++i) {
+                childLists.add(new ArrayList<>());
+            }
+            for (int i = 0; i < names.length; ++i) {
+                for (String parent : parents.get(i)) {
+                    final Integer parentPosition = positions.get(parent);
+                    if (parentPosition != null) {
+                        childLists.get(parentPosition).add(i);
+                    }
+                }
+            }
+            final Comparator<Integer> byLabel =
+                Comparator.comparing((Integer term) -> labels[term]).thenComparing(term -> names[term]);
+            this.children = childLists.stream()
+                .map(list -> list.stream().sorted(byLabel).mapToInt(Integer::intValue).toArray())
+                .toArray(int[][]::new);
+
+            this.words = wordTerms.keySet().toArray(ArrayUtils.EMPTY_STRING_ARRAY);
+            Arrays.sort(this.words);
+            this.postings = Arrays.stream(this.words)
+                .map(word -> {
+                    final int[] terms = wordTerms.get(word);
+                    return Arrays.copyOfRange(terms, 1, terms[0] + 1);
+                })
+                .toArray(int[][]::new);
+        }
+
+        /**
+         * Read all the terms of a vocabulary.
+         *
+         * @param path the path of the vocabulary
+         * @param vocabulary the vocabulary node
+         * @return the index of the vocabulary
+         * @throws RepositoryException if reading the terms fails
+         */
+        static VocabularyIndex build(final String path, final Node vocabulary) throws RepositoryException
+        {
+            final List<String> names = new ArrayList<>();
+            final List<String> labels = new ArrayList<>();
+            final Map<String, Integer> positions = new HashMap<>();
+            final List<String[]> parents = new ArrayList<>();
+            final Map<String, int[]> wordTerms = new HashMap<>();
+            final NodeIterator terms = vocabulary.getNodes();
+            while (terms.hasNext()) {
+                final Node term = terms.nextNode();
+                if (!term.isNodeType(TERM_TYPE)) {
+                    continue;
+                }
+                final int position = names.size();
+                final String identifier = StringUtils.defaultString(getFirstValue(term, IDENTIFIER), term.getName());
+                names.add(term.getName());
+                labels.add(StringUtils.defaultString(getFirstValue(term, LABEL), identifier));
+                positions.put(identifier, position);
+                parents.add(getValues(term, "parents"));
+                for (String property : SEARCHED_PROPERTIES) {
+                    for (String value : getValues(term, property)) {
+                        addWords(value, position, wordTerms);
+                    }
+                }
+            }
+            return new VocabularyIndex(path, names.toArray(ArrayUtils.EMPTY_STRING_ARRAY),
+                labels.toArray(ArrayUtils.EMPTY_STRING_ARRAY), positions, parents, wordTerms);
+        }
+
+        int size()
+        {
+            return this.names.length;
+        }
+
+        List<String> suggest(final String text, final Collection<String> ancestors)
+        {
+            BitSet matches = null;
+            for (String prefix : toWords(text)) {
+                final BitSet prefixMatches = findPrefix(prefix);
+                if (matches == null) {
+                    matches = prefixMatches;
+                } else {
+                    matches.and(prefixMatches);
+                }
+            }
+            if (matches == null) {
+                return List.of();
+            }
+            if (ancestors != null && !ancestors.isEmpty()) {
+                matches.and(getDescendants(ancestors));
+            }
+            // Terms whose label starts with the text come first, then shorter labels, which are usually more general
+            final String lowercaseText = text.trim().toLowerCase(Locale.ROOT);
+            return matches.stream().boxed()
+                .sorted(Comparator
+                    .comparing((Integer term) -> !this.labels[term].toLowerCase(Locale.ROOT).startsWith(lowercaseText))
+                    .thenComparingInt(term -> this.labels[term].length())
+                    .thenComparing(term -> this.labels[term]))
+                .map(this::getPath)
+                .collect(Collectors.toList());
+        }
+
+        List<String> getChildren(final String identifier)
+        {
+            final Integer position = this.positions.get(identifier);
+            if (position == null) {
+                return List.of();
+            }
+            return Arrays.stream(this.children[position]).mapToObj(this::getPath).collect(Collectors.toList());
+        }
+
+        private String getPath(final int term)
+        {
+            return this.path + "/" + this.names[term];
+        }
+
+        private BitSet findPrefix(final String prefix)
+        {
+            final BitSet result = new BitSet(this.names.length);
+            final int found = Arrays.binarySearch(this.words, prefix);
+            // All the words starting with the prefix come right after the place where the prefix would be
+            int i = found < 0 ? -found - 1 : found;
+            while (i < this.words.length && this.words[i].startsWith(prefix)) {
+                for (int term : this.postings[i]) {
+                    result.set(term);
+                }
+                ++i;
+            }
+            return result;
+        }
+
+        private BitSet getDescendants(final Collection<String> ancestors)
+        {
+            final String key = String.join(" ", new TreeSet<>(ancestors));
+            BitSet result = this.descendants.get(key);
+            if (result == null) {
+                result = computeDescendants(ancestors);
+                if (this.descendants.size() >= MAX_CACHED_FILTERS) {
+                    this.descendants.clear();
+                }
+                this.descendants.put(key, result);
+            }
+            return result;
+        }
+
+        private BitSet computeDescendants(final Collection<String> ancestors)
+        {
+            final BitSet result = new BitSet(this.names.length);
+            // Each term is pushed at most once, so the stack never holds more than all the terms
+            final int[] stack = new int[this.names.length];
+            int depth = 0;
+            for (String ancestor : ancestors) {
+                final Integer position = this.positions.get(ancestor);
+                if (position != null) {
+                    depth = pushChildren(position, result, stack, depth);
+                }
+            }
+            while (depth > 0) {
+                --depth;
+                depth = pushChildren(stack[depth], result, stack, depth);
+            }
+            return result;
+        }
+
+        private int pushChildren(final int term, final BitSet seen, final int[] stack, final int depth)
+        {
+            int result = depth;
+            for (int child : this.children[term]) {
+                if (!seen.get(child)) {
+                    seen.set(child);
+                    stack[result++] = child;
+                }
+            }
+            return result;
+        }
+
+        private static void addWords(final String value, final int term, final Map<String, int[]> wordTerms)
+        {
+            for (String word : toWords(value)) {
+                wordTerms.compute(word, (k, terms) -> append(terms, term));
+            }
+        }
+
+        /**
+         * Add a term to the terms containing a word. Terms are added in ascending order, and the first element of the
+         * array holds the number of terms, so that the array can grow like a list without boxing every term.
+         *
+         * @param terms the terms already containing the word, may be {@code null}
+         * @param term the term to add
+         * @return the array holding the terms, which may be a new one
+         */
+        private static int[] append(final int[] terms, final int term)
+        {
+            if (terms == null) {
+                return new int[] { 1, term };
+            }
+            final int count = terms[0];
+            if (terms[count] == term) {
+                // The same word appears several times in the same term
+                return terms;
+            }
+            final int[] result = count + 1 < terms.length ? terms : Arrays.copyOf(terms, terms.length * 2);
+            result[count + 1] = term;
+            result[0] = count + 1;
+            return result;
+        }
+
+        private static String getFirstValue(final Node node, final String property) throws RepositoryException
+        {
+            final String[] values = getValues(node, property);
+            return values.length == 0 ? null : values[0];
+        }
+
+        private static String[] getValues(final Node node, final String property) throws RepositoryException
+        {
+            if (!node.hasProperty(property)) {
+                return ArrayUtils.EMPTY_STRING_ARRAY;
+            }
+            final Property values = node.getProperty(property);
+            if (!values.isMultiple()) {
+                return new String[] { values.getString() };
+            }
+            final Value[] rawValues = values.getValues();
+            final String[] result = new String[rawValues.length];
+            for (int i = 0; i < rawValues.length; ++i) {
+                result[i] = rawValues[i].getString();
+            }
+            return result;
+        }
+    }
+}
@@ -26,13 +26,18 @@
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.osgi.service.component.annotations.Component;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +49,12 @@
 
 /**
  * Parser for vocabulary sources in the OBO format.
+ * <p>
+ * The term frames are read in batches, and the values of the frames in a batch are unescaped in parallel. Since the
+ * ancestors of a term can only be known once all the terms are read, the whole file is read before any term is passed
+ * on, but the ancestors are computed on compact arrays of term indexes instead of sets of identifiers. The parsing runs
+ * on its own thread, see {@link TermPipeline}.
+ * </p>
  *
  * @version $Id$
  */
@@ -55,7 +66,7 @@
 public class OboParser implements SourceParser
 {
     /** Marks the start of a new Frame. */
-    private static final String FRAME_MARKER = "^\\[[a-zA-Z]+\\]$";
+    private static final Pattern FRAME_MARKER = Pattern.compile("^\\[[a-zA-Z]+\\]$");
 
     /** Marks the start of a new Term Frame. */
     private static final String TERM_MARKER = "[Term]";
@@ -64,13 +75,32 @@ public class OboParser implements SourceParser
      * Regex pattern for separating the tag and its value from a line: an optional even number of backslashes, followed
      * by a colon, and optional whitespace.
      */
-    private static final String FIELD_NAME_VALUE_SEPARATOR = "(?<!\\\\)(?:\\\\\\\\)*:\\s*";
+    private static final Pattern FIELD_NAME_VALUE_SEPARATOR = Pattern.compile("(?<!\\\\)(?:\\\\\\\\)*:\\s*");
 
-    /** Holds the term currently being . */
-    private InheritableThreadLocal<TermData> crtTerm = new InheritableThreadLocal<>();
+    /** A quoted value, see {@link #process(String)}. */
+    private static final Pattern QUOTED_VALUE = Pattern.compile("^\"(.*?(?<!\\\\)(?:\\\\\\\\)*)\".*");
 
-    /** Holds all the terms parsed so far. */
-    private InheritableThreadLocal<Map<String, TermData>> data = new InheritableThreadLocal<>();
+    /** Trailing modifiers or comments, see {@link #process(String)}. */
+    private static final Pattern TRAILING_MODIFIERS = Pattern.compile("^(.*?(?<!\\\\)(?:\\\\\\\\)*)[\\{!].*");
+
+    /** Escaped special symbols, see {@link #process(String)}. */
+    private static final Pattern ESCAPED_SYMBOL =
+        Pattern.compile("((?<!\\\\)(?:\\\\\\\\)*)\\\\([!:,\"\\(\\)\\[\\]\\{\\}])");
+
+    /** Escaped newline, see {@link #process(String)}. */
+    private static final Pattern ESCAPED_NEWLINE = Pattern.compile("((?<!\\\\)(?:\\\\\\\\)*)\\\\n");
+
+    /** Escaped space, see {@link #process(String)}. */
+    private static final Pattern ESCAPED_SPACE = Pattern.compile("((?<!\\\\)(?:\\\\\\\\)*)\\\\W");
+
+    /** Escaped tab, see {@link #process(String)}. */
+    private static final Pattern ESCAPED_TAB = Pattern.compile("((?<!\\\\)(?:\\\\\\\\)*)\\\\t");
+
+    /** Escaped backslash, see {@link #process(String)}. */
+    private static final Pattern ESCAPED_BACKSLASH = Pattern.compile("\\\\\\\\");
+
+    /** How many frames to unescape in parallel. */
+    private static final int FRAME_BATCH_SIZE = 1000;
 
     /** Logger object used to handle thrown errors. */
     private Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -88,89 +118,103 @@ public void parse(
         final Consumer<VocabularyTermSource> consumer) throws IOException, VocabularyIndexException
     {
         try {
-            this.data.set(new LinkedHashMap<>());
-            readLines(source);
-            propagateAncestors();
-            consumeData(consumer);
-            this.data.remove();
+            TermPipeline.run("OboParser", sink -> {
+                final Map<String, TermData> terms = readTerms(source);
+                emitTerms(new ArrayList<>(terms.values()), sink);
+            }, consumer);
         } catch (IOException ex) {
             this.logger.error("IOException: {}", ex.getMessage());
         }
     }
 
     /**
-     * Read the source file and populate the data variable.
+     * Read the source file and gather all the terms it describes.
      *
      * @param source the file containing the vocabulary source in OBO format
+     * @return the parsed terms, by identifier, in the order in which they appear in the file
      * @throws IOException if reading the source file fails
      */
-    private void readLines(final File source) throws IOException
+    private Map<String, TermData> readTerms(final File source) throws IOException
     {
-        // Start by examining a new term
-        this.crtTerm.set(new TermData());
+        final Map<String, TermData> result = new LinkedHashMap<>();
+        final List<List<String[]>> frames = new ArrayList<>(FRAME_BATCH_SIZE);
         try (ConcatenatingLineReader br =
             new ConcatenatingLineReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
             String line;
-            // Used to skip over the header and non-Term frames
-            // Initially false, since at the start of the file is the header
-            boolean isTerm = false;
+            // The raw fields of the current Term frame,
+            // null while in the header, which is at the start of the file, or in a non-Term frame
+            List<String[]> crtFrame = null;
             while ((line = br.readLine()) != null) {
-                if (line.trim().matches(FRAME_MARKER)) {
+                final String trimmed = line.trim();
+                if (FRAME_MARKER.matcher(trimmed).matches()) {
                     // We just encountered the start of a new frame
-                    if (isTerm) {
+                    if (crtFrame != null) {
                         // If the previous frame was a Term, store it
-                        storeCrtTerm();
+                        frames.add(crtFrame);
+                        if (frames.size() >= FRAME_BATCH_SIZE) {
+                            storeFrames(frames, result);
+                        }
                     }
                     // Non-Term frames must be ignored, only Terms are recorded
-                    isTerm = line.trim().equalsIgnoreCase(TERM_MARKER);
+                    crtFrame = trimmed.equalsIgnoreCase(TERM_MARKER) ? new ArrayList<>() : null;
                     continue;
                 }
-                if (isTerm) {
-                    // Inside a Term, process its values
-                    String[] pieces = line.split(FIELD_NAME_VALUE_SEPARATOR, 2);
-                    if (pieces.length != 2) {
-                        continue;
+                if (crtFrame != null) {
+                    // Inside a Term, gather its fields
+                    String[] pieces = FIELD_NAME_VALUE_SEPARATOR.split(line, 2);
+                    if (pieces.length == 2) {
+                        crtFrame.add(pieces);
                     }
-                    loadField(pieces[0], pieces[1]);
                 }
             }
             // Also store the last term parsed when the end of the file is encountered
-            if (isTerm) {
-                storeCrtTerm();
+            if (crtFrame != null) {
+                frames.add(crtFrame);
             }
+            storeFrames(frames, result);
         }
+        return result;
     }
 
     /**
-     * Store the current term data and set up a new TermData instance to record the next term.
+     * Process a batch of raw Term frames and store the resulting terms. Processing the values is the most expensive
+     * part of reading the file, and it can be done for each frame independently, so the frames are processed in
+     * parallel. The terms are then stored in the order of the frames, since multiple frames can describe the same term.
+     *
+     * @param frames the raw fields of each frame, cleared once the frames are stored
+     * @param terms the terms parsed so far, by identifier
      */
-    private void storeCrtTerm()
+    private static void storeFrames(final List<List<String[]>> frames, final Map<String, TermData> terms)
     {
-        // Only terms with a valid identifier can be stored
-        TermData termToProcess = this.crtTerm.get();
-        if (termToProcess.getId() != null) {
-            // Multiple frames can describe the same term, we must combine them into one
-            TermData existing = this.data.get().get(termToProcess.getId());
-            if (existing == null) {
-                this.data.get().put(termToProcess.getId(), termToProcess);
-            } else {
-                existing.getAllProperties().putAll(termToProcess.getAllProperties());
+        final List<TermData> parsed = frames.parallelStream().map(OboParser::processFrame).collect(Collectors.toList());
+        for (TermData term : parsed) {
+            // Only terms with a valid identifier can be stored
+            if (term.getId() != null) {
+                // Multiple frames can describe the same term, we must combine them into one
+                final TermData existing = terms.putIfAbsent(term.getId(), term);
+                if (existing != null) {
+                    existing.getAllProperties().putAll(term.getAllProperties());
+                }
             }
         }
-        this.crtTerm.set(new TermData());
+        frames.clear();
     }
 
     /**
-     * Process a field ("name = value" pair) by extracting only the actual value, ignoring trailing modifiers, dbxrefs,
-     * and comments, as well as synonym categories.
+     * Process the fields ("name = value" pairs) of a Term frame by extracting only the actual values, ignoring trailing
+     * modifiers, dbxrefs, and comments, as well as synonym categories.
      *
-     * @param name the name of the property
-     * @param value the raw value, which may be a simple unquoted or quoted value, or a value with additional trailing
-     *            modifiers, comments, and other tags
+     * @param frame the raw names and values of the fields, where each value may be a simple unquoted or quoted value,
+     *            or a value with additional trailing modifiers, comments, and other tags
+     * @return the term described by the frame
      */
-    private void loadField(String name, String value)
+    private static TermData processFrame(final List<String[]> frame)
     {
-        this.crtTerm.get().addTo(process(name), process(value));
+        final TermData result = new TermData();
+        for (String[] field : frame) {
+            result.addTo(process(field[0]), process(field[1]));
+        }
+        return result;
     }
 
     /**
@@ -180,7 +224,7 @@ private void loadField(String name, String value)
      * @param rawValue the value as present in the input file
      * @return the processed value, with any trailing bits removed, unquoted, and unescaped
      */
-    private String process(final String rawValue)
+    private static String process(final String rawValue)
     {
         String realValue = rawValue;
 
@@ -214,7 +258,7 @@ private String process(final String rawValue)
         // "Abnormally long and slender fingers (\"spider fingers\")." [HPO:probinson]
         // becomes
         // Abnormally long and slender fingers (\"spider fingers\").
-        realValue = realValue.replaceFirst("^\"(.*?(?<!\\\\)(?:\\\\\\\\)*)\".*", "$1");
+        realValue = QUOTED_VALUE.matcher(realValue).replaceFirst("$1");
 
         // If there are trailing modifiers or comments, remove them.
         // - must match from the start: ^
@@ -238,7 +282,7 @@ private String process(final String rawValue)
         // becomes
         // Often associated with Cowden syndrome.
         if (!wasQuoted) {
-            realValue = realValue.replaceFirst("^(.*?(?<!\\\\)(?:\\\\\\\\)*)[\\{!].*", "$1").trim();
+            realValue = TRAILING_MODIFIERS.matcher(realValue).replaceFirst("$1").trim();
         }
 
         // We should also remove trailing Dbxref lists, but this isn't necessary since they can only appear after a
@@ -254,93 +298,215 @@ private String process(final String rawValue)
         // - escaped: [!:,\"\\(\\)\\[\\]\\{\\}]
         // - captured as the second group, since we want to output it: ([!:,\"\\(\\)\\[\\]\\{\\}])
         // - replace with the optional even backslashes before the escaping backslash, and the symbol itself
-        realValue = realValue.replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\([!:,\"\\(\\)\\[\\]\\{\\}])", "$1$2");
+        realValue = ESCAPED_SYMBOL.matcher(realValue).replaceAll("$1$2");
 
         // Unescape other special characters: newline, space, tab
         // - as above, captured optional even number of preceding backslashes: ((?<!\\\\)(?:\\\\\\\\)*)
         // - followed by a single backslash, escaped two times: \\\\
         // - followed by n, W, or t respectively
         // - replace with the optional even backslashes before the escaping backslash, and the special character
-        realValue = realValue.replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\n", "$1\n")
-            .replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\W", "$1 ")
-            .replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\t", "$1\t");
+        realValue = ESCAPED_NEWLINE.matcher(realValue).replaceAll("$1\n");
+        realValue = ESCAPED_SPACE.matcher(realValue).replaceAll("$1 ");
+        realValue = ESCAPED_TAB.matcher(realValue).replaceAll("$1\t");
 
         // Finally, unescape the escape character itself
         // - replace any two backslashes with one: \\
         // - double escaped as a regexp special symbol and as a java string: \\\\\\\\
         // - replace with a single backslash, also double escaped
-        realValue = realValue.replaceAll("\\\\\\\\", "\\\\");
+        realValue = ESCAPED_BACKSLASH.matcher(realValue).replaceAll("\\\\");
 
         return realValue;
     }
 
     /**
-     * Determine and return the ancestors of a vocabulary term. Initially, the ancestors are not available, since the
-     * vocabulary source only includes direct parents, but after the ancestors are recursively computed the first time,
-     * they will be stored in the TermData for quick subsequent retrieval.
+     * Creates a new VocabularyTermSource object from each parsed Term and passes it to the consumer function.
      *
-     * @param termID the identifier of the term whose ancestors are to be retrieved
-     * @return identifiers of the ancestors of the given term, may be an empty collection if the term has no
-     *         parents/ancestors, or if the term doesn't exist
+     * @param terms the parsed terms, emptied as they are passed to the consumer
+     * @param consumer method that will store the parsed term
      */
-    private Collection<String> findAncestors(String termID)
+    private static void emitTerms(final List<TermData> terms, final Consumer<VocabularyTermSource> consumer)
     {
-        TermData term = this.data.get().get(termID);
-
-        if (term == null) {
-            // Unknown parent
-            return Collections.emptySet();
-        }
-        // If the ancestors for this node have already been determined, return them as a list of IDs.
-        if (term.hasKey(TermData.TERM_CATEGORY_FIELD_NAME)) {
-            return term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME);
-        } else {
-            Collection<String> parents;
-            // If the node has Parents, it definitely has Ancestors but they have not yet been determined.
-            if (term.hasKey(TermData.PARENT_FIELD_NAME)) {
-                parents = term.getAllValues(TermData.PARENT_FIELD_NAME);
-            } else {
-                // Else we have reached the root node which has no parents.
-                parents = Collections.emptySet();
-            }
-            Collection<String> ancestors = new LinkedHashSet<>(parents);
-            // Take the Union of the ancestors IDs of all parent nodes and the IDs of parents.
-            for (String parent : parents) {
-                ancestors.addAll(findAncestors(parent));
-            }
-            // This Union is set as the current node's ancestors.
-            term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, ancestors);
-            // Return Union
-            return ancestors;
+        final Ancestry ancestry = new Ancestry(terms);
+        for (int i = 0; i < terms.size(); ++i) {
+            final TermData term = terms.get(i);
+            // The terms already passed on can be garbage collected while the rest are being stored
+            terms.set(i, null);
+            final String[] ancestors = ancestry.getAncestors(i);
+            term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, Arrays.asList(ancestors));
+            consumer.accept(new VocabularyTermSource(
+                term.getId(),
+                term.getLabel(),
+                term.getAllValues(TermData.PARENT_FIELD_NAME).toArray(ArrayUtils.EMPTY_STRING_ARRAY),
+                ancestors,
+                term.getAllProperties()));
         }
     }
 
     /**
-     * Recursively computes ancestors from the parents for all terms.
+     * The ancestors of all the terms of a vocabulary. Terms are identified by their index in a table of identifiers,
+     * which starts with the terms of the vocabulary, in order, followed by any unknown terms referenced as parents.
+     * The ancestors of each term are computed only once, without recursion, since deep hierarchies could overflow the
+     * stack, and are stored as arrays of indexes instead of sets of identifiers, which is much more compact.
      */
-    private void propagateAncestors()
+    private static final class Ancestry
     {
-        for (String id : this.data.get().keySet()) {
-            findAncestors(id);
+        /** The identifier of each term. */
+        private final List<String> ids = new ArrayList<>();
+
+        /** The index of each term identifier. */
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        /** The indexes of the direct parents of each term. */
+        private final int[][] parents;
+
+        /** The indexes of the ancestors of each term, parents first, each followed by its own ancestors. */
+        private final int[][] ancestors;
+
+        /** For each term, the last term whose ancestors included it, used for removing duplicates. */
+        private int[] lastAddedTo;
+
+        /** The ancestors of the term being computed. */
+        private int[] buffer;
+
+        Ancestry(final List<TermData> terms)
+        {
+            terms.forEach(term -> getIndex(term.getId()));
+            final int termCount = terms.size();
+            final int[][] termParents = new int[termCount][];
+            final int[][] knownAncestors = new int[termCount][];
+            for (int i = 0; i < termCount; ++i) {
+                final TermData term = terms.get(i);
+                termParents[i] = toIndexes(term.getAllValues(TermData.PARENT_FIELD_NAME));
+                // The source may already list the ancestors of some terms, in which case they are used as they are
+                if (term.hasKey(TermData.TERM_CATEGORY_FIELD_NAME)) {
+                    knownAncestors[i] = toIndexes(term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME));
+                }
+            }
+            // Unknown parents have no parents and no ancestors
+            final int size = this.ids.size();
+            this.parents = Arrays.copyOf(termParents, size);
+            this.ancestors = Arrays.copyOf(knownAncestors, size);
+            for (int i = termCount; i < size; ++i) {
+                this.parents[i] = ArrayUtils.EMPTY_INT_ARRAY;
+                this.ancestors[i] = ArrayUtils.EMPTY_INT_ARRAY;
+            }
+            computeAncestors();
         }
-    }
 
-    /**
-     * Creates a new VocabularyTermSource object from the parsed Term and passes it to the consumer function.
-     *
-     * @param consumer method that will store the parsed term
-     */
-    private void consumeData(final Consumer<VocabularyTermSource> consumer)
-    {
-        String[] typeString = {};
-        for (String id : this.data.get().keySet()) {
-            TermData term = this.data.get().get(id);
-            consumer.accept(new VocabularyTermSource(
-                term.getId(),
-                term.getLabel(),
-                term.getAllValues(TermData.PARENT_FIELD_NAME).toArray(typeString),
-                term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME).toArray(typeString),
-                term.getAllProperties()));
+        /**
+         * Get the ancestors of a term. Each term can only be asked for once, since the memory is released afterwards.
+         *
+         * @param term the index of the term
+         * @return the identifiers of the ancestors of the term, may be empty
+         */
+        String[] getAncestors(final int term)
+        {
+            final int[] termAncestors = this.ancestors[term];
+            this.ancestors[term] = null;
+            final String[] result = new String[termAncestors.length];
+            for (int i = 0; i < termAncestors.length; ++i) {
+                result[i] = this.ids.get(termAncestors[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Compute the ancestors of all the terms, with a depth first traversal of the parents that uses an explicit
+         * stack. The ancestors of a term are computed after the ancestors of all its parents. Cycles are ignored.
+         */
+        private void computeAncestors()
+        {
+            final int size = this.ids.size();
+            final int[] stack = new int[size];
+            final int[] nextParent = new int[size];
+            final boolean[] onStack = new boolean[size];
+            this.lastAddedTo = new int[size];
+            this.buffer = new int[size];
+            for (int root = 0; root < size; ++root) {
+                if (this.ancestors[root] != null) {
+                    continue;
+                }
+                int depth = 0;
+                stack[depth++] = root;
+                onStack[root] = true;
+                while (depth > 0) {
+                    final int term = stack[depth - 1];
+                    if (nextParent[term] < this.parents[term].length) {
+                        final int parent = this.parents[term][nextParent[term]++];
+                        // A parent already on the stack means a cycle, and isn't visited again
+                        if (this.ancestors[parent] == null && !onStack[parent]) {
+                            stack[depth++] = parent;
+                            onStack[parent] = true;
+                        }
+                    } else {
+                        this.ancestors[term] = union(term);
+                        onStack[term] = false;
+                        --depth;
+                    }
+                }
+            }
+            this.lastAddedTo = null;
+            this.buffer = null;
+        }
+
+        /**
+         * Compute the ancestors of a term from its parents and their ancestors.
+         *
+         * @param term the index of the term
+         * @return the indexes of the parents of the term, followed by the ancestors of each parent, without duplicates
+         */
+        private int[] union(final int term)
+        {
+            // Since each term is only computed once, its index can be used to mark the ancestors already added,
+            // without having to reset the marks between terms; the term itself is marked so that a cycle doesn't make
+            // it one of its own ancestors
+            final int mark = term + 1;
+            this.lastAddedTo[term] = mark;
+            int count = 0;
+            for (int parent : this.parents[term]) {
+                count = add(parent, mark, count);
+            }
+            for (int parent : this.parents[term]) {
+                // Parents in a cycle with this term don't have their ancestors computed yet
+                final int[] parentAncestors = this.ancestors[parent];
+                if (parentAncestors != null) {
+                    for (int ancestor : parentAncestors) {
+                        count = add(ancestor, mark, count);
+                    }
+                }
+            }
+            return Arrays.copyOf(this.buffer, count);
+        }
+
+        private int add(final int ancestor, final int mark, final int count)
+        {
+            if (this.lastAddedTo[ancestor] == mark) {
+                return count;
+            }
+            this.lastAddedTo[ancestor] = mark;
+            this.buffer[count] = ancestor;
+            return count + 1;
+        }
+
+        private int[] toIndexes(final Collection<String> termIds)
+        {
+            final int[] result = new int[termIds.size()];
+            int i = 0;
+            for (String id : termIds) {
+                result[i++] = getIndex(id);
+            }
+            return result;
+        }
+
+        private int getIndex(final String id)
+        {
+            Integer result = this.indexes.get(id);
+            if (result == null) {
+                result = this.ids.size();
+                this.ids.add(id);
+                this.indexes.put(id, result);
+            }
+            return result;
         }
     }
 
@@ -45,17 +45,36 @@
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(OntologyIndexerUtils.class);
 
+    private static final String IS_ROOT = "isRoot";
+
     /** The list which holds all JCR vocabulary nodes associated with a vocabulary to be checked-in. */
     private static final ThreadLocal<List<Node>> NODES_TO_CHECK_IN = ThreadLocal.withInitial(ArrayList::new);
 
     /** The list which holds all root terms. */
     private static final ThreadLocal<List<Node>> ROOT_NODES = ThreadLocal.withInitial(ArrayList::new);
 
+    /** Controls when the terms are saved, may be {@code null} if the vocabulary is installed as a transaction. */
+    private static final ThreadLocal<VocabularyBulkLoader> LOADER = new ThreadLocal<>();
+
     //Hide the utility class constructor
     private OntologyIndexerUtils()
     {
     }
 
+    /**
+     * Prepares the installation of the terms of a vocabulary. This must be called before any term is created.
+     *
+     * @param vocabularyNode the new <code>Vocabulary</code> node, or the one left by an interrupted bulk load
+     * @param loader controls when the terms are saved
+     * @throws VocabularyIndexException if the vocabulary node cannot be saved in bulk mode
+     */
+    public static void startInstall(Node vocabularyNode, VocabularyBulkLoader loader)
+        throws VocabularyIndexException
+    {
+        LOADER.set(loader);
+        loader.start(vocabularyNode);
+    }
+
     /**
      * Creates a <code>VocabularyTerm</code> node representing an individual term of the vocabulary.
      *
@@ -65,18 +84,25 @@ private OntologyIndexerUtils()
     @SuppressWarnings({"checkstyle:CyclomaticComplexity"})
     public static void createVocabularyTermNode(VocabularyTermSource term, InheritableThreadLocal<Node> vocabularyNode)
     {
+        final VocabularyBulkLoader loader = LOADER.get();
         try {
+            final String nodeName = term.getId().replaceAll("[^A-Za-z0-9_\\.]", "");
+            if (isAlreadyLoaded(loader, nodeName)) {
+                return;
+            }
+
             Node vocabularyTermNode;
             try {
-                vocabularyTermNode = vocabularyNode.get()
-                                         .addNode("./" + term.getId()
-                                         .replaceAll("[^A-Za-z0-9_\\.]", ""), "cards:VocabularyTerm");
+                vocabularyTermNode = vocabularyNode.get().addNode("./" + nodeName, "cards:VocabularyTerm");
             } catch (ItemExistsException e) {
                 // Sometimes terms appear twice; we'll just update the existing node
                 vocabularyTermNode = vocabularyNode.get().getNode(term.getId());
             }
 
-            NODES_TO_CHECK_IN.get().add(vocabularyTermNode);
+            if (loader == null || !loader.isBulk()) {
+                // In bulk mode, new terms are not checked in, and they must not be kept in memory
+                NODES_TO_CHECK_IN.get().add(vocabularyTermNode);
+            }
             vocabularyTermNode.setProperty("identifier", term.getId());
 
             vocabularyTermNode.setProperty("label", term.getLabel());
@@ -85,7 +111,7 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
             boolean isObsolete = term.getAllProperties().asMap().get("is_obsolete") != null
                               || term.getLabel().toLowerCase().startsWith("obsolete");
             if ((parents.length == 0 || parents.length == 1 && "Thing".equals(parents[0])) && !isObsolete) {
-                vocabularyTermNode.setProperty("isRoot", true);
+                vocabularyTermNode.setProperty(IS_ROOT, true);
                 ROOT_NODES.get().add(vocabularyTermNode);
             }
             vocabularyTermNode.setProperty("parents", parents);
@@ -98,13 +124,19 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
                 // Sometimes the source may contain more than one label or description, but we can't allow that.
                 // Always use one value for these special fields.
                 if (("label".equals(entry.getKey()) || "description".equals(entry.getKey())
-                    || "isRoot".equals(entry.getKey()))
+                    || IS_ROOT.equals(entry.getKey()))
                         && valuesArray.length == 1) {
                     vocabularyTermNode.setProperty(entry.getKey(), valuesArray[0]);
                 } else {
                     vocabularyTermNode.setProperty(entry.getKey(), valuesArray);
                 }
             }
+            if (loader != null) {
+                loader.termAdded();
+            }
+        } catch (VocabularyIndexException e) {
+            // Saving a batch failed, there's no point in continuing
+            throw new IllegalStateException(e.getMessage(), e);
         } catch (RepositoryException e) {
             // If the identifier exists, print the identifier in the error message to identify node
             LOGGER.warn("Failed to create VocabularyTerm node {}: {}", StringUtils.defaultString(term.getId()),
@@ -113,6 +145,27 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
         }
     }
 
+    /**
+     * Checks if a term was already saved by the interrupted bulk load being resumed. Such terms are not loaded again,
+     * only their root status is needed.
+     *
+     * @param loader the current loader, may be {@code null}
+     * @param nodeName the name of the term node
+     * @return {@code true} if the term must be skipped
+     * @throws RepositoryException if accessing the existing term fails
+     */
+    private static boolean isAlreadyLoaded(VocabularyBulkLoader loader, String nodeName) throws RepositoryException
+    {
+        final Node existingTerm = loader == null ? null : loader.getExistingTerm(nodeName);
+        if (existingTerm == null) {
+            return false;
+        }
+        if (existingTerm.hasProperty(IS_ROOT) && existingTerm.getProperty(IS_ROOT).getBoolean()) {
+            ROOT_NODES.get().add(existingTerm);
+        }
+        return true;
+    }
+
     /**
      * Creates a <code>Vocabulary</code> node that represents the current vocabulary instance with the identifier as the
      * name of the node.
@@ -186,7 +239,7 @@ private static void checkInVocabulary(Node vocabulariesHomepage) throws Vocabula
 
     /**
      * Finalizes the vocabulary install by saving the JCR session and checking in all the newly installed
-     * Vocabulary nodes.
+     * Vocabulary nodes. In bulk mode, only the Vocabulary node itself is checked in.
      *
      * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
      * @param vocabularyNode The vocabulary node that holds indexed data
@@ -196,10 +249,28 @@ public static void finalizeInstall(Node vocabulariesHomepage, InheritableThreadL
         throws VocabularyIndexException
     {
         setRootNodes(vocabularyNode);
-        saveSession(vocabulariesHomepage);
+        final VocabularyBulkLoader loader = LOADER.get();
+        if (loader != null && loader.isBulk()) {
+            loader.finish();
+            NODES_TO_CHECK_IN.get().clear();
+            NODES_TO_CHECK_IN.get().add(vocabularyNode.get());
+        } else {
+            saveSession(vocabulariesHomepage);
+        }
         checkInVocabulary(vocabulariesHomepage);
     }
 
+    /**
+     * Discards the state kept while installing a vocabulary. This must be called after an install is finished,
+     * whether it succeeded or not.
+     */
+    public static void cleanup()
+    {
+        NODES_TO_CHECK_IN.remove();
+        ROOT_NODES.remove();
+        LOADER.remove();
+    }
+
     /**
      * Sets root Vocabulary nodes.
      * @param vocabularyNode The vocabulary node that holds indexed data
@@ -83,6 +83,14 @@ public boolean canParse(String format)
     public void parse(final File source, final VocabularyDescription vocabularyDescription,
         final Consumer<VocabularyTermSource> consumer)
         throws VocabularyIndexException, IOException
+    {
+        // The store transactions are bound to the thread, so everything involving the model runs on the parser thread,
+        // while the terms are stored by the consumer on this thread
+        TermPipeline.run("OwlParser", sink -> parseModel(source, sink), consumer);
+    }
+
+    private void parseModel(final File source, final Consumer<VocabularyTermSource> consumer)
+        throws VocabularyIndexException
     {
         // For efficiency, we load the ontology in a temporary filesystem-backed database instead of all-in-memory
         Path temporaryDatasetPath = null;
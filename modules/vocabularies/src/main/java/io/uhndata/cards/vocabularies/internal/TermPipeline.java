@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies.internal;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.apache.commons.lang3.ArrayUtils;
+
+import io.uhndata.cards.vocabularies.spi.VocabularyIndexException;
+import io.uhndata.cards.vocabularies.spi.VocabularyTermSource;
+
+/**
+ * Runs a vocabulary parser on its own thread, handing the parsed terms to the consumer through a bounded queue. The
+ * consumer, which usually stores the terms in the repository, keeps running on the calling thread, since it uses the
+ * JCR session of the request, so parsing the next terms and storing the previous ones happen at the same time. The
+ * queue keeps the parser from getting too far ahead of the consumer, so that parsed terms don't pile up in memory.
+ * <p>
+ * If the parser fails, the consumer stops after processing the terms already parsed, and the parser's exception is
+ * rethrown. If the consumer fails, the parser is interrupted.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class TermPipeline
+{
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /** Marks the end of the parsed terms. */
+    private static final VocabularyTermSource END = new VocabularyTermSource("", "", ArrayUtils.EMPTY_STRING_ARRAY,
+        ArrayUtils.EMPTY_STRING_ARRAY, new ArrayListValuedHashMap<>());
+
+    /**
+     * The parsing side of the pipeline.
+     */
+    @FunctionalInterface
+    interface Producer
+    {
+        /**
+         * Parse terms, passing each one to the sink as soon as it is ready.
+         *
+         * @param sink receives the parsed terms, may block while the queue is full
+         * @throws IOException if reading the source fails
+         * @throws VocabularyIndexException if parsing fails
+         */
+        void produce(Consumer<VocabularyTermSource> sink) throws IOException, VocabularyIndexException;
+    }
+
+    private TermPipeline()
+    {
+        // Utility class, should not be instantiated
+    }
+
+    /**
+     * Run a parser and pass all the terms it produces to a consumer.
+     *
+     * @param name the name of the parser thread
+     * @param producer the parser
+     * @param consumer receives all the parsed terms, on the calling thread
+     * @throws IOException if the parser fails to read the source
+     * @throws VocabularyIndexException if the parser fails, or if the pipeline is interrupted
+     */
+    static void run(final String name, final Producer producer, final Consumer<VocabularyTermSource> consumer)
+        throws IOException, VocabularyIndexException
+    {
+        final BlockingQueue<VocabularyTermSource> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread parser = new Thread(() -> produce(producer, queue, failure), name);
+        parser.setDaemon(true);
+        parser.start();
+        try {
+            VocabularyTermSource term = queue.take();
+            while (term != END) {
+                consumer.accept(term);
+                term = queue.take();
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VocabularyIndexException("Interrupted while indexing", e);
+        } finally {
+            // Only has an effect if the consumer failed, or if this thread was interrupted
+            parser.interrupt();
+        }
+        rethrow(failure.get());
+    }
+
+    private static void produce(final Producer producer, final BlockingQueue<VocabularyTermSource> queue,
+        final AtomicReference<Throwable> failure)
+    {
+        try {
+            producer.produce(term -> {
+                try {
+                    queue.put(term);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("The vocabulary consumer stopped");
+                }
+            });
+        } catch (CancellationException e) {
+            // The consumer already failed, nobody is waiting for more terms
+        } catch (Exception | Error e) {
+            // Errors, such as running out of memory, must also reach the consumer thread
+            failure.set(e);
+        } finally {
+            // Always mark the end, or the consumer waits forever; if the consumer stopped, this thread was interrupted
+            // and this returns immediately
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void rethrow(final Throwable failure) throws IOException, VocabularyIndexException
+    {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof VocabularyIndexException) {
+            throw (VocabularyIndexException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+}
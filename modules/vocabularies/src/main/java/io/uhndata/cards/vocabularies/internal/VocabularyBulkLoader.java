@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies.internal;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.vocabularies.spi.VocabularyIndexException;
+
+/**
+ * Controls how the terms of a vocabulary are stored in the repository while it is being indexed.
+ * <p>
+ * By default, a vocabulary is installed as a single transaction: all the terms are kept in the session, and only
+ * saved at the end, so that a failure leaves the repository unchanged. For large vocabularies, such as NCIT or HPO,
+ * this needs a lot of memory and produces one huge commit. In bulk mode, enabled by sending a positive
+ * {@code batchSize} request parameter, the session is saved every {@code batchSize} terms instead, and the newly
+ * created terms are not checked in. While the load is in progress, the vocabulary node is marked with a
+ * {@code bulkLoadStatus} property, and its {@code bulkLoadProgress} property holds the number of terms saved so far.
+ * </p>
+ * <p>
+ * If a bulk load fails, the terms saved so far are kept. Sending the same request again with {@code resume=true}
+ * continues the interrupted load instead of restarting it: the vocabulary node is reused, and the terms that already
+ * exist are skipped.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class VocabularyBulkLoader
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(VocabularyBulkLoader.class);
+
+    private static final String STATUS_PROPERTY = "bulkLoadStatus";
+
+    private static final String PROGRESS_PROPERTY = "bulkLoadProgress";
+
+    private static final String IN_PROGRESS = "inProgress";
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /** How many terms to save at once, {@code 0} for saving all the terms at the end. */
+    private final int batchSize;
+
+    /** Whether an interrupted bulk load should be continued. */
+    private final boolean resume;
+
+    /** The vocabulary being loaded. */
+    private Node vocabularyNode;
+
+    /** Whether the vocabulary node comes from an interrupted bulk load. */
+    private boolean resumed;
+
+    /** How many terms were added in this load. */
+    private long added;
+
+    /** How many terms were skipped since they were saved by an interrupted load. */
+    private long skipped;
+
+    /** How many added terms have not been saved yet. */
+    private int pending;
+
+    private long startTime;
+
+    private VocabularyBulkLoader(final int batchSize, final boolean resume)
+    {
+        this.batchSize = batchSize;
+        this.resume = resume;
+    }
+
+    /**
+     * Create a loader configured by the {@code batchSize} and {@code resume} request parameters.
+     *
+     * @param request the indexing request
+     * @return a new loader, in bulk mode if the request has a positive {@code batchSize} parameter
+     */
+    public static VocabularyBulkLoader fromRequest(final SlingHttpServletRequest request)
+    {
+        final int batchSize = Math.max(0, NumberUtils.toInt(request.getParameter("batchSize"), 0));
+        return new VocabularyBulkLoader(batchSize, batchSize > 0 && "true".equals(request.getParameter("resume")));
+    }
+
+    /**
+     * Whether the terms are saved in batches.
+     *
+     * @return {@code true} in bulk mode, {@code false} if the vocabulary is installed as a single transaction
+     */
+    public boolean isBulk()
+    {
+        return this.batchSize > 0;
+    }
+
+    /**
+     * Check if a vocabulary is still being loaded in bulk mode, or if its bulk load was interrupted.
+     *
+     * @param vocabulary a vocabulary node
+     * @return {@code true} if not all the terms of the vocabulary are stored yet
+     * @throws RepositoryException if accessing the vocabulary node fails
+     */
+    public static boolean isIncomplete(final Node vocabulary) throws RepositoryException
+    {
+        return vocabulary.hasProperty(STATUS_PROPERTY);
+    }
+
+    /**
+     * Look for the vocabulary node left behind by an interrupted bulk load, if resuming was requested.
+     *
+     * @param homepage the {@code VocabulariesHomepage} node
+     * @param identifier the identifier of the vocabulary
+     * @return the existing vocabulary node, or {@code null} if the load must start from scratch
+     * @throws VocabularyIndexException if accessing the repository fails
+     */
+    public Node resume(final Node homepage, final String identifier) throws VocabularyIndexException
+    {
+        if (!this.resume) {
+            return null;
+        }
+        try {
+            if (homepage.hasNode(identifier)) {
+                final Node existing = homepage.getNode(identifier);
+                if (existing.hasProperty(STATUS_PROPERTY)
+                    && IN_PROGRESS.equals(existing.getProperty(STATUS_PROPERTY).getString())) {
+                    this.resumed = true;
+                    final long progress =
+                        existing.hasProperty(PROGRESS_PROPERTY) ? existing.getProperty(PROGRESS_PROPERTY).getLong() : 0;
+                    LOGGER.info("Resuming the load of vocabulary {} after {} terms", identifier, progress);
+                    return existing;
+                }
+            }
+            return null;
+        } catch (RepositoryException e) {
+            throw new VocabularyIndexException("Failed to access the interrupted vocabulary: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Start loading terms into a vocabulary node. In bulk mode, the vocabulary node is marked as incomplete and saved,
+     * along with any other pending change, such as the removal of a previous version of the vocabulary.
+     *
+     * @param vocabulary the new or resumed vocabulary node
+     * @throws VocabularyIndexException if saving the vocabulary node fails
+     */
+    public void start(final Node vocabulary) throws VocabularyIndexException
+    {
+        this.vocabularyNode = vocabulary;
+        this.startTime = System.currentTimeMillis();
+        if (isBulk()) {
+            try {
+                this.vocabularyNode.setProperty(STATUS_PROPERTY, IN_PROGRESS);
+                save();
+            } catch (RepositoryException e) {
+                throw new VocabularyIndexException("Failed to start the vocabulary load: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the term node saved by the interrupted load being resumed, if any. Such terms should be skipped.
+     *
+     * @param name the name of the term node
+     * @return the existing term node, or {@code null} if the term must be loaded
+     */
+    public Node getExistingTerm(final String name)
+    {
+        if (!this.resumed) {
+            return null;
+        }
+        try {
+            if (this.vocabularyNode.hasNode(name)) {
+                ++this.skipped;
+                return this.vocabularyNode.getNode(name);
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to check the existing term {}: {}", name, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Record that a new term was added to the vocabulary, saving the current batch if it is complete.
+     *
+     * @throws VocabularyIndexException if saving the batch fails
+     */
+    public void termAdded() throws VocabularyIndexException
+    {
+        ++this.added;
+        if (isBulk() && ++this.pending >= this.batchSize) {
+            try {
+                save();
+            } catch (RepositoryException e) {
+                throw new VocabularyIndexException("Failed to save a batch of terms after " + committed()
+                    + " terms, resume the load with resume=true: " + e.getMessage(), e);
+            }
+            final long elapsed = Math.max(1, System.currentTimeMillis() - this.startTime);
+            LOGGER.info("Saved {} terms of vocabulary {}, {} terms/s", committed(), getVocabularyName(),
+                this.added * MILLIS_PER_SECOND / elapsed);
+        }
+    }
+
+    /**
+     * Finish a bulk load: save the remaining terms and mark the vocabulary as complete. Nothing is done when not in
+     * bulk mode, saving the vocabulary is left to the caller.
+     *
+     * @throws VocabularyIndexException if saving the vocabulary fails
+     */
+    public void finish() throws VocabularyIndexException
+    {
+        if (!isBulk()) {
+            return;
+        }
+        try {
+            this.vocabularyNode.getProperty(STATUS_PROPERTY).remove();
+            if (this.vocabularyNode.hasProperty(PROGRESS_PROPERTY)) {
+                this.vocabularyNode.getProperty(PROGRESS_PROPERTY).remove();
+            }
+            this.vocabularyNode.getSession().save();
+            LOGGER.info("Finished loading vocabulary {} in {} s: {} new terms, {} terms kept from a previous load",
+                getVocabularyName(), (System.currentTimeMillis() - this.startTime) / MILLIS_PER_SECOND, this.added,
+                this.skipped);
+        } catch (RepositoryException e) {
+            throw new VocabularyIndexException("Failed to save the vocabulary: " + e.getMessage(), e);
+        }
+    }
+
+    private void save() throws RepositoryException
+    {
+        this.vocabularyNode.setProperty(PROGRESS_PROPERTY, this.added + this.skipped);
+        this.vocabularyNode.getSession().save();
+        this.pending = 0;
+    }
+
+    private long committed()
+    {
+        return this.added + this.skipped - this.pending;
+    }
+
+    private String getVocabularyName()
+    {
+        try {
+            return this.vocabularyNode.getName();
+        } catch (RepositoryException e) {
+            return "";
+        }
+    }
+}
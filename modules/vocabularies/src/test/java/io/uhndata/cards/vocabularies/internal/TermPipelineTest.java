@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.uhndata.cards.vocabularies.spi.VocabularyIndexException;
+import io.uhndata.cards.vocabularies.spi.VocabularyTermSource;
+
+/**
+ * Unit tests for {@link TermPipeline}.
+ *
+ * @version $Id$
+ */
+public class TermPipelineTest
+{
+    @Test(timeout = 10000)
+    public void allTermsAreConsumedInOrder() throws IOException, VocabularyIndexException
+    {
+        final List<String> consumed = new ArrayList<>();
+        TermPipeline.run("test", sink -> {
+            for (int i = 0; i < 5000; ++i) {
+                sink.accept(term("T" + i));
+            }
+        }, term -> consumed.add(term.getId()));
+
+        Assert.assertEquals(5000, consumed.size());
+        Assert.assertEquals("T0", consumed.get(0));
+        Assert.assertEquals("T4999", consumed.get(4999));
+    }
+
+    @Test(timeout = 10000)
+    public void parserExceptionIsRethrownAfterConsumingParsedTerms()
+    {
+        final List<String> consumed = new ArrayList<>();
+        try {
+            TermPipeline.run("test", sink -> {
+                sink.accept(term("T0"));
+                throw new VocabularyIndexException("Malformed source");
+            }, term -> consumed.add(term.getId()));
+            Assert.fail("The parser exception should have been rethrown");
+        } catch (IOException | VocabularyIndexException e) {
+            Assert.assertEquals("Malformed source", e.getMessage());
+        }
+        Assert.assertEquals(List.of("T0"), consumed);
+    }
+
+    @Test(timeout = 10000)
+    public void parserErrorDoesNotBlockTheConsumer() throws IOException, VocabularyIndexException
+    {
+        final List<String> consumed = new ArrayList<>();
+        try {
+            TermPipeline.run("test", sink -> {
+                sink.accept(term("T0"));
+                throw new StackOverflowError();
+            }, term -> consumed.add(term.getId()));
+            Assert.fail("The parser error should have been rethrown");
+        } catch (StackOverflowError e) {
+            // Expected
+        }
+        Assert.assertEquals(List.of("T0"), consumed);
+    }
+
+    private static VocabularyTermSource term(final String id)
+    {
+        return new VocabularyTermSource(id, id, ArrayUtils.EMPTY_STRING_ARRAY, ArrayUtils.EMPTY_STRING_ARRAY,
+            new ArrayListValuedHashMap<>());
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.webhookbackup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.httprequests.HttpClientService;
+import io.uhndata.cards.httprequests.HttpResponse;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Backs up only what changed since the previous backup. The previous backup left a checkpoint in the repository: the
+ * manifest of all the subjects and forms that existed then, with their last modification date, and a digest of that
+ * manifest. Each run scans the subjects and forms once, without sorting them, compares them to the manifest, and sends
+ * the backup server:
+ * <ul>
+ * <li>the manifest changes, as NDJSON lines with the {@code added}, {@code changed} or {@code removed} change, posted
+ * in batches to {@code ManifestDelta}</li>
+ * <li>the data of the added and changed nodes, as NDJSON lines with the node {@code path} and {@code data}, posted in
+ * batches to {@code SubjectBackupBatch} and {@code FormBackupBatch}</li>
+ * <li>once everything else was accepted, the digests of the previous and new manifests, posted to
+ * {@code ManifestCheckpoint}, which the server can use to check that its copy of the manifest is in sync</li>
+ * </ul>
+ * A few requests are sent in parallel, and only a few batches are held in memory at once. The new checkpoint is only
+ * stored if all the requests succeeded, so a failed backup is retried from the same checkpoint the next time. If there
+ * is no checkpoint, or if the stored manifest doesn't match its digest, everything is backed up.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings({ "checkstyle:ClassDataAbstractionCoupling", "checkstyle:ClassFanOutComplexity" })
+final class IncrementalBackup
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalBackup.class);
+
+    private static final String CHECKPOINT_PARENT = "/WebhookBackup";
+
+    private static final String CHECKPOINT_NAME = "checkpoint";
+
+    private static final String CHECKPOINT_PATH = CHECKPOINT_PARENT + "/" + CHECKPOINT_NAME;
+
+    private static final String MANIFEST_NAME = "manifest";
+
+    /** The subservice with write access to the checkpoint. */
+    private static final String CHECKPOINT_SUBSERVICE = "checkpoint";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String LAST_MODIFIED = "jcr:lastModified";
+
+    private static final String DIGEST = "manifestDigest";
+
+    private static final String PATH = "path";
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    /** Separates the path, type and modification date in a manifest line. */
+    private static final char SEPARATOR = '\t';
+
+    private static final int NODES_PER_REQUEST = 50;
+
+    private static final int CHANGES_PER_REQUEST = 1000;
+
+    private static final int MAX_PENDING_REQUESTS = 4;
+
+    private final ResourceResolverFactory resolverFactory;
+
+    private final ThreadResourceResolverProvider rrp;
+
+    private final HttpClientService httpClient;
+
+    private final String backupWebhookUrl;
+
+    private final JsonGeneratorFactory jsonFactory = Json.createGeneratorFactory(null);
+
+    private final MessageDigest sha;
+
+    /** Limits how many requests are sent at once, and thus how many batches are held in memory. */
+    private final Semaphore pendingRequests = new Semaphore(MAX_PENDING_REQUESTS);
+
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    private final Batch changes = new Batch("ManifestDelta", CHANGES_PER_REQUEST);
+
+    private String previousDigest = "";
+
+    private long digest;
+
+    private long entries;
+
+    private Calendar lastModified;
+
+    private long added;
+
+    private long changed;
+
+    private long removed;
+
+    IncrementalBackup(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
+        final HttpClientService httpClient, final String backupWebhookUrl)
+    {
+        this.resolverFactory = resolverFactory;
+        this.rrp = rrp;
+        this.httpClient = httpClient;
+        this.backupWebhookUrl = backupWebhookUrl;
+        try {
+            this.sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // All Java implementations must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run the backup.
+     *
+     * @return a short description of what was backed up
+     * @throws IOException if the backup fails, in which case the checkpoint is left unchanged
+     */
+    String run() throws IOException
+    {
+        final Map<String, String> previous = loadCheckpoint();
+        final Path manifestFile = Files.createTempFile("webhook-backup-manifest", ".gz");
+        try {
+            try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(null);
+                Writer manifest = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(manifestFile)), StandardCharsets.UTF_8))) {
+                this.rrp.push(resolver);
+                try {
+                    scan(resolver, "cards:Subject", "Subject", "", previous, manifest);
+                    scan(resolver, "cards:Form", "Form", ".deep", previous, manifest);
+                } finally {
+                    this.rrp.pop();
+                }
+            } catch (LoginException e) {
+                throw new IOException("Cannot read the data to back up", e);
+            }
+
+            // Whatever wasn't found anymore was removed
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                ++this.removed;
+                addChange("removed", entry.getKey(), entry.getValue());
+            }
+            this.changes.send();
+            waitForRequests();
+
+            sendCheckpoint();
+            saveCheckpoint(manifestFile);
+        } finally {
+            Files.deleteIfExists(manifestFile);
+        }
+        return String.format("%d added, %d changed, %d removed, out of %d", this.added, this.changed, this.removed,
+            this.entries);
+    }
+
+    private void scan(final ResourceResolver resolver, final String nodeType, final String type,
+        final String serializationSelectors, final Map<String, String> previous, final Writer manifest)
+        throws IOException
+    {
+        final Batch nodes = new Batch(type + "BackupBatch", NODES_PER_REQUEST);
+        // No ordering, so that the results are streamed instead of being sorted in memory first
+        final Iterator<Resource> results =
+            resolver.findResources("SELECT * FROM [" + nodeType + "] AS n", "JCR-SQL2");
+        while (results.hasNext()) {
+            final Resource node = results.next();
+            final String path = node.getPath();
+            final String entry = type + SEPARATOR + node.getValueMap().get(LAST_MODIFIED, "");
+            record(path, entry, node.getValueMap().get(LAST_MODIFIED, Calendar.class), manifest);
+
+            final String before = previous.remove(path);
+            if (!entry.equals(before)) {
+                if (before == null) {
+                    ++this.added;
+                } else {
+                    ++this.changed;
+                }
+                addChange(before == null ? "added" : "changed", path, entry);
+                final JsonObject data = resolver.resolve(path + serializationSelectors).adaptTo(JsonObject.class);
+                nodes.add(generator -> {
+                    generator.writeStartObject().write(PATH, path);
+                    if (data == null) {
+                        generator.writeNull("data");
+                    } else {
+                        generator.write("data", data);
+                    }
+                    generator.writeEnd();
+                });
+            }
+        }
+        nodes.send();
+    }
+
+    private void record(final String path, final String entry, final Calendar modified, final Writer manifest)
+        throws IOException
+    {
+        final String line = path + SEPARATOR + entry;
+        manifest.write(line);
+        manifest.write('\n');
+        this.digest += hash(line);
+        ++this.entries;
+        if (modified != null && (this.lastModified == null || modified.after(this.lastModified))) {
+            this.lastModified = modified;
+        }
+    }
+
+    private void addChange(final String change, final String path, final String entry) throws IOException
+    {
+        final int separator = entry.indexOf(SEPARATOR);
+        this.changes.add(generator -> generator.writeStartObject()
+            .write("change", change)
+            .write("type", entry.substring(0, separator))
+            .write(PATH, path)
+            .write("lastModified", entry.substring(separator + 1))
+            .writeEnd());
+    }
+
+    /*
+     * The digest must not depend on the order of the lines, since the scan doesn't sort the nodes, so it is the sum of
+     * the hashes of the lines, along with their number.
+     */
+    private long hash(final String line)
+    {
+        return ByteBuffer.wrap(this.sha.digest(line.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    private static String formatDigest(final long sum, final long count)
+    {
+        return String.format("%d:%016x", count, sum);
+    }
+
+    private Map<String, String> loadCheckpoint() throws IOException
+    {
+        final Map<String, String> manifest = new HashMap<>();
+        try (ResourceResolver resolver = getCheckpointResolver()) {
+            final Resource checkpoint = resolver.getResource(CHECKPOINT_PATH);
+            final Resource content = resolver.getResource(CHECKPOINT_PATH + "/" + MANIFEST_NAME + "/jcr:content");
+            if (checkpoint == null || content == null) {
+                LOGGER.info("No webhook backup checkpoint found, backing up everything");
+                return manifest;
+            }
+            long sum = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(content.getValueMap().get("jcr:data", InputStream.class)),
+                StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    sum += hash(line);
+                    final int separator = line.indexOf(SEPARATOR);
+                    manifest.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+            final String expected = checkpoint.getValueMap().get(DIGEST, "");
+            if (!expected.equals(formatDigest(sum, manifest.size()))) {
+                LOGGER.warn("The webhook backup manifest doesn't match its digest, backing up everything");
+                manifest.clear();
+                return manifest;
+            }
+            this.previousDigest = expected;
+            return manifest;
+        }
+    }
+
+    private void sendCheckpoint() throws IOException
+    {
+        final JsonObjectBuilder body = Json.createObjectBuilder()
+            .add("previousDigest", this.previousDigest)
+            .add("digest", formatDigest(this.digest, this.entries))
+            .add("added", this.added)
+            .add("changed", this.changed)
+            .add("removed", this.removed);
+        if (this.lastModified != null) {
+            body.add("lastModified", this.lastModified.toInstant().toString());
+        }
+        final HttpResponse response = this.httpClient.post(this.backupWebhookUrl + "/ManifestCheckpoint",
+            body.build().toString(), "application/json");
+        checkStatus(response);
+    }
+
+    private void saveCheckpoint(final Path manifestFile) throws IOException
+    {
+        try (ResourceResolver resolver = getCheckpointResolver();
+            InputStream manifestData = Files.newInputStream(manifestFile)) {
+            final Resource parent = resolver.getResource(CHECKPOINT_PARENT);
+            if (parent == null) {
+                throw new IOException(CHECKPOINT_PARENT + " is missing, cannot store the webhook backup checkpoint");
+            }
+            final Resource oldCheckpoint = parent.getChild(CHECKPOINT_NAME);
+            if (oldCheckpoint != null) {
+                resolver.delete(oldCheckpoint);
+            }
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put(PRIMARY_TYPE, "nt:unstructured");
+            properties.put(DIGEST, formatDigest(this.digest, this.entries));
+            properties.put("manifestEntries", this.entries);
+            if (this.lastModified != null) {
+                properties.put("lastModified", this.lastModified);
+            }
+            final Resource checkpoint = resolver.create(parent, CHECKPOINT_NAME, properties);
+            final Resource file = resolver.create(checkpoint, MANIFEST_NAME, Map.of(PRIMARY_TYPE, "nt:file"));
+            resolver.create(file, "jcr:content", Map.of(PRIMARY_TYPE, "nt:resource",
+                "jcr:mimeType", "application/gzip",
+                "jcr:data", manifestData));
+            resolver.commit();
+        } catch (PersistenceException e) {
+            throw new IOException("Failed to store the webhook backup checkpoint: " + e.getMessage(), e);
+        }
+    }
+
+    private ResourceResolver getCheckpointResolver() throws IOException
+    {
+        try {
+            return this.resolverFactory
+                .getServiceResourceResolver(Map.of(ResourceResolverFactory.SUBSERVICE, CHECKPOINT_SUBSERVICE));
+        } catch (LoginException e) {
+            throw new IOException("Cannot access the webhook backup checkpoint", e);
+        }
+    }
+
+    private void submit(final String endpoint, final byte[] body) throws IOException
+    {
+        checkFailure();
+        try {
+            this.pendingRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Backup interrupted", e);
+        }
+        this.httpClient.postAsync(this.backupWebhookUrl + "/" + endpoint, out -> out.write(body), NDJSON)
+            .whenComplete((response, error) -> {
+                try {
+                    if (error != null) {
+                        throw new IOException("Failed to send data to the backup server", error);
+                    }
+                    checkStatus(response);
+                } catch (IOException e) {
+                    this.failure.compareAndSet(null, e);
+                } finally {
+                    this.pendingRequests.release();
+                }
+            });
+    }
+
+    private void waitForRequests() throws IOException
+    {
+        try {
+            this.pendingRequests.acquire(MAX_PENDING_REQUESTS);
+            this.pendingRequests.release(MAX_PENDING_REQUESTS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Backup interrupted", e);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (this.failure.get() != null) {
+            throw this.failure.get();
+        }
+    }
+
+    private static void checkStatus(final HttpResponse response) throws IOException
+    {
+        if (response.getStatusCode() < 200 || response.getStatusCode() > 299) {
+            throw new IOException("Backup server responded with a non-ok status code");
+        }
+    }
+
+    /** NDJSON lines waiting to be sent to the same endpoint. */
+    private final class Batch
+    {
+        private final String endpoint;
+
+        private final int capacity;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private int count;
+
+        Batch(final String endpoint, final int capacity)
+        {
+            this.endpoint = endpoint;
+            this.capacity = capacity;
+        }
+
+        void add(final Consumer<JsonGenerator> line) throws IOException
+        {
+            try (JsonGenerator generator = IncrementalBackup.this.jsonFactory.createGenerator(this.buffer)) {
+                line.accept(generator);
+            }
+            this.buffer.write('\n');
+            if (++this.count >= this.capacity) {
+                send();
+            }
+        }
+
+        void send() throws IOException
+        {
+            if (this.count == 0) {
+                return;
+            }
+            final byte[] body = this.buffer.toByteArray();
+            this.buffer.reset();
+            this.count = 0;
+            submit(this.endpoint, body);
+        }
+    }
+}
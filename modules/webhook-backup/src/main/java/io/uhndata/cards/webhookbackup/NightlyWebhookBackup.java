@@ -29,6 +29,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.httprequests.HttpClientService;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(immediate = true)
@@ -44,6 +45,9 @@
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private HttpClientService httpClient;
+
     /** The scheduler for rescheduling jobs. */
     @Reference
     private Scheduler scheduler;
@@ -57,7 +61,11 @@ protected void activate(ComponentContext componentContext) throws Exception
         options.name("NightlyWebhookBackup");
         options.canRunConcurrently(true);
 
-        final Runnable webhookBackupJob = new WebhookBackupTask(this.resolverFactory, this.rrp, "nightly");
+        // Only changes since the previous backup are sent in the incremental mode
+        final String runMode =
+            "incremental".equals(System.getenv("NIGHTLY_WEBHOOK_BACKUP_MODE")) ? "incremental" : "nightly";
+        final Runnable webhookBackupJob =
+            new WebhookBackupTask(this.resolverFactory, this.rrp, this.httpClient, runMode);
 
         try {
             this.scheduler.schedule(webhookBackupJob, options);
@@ -35,6 +35,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.httprequests.HttpClientService;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(service = { Servlet.class })
@@ -53,6 +54,9 @@ public class WebhookBackupEndpoint extends SlingSafeMethodsServlet
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private HttpClientService httpClient;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
@@ -79,13 +83,16 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             return;
         }
 
-        final String exportRunMode = (dateLowerBound != null && dateUpperBound != null)
+        final String exportRunMode = "incremental".equals(request.getParameter("mode"))
+            ? "incremental"
+            : (dateLowerBound != null && dateUpperBound != null)
             ? "manualBetween"
             : (dateLowerBound != null && dateUpperBound == null) ? "manualAfter" : "manualToday";
 
-        final Runnable exportJob = ("manualToday".equals(exportRunMode))
-            ? new WebhookBackupTask(this.resolverFactory, this.rrp, exportRunMode)
-            : new WebhookBackupTask(this.resolverFactory, this.rrp, exportRunMode, dateLowerBound, dateUpperBound);
+        final Runnable exportJob = ("manualToday".equals(exportRunMode) || "incremental".equals(exportRunMode))
+            ? new WebhookBackupTask(this.resolverFactory, this.rrp, this.httpClient, exportRunMode)
+            : new WebhookBackupTask(this.resolverFactory, this.rrp, this.httpClient, exportRunMode, dateLowerBound,
+                dateUpperBound);
         final Thread thread = new Thread(exportJob);
         thread.start();
         out.write("Webhook Backup export started");
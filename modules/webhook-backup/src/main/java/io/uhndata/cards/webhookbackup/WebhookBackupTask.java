@@ -20,6 +20,9 @@
 package io.uhndata.cards.webhookbackup;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -28,10 +31,12 @@
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
@@ -40,7 +45,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.uhndata.cards.httprequests.HttpRequests;
+import io.uhndata.cards.httprequests.HttpClientService;
 import io.uhndata.cards.httprequests.HttpResponse;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -56,6 +61,8 @@ public class WebhookBackupTask implements Runnable
 
     private final ThreadResourceResolverProvider rrp;
 
+    private final HttpClientService httpClient;
+
     private final String exportRunMode;
 
     private final LocalDateTime exportLowerBound;
@@ -63,17 +70,18 @@ public class WebhookBackupTask implements Runnable
     private final LocalDateTime exportUpperBound;
 
     WebhookBackupTask(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final String exportRunMode)
+        final HttpClientService httpClient, final String exportRunMode)
     {
-        this(resolverFactory, rrp, exportRunMode, null, null);
+        this(resolverFactory, rrp, httpClient, exportRunMode, null, null);
     }
 
     WebhookBackupTask(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final String exportRunMode,
+        final HttpClientService httpClient, final String exportRunMode,
         final LocalDateTime exportLowerBound, final LocalDateTime exportUpperBound)
     {
         this.resolverFactory = resolverFactory;
         this.rrp = rrp;
+        this.httpClient = httpClient;
         this.exportRunMode = exportRunMode;
         this.exportLowerBound = exportLowerBound;
         this.exportUpperBound = exportUpperBound;
@@ -90,6 +98,31 @@ public void run()
         } else if ("manualBetween".equals(this.exportRunMode)) {
             LOGGER.info("Executing Manual Data Export");
             doManualExport(this.exportLowerBound, this.exportUpperBound);
+        } else if ("incremental".equals(this.exportRunMode)) {
+            doIncrementalExport();
+        }
+    }
+
+    /*
+     * Back up only what changed since the last incremental backup, see IncrementalBackup.
+     */
+    public void doIncrementalExport()
+    {
+        final String backupWebhookUrl = System.getenv("BACKUP_WEBHOOK_URL");
+        if (backupWebhookUrl == null) {
+            LOGGER.error("BACKUP_WEBHOOK_URL is undefined. Cannot run webhook backup.");
+            return;
+        }
+        LOGGER.info("Incremental backup started");
+        postToSlack(":large_yellow_circle: Incremental backup started. :large_yellow_circle:");
+        try {
+            final String summary =
+                new IncrementalBackup(this.resolverFactory, this.rrp, this.httpClient, backupWebhookUrl).run();
+            LOGGER.info("Incremental backup finished: {}", summary);
+            postToSlack(":large_green_circle: Incremental backup finished: " + summary + ". :large_green_circle:");
+        } catch (IOException e) {
+            LOGGER.error("Incremental backup failed: {}", e.getMessage(), e);
+            postToSlack(":red_circle: Incremental backup failed. :red_circle:");
         }
     }
 
@@ -115,19 +148,22 @@ public void doManualExport(LocalDateTime lower, LocalDateTime upper)
             sendStringListSet(subjectList, "SubjectListBackup");
             sendStringListSet(formList, "FormListBackup");
 
-            // Iterate through all Form nodes that were changed within the given timeframe and back them up
+            // Iterate through all Form nodes that were changed within the given timeframe and back them up.
+            // The uploads run in the background while the next nodes are serialized.
+            final List<CompletableFuture<HttpResponse>> uploads = new ArrayList<>();
             Set<String> changedFormList = getChangedFormsBounded(requestDateStringLower, requestDateStringUpper);
             for (String formPath : changedFormList) {
                 String formData = getFormAsJson(formPath);
-                this.output(formData, "/FormBackup" + formPath);
+                this.output(formData, "/FormBackup" + formPath, uploads);
             }
 
             // Iterate through all Subject nodes that were changed within the given timeframe and back them up
             Set<String> changedSubjectList = getChangedSubjectsBounded(requestDateStringLower, requestDateStringUpper);
             for (String subjectPath : changedSubjectList) {
                 String subjectData = getSubjectAsJson(subjectPath);
-                this.output(subjectData, "/SubjectBackup" + subjectPath);
+                this.output(subjectData, "/SubjectBackup" + subjectPath, uploads);
             }
+            checkUploads(uploads);
         } catch (IOException e) {
             LOGGER.info("Backup failed for jcr:lastModified >= {} && jcr:lastModified < {}", lower, upper);
             postToSlack(generateBackupStatus(lower, upper, "failed", ":red_circle:"));
@@ -257,35 +293,50 @@ private String getSubjectAsJson(String subjectPath) throws IOException
     private void sendStringListSet(Set<List<String>> set, String pathname) throws IOException
     {
         final String backupWebhookUrl = System.getenv("BACKUP_WEBHOOK_URL");
-        JsonArrayBuilder jsonSetBuilder = Json.createArrayBuilder();
-        Iterator<List<String>> setIterator = set.iterator();
-        while (setIterator.hasNext()) {
-            List<String> thisElement = setIterator.next();
-            Iterator<String> listIterator = thisElement.iterator();
-            JsonArrayBuilder jsonInnerSetBuilder = Json.createArrayBuilder();
-            while (listIterator.hasNext()) {
-                jsonInnerSetBuilder.add(listIterator.next());
-            }
-            jsonSetBuilder.add(jsonInnerSetBuilder);
-        }
-        HttpResponse webhookResp = HttpRequests.doHttpPost(
+        // Stream the list to the server instead of building the whole JSON string in memory first
+        HttpResponse webhookResp = this.httpClient.post(
             backupWebhookUrl + "/" + pathname,
-            jsonSetBuilder.build().toString(),
+            out -> {
+                try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    JsonGenerator generator = Json.createGenerator(writer)) {
+                    generator.writeStartArray();
+                    for (List<String> element : set) {
+                        generator.writeStartArray();
+                        element.forEach(generator::write);
+                        generator.writeEnd();
+                    }
+                    generator.writeEnd();
+                }
+            },
             "application/json"
         );
-        if (webhookResp.getStatusCode() < 200 || webhookResp.getStatusCode() > 299) {
-            throw new IOException("Backup server responded with a non-ok status code");
-        }
+        checkStatus(webhookResp);
     }
 
-    private void output(String input, String filename) throws IOException
+    private void output(String input, String filename, List<CompletableFuture<HttpResponse>> uploads)
     {
         final String backupWebhookUrl = System.getenv("BACKUP_WEBHOOK_URL");
         if (backupWebhookUrl == null) {
             LOGGER.error("BACKUP_WEBHOOK_URL is undefined. Cannot run webhook backup.");
             return;
         }
-        HttpResponse webhookResp = HttpRequests.doHttpPost(backupWebhookUrl + filename, input, "application/json");
+        uploads.add(this.httpClient.postAsync(backupWebhookUrl + filename,
+            out -> out.write(input.getBytes(StandardCharsets.UTF_8)), "application/json"));
+    }
+
+    private void checkUploads(List<CompletableFuture<HttpResponse>> uploads) throws IOException
+    {
+        for (CompletableFuture<HttpResponse> upload : uploads) {
+            try {
+                checkStatus(upload.join());
+            } catch (CompletionException e) {
+                throw new IOException("Failed to send data to the backup server", e.getCause());
+            }
+        }
+    }
+
+    private void checkStatus(HttpResponse webhookResp) throws IOException
+    {
         if (webhookResp.getStatusCode() < 200 || webhookResp.getStatusCode() > 299) {
             throw new IOException("Backup server responded with a non-ok status code");
         }
@@ -304,7 +355,7 @@ private void postToSlack(String msg)
             JsonObject slackApiReq = Json.createObjectBuilder()
                 .add("text", msg)
                 .build();
-            HttpRequests.getPostResponse(slackNotificationsUrl, slackApiReq.toString(), "application/json");
+            this.httpClient.post(slackNotificationsUrl, slackApiReq.toString(), "application/json");
         } catch (IOException e) {
             LOGGER.warn("Failed to send webhook backup notification to Slack");
         }
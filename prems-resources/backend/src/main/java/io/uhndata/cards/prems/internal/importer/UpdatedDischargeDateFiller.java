@@ -49,8 +49,6 @@ public class UpdatedDischargeDateFiller extends AbstractClarityDataProcessor imp
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(UpdatedDischargeDateFiller.class);
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-
     private final int pastDaysLimit;
 
     @ObjectClassDefinition(name = "Clarity import filter - Update discharge date",
@@ -78,16 +76,17 @@ public UpdatedDischargeDateFiller(Config config)
     public Map<String, String> processEntry(final Map<String, String> input)
     {
         try {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
             final Calendar discharge = Calendar.getInstance();
             final Calendar cutoff = Calendar.getInstance();
             cutoff.add(Calendar.DATE, -this.pastDaysLimit);
-            discharge.setTime(DATE_FORMAT.parse(input.getOrDefault("HOSP_DISCHARGE_DTTM", "")));
+            discharge.setTime(dateFormat.parse(input.getOrDefault("HOSP_DISCHARGE_DTTM", "")));
             final long length = ChronoUnit.DAYS.between(cutoff.toInstant(), discharge.toInstant());
             if (length < 0) {
-                input.put("HOSP_DISCHARGE_DTTM", DATE_FORMAT.format(cutoff.getTime()));
+                input.put("HOSP_DISCHARGE_DTTM", dateFormat.format(cutoff.getTime()));
                 LOGGER.warn("Updated visit {} discharge date from {} to {}",
                     input.getOrDefault("/SubjectTypes/Patient/Visit", "Unknown"),
-                    DATE_FORMAT.format(discharge.getTime()), DATE_FORMAT.format(cutoff.getTime()));
+                    dateFormat.format(discharge.getTime()), dateFormat.format(cutoff.getTime()));
             }
         } catch (ParseException | NullPointerException e) {
             // We don't do anything if the date is missing or malformed